@@ -29,8 +29,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import ee.sk.utils.Base64Util;
-import ee.sk.utils.ConvertUtils;
 import ee.sk.utils.DDUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Models the ETSI <Cert> element Holds info about a certificate but not the
@@ -386,70 +386,81 @@ public class CertID implements Serializable {
     public byte[] toXML() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            // IS FIX CACERT (BDOC writes only cacert)
-            if ((signature.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC) && (type == CertID.CERTID_TYPE_CA))
-                    || (!signature.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC))) {
-
-                if (signature.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3)
-                        || signature.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_4) 
-                        || signature.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
-                    bos.write(ConvertUtils.str2data("<Cert>"));
-                } else {
-                    bos.write(ConvertUtils.str2data("<Cert Id=\""));
-                    bos.write(ConvertUtils.str2data(id));
-                    bos.write(ConvertUtils.str2data("\">"));
-                }
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Writes the CertID in XML form
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w) throws IOException {
+        // IS FIX CACERT (BDOC writes only cacert)
+        if ((signature.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC) && (type == CertID.CERTID_TYPE_CA))
+                || (!signature.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC))) {
+
+            if (signature.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3)
+                    || signature.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_4) 
+                    || signature.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
+                w.write("<Cert>");
+            } else {
+                w.write("<Cert Id=\"");
+                w.writeAttribute(id);
+                w.write("\">");
+            }
 
-                bos.write(ConvertUtils.str2data("\n<CertDigest>\n<DigestMethod Algorithm=\""));
-                bos.write(ConvertUtils.str2data(digestAlgorithm));
-                bos.write(ConvertUtils.str2data("\" xmlns=\""));
-                bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_XMLDSIG));
-                bos.write(ConvertUtils.str2data("\">\n</DigestMethod>\n<DigestValue xmlns=\""));
-                bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_XMLDSIG));
-                bos.write(ConvertUtils.str2data("\">"));
-                bos.write(ConvertUtils.str2data(Base64Util.encode(digestValue, 0)));
-                bos.write(ConvertUtils.str2data("</DigestValue>\n</CertDigest>\n"));
-
-                if (signature.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3)
-                        || signature.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_4) 
-                        || signature.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
-
-                    bos.write(ConvertUtils.str2data("<IssuerSerial>"));
-                    bos.write(ConvertUtils.str2data("\n<X509IssuerName xmlns=\""));
-                    bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_XMLDSIG));
-                    bos.write(ConvertUtils.str2data("\">"));
-                    
-                    // IS FIX emailAddress
-                    if (signature.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
-                        if (issuerDN.indexOf("E=") != -1) {
-                            issuerDN = issuerDN.replace("E=", "emailAddress=");
-                        }
-                        if (issuerDN.indexOf("OID.1.2.840.113549.1.9.1=") != -1) {
-                            issuerDN = issuerDN.replace("OID.1.2.840.113549.1.9.1=", "emailAddress=");
-                        }
+            w.write("\n<CertDigest>\n<DigestMethod Algorithm=\"");
+            w.writeAttribute(digestAlgorithm);
+            w.write("\" xmlns=\"");
+            w.write(SignedDoc.XMLNS_XMLDSIG);
+            w.write("\">\n</DigestMethod>\n<DigestValue xmlns=\"");
+            w.write(SignedDoc.XMLNS_XMLDSIG);
+            w.write("\">");
+            w.writeBase64(digestValue, 0);
+            w.write("</DigestValue>\n</CertDigest>\n");
+
+            if (signature.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3)
+                    || signature.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_4) 
+                    || signature.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
+
+                w.write("<IssuerSerial>");
+                w.write("\n<X509IssuerName xmlns=\"");
+                w.write(SignedDoc.XMLNS_XMLDSIG);
+                w.write("\">");
+                
+                // IS FIX emailAddress
+                if (signature.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
+                    if (issuerDN.indexOf("E=") != -1) {
+                        issuerDN = issuerDN.replace("E=", "emailAddress=");
+                    }
+                    if (issuerDN.indexOf("OID.1.2.840.113549.1.9.1=") != -1) {
+                        issuerDN = issuerDN.replace("OID.1.2.840.113549.1.9.1=", "emailAddress=");
                     }
-                    
-                    bos.write(ConvertUtils.str2data(issuerDN));
-                    bos.write(ConvertUtils.str2data("</X509IssuerName>"));
-                    bos.write(ConvertUtils.str2data("\n<X509SerialNumber xmlns=\""));
-                    bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_XMLDSIG));
-                    bos.write(ConvertUtils.str2data("\">"));
-                    bos.write(ConvertUtils.str2data(issuerSerialNumber.toString()));
-                    bos.write(ConvertUtils.str2data("</X509SerialNumber>\n"));
-                    bos.write(ConvertUtils.str2data("</IssuerSerial>\n"));
-                } else { // in prior versions we used wrong <IssuerSerial> content
-                    bos.write(ConvertUtils.str2data("<IssuerSerial>"));
-                    bos.write(ConvertUtils.str2data(issuerSerialNumber.toString()));
-                    bos.write(ConvertUtils.str2data("</IssuerSerial>\n"));
                 }
                 
-                bos.write(ConvertUtils.str2data("</Cert>"));
+                w.writeText(issuerDN);
+                w.write("</X509IssuerName>");
+                w.write("\n<X509SerialNumber xmlns=\"");
+                w.write(SignedDoc.XMLNS_XMLDSIG);
+                w.write("\">");
+                w.write(issuerSerialNumber.toString());
+                w.write("</X509SerialNumber>\n");
+                w.write("</IssuerSerial>\n");
+            } else { // in prior versions we used wrong <IssuerSerial> content
+                w.write("<IssuerSerial>");
+                w.write(issuerSerialNumber.toString());
+                w.write("</IssuerSerial>\n");
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            
+            w.write("</Cert>");
         }
-        
-        return bos.toByteArray();
     }
 
     @Override
@@ -26,8 +26,11 @@ import java.io.Serializable;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 
-import ee.sk.utils.Base64Util;
-import ee.sk.utils.ConvertUtils;
+import org.bouncycastle.asn1.ASN1Object;
+import org.bouncycastle.asn1.x509.X509CertificateStructure;
+
+import ee.sk.utils.DDUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Models the ETSI <X509Certificate> and <EncapsulatedX509Certificate> elements.
@@ -45,7 +48,11 @@ public class CertValue implements Serializable {
 
     private int type = CERTVAL_TYPE_UNKNOWN;
 
-    private X509Certificate certificate;
+    /** DER encoding of the certificate as read from XML */
+    private byte[] certData;
+
+    /** decoded certificate, created on first access if read from XML */
+    private volatile X509Certificate certificate;
 
     /** possible cert value type values */
     public static final int CERTVAL_TYPE_UNKNOWN = 0;
@@ -105,51 +112,118 @@ public class CertValue implements Serializable {
         return ex;
     }
 
+    /**
+     * Accessor for the certificate. If this object was read from XML then the
+     * certificate is decoded from it's DER form on first access only. The
+     * structure of the DER data has been checked by setCertData() already.
+     * 
+     * @return certificate or null if not set
+     * @throws IllegalStateException
+     *             if the checked DER data still cannot be decoded
+     */
     public X509Certificate getCert() {
-        return certificate;
+        X509Certificate cert = certificate;
+        if (cert == null && certData != null) {
+            synchronized (this) {
+                cert = certificate;
+                if (cert == null) {
+                    try {
+                        cert = DDUtils.readCertificate(certData);
+                    } catch (DigiDocException ex) {
+                        throw new IllegalStateException("Cannot decode certificate " + id, ex);
+                    }
+                    certificate = cert;
+                }
+            }
+        }
+        return cert;
     }
 
-    public void setCert(X509Certificate cert) {
+    public synchronized void setCert(X509Certificate cert) {
         certificate = cert;
+        certData = null;
+    }
+
+    /**
+     * Accessor for the DER encoding of the certificate
+     * 
+     * @return DER encoded certificate or null if not set
+     */
+    public byte[] getCertData() {
+        if (certData != null) {
+            return certData;
+        }
+        X509Certificate cert = certificate;
+        if (cert == null) {
+            return null;
+        }
+        try {
+            return cert.getEncoded();
+        } catch (CertificateEncodingException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
-     * Converts the CompleteCertificateRefs to XML form
+     * Mutator for the DER encoding of the certificate. Only the ASN.1 structure
+     * of the data is checked here, the certificate object itself will be
+     * created only when requested by getCert()
      * 
-     * @return XML representation of CompleteCertificateRefs
+     * @param data
+     *            DER encoded certificate
+     * @throws DigiDocException
+     *             if the data is not a DER encoded certificate
+     */
+    public synchronized void setCertData(byte[] data) throws DigiDocException {
+        try {
+            X509CertificateStructure.getInstance(ASN1Object.fromByteArray(data));
+        } catch (Exception ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_READ_CERT);
+        }
+        certData = data;
+        certificate = null;
+    }
+
+    /**
+     * Converts the CertValue to XML form
+     * 
+     * @return XML representation of CertValue
      */
     public byte[] toXML() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            if (type == CERTVAL_TYPE_SIGNER) {
-                bos.write(ConvertUtils.str2data("<X509Certificate>"));
-                try {
-                    bos.write(ConvertUtils.str2data(Base64Util.encode(certificate.getEncoded(), 64)));
-                } catch (CertificateEncodingException e) {
-                    throw new RuntimeException(e);
-                }
-                bos.write(ConvertUtils.str2data("</X509Certificate>"));
-            }
-            if (type == CERTVAL_TYPE_RESPONDER || type == CERTVAL_TYPE_TSA ||
-            // IS FIX CACERT
-                    type == CERTVAL_TYPE_CA) {
-                bos.write(ConvertUtils.str2data("<EncapsulatedX509Certificate Id=\""));
-                bos.write(ConvertUtils.str2data(id));
-                bos.write(ConvertUtils.str2data("\">\n"));
-                try {
-                    bos.write(ConvertUtils.str2data(Base64Util.encode(certificate.getEncoded(), 64)));
-                } catch (CertificateEncodingException e) {
-                    throw new RuntimeException(e);
-                }
-                bos.write(ConvertUtils.str2data("</EncapsulatedX509Certificate>\n"));
-
-            }
-        } catch (IOException ex) {
-            throw new RuntimeException();
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
         return bos.toByteArray();
     }
 
+    /**
+     * Writes the CertValue in XML form
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w) throws IOException {
+        if (type == CERTVAL_TYPE_SIGNER) {
+            w.write("<X509Certificate>");
+            w.writeBase64(getCertData(), 64);
+            w.write("</X509Certificate>");
+        }
+        if (type == CERTVAL_TYPE_RESPONDER || type == CERTVAL_TYPE_TSA ||
+        // IS FIX CACERT
+                type == CERTVAL_TYPE_CA) {
+            w.write("<EncapsulatedX509Certificate Id=\"");
+            w.writeAttribute(id);
+            w.write("\">\n");
+            w.writeBase64(getCertData(), 64);
+            w.write("</EncapsulatedX509Certificate>\n");
+        }
+    }
+
     /**
      * Returns the stringified form of CompleteCertificateRefs
      * 
@@ -29,7 +29,7 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
 
-import ee.sk.utils.ConvertUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Models the ETSI CompleteCertificateRefs element
@@ -300,33 +300,45 @@ public class CompleteCertificateRefs implements Serializable {
     public byte[] toXML() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            bos.write(ConvertUtils.str2data("<CompleteCertificateRefs>"));
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bos.toByteArray();
+    }
 
-            if (unsignedProperties.getSignature().getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3)
-                    || unsignedProperties.getSignature().getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_4) 
-                    || unsignedProperties.getSignature().getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
-                bos.write(ConvertUtils.str2data("<CertRefs>\n"));
-            }
+    /**
+     * Writes the CompleteCertificateRefs in XML form
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w) throws IOException {
+        w.write("<CompleteCertificateRefs>");
 
-            for (int i = 0; i < countCertIDs(); i++) {
-                CertID cid = getCertID(i);
-                if (cid.getType() != CertID.CERTID_TYPE_SIGNER) {
-                    bos.write(cid.toXML());
-                    bos.write(ConvertUtils.str2data("\n"));
-                }
-            }
+        if (unsignedProperties.getSignature().getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3)
+                || unsignedProperties.getSignature().getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_4) 
+                || unsignedProperties.getSignature().getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
+            w.write("<CertRefs>\n");
+        }
 
-            if (unsignedProperties.getSignature().getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3)
-                    || unsignedProperties.getSignature().getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_4) 
-                    || unsignedProperties.getSignature().getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
-                bos.write(ConvertUtils.str2data("</CertRefs>"));
+        for (int i = 0; i < countCertIDs(); i++) {
+            CertID cid = getCertID(i);
+            if (cid.getType() != CertID.CERTID_TYPE_SIGNER) {
+                cid.writeXML(w);
+                w.write("\n");
             }
-            
-            bos.write(ConvertUtils.str2data("</CompleteCertificateRefs>"));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
-        return bos.toByteArray();
+
+        if (unsignedProperties.getSignature().getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3)
+                || unsignedProperties.getSignature().getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_4) 
+                || unsignedProperties.getSignature().getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
+            w.write("</CertRefs>");
+        }
+        
+        w.write("</CompleteCertificateRefs>");
     }
 
     /**
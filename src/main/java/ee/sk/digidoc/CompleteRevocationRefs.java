@@ -28,9 +28,9 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
-import ee.sk.utils.Base64Util;
 import ee.sk.utils.ConvertUtils;
 import ee.sk.utils.DDUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Models the ETSI CompleteRevocationRefs element This contains some data from
@@ -363,46 +363,57 @@ public class CompleteRevocationRefs implements Serializable {
     public byte[] toXML() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            bos.write(ConvertUtils.str2data("<CompleteRevocationRefs>\n"));
-            bos.write(ConvertUtils.str2data("<OCSPRefs>\n<OCSPRef>\n"));
-            bos.write(ConvertUtils.str2data("<OCSPIdentifier URI=\""));
-            bos.write(ConvertUtils.str2data(uri));
-            bos.write(ConvertUtils.str2data("\">\n<ResponderID>"));
-
-            if (unsignedProps.getSignature().getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
-                bos.write(ConvertUtils.str2data("<ByName>\n"));
-                if (responderId.indexOf("byName: ") != -1) {
-                    responderId = responderId.replace("byName: ", "");
-                }
-                if (responderId.indexOf("E=") != -1) {
-                    responderId = responderId.replace("E=", "emailAddress=");
-                }
-                bos.write(ConvertUtils.str2data(responderId));
-                bos.write(ConvertUtils.str2data("</ByName>"));
-            } else {
-                bos.write(ConvertUtils.str2data(responderId));
-            }
-
-            bos.write(ConvertUtils.str2data("</ResponderID>\n<ProducedAt>"));
-            bos.write(ConvertUtils.str2data(ConvertUtils.date2string(producedAt, unsignedProps.getSignature().getSignedDoc())));
-            bos.write(ConvertUtils.str2data("</ProducedAt>\n</OCSPIdentifier>\n<DigestAlgAndValue>\n<DigestMethod Algorithm=\""));
-            bos.write(ConvertUtils.str2data(digestAlgorithm));
-            bos.write(ConvertUtils.str2data("\" xmlns=\""));
-            bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_XMLDSIG));
-            bos.write(ConvertUtils.str2data("\"></DigestMethod>\n<DigestValue xmlns=\""));
-            bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_XMLDSIG));
-            bos.write(ConvertUtils.str2data("\">"));
-            bos.write(ConvertUtils.str2data(Base64Util.encode(digestValue, 0)));
-            bos.write(ConvertUtils.str2data("</DigestValue>\n</DigestAlgAndValue>"));
-            bos.write(ConvertUtils.str2data("</OCSPRef>\n</OCSPRefs>\n"));
-            bos.write(ConvertUtils.str2data("</CompleteRevocationRefs>"));
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        
         return bos.toByteArray();
     }
 
+    /**
+     * Writes the CompleteRevocationRefs in XML form
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w) throws IOException {
+        w.write("<CompleteRevocationRefs>\n");
+        w.write("<OCSPRefs>\n<OCSPRef>\n");
+        w.write("<OCSPIdentifier URI=\"");
+        w.writeAttribute(uri);
+        w.write("\">\n<ResponderID>");
+
+        if (unsignedProps.getSignature().getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
+            w.write("<ByName>\n");
+            if (responderId.indexOf("byName: ") != -1) {
+                responderId = responderId.replace("byName: ", "");
+            }
+            if (responderId.indexOf("E=") != -1) {
+                responderId = responderId.replace("E=", "emailAddress=");
+            }
+            w.writeText(responderId);
+            w.write("</ByName>");
+        } else {
+            w.writeText(responderId);
+        }
+
+        w.write("</ResponderID>\n<ProducedAt>");
+        w.write(ConvertUtils.date2string(producedAt, unsignedProps.getSignature().getSignedDoc()));
+        w.write("</ProducedAt>\n</OCSPIdentifier>\n<DigestAlgAndValue>\n<DigestMethod Algorithm=\"");
+        w.writeAttribute(digestAlgorithm);
+        w.write("\" xmlns=\"");
+        w.write(SignedDoc.XMLNS_XMLDSIG);
+        w.write("\"></DigestMethod>\n<DigestValue xmlns=\"");
+        w.write(SignedDoc.XMLNS_XMLDSIG);
+        w.write("\">");
+        w.writeBase64(digestValue, 0);
+        w.write("</DigestValue>\n</DigestAlgAndValue>");
+        w.write("</OCSPRef>\n</OCSPRefs>\n");
+        w.write("</CompleteRevocationRefs>");
+    }
+
     @Override
     public String toString() {
         return new String(toXML());
@@ -28,10 +28,12 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.Reader;
 import java.io.Serializable;
 import java.security.MessageDigest;
 import java.util.ArrayList;
@@ -48,11 +50,20 @@ import javax.xml.transform.stream.StreamResult;
 import org.apache.log4j.Logger;
 import org.w3c.dom.Node;
 
+import ee.sk.digidoc.metrics.Metrics;
 import ee.sk.digidoc.services.CanonicalizationService;
 import ee.sk.digidoc.services.TinyXMLCanonicalizationServiceImpl;
+import ee.sk.digidoc.store.BodySink;
+import ee.sk.digidoc.store.BodyStore;
+import ee.sk.digidoc.store.ContentAddressedBodyStore;
+import ee.sk.digidoc.store.DiskBody;
+import ee.sk.digidoc.store.StoredBody;
+import ee.sk.digidoc.store.TieredBodyStore;
 import ee.sk.utils.Base64InputStream;
 import ee.sk.utils.Base64Util;
+import ee.sk.utils.CharsetTranscoder;
 import ee.sk.utils.ConvertUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Represents a DataFile instance, that either contains payload data or
@@ -110,8 +121,10 @@ public class DataFile implements Serializable {
     private static int BLOCK_SIZE = 2048;
 
     private static final transient Logger LOG = Logger.getLogger(DataFile.class);
-    /** temp file used to cache DataFile data if caching is enabled */
-    private File m_fDfCache;
+    /** DataFile data kept outside of the heap, off-heap or in a temp file */
+    private StoredBody m_body;
+    /** store for data exceeding the heap limit, default store if null */
+    private transient BodyStore m_bodyStore;
     // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
     /** in BDOC's case datafile is in container */
     private ZipEntry m_ZipEntry;
@@ -119,7 +132,11 @@ public class DataFile implements Serializable {
     private ZipFile m_BDOCcontainer;
 
     private final boolean bUse64ByteLines = true;
-    private long lMaxDfCached = 4096; // TODO really needed to configure it?
+
+    /** offset of the <DataFile> element in the file it was read from, -1 if unknown */
+    private long m_sourceOffset = -1;
+    /** length of the <DataFile> element in the file it was read from */
+    private long m_sourceLength;
 
     private final transient CanonicalizationService canonicalizationService = new TinyXMLCanonicalizationServiceImpl();
 
@@ -199,22 +216,51 @@ public class DataFile implements Serializable {
      * Accessor for temp file object used to cache DataFile data if caching is
      * enabled.
      * 
-     * @return temp file object used to cache DataFile data
+     * @return temp file object used to cache DataFile data, null if the data
+     *         is not cached on disk
      */
     public File getDfCacheFile() {
-        return m_fDfCache;
+        return (m_body != null) ? m_body.getFile() : null;
     }
 
     /**
-     * Removes temporary DataFile cache file
+     * Checks if the data is kept by the body store instead of the heap
+     * 
+     * @return true if the data is cached off-heap or in a temp file
+     */
+    public boolean hasCachedBody() {
+        return m_body != null;
+    }
+
+    /**
+     * Accessor for the store used for data exceeding the heap limit
+     * 
+     * @return body store
+     */
+    public BodyStore getBodyStore() {
+        return (m_bodyStore != null) ? m_bodyStore : TieredBodyStore.getDefault();
+    }
+
+    /**
+     * Mutator for the store used for data exceeding the heap limit
+     * 
+     * @param store
+     *            body store, null for the default store
+     */
+    public void setBodyStore(BodyStore store) {
+        m_bodyStore = store;
+    }
+
+    /**
+     * Removes temporary DataFile cache file or off-heap data
      */
     public void cleanupDfCache() {
-        if (m_fDfCache != null) {
+        if (m_body != null) {
             if (LOG.isDebugEnabled())
-                LOG.debug("Removing cache file for df: " + m_fDfCache.getAbsolutePath());
-            m_fDfCache.delete();
+                LOG.debug("Removing cache for df: " + id + " " + m_body);
+            m_body.release();
         }
-        m_fDfCache = null;
+        m_body = null;
     }
 
     /**
@@ -224,9 +270,9 @@ public class DataFile implements Serializable {
      * @return value of body attribute
      */
     public byte[] getBody() throws DigiDocException {
-        if (m_fDfCache != null) {
+        if (m_body != null) {
             try {
-                byte[] data = DataFile.readFile(m_fDfCache);
+                byte[] data = m_body.toByteArray();
                 
                 if (contentType.equals(CONTENT_EMBEDDED_BASE64)) {
                     data = Base64Util.decode(data);
@@ -264,7 +310,7 @@ public class DataFile implements Serializable {
 
     /**
      * Sets DataFile contents from an input stream. This method allways uses
-     * temporary files to read out the input stream first in order to determine
+     * the body store to read out the input stream first in order to determine
      * the size of data. Caller can close the stream after invoking this method
      * because data has been copied. Data is not yet converted to base64 (if
      * required) nor is the hash code calculated at this point. Please not that
@@ -276,31 +322,92 @@ public class DataFile implements Serializable {
      *            input stream delivering the data
      */
     public void setBodyFromStream(InputStream is) throws DigiDocException {
-        // copy data to temp file
+        // copy data to the body store
         try {
-            File fCacheDir = new File(System.getProperty("java.io.tmpdir"));
-            String dfId = new Long(System.currentTimeMillis()).toString();
-            m_fDfCache = File.createTempFile(dfId, ".df", fCacheDir);
-            FileOutputStream fos = new FileOutputStream(m_fDfCache);
+            cleanupDfCache();
+            BodySink sink = getBodyStore().create(-1);
             origBody = null;
-            byte[] data = new byte[2048];
-            int nRead = 0;
-            size = 0;
-            do {
-                nRead = is.read(data);
-                if (nRead > 0) {
-                    fos.write(data, 0, nRead);
-                    size += nRead;
-                }
-            } while (nRead > 0);
-            fos.close();
+            try {
+                byte[] data = new byte[8192];
+                int nRead = 0;
+                size = 0;
+                do {
+                    nRead = is.read(data);
+                    if (nRead > 0) {
+                        sink.write(data, 0, nRead);
+                        size += nRead;
+                    }
+                } while (nRead > 0);
+                m_body = sink.finish();
+            } finally {
+                sink.close();
+            }
             if (LOG.isDebugEnabled())
-                LOG.debug("DF: " + id + " size: " + size + " cache-file: " + m_fDfCache.getAbsolutePath());
+                LOG.debug("DF: " + id + " size: " + size + " cache: " + m_body);
         } catch (IOException ex) {
             DigiDocException.handleException(ex, DigiDocException.ERR_WRITE_FILE);
         }
     }
 
+    /**
+     * Uses a body that is already stored, e.g. a body of a
+     * {@link ContentAddressedBodyStore}, as the DataFile contents without
+     * copying it. Like {@link #setBodyFromStream(InputStream)} the body is
+     * taken as is and the size is set to its length.
+     * 
+     * @param body
+     *            stored body, retained by this DataFile
+     */
+    public void setStoredBody(StoredBody body) {
+        cleanupDfCache();
+        origBody = null;
+        m_body = body.retain();
+        size = body.length();
+    }
+
+    /**
+     * Records where the &lt;DataFile&gt; element of this DataFile is in the
+     * file it was read from. Set when the content was skipped while reading.
+     * 
+     * @param offset
+     *            byte offset of the start tag
+     * @param length
+     *            byte length of the element including the end tag
+     */
+    public void setSourceRange(long offset, long length) {
+        m_sourceOffset = offset;
+        m_sourceLength = length;
+    }
+
+    /**
+     * Accessor for the offset of the &lt;DataFile&gt; element in the file it
+     * was read from
+     * 
+     * @return byte offset or -1 if not known
+     */
+    public long getSourceOffset() {
+        return m_sourceOffset;
+    }
+
+    /**
+     * Accessor for the length of the &lt;DataFile&gt; element in the file it
+     * was read from
+     * 
+     * @return byte length including the start and end tag
+     */
+    public long getSourceLength() {
+        return m_sourceLength;
+    }
+
+    /**
+     * Checks if the document was read without the content of this DataFile
+     * 
+     * @return true if only the attributes and source range are known
+     */
+    public boolean isContentSkipped() {
+        return m_sourceOffset >= 0 && m_body == null && origBody == null;
+    }
+
     /**
      * Accessor for body attribute. Returns the body as a string. Takes in
      * account the initial codepage. usable only for EMBEDDED type of documents
@@ -312,16 +419,20 @@ public class DataFile implements Serializable {
     public String getBodyAsString() throws DigiDocException {
         String str = null;
         
-        if (m_fDfCache != null) {
+        if (m_body != null) {
             try {
-                byte[] data = DataFile.readFile(m_fDfCache);
+                InputStream is = null;
 
                 if (contentType.equals(CONTENT_EMBEDDED)) {
-                    str = ConvertUtils.data2str(data, codepage);
+                    is = m_body.openStream();
                 }
 
                 if (contentType.equals(CONTENT_EMBEDDED_BASE64)) {
-                    str = ConvertUtils.data2str(Base64Util.decode(data), codepage);
+                    is = new Base64InputStream(m_body.openStream());
+                }
+
+                if (is != null) {
+                    str = readString(is, codepage);
                 }
 
             } catch (Exception ex) {
@@ -349,9 +460,9 @@ public class DataFile implements Serializable {
      */
     public byte[] getBodyAsData() throws DigiDocException {
         byte[] data = null;
-        if (m_fDfCache != null) {
+        if (m_body != null) {
             try {
-                data = DataFile.readFile(m_fDfCache);
+                data = m_body.toByteArray();
 
                 if (contentType.equals(CONTENT_EMBEDDED_BASE64)) {
                     data = Base64Util.decode(data);
@@ -382,12 +493,12 @@ public class DataFile implements Serializable {
     public InputStream getBodyAsStream() throws DigiDocException {
         InputStream strm = null;
         
-        if (m_fDfCache != null) {
+        if (m_body != null) {
             try {
                 if (contentType.equals(CONTENT_EMBEDDED))
-                    strm = new FileInputStream(m_fDfCache);
+                    strm = m_body.openStream();
                 if (contentType.equals(CONTENT_EMBEDDED_BASE64))
-                    strm = new Base64InputStream(new FileInputStream(m_fDfCache));
+                    strm = new Base64InputStream(m_body.openStream());
             } catch (Exception ex) {
                 DigiDocException.handleException(ex, DigiDocException.ERR_READ_FILE);
             }
@@ -410,13 +521,13 @@ public class DataFile implements Serializable {
     }
 
     /**
-     * Checks if this DataFile object schould use a temp file to store it's data
-     * because of memory cache size limitation
+     * Checks if this DataFile object schould use the body store instead of
+     * the heap to store it's data because of memory cache size limitation
      * 
-     * @return true if this object schould use temp file
+     * @return true if this object schould use the body store
      */
     public boolean schouldUseTempFile() {
-        return (size > lMaxDfCached);
+        return !getBodyStore().keepOnHeap(size);
     }
 
     /**
@@ -424,29 +535,63 @@ public class DataFile implements Serializable {
      * 
      * @return new temporary file object
      * @throws IOException
+     * @deprecated use {@link #openCacheStream()}, which keeps medium sized
+     *             data off the filesystem
      */
     public File createCacheFile() throws IOException {
-        m_fDfCache = null;
+        cleanupDfCache();
         if (schouldUseTempFile()) {
-            File fCacheDir = new File(System.getProperty("java.io.tmpdir"));
-            String dfId = new Long(System.currentTimeMillis()).toString();
-            m_fDfCache = File.createTempFile(dfId, ".df", fCacheDir);
+            File fCache = getBodyStore().createTempFile();
+            m_body = new DiskBody(fCache);
+            return fCache;
         }
-        return m_fDfCache;
+        return null;
     }
 
     /**
-     * Helper method to store body in file if it exceeds the memory cache limit
+     * Opens a sink for caching the data of this DataFile in the body store.
+     * The cached data is attached to this DataFile by finish(), close()
+     * without finish() discards it.
+     * 
+     * @return cache sink
+     * @throws IOException
+     */
+    public BodySink openCacheStream() throws IOException {
+        cleanupDfCache();
+        final BodySink sink = getBodyStore().create(size);
+        return new BodySink() {
+            public void write(byte[] b, int off, int len) throws IOException {
+                sink.write(b, off, len);
+            }
+
+            public StoredBody finish() throws IOException {
+                m_body = sink.finish();
+                return m_body;
+            }
+
+            public void close() throws IOException {
+                sink.close();
+            }
+        };
+    }
+
+    /**
+     * Helper method to move body to the body store if it exceeds the memory
+     * cache limit
      * 
      * @throws IOException
      */
     private void storeInTempFile() throws IOException {
-        File f = createCacheFile();
-        if (f != null) {
-            FileOutputStream fos = new FileOutputStream(f);
-            fos.write(origBody);
-            fos.close();
-            // remove memory cache if stored in file
+        cleanupDfCache();
+        if (schouldUseTempFile()) {
+            BodySink sink = openCacheStream();
+            try {
+                sink.write(origBody);
+                sink.finish();
+            } finally {
+                sink.close();
+            }
+            // remove memory cache if stored in the body store
             origBody = null;
         }
     }
@@ -627,7 +772,10 @@ public class DataFile implements Serializable {
         DigiDocException ex = validateId(str, false);
         if (ex != null)
             throw ex;
+        boolean changed = (id == null) ? str != null : !id.equals(str);
         id = str;
+        if (changed && sigDoc != null)
+            sigDoc.dataFileIdChanged();
     }
 
     /**
@@ -807,6 +955,10 @@ public class DataFile implements Serializable {
      * @return value of digest attribute
      */
     public byte[] getDigest() throws DigiDocException {
+        if (origDigestValue == null && isContentSkipped()) {
+            throw new DigiDocException(DigiDocException.ERR_READ_FILE, "Content of DataFile " + id
+                    + " was not read, calculate the digest from the source range", null);
+        }
         if (origDigestValue == null) {
             calculateFileSizeAndDigest(null);
         }
@@ -1059,27 +1211,15 @@ public class DataFile implements Serializable {
         }
 
         MessageDigest sha = null;
+        long start = Metrics.start();
         try {
             sha = MessageDigest.getInstance("SHA-1");
 
             if (sigDoc.getFormat().equals(SignedDoc.FORMAT_BDOC)) {
-                byte[] tmp2 = getBytesFromFile();
-                if (tmp2 != null && tmp2.length > 0) {
-                    if (tmp2[0] == '<') {
-                        tmp2 = canonicalizeXml(tmp2);
-                    }
-
-                    if (tmp2 != null && tmp2.length > 0) {
-                        sha.update(tmp2);
-
-                        if (os != null) {
-                            os.write(tmp2);
-                        }
-                    }
-                }
-                
+                long len = calculateBdocDigest(sha, os);
                 byte[] digest = sha.digest();
                 setDigest(digest);
+                Metrics.record(Metrics.DATAFILE_DIGEST, start, len);
                 return;
             }
 
@@ -1102,8 +1242,8 @@ public class DataFile implements Serializable {
             BufferedInputStream bis = null;
 
             if (origBody == null && !contentType.equals(CONTENT_DETATCHED)) {
-                if (m_fDfCache != null) {
-                    bis = new BufferedInputStream(new FileInputStream(m_fDfCache));
+                if (m_body != null) {
+                    bis = new BufferedInputStream(m_body.openStream());
                 } else {
                     // Lauri L��s: bug when cache is located in other directory
                     // or changed the original DIGIDOC_DF_CACHE_DIR
@@ -1134,6 +1274,27 @@ public class DataFile implements Serializable {
             System.arraycopy(tmp1, 0, tmp2, 0, tmp2.length);
             sha.update(tmp2);
 
+            // a body from a content-addressed store may have been digested
+            // with the same attributes before
+            ContentAddressedBodyStore.ContentBody stored = null;
+            byte[] context = null;
+            if (origBody == null && m_body instanceof ContentAddressedBodyStore.ContentBody
+                    && ((ContentAddressedBodyStore.ContentBody) m_body).getStore() != null) {
+                stored = (ContentAddressedBodyStore.ContentBody) m_body;
+                context = ConvertUtils.str2data(contentType + "|" + codepage + "|"
+                        + Base64Util.encode(tmp2, 0));
+                byte[] known = (os == null) ? stored.getStore().getDigest(stored, context) : null;
+                if (known != null) {
+                    bis.close();
+                    setDigest(known);
+                    fileName = longFileName;
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("DataFile: \'" + getId() + "\' digest from body store");
+                    }
+                    return;
+                }
+            }
+
             if (os != null) {
                 os.write(tmp2);
             }
@@ -1147,18 +1308,23 @@ public class DataFile implements Serializable {
                 byte[] b64leftover = null;
                 int fRead = 0, b64left = 0;
                 ByteArrayOutputStream content = null;
+                CharsetTranscoder transcoder = null;
+                OutputStream embedded = null;
                 
                 if (contentType.equals(CONTENT_EMBEDDED_BASE64)) {
                     // optimization for 64 char base64 lines
                     // convert to base64 online at a time to conserve memory
                     // VS: DF temp file base64 decoding fix
-                    if (m_fDfCache == null) {
+                    if (m_body == null) {
                         if (bUse64ByteLines) {
                             b64leftover = new byte[65];
                         } else {
                             content = new ByteArrayOutputStream();
                         }
                     }
+                } else {
+                    transcoder = new CharsetTranscoder(codepage, "UTF-8");
+                    embedded = new EmbeddedContentSink(sbDig, sha, os);
                 }
 
                 // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
@@ -1170,7 +1336,7 @@ public class DataFile implements Serializable {
 
                     if (contentType.equals(CONTENT_EMBEDDED_BASE64)) {
                         // VS: DF temp file base64 decoding fix
-                        if (m_fDfCache != null) {
+                        if (m_body != null) {
                             os.write(buf, 0, fRead);
                             // VS: bug fix on 14.05.2008
                             sha.update(buf, 0, fRead);
@@ -1182,20 +1348,18 @@ public class DataFile implements Serializable {
                                 content.write(buf, 0, fRead);
                             }
                         }
-                    } else {
-                        if (fRead < buf.length) {
-                            tmp2 = new byte[fRead];
-                            System.arraycopy(buf, 0, tmp2, 0, fRead);
-                            tmp1 = ConvertUtils.data2utf8(tmp2, codepage);
-                        } else
-                            tmp1 = ConvertUtils.data2utf8(buf, codepage);
-                        sbDig.write(tmp1);
+                    } else if (fRead > 0) {
+                        transcoder.transcode(buf, 0, fRead, embedded);
                     }
                 } // end reading input file
+
+                if (transcoder != null) {
+                    transcoder.finish(embedded);
+                }
                 
                 if (contentType.equals(CONTENT_EMBEDDED_BASE64)) {
                     // VS: DF temp file base64 decoding fix
-                    if (!bUse64ByteLines && m_fDfCache == null) {
+                    if (!bUse64ByteLines && m_body == null) {
                         sbDig.write(Base64Util.encode(content.toByteArray(), 0).getBytes());
                     }
 
@@ -1227,7 +1391,7 @@ public class DataFile implements Serializable {
             // don't need to canonicalize base64 content !
             if (contentType.equals(CONTENT_EMBEDDED_BASE64)) {
                 // VS: DF temp file base64 decoding fix
-                if (!bUse64ByteLines && m_fDfCache == null) {
+                if (!bUse64ByteLines && m_body == null) {
                     tmp2 = sbDig.toByteArray();
                     
                     if (tmp2 != null && tmp2.length > 0) {
@@ -1238,7 +1402,8 @@ public class DataFile implements Serializable {
                     }
                 }
             } else {
-                // canonicalize body
+                // canonicalize body, non-xml content has already been
+                // written by EmbeddedContentSink
                 tmp2 = sbDig.toByteArray();
                 if (tmp2 != null && tmp2.length > 0) {
                     // System.out.println("Body: \"" + tmp2 + "\"");
@@ -1265,6 +1430,10 @@ public class DataFile implements Serializable {
             // now calculate the digest
             byte[] digest = sha.digest();
             setDigest(digest);
+            Metrics.record(Metrics.DATAFILE_DIGEST, start, getSize());
+            if (stored != null) {
+                stored.getStore().putDigest(stored, context, digest);
+            }
             
             if (LOG.isDebugEnabled()) {
                 LOG.debug("DataFile: \'" + getId() + "\' length: " + getSize() + " digest: " 
@@ -1273,10 +1442,58 @@ public class DataFile implements Serializable {
 
             fileName = longFileName;
         } catch (Exception ex) {
+            Metrics.recordError(Metrics.DATAFILE_DIGEST, start);
             DigiDocException.handleException(ex, DigiDocException.ERR_READ_FILE);
         }
     }
 
+    /**
+     * Digests the content of a BDOC DataFile. XML content is canonicalized
+     * as a whole, everything else is streamed through a fixed size buffer.
+     * 
+     * @param sha
+     *            digest to update
+     * @param os
+     *            output stream for the digested data or null
+     * @return number of bytes digested
+     */
+    private long calculateBdocDigest(MessageDigest sha, OutputStream os) throws DigiDocException, IOException {
+        PushbackInputStream is = new PushbackInputStream(openContentStream(), 1);
+        try {
+            int first = is.read();
+            if (first == -1) {
+                return 0;
+            }
+            is.unread(first);
+
+            if (first == '<') {
+                byte[] data = canonicalizeXml(readAll(is));
+                if (data == null || data.length == 0) {
+                    return 0;
+                }
+                sha.update(data);
+                if (os != null) {
+                    os.write(data);
+                }
+                return data.length;
+            }
+
+            byte[] buf = new byte[BLOCK_SIZE * 8];
+            long total = 0;
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                sha.update(buf, 0, n);
+                if (os != null) {
+                    os.write(buf, 0, n);
+                }
+                total += n;
+            }
+            return total;
+        } finally {
+            is.close();
+        }
+    }
+
     public byte[] calculateDetatchedFileDigest() throws DigiDocException {
         byte[] digest = null;
         try {
@@ -1316,75 +1533,71 @@ public class DataFile implements Serializable {
     }
 
     /**
-     * Helper method to replace '&' by '&amp;' in file names
+     * Helper method to create the xml header
      * 
-     * @param filename
-     *            original file name
-     * @return fixed file name
+     * @return xml header
      */
-    private String fixFileName(String fn) {
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; (fn != null) && (i < fn.length()); i++) {
-            char ch = fn.charAt(i);
-            if (ch == '&')
-                sb.append("&amp;");
-            else
-                sb.append(ch);
-        }
-        return sb.toString();
+    private byte[] writeXMLHeader() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        XmlWriter w = new XmlWriter(bos);
+        writeXMLHeader(w);
+        w.flush();
+        return bos.toByteArray();
     }
 
     /**
-     * Helper method to create the xml header
+     * Writes the xml header. Attribute values are escaped,
+     * so file names with '&amp;' and the like stay well formed.
      * 
-     * @return xml header
+     * @param w destination writer
      */
-    private byte[] writeXMLHeader() {
-        StringBuffer sb = new StringBuffer("<DataFile");
+    private void writeXMLHeader(XmlWriter w) throws IOException {
+        w.write("<DataFile");
         
         if (codepage != null && !codepage.equals("UTF-8")) {
-            sb.append(" Codepage=\"");
-            sb.append(codepage);
-            sb.append("\"");
+            w.write(" Codepage=\"");
+            w.writeAttribute(codepage);
+            w.write("\"");
         }
         
-        sb.append(" ContentType=\"");
-        sb.append(contentType);
-        sb.append("\" Filename=\"");
+        w.write(" ContentType=\"");
+        w.writeAttribute(contentType);
+        w.write("\" Filename=\"");
         // we write only file name not path to file
-        String pathLessFileName = new File(fileName).getName();
-        sb.append(fixFileName(pathLessFileName));
-        sb.append("\" Id=\"");
-        sb.append(id);
-        sb.append("\" MimeType=\"");
-        sb.append(mimeType);
-        sb.append("\" Size=\"");
-        sb.append(new Long(size).toString());
-        sb.append("\"");
+        w.writeAttribute(new File(fileName).getName());
+        w.write("\" Id=\"");
+        w.writeAttribute(id);
+        w.write("\" MimeType=\"");
+        w.writeAttribute(mimeType);
+        w.write("\" Size=\"");
+        w.write(size);
+        w.write("\"");
 
         if (digestType != null && digestValue != null) {
-            sb.append(" DigestType=\"");
-            sb.append(digestType);
-            sb.append("\" DigestValue=\"");
-            sb.append(Base64Util.encode(digestValue, 0));
-            sb.append("\"");
+            w.write(" DigestType=\"");
+            w.writeAttribute(digestType);
+            w.write("\" DigestValue=\"");
+            w.writeBase64(digestValue, 0);
+            w.write("\"");
         }
 
         for (int i = 0; i < countAttributes(); i++) {
             DataFileAttribute attr = getAttribute(i);
-            sb.append(" ");
-            sb.append(attr.toXML());
+            w.write(" ");
+            w.write(attr.getName());
+            w.write("=\"");
+            w.writeAttribute(attr.getValue());
+            w.write("\"");
         }
 
         // namespace
         if (sigDoc != null && sigDoc.getVersion().equals(SignedDoc.VERSION_1_3)) {
-            sb.append(" xmlns=\"");
-            sb.append(SignedDoc.XMLNS_DIGIDOC);
-            sb.append("\"");
+            w.write(" xmlns=\"");
+            w.write(SignedDoc.XMLNS_DIGIDOC);
+            w.write("\"");
         }
         
-        sb.append(">");
-        return ConvertUtils.str2data(sb.toString());
+        w.write(">");
     }
 
     /**
@@ -1402,21 +1615,33 @@ public class DataFile implements Serializable {
      * @return XML representation of DataFile
      */
     public byte[] toXML() {
-        ByteArrayOutputStream sb = new ByteArrayOutputStream();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            sb.write(writeXMLHeader());
-            if (origBody != null) {
-                // if(m_contentType.equals(CONTENT_EMBEDDED_BASE64))
-                // sb.write(Base64Util.encode(m_body).getBytes());
-                if (contentType.equals(CONTENT_EMBEDDED) || contentType.equals(CONTENT_EMBEDDED_BASE64)) {
-                    sb.write(origBody);
-                }
-            }
-            sb.write(writeXMLTrailer());
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return sb.toByteArray();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Writes the DataFile in XML form. Only the original
+     * embedded content is written, see writeToFile() for
+     * writing a DataFile from its cache or source file.
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w) throws IOException {
+        writeXMLHeader(w);
+        if (origBody != null) {
+            if (contentType.equals(CONTENT_EMBEDDED) || contentType.equals(CONTENT_EMBEDDED_BASE64)) {
+                w.write(origBody);
+            }
+        }
+        w.write("</DataFile>");
     }
 
     public String toString() {
@@ -1457,12 +1682,9 @@ public class DataFile implements Serializable {
             if (getBody() != null) {
                 bytes = getBodyAsData();
             } else if ((getZipEntry() != null) && (getBDOCcontainer() != null)) {
-                DataInputStream dis = new DataInputStream(getBDOCcontainer().getInputStream(getZipEntry()));
-                bytes = new byte[dis.available()];
-                dis.readFully(bytes);
-                dis.close();
-            } else if (getDfCacheFile() != null) {
-                bytes = DataFile.readFile(m_fDfCache);
+                bytes = readAll(getBDOCcontainer().getInputStream(getZipEntry()));
+            } else if (hasCachedBody()) {
+                bytes = m_body.toByteArray();
             } else if (getFileName() != null) {
                 bytes = DataFile.readFile(new File(getFileName()));
             } else {
@@ -1474,6 +1696,119 @@ public class DataFile implements Serializable {
         return bytes;
     }
 
+    /**
+     * Opens the content of this DataFile from the same source as
+     * getBytesFromFile() without reading it into memory. ZIP entries of a
+     * BDOC container can be opened concurrently from the shared ZipFile.
+     * 
+     * @return content stream, to be closed by the caller
+     * @throws DigiDocException
+     *             for all errors
+     */
+    public InputStream openContentStream() throws DigiDocException {
+        try {
+            if (getBody() != null) {
+                return new ByteArrayInputStream(getBodyAsData());
+            } else if ((getZipEntry() != null) && (getBDOCcontainer() != null)) {
+                return getBDOCcontainer().getInputStream(getZipEntry());
+            } else if (hasCachedBody()) {
+                return m_body.openStream();
+            } else if (getFileName() != null) {
+                return new FileInputStream(getFileName());
+            }
+            throw new DigiDocException(DigiDocException.ERR_DATA_FILE_FILE_NAME, "No file specified!", null);
+        } catch (DigiDocException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_READ_FILE);
+        }
+        return null;
+    }
+
+    /**
+     * Reads a stream to the end
+     * 
+     * @param is
+     *            input stream, closed by this method
+     * @return stream content
+     */
+    private static byte[] readAll(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[BLOCK_SIZE * 8];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                bos.write(buf, 0, n);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Decodes a stream without reading it into a byte array first
+     * 
+     * @param is
+     *            input stream, closed by this method
+     * @param cp
+     *            charset of the data
+     * @return decoded text
+     */
+    private static String readString(InputStream is, String cp) throws IOException {
+        try {
+            Reader rd = new InputStreamReader(is, cp);
+            StringBuilder sb = new StringBuilder();
+            char[] cbuf = new char[BLOCK_SIZE];
+            int n;
+            while ((n = rd.read(cbuf)) > 0) {
+                sb.append(cbuf, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Receives the UTF-8 form of EMBEDDED content. XML content is collected
+     * for canonicalization, other content is not canonicalized and goes
+     * directly to the digest and the output stream.
+     */
+    private static final class EmbeddedContentSink extends OutputStream {
+        private final ByteArrayOutputStream xml;
+        private final MessageDigest sha;
+        private final OutputStream os;
+        private Boolean isXml;
+
+        EmbeddedContentSink(ByteArrayOutputStream xml, MessageDigest sha, OutputStream os) {
+            this.xml = xml;
+            this.sha = sha;
+            this.os = os;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len <= 0) {
+                return;
+            }
+            if (isXml == null) {
+                isXml = Boolean.valueOf(b[off] == '<');
+            }
+            if (isXml.booleanValue()) {
+                xml.write(b, off, len);
+            } else {
+                sha.update(b, off, len);
+                if (os != null) {
+                    os.write(b, off, len);
+                }
+            }
+        }
+    }
+
     /**
      * Reads in data file
      * 
@@ -159,6 +159,7 @@ public class DigiDocException extends Exception {
     public static final int WARN_WEAK_DIGEST = 129;
     public static final int ERR_SIGNERS_CERT_NONREPUD = 162;
     public static final int ERR_SIGVAL_ASN1 = 166;
+    public static final int ERR_MEMORY_BUDGET = 167;
     
     /**
      * DigiDocException constructor
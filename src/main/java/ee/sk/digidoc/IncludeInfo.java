@@ -25,7 +25,7 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
-import ee.sk.utils.ConvertUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Models the ETSI <Include> element Holds info about source of data used to
@@ -136,18 +136,28 @@ public class IncludeInfo implements Serializable {
      */
     public byte[] toXML() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        
         try {
-            bos.write(ConvertUtils.str2data("<Include URI=\""));
-            bos.write(ConvertUtils.str2data(m_uri));
-            bos.write(ConvertUtils.str2data("\"></Include>"));
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        
         return bos.toByteArray();
     }
 
+    /**
+     * Writes the IncludeInfo in XML form
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w) throws IOException {
+        w.write("<Include URI=\"");
+        w.writeAttribute(m_uri);
+        w.write("\"></Include>");
+    }
+
     /**
      * Returns the stringified form of CompleteCertificateRefs
      * 
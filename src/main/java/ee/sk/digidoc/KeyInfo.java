@@ -30,8 +30,7 @@ import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.List;
 
-import ee.sk.utils.Base64Util;
-import ee.sk.utils.ConvertUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Models the KeyInfo block of an XML-DSIG signature. In DigiDoc library the key
@@ -289,32 +288,41 @@ public class KeyInfo implements Serializable {
      */
     public byte[] toXML() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        
         try {
-            bos.write(ConvertUtils.str2data("<KeyInfo>\n"));
-            bos.write(ConvertUtils.str2data("<KeyValue>\n<RSAKeyValue>\n<Modulus>"));
-            bos.write(ConvertUtils.str2data(Base64Util.encode(getSignerKeyModulus().toByteArray(), 64)));
-            bos.write(ConvertUtils.str2data("</Modulus>\n<Exponent>"));
-            bos.write(ConvertUtils.str2data(Base64Util.encode(getSignerKeyExponent().toByteArray(), 64)));
-            bos.write(ConvertUtils.str2data("</Exponent>\n</RSAKeyValue>\n</KeyValue>\n"));
-            bos.write(ConvertUtils.str2data("<X509Data>"));
-            CertValue cval = null;
-            
-            if (m_signature != null) {
-                cval = m_signature.getCertValueOfType(CertValue.CERTVAL_TYPE_SIGNER);
-                if (cval != null)
-                    bos.write(cval.toXML());
-            }
-            
-            bos.write(ConvertUtils.str2data("</X509Data>"));
-            bos.write(ConvertUtils.str2data("</KeyInfo>"));
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        
         return bos.toByteArray();
     }
 
+    /**
+     * Writes the KeyInfo in XML form
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w) throws IOException {
+        w.write("<KeyInfo>\n");
+        w.write("<KeyValue>\n<RSAKeyValue>\n<Modulus>");
+        w.writeBase64(getSignerKeyModulus().toByteArray(), 64);
+        w.write("</Modulus>\n<Exponent>");
+        w.writeBase64(getSignerKeyExponent().toByteArray(), 64);
+        w.write("</Exponent>\n</RSAKeyValue>\n</KeyValue>\n");
+        w.write("<X509Data>");
+        
+        if (m_signature != null) {
+            CertValue cval = m_signature.getCertValueOfType(CertValue.CERTVAL_TYPE_SIGNER);
+            if (cval != null)
+                cval.writeXML(w);
+        }
+        
+        w.write("</X509Data>");
+        w.write("</KeyInfo>");
+    }
+
     /**
      * return the stringified form of KeyInfo
      * 
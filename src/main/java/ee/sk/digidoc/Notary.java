@@ -28,8 +28,15 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
-import ee.sk.utils.Base64Util;
-import ee.sk.utils.ConvertUtils;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.ocsp.ResponderID;
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.ocsp.BasicOCSPResp;
+import org.bouncycastle.ocsp.OCSPResp;
+
+import ee.sk.utils.XmlWriter;
 
 /**
  * Models an OCSP confirmation of the validity of a given signature in the given
@@ -49,6 +56,10 @@ public class Notary implements Serializable {
     private Date producedAt;
     /** certificate serial number used for this notary */
     private String certNr;
+    /** OCSP response decoded from ocspResponseData on first access */
+    private transient volatile OCSPResp ocspResponse;
+    /** basic response decoded from ocspResponse on first access */
+    private transient volatile BasicOCSPResp basicResponse;
 
     public Notary() {
     }
@@ -84,7 +95,20 @@ public class Notary implements Serializable {
         certNr = nr;
     }
 
+    /**
+     * Accessor for producedAt attribute. If not set explicitly then it is read
+     * from the OCSP response data.
+     * 
+     * @return value of producedAt attribute
+     * @throws IllegalStateException
+     *             if the OCSP response data cannot be decoded. The parser
+     *             decodes it while reading, so this only happens for data set
+     *             by the application.
+     */
     public Date getProducedAt() {
+        if (producedAt == null && ocspResponseData != null) {
+            producedAt = decodedResponse().getProducedAt();
+        }
         return producedAt;
     }
 
@@ -92,7 +116,18 @@ public class Notary implements Serializable {
         producedAt = dt;
     }
 
+    /**
+     * Accessor for responderId attribute. If not set explicitly then it is read
+     * from the OCSP response data.
+     * 
+     * @return value of responderId attribute
+     * @throws IllegalStateException
+     *             if the OCSP response data cannot be decoded
+     */
     public String getResponderId() {
+        if (responderId == null && ocspResponseData != null) {
+            responderId = responderIdToString(decodedResponse());
+        }
         return responderId;
     }
 
@@ -100,14 +135,108 @@ public class Notary implements Serializable {
         responderId = str;
     }
 
-    public void setOcspResponseData(byte[] data) {
+    public synchronized void setOcspResponseData(byte[] data) {
         ocspResponseData = data;
+        ocspResponse = null;
+        basicResponse = null;
     }
 
     public byte[] getOcspResponseData() {
         return ocspResponseData;
     }
 
+    /**
+     * Returns the OCSP response. It is decoded from the raw response data on
+     * first access and reused afterwards.
+     * 
+     * @return OCSP response or null if no response data
+     * @throws DigiDocException
+     *             if the response data cannot be parsed
+     */
+    public OCSPResp getOcspResponse() throws DigiDocException {
+        OCSPResp resp = ocspResponse;
+        if (resp == null && ocspResponseData != null) {
+            synchronized (this) {
+                resp = ocspResponse;
+                if (resp == null) {
+                    try {
+                        resp = new OCSPResp(ocspResponseData);
+                    } catch (IOException ex) {
+                        DigiDocException.handleException(ex, DigiDocException.ERR_OCSP_PARSE);
+                    }
+                    ocspResponse = resp;
+                }
+            }
+        }
+        return resp;
+    }
+
+    /**
+     * Returns the basic OCSP response contained in the OCSP response
+     * 
+     * @return basic OCSP response or null if no response data
+     * @throws DigiDocException
+     *             if the response data cannot be parsed
+     */
+    public BasicOCSPResp getBasicResponse() throws DigiDocException {
+        BasicOCSPResp basResp = basicResponse;
+        if (basResp == null) {
+            try {
+                OCSPResp resp = getOcspResponse();
+                if (resp != null) {
+                    basResp = (BasicOCSPResp) resp.getResponseObject();
+                    if (basResp == null) {
+                        throw new DigiDocException(DigiDocException.ERR_OCSP_PARSE,
+                                "OCSP response without basic response, status: " + resp.getStatus(), null);
+                    }
+                    basicResponse = basResp;
+                }
+            } catch (DigiDocException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                DigiDocException.handleException(ex, DigiDocException.ERR_OCSP_PARSE);
+            }
+        }
+        return basResp;
+    }
+
+    /**
+     * Returns the basic response of OCSP response data that has been checked
+     * already
+     */
+    private BasicOCSPResp decodedResponse() {
+        try {
+            return getBasicResponse();
+        } catch (DigiDocException ex) {
+            throw new IllegalStateException("Cannot decode OCSP response " + id, ex);
+        }
+    }
+
+    /**
+     * Get String represetation of ResponderID
+     * 
+     * @param basResp
+     *            basic OCSP response
+     * @return stringified responder ID
+     */
+    public static String responderIdToString(BasicOCSPResp basResp) {
+        if (basResp != null) {
+            ResponderID respid = basResp.getResponderId().toASN1Object();
+            Object o = ((DERTaggedObject) respid.toASN1Object()).getObject();
+
+            if (o instanceof ASN1Sequence) {
+                X509Name name = new X509Name((ASN1Sequence) o);
+                return "byName: " + name.toString();
+            } else if (o instanceof DEROctetString) {
+                // TODO: fix ...
+                return "byKey: " + o.toString();
+            } else {
+                return null;
+            }
+        } else
+            return null;
+    }
+
     /**
      * Helper method to validate the whole SignedProperties object
      * 
@@ -120,38 +249,52 @@ public class Notary implements Serializable {
     /**
      * Converts the Notary to XML form
      * 
+     * @param ver document version
      * @return XML representation of Notary
      */
     public byte[] toXML(String ver) {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            bos.write(ConvertUtils.str2data("<RevocationValues>"));
-            if ((ver.equals(SignedDoc.VERSION_1_3)) ||
-            // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-            // IS FIX version fix
-                    (ver.equals(SignedDoc.BDOC_VERSION_1_0))) {
-                // L Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-                bos.write(ConvertUtils.str2data("<OCSPValues>"));
-            }
-            bos.write(ConvertUtils.str2data("<EncapsulatedOCSPValue Id=\""));
-            bos.write(ConvertUtils.str2data(id));
-            bos.write(ConvertUtils.str2data("\">\n"));
-            bos.write(ConvertUtils.str2data(Base64Util.encode(ocspResponseData, 64)));
-            bos.write(ConvertUtils.str2data("</EncapsulatedOCSPValue>\n"));
-            if ((ver.equals(SignedDoc.VERSION_1_3)) ||
-            // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-            // IS FIX version fix
-                    (ver.equals(SignedDoc.BDOC_VERSION_1_0))) {
-                // L Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-                bos.write(ConvertUtils.str2data("</OCSPValues>"));
-            }
-            bos.write(ConvertUtils.str2data("</RevocationValues>"));
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w, ver);
+            w.flush();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
         return bos.toByteArray();
     }
 
+    /**
+     * Writes the Notary in XML form
+     * 
+     * @param w destination writer
+     * @param ver document version
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w, String ver) throws IOException {
+        w.write("<RevocationValues>");
+        if ((ver.equals(SignedDoc.VERSION_1_3)) ||
+        // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
+        // IS FIX version fix
+                (ver.equals(SignedDoc.BDOC_VERSION_1_0))) {
+            // L Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
+            w.write("<OCSPValues>");
+        }
+        w.write("<EncapsulatedOCSPValue Id=\"");
+        w.writeAttribute(id);
+        w.write("\">\n");
+        w.writeBase64(ocspResponseData, 64);
+        w.write("</EncapsulatedOCSPValue>\n");
+        if ((ver.equals(SignedDoc.VERSION_1_3)) ||
+        // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
+        // IS FIX version fix
+                (ver.equals(SignedDoc.BDOC_VERSION_1_0))) {
+            // L Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
+            w.write("</OCSPValues>");
+        }
+        w.write("</RevocationValues>");
+    }
+
     /**
      * Returns the stringified form of Notary
      * 
@@ -29,8 +29,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import ee.sk.digidoc.services.CanonicalizationService;
-import ee.sk.utils.Base64Util;
-import ee.sk.utils.ConvertUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Represents and XML-DSIG reference block that referrs to a particular piece of
@@ -148,6 +147,15 @@ public class Reference implements Serializable {
      */
     public void setSignedInfo(SignedInfo sigInfo) {
         m_sigInfo = sigInfo;
+        invalidateSignedInfo();
+    }
+
+    /**
+     * Drops the cached canonical form of the parent SignedInfo
+     */
+    private void invalidateSignedInfo() {
+        if (m_sigInfo != null)
+            m_sigInfo.invalidateCache();
     }
 
     /**
@@ -194,6 +202,9 @@ public class Reference implements Serializable {
         if (ex != null)
             throw ex;
         m_uri = str;
+        if (m_sigInfo != null)
+            m_sigInfo.invalidateReferenceIndex();
+        invalidateSignedInfo();
     }
 
     /**
@@ -236,6 +247,7 @@ public class Reference implements Serializable {
         if (ex != null)
             throw ex;
         m_digestAlgorithm = str;
+        invalidateSignedInfo();
     }
 
     /**
@@ -259,7 +271,7 @@ public class Reference implements Serializable {
      * @return value of digestValue attribute
      */
     public byte[] getDigestValue() {
-        return m_digestValue;
+        return (m_digestValue != null) ? m_digestValue.clone() : null;
     }
 
     /**
@@ -274,7 +286,8 @@ public class Reference implements Serializable {
         DigiDocException ex = validateDigestValue(data);
         if (ex != null)
             throw ex;
-        m_digestValue = data;
+        m_digestValue = data.clone();
+        invalidateSignedInfo();
     }
 
     /**
@@ -316,6 +329,7 @@ public class Reference implements Serializable {
         if (ex != null)
             throw ex;
         m_transformAlgorithm = str;
+        invalidateSignedInfo();
     }
 
     /**
@@ -363,52 +377,65 @@ public class Reference implements Serializable {
     public byte[] toXML() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            bos.write(ConvertUtils.str2data("<Reference"));
-            if ((m_sigInfo.getSignature().getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_2) || m_sigInfo
-                    .getSignature().getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3))
-                    && m_uri.indexOf("SignedProperties") != -1) {
-                bos.write(ConvertUtils.str2data(" Type=\"http://uri.etsi.org/01903/v1.1.1#SignedProperties\""));
-            }
-            bos.write(ConvertUtils.str2data(" URI=\""));
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Writes the Reference in XML form
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w) throws IOException {
+        w.write("<Reference");
+        if ((m_sigInfo.getSignature().getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_2) || m_sigInfo
+                .getSignature().getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3))
+                && m_uri.indexOf("SignedProperties") != -1) {
+            w.write(" Type=\"http://uri.etsi.org/01903/v1.1.1#SignedProperties\"");
+        }
+        w.write(" URI=\"");
+        // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
+        if (m_sigInfo.getSignature().getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
+            // if SignedProperties then no /
+            if (m_uri.indexOf("SignedProperties") == -1)
+                w.write("/");
+            // L Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
+            w.writeAttribute(m_uri);
             // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-            if (m_sigInfo.getSignature().getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
-                // if SignedProperties then no /
-                if (m_uri.indexOf("SignedProperties") == -1)
-                    bos.write(ConvertUtils.str2data("/"));
-                // L Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-                bos.write(ConvertUtils.str2data(m_uri));
-                // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-                bos.write(ConvertUtils.str2data("\""));
-                if (m_uri.indexOf("SignedProperties") != -1) {
-                    String tt = " Type=\"" + SignedDoc.SIGNEDPROPERTIES_TYPE + "\" ";
-                    bos.write(ConvertUtils.str2data(tt));
-                }
-                // L Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-                bos.write(ConvertUtils.str2data(">\n"));
-                // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-            } else {
-                bos.write(ConvertUtils.str2data(m_uri));
-                bos.write(ConvertUtils.str2data("\">\n"));
+            w.write("\"");
+            if (m_uri.indexOf("SignedProperties") != -1) {
+                w.write(" Type=\"");
+                w.write(SignedDoc.SIGNEDPROPERTIES_TYPE);
+                w.write("\" ");
             }
             // L Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
+            w.write(">\n");
+            // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
+        } else {
+            w.writeAttribute(m_uri);
+            w.write("\">\n");
+        }
+        // L Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
 
-            if (m_transformAlgorithm != null) {
-                bos.write(ConvertUtils.str2data("<Transforms><Transform Algorithm=\""));
-                bos.write(ConvertUtils.str2data(m_transformAlgorithm));
-                bos.write(ConvertUtils.str2data("\"></Transform></Transforms>\n"));
-            }
-            
-            bos.write(ConvertUtils.str2data("<DigestMethod Algorithm=\""));
-            bos.write(ConvertUtils.str2data(m_digestAlgorithm));
-            bos.write(ConvertUtils.str2data("\">\n</DigestMethod>\n"));
-            bos.write(ConvertUtils.str2data("<DigestValue>"));
-            bos.write(ConvertUtils.str2data(Base64Util.encode(m_digestValue, 0)));
-            bos.write(ConvertUtils.str2data("</DigestValue>\n"));
-            bos.write(ConvertUtils.str2data("</Reference>"));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        if (m_transformAlgorithm != null) {
+            w.write("<Transforms><Transform Algorithm=\"");
+            w.writeAttribute(m_transformAlgorithm);
+            w.write("\"></Transform></Transforms>\n");
         }
-        return bos.toByteArray();
+        
+        w.write("<DigestMethod Algorithm=\"");
+        w.writeAttribute(m_digestAlgorithm);
+        w.write("\">\n</DigestMethod>\n");
+        w.write("<DigestValue>");
+        w.writeBase64(m_digestValue, 0);
+        w.write("</DigestValue>\n");
+        w.write("</Reference>");
     }
 
     /**
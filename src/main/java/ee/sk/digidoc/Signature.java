@@ -28,11 +28,14 @@ import java.math.BigInteger;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import ee.sk.digidoc.services.CAService;
 import ee.sk.digidoc.services.CanonicalizationService;
 import ee.sk.digidoc.services.NotaryService;
-import ee.sk.utils.ConvertUtils;
+import ee.sk.utils.AsyncUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Models an XML-DSIG/ETSI Signature. A signature can contain references
@@ -97,7 +100,10 @@ public class Signature implements Serializable {
         DigiDocException ex = validateId(str);
         if (ex != null)
             throw ex;
+        boolean changed = (id == null) ? str != null : !id.equals(str);
         id = str;
+        if (changed && signedDoc != null)
+            signedDoc.signatureIdChanged();
     }
 
     public byte[] getOrigContent() {
@@ -492,6 +498,42 @@ public class Signature implements Serializable {
      *             for all errors
      */
     public void getConfirmation(NotaryService notaryService, CAService caService) throws DigiDocException {
+        X509Certificate cert = keyInfo.getSignersCertificate();
+        X509Certificate caCert = prepareConfirmation(caService);
+        Notary not = notaryService.getConfirmation(this, cert, caCert);
+        setConfirmation(notaryService, not);
+    }
+
+    /**
+     * Asynchronous variant of getConfirmation(). The signature must not be
+     * modified until the returned future has completed.
+     * 
+     * @param executor
+     *            executor for the CPU bound steps
+     * @return future completed when the confirmation has been added, or with
+     *         a DigiDocException
+     */
+    public CompletableFuture<Void> getConfirmationAsync(final NotaryService notaryService, CAService caService,
+            Executor executor) {
+        X509Certificate caCert = null;
+        try {
+            caCert = prepareConfirmation(caService);
+        } catch (DigiDocException ex) {
+            return AsyncUtils.failed(ex);
+        }
+        return notaryService.getConfirmationAsync(this, keyInfo.getSignersCertificate(), caCert, executor)
+                .thenApply(not -> AsyncUtils.<Void>call(() -> {
+                    setConfirmation(notaryService, not);
+                    return null;
+                }));
+    }
+
+    /**
+     * Finds the signers CA and adds it to BDOC signatures
+     * 
+     * @return CA certificate
+     */
+    private X509Certificate prepareConfirmation(CAService caService) throws DigiDocException {
         X509Certificate cert = keyInfo.getSignersCertificate();
         X509Certificate caCert = caService.findCAforCertificate(cert);
         // IS FIX CACERT
@@ -505,7 +547,16 @@ public class Signature implements Serializable {
             CertID cid = new CertID(this, caCert, CertID.CERTID_TYPE_CA);
             addCertID(cid);
         }
-        Notary not = notaryService.getConfirmation(this, cert, caCert);
+        return caCert;
+    }
+
+    /**
+     * Adds the members that carry the confirmation info to this signature
+     * 
+     * @param not
+     *            the received confirmation
+     */
+    private void setConfirmation(NotaryService notaryService, Notary not) throws DigiDocException {
         CompleteRevocationRefs rrefs = new CompleteRevocationRefs(not);
         // modified in ver 2.1.0 - find responder certs that succeded in
         // verification
@@ -531,10 +582,12 @@ public class Signature implements Serializable {
             if (idx1 != -1) {
                 try {
                     ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                    bos.write(origContent, 0, idx1);
-                    bos.write("</SignedProperties>".getBytes());
-                    bos.write(usp.toXML());
-                    bos.write("</QualifyingProperties></Object></Signature>".getBytes());
+                    XmlWriter w = new XmlWriter(bos);
+                    w.write(origContent, 0, idx1);
+                    w.write("</SignedProperties>");
+                    usp.writeXML(w);
+                    w.write("</QualifyingProperties></Object></Signature>");
+                    w.flush();
                     origContent = bos.toByteArray();
                 } catch (java.io.IOException ex) {
                     DigiDocException.handleException(ex, DigiDocException.ERR_OCSP_GET_CONF);
@@ -550,65 +603,80 @@ public class Signature implements Serializable {
      * @return XML representation of Signature
      */
     public byte[] toXML() {
-        if (origContent == null) {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            try {
-                bos.write(ConvertUtils.str2data("<Signature Id=\""));
-                bos.write(ConvertUtils.str2data(id));
-                bos.write(ConvertUtils.str2data("\" xmlns=\"" + SignedDoc.XMLNS_XMLDSIG + "\">\n"));
-                bos.write(signedInfo.toXML());
-                bos.write(ConvertUtils.str2data("\n"));
-                
-                // VS: 2.2.24 - fix to allowe Signature without SignatureValue -
-                // incomplete sig
-                if (signatureValue != null) {
-                    bos.write(signatureValue.toXML());
-                }
-                    
-                bos.write(ConvertUtils.str2data("\n"));
-                bos.write(keyInfo.toXML());
-                
-                // In version 1.3 we use xmlns atributes like specified in XAdES
-                if ((signedDoc.getVersion().equals(SignedDoc.VERSION_1_3)) 
-                        || (signedDoc.getFormat().equals(SignedDoc.FORMAT_BDOC))) {
-
-                    bos.write(ConvertUtils.str2data("\n<Object><QualifyingProperties xmlns=\""));
-
-                    // IS FIX xmlns fix
-                    if (signedDoc.getFormat().equals(SignedDoc.FORMAT_BDOC)) {
-                        bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_XADES_123));
-                    } else {
-                        bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_ETSI));
-                    }
-                    
-                    bos.write(ConvertUtils.str2data("\" Target=\"#"));
-                    bos.write(ConvertUtils.str2data(id));
-                    bos.write(ConvertUtils.str2data("\">\n"));
-                } else {
-                    // in versions prior to 1.3 we used atributes in wrong
-                    // places
-                    bos.write(ConvertUtils.str2data("\n<Object><QualifyingProperties>"));
-                }
-                
-                if (signedProperties != null) {
-                    bos.write(signedProperties.toXML());
-                }
-                    
-                if (unsignedProperties != null) {
-                    bos.write(unsignedProperties.toXML());
-                }
+        if (origContent != null) {
+            return origContent;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bos.toByteArray();
+    }
 
-                bos.write(ConvertUtils.str2data("</QualifyingProperties></Object>\n"));
-                bos.write(ConvertUtils.str2data("</Signature>"));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    /**
+     * Writes the Signature in XML form
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w) throws IOException {
+        if (origContent != null) {
+            w.write(origContent);
+            return;
+        }
+        w.write("<Signature Id=\"");
+        w.writeAttribute(id);
+        w.write("\" xmlns=\"");
+        w.write(SignedDoc.XMLNS_XMLDSIG);
+        w.write("\">\n");
+        signedInfo.writeXML(w);
+        w.write("\n");
+        
+        // VS: 2.2.24 - fix to allowe Signature without SignatureValue -
+        // incomplete sig
+        if (signatureValue != null) {
+            signatureValue.writeXML(w);
+        }
+            
+        w.write("\n");
+        keyInfo.writeXML(w);
+        
+        // In version 1.3 we use xmlns atributes like specified in XAdES
+        if ((signedDoc.getVersion().equals(SignedDoc.VERSION_1_3)) 
+                || (signedDoc.getFormat().equals(SignedDoc.FORMAT_BDOC))) {
+
+            w.write("\n<Object><QualifyingProperties xmlns=\"");
+
+            // IS FIX xmlns fix
+            if (signedDoc.getFormat().equals(SignedDoc.FORMAT_BDOC)) {
+                w.write(SignedDoc.XMLNS_XADES_123);
+            } else {
+                w.write(SignedDoc.XMLNS_ETSI);
             }
             
-            return bos.toByteArray();
+            w.write("\" Target=\"#");
+            w.writeAttribute(id);
+            w.write("\">\n");
         } else {
-            return origContent;
+            // in versions prior to 1.3 we used atributes in wrong
+            // places
+            w.write("\n<Object><QualifyingProperties>");
+        }
+        
+        if (signedProperties != null) {
+            signedProperties.writeXML(w);
+        }
+            
+        if (unsignedProperties != null) {
+            unsignedProperties.writeXML(w);
         }
 
+        w.write("</QualifyingProperties></Object>\n");
+        w.write("</Signature>");
     }
 
     /**
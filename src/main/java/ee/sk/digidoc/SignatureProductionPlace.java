@@ -25,7 +25,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 
-import ee.sk.utils.ConvertUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Models the SignatureProductionPlace element of an XML-DSIG/ETSI Signature.
@@ -42,6 +42,8 @@ public class SignatureProductionPlace implements Serializable {
     private String m_country;
 
     private String m_zip;
+    /** bumped by the mutators so that the parent can notice changes */
+    private transient int m_modCount;
 
     
     public SignatureProductionPlace() {
@@ -83,6 +85,7 @@ public class SignatureProductionPlace implements Serializable {
      */
     public void setCity(String str) {
         m_city = str;
+        m_modCount++;
     }
 
     /**
@@ -102,6 +105,7 @@ public class SignatureProductionPlace implements Serializable {
      */
     public void setStateOrProvince(String str) {
         m_state = str;
+        m_modCount++;
     }
 
     /**
@@ -121,6 +125,7 @@ public class SignatureProductionPlace implements Serializable {
      */
     public void setCountryName(String str) {
         m_country = str;
+        m_modCount++;
     }
 
     /**
@@ -140,6 +145,17 @@ public class SignatureProductionPlace implements Serializable {
      */
     public void setPostalCode(String str) {
         m_zip = str;
+        m_modCount++;
+    }
+
+    /**
+     * Returns the modification counter, used by SignedProperties
+     * to detect changes of its cached canonical form
+     * 
+     * @return number of modifications so far
+     */
+    int getModCount() {
+        return m_modCount;
     }
 
     /**
@@ -149,39 +165,51 @@ public class SignatureProductionPlace implements Serializable {
      */
     public byte[] toXML() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        // just in case ...
-        // make sure we only output if there is any data
         try {
-            if (m_city != null || m_state != null || m_zip != null || m_country != null) {
-                bos.write(ConvertUtils.str2data("<SignatureProductionPlace>\n"));
-                if (m_city != null) {
-                    bos.write(ConvertUtils.str2data("<City>"));
-                    bos.write(ConvertUtils.str2data(m_city));
-                    bos.write(ConvertUtils.str2data("</City>\n"));
-                }
-                if (m_state != null) {
-                    bos.write(ConvertUtils.str2data("<StateOrProvince>"));
-                    bos.write(ConvertUtils.str2data(m_state));
-                    bos.write(ConvertUtils.str2data("</StateOrProvince>\n"));
-                }
-                if (m_zip != null) {
-                    bos.write(ConvertUtils.str2data("<PostalCode>"));
-                    bos.write(ConvertUtils.str2data(m_zip));
-                    bos.write(ConvertUtils.str2data("</PostalCode>\n"));
-                }
-                if (m_country != null) {
-                    bos.write(ConvertUtils.str2data("<CountryName>"));
-                    bos.write(ConvertUtils.str2data(m_country));
-                    bos.write(ConvertUtils.str2data("</CountryName>\n"));
-                }
-                bos.write(ConvertUtils.str2data("</SignatureProductionPlace>"));
-            }
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
         return bos.toByteArray();
     }
 
+    /**
+     * Writes the SignatureProductionPlace in XML form
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w) throws IOException {
+        // just in case ...
+        // make sure we only output if there is any data
+        if (m_city != null || m_state != null || m_zip != null || m_country != null) {
+            w.write("<SignatureProductionPlace>\n");
+            if (m_city != null) {
+                w.write("<City>");
+                w.writeText(m_city);
+                w.write("</City>\n");
+            }
+            if (m_state != null) {
+                w.write("<StateOrProvince>");
+                w.writeText(m_state);
+                w.write("</StateOrProvince>\n");
+            }
+            if (m_zip != null) {
+                w.write("<PostalCode>");
+                w.writeText(m_zip);
+                w.write("</PostalCode>\n");
+            }
+            if (m_country != null) {
+                w.write("<CountryName>");
+                w.writeText(m_country);
+                w.write("</CountryName>\n");
+            }
+            w.write("</SignatureProductionPlace>");
+        }
+    }
+
     /**
      * Returns the stringified form of SignatureProductionPlace
      * 
@@ -27,8 +27,7 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
-import ee.sk.utils.Base64Util;
-import ee.sk.utils.ConvertUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Models the SignatureValue element of XML-DSIG
@@ -182,25 +181,35 @@ public class SignatureValue implements Serializable {
      */
     public byte[] toXML() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        
         try {
-            bos.write(ConvertUtils.str2data("<SignatureValue"));
-            // VS: 2.3.24 - fix to allowe SignatureValue without Id atribute
-            if (m_id != null) {
-                bos.write(ConvertUtils.str2data(" Id=\""));
-                bos.write(ConvertUtils.str2data(m_id));
-                bos.write(ConvertUtils.str2data("\""));
-            }
-            bos.write(ConvertUtils.str2data(">"));
-            bos.write(ConvertUtils.str2data(Base64Util.encode(m_value, 64)));
-            bos.write(ConvertUtils.str2data("</SignatureValue>"));
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        
         return bos.toByteArray();
     }
 
+    /**
+     * Writes the SignatureValue in XML form
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w) throws IOException {
+        w.write("<SignatureValue");
+        // VS: 2.3.24 - fix to allowe SignatureValue without Id atribute
+        if (m_id != null) {
+            w.write(" Id=\"");
+            w.writeAttribute(m_id);
+            w.write("\"");
+        }
+        w.write(">");
+        w.writeBase64(m_value, 64);
+        w.write("</SignatureValue>");
+    }
+
     /**
      * Returns the stringified form of SignatureValue
      * 
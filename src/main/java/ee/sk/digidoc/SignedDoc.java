@@ -24,16 +24,31 @@ package ee.sk.digidoc;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import ee.sk.digidoc.services.CanonicalizationService;
+import ee.sk.digidoc.store.BodySink;
+import ee.sk.digidoc.store.BodyStore;
+import ee.sk.digidoc.store.ContentAddressedBodyStore;
+import ee.sk.digidoc.store.StoredBody;
+import ee.sk.utils.AsyncUtils;
 import ee.sk.utils.ConvertUtils;
+import ee.sk.utils.ParallelZipOutputStream;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Represents an instance of signed doc in DIGIDOC format. Contains one or more
@@ -52,6 +67,24 @@ public class SignedDoc implements Serializable {
 
     private List<Signature> signatures;
 
+    /** DataFiles by Id attribute value, built on demand */
+    private transient Map<String, DataFile> dataFilesById;
+
+    /** Signatures by Id attribute value, built on demand */
+    private transient Map<String, Signature> signaturesById;
+
+    /** all DataFile ids D0 .. D(nextDataFileId - 1) are known to be in use */
+    private transient int nextDataFileId;
+
+    /** all Signature ids S0 .. S(nextSignatureId - 1) are known to be in use */
+    private transient int nextSignatureId;
+
+    /** executor for calculating DataFile digests in parallel, null for sequential */
+    private transient Executor digestExecutor;
+
+    /** executor for compressing BDOC entries in parallel, null for sequential */
+    private transient Executor deflateExecutor;
+
     public static final String FORMAT_SK_XML = "SK-XML";
     public static final String FORMAT_DIGIDOC_XML = "DIGIDOC-XML";
     public static final String FORMAT_BDOC = "BDOC";
@@ -223,22 +256,50 @@ public class SignedDoc implements Serializable {
      * @retusn new DataFile id
      */
     public String getNewDataFileId() {
-        int nDf = 0;
-        String id = "D" + nDf;
-        boolean bExists = false;
-        do {
-            bExists = false;
-            for (int d = 0; d < countDataFiles(); d++) {
-                DataFile df = getDataFile(d);
-                if (df.getId().equals(id)) {
-                    nDf++;
-                    id = "D" + nDf;
-                    bExists = true;
-                    continue;
-                }
+        Map<String, DataFile> idx = getDataFileIndex();
+        while (idx.containsKey("D" + nextDataFileId)) {
+            nextDataFileId++;
+        }
+        return "D" + nextDataFileId;
+    }
+
+    /**
+     * Find DataFile by id atribute value
+     * 
+     * @param dfId
+     *            DataFile Id atribute value
+     * @return DataFile object or null if not found
+     */
+    public DataFile findDataFileById(String dfId) {
+        return getDataFileIndex().get(dfId);
+    }
+
+    /**
+     * Returns the DataFile index, building it if necessary. If several
+     * DataFiles share an id the first one is indexed.
+     * 
+     * @return DataFiles by id
+     */
+    private Map<String, DataFile> getDataFileIndex() {
+        if (dataFilesById == null) {
+            Map<String, DataFile> idx = new HashMap<String, DataFile>();
+            for (int i = 0; i < countDataFiles(); i++) {
+                DataFile df = getDataFile(i);
+                if (df.getId() != null && !idx.containsKey(df.getId()))
+                    idx.put(df.getId(), df);
             }
-        } while (bExists);
-        return id;
+            dataFilesById = idx;
+            nextDataFileId = 0;
+        }
+        return dataFilesById;
+    }
+
+    /**
+     * Drops the DataFile index. Called when a DataFile of this document
+     * changes its id.
+     */
+    void dataFileIdChanged() {
+        dataFilesById = null;
     }
 
     /**
@@ -258,6 +319,52 @@ public class SignedDoc implements Serializable {
         return df;
     }
 
+    /**
+     * Accessor for digestExecutor attribute
+     * 
+     * @return executor used for DataFile digests, null if they are calculated
+     *         sequentially
+     */
+    public Executor getDigestExecutor() {
+        return digestExecutor;
+    }
+
+    /**
+     * Mutator for digestExecutor attribute. When set, writeToStream() and
+     * prepareSignature() calculate the DataFile digests concurrently on this
+     * executor and assemble the results in document order. The executor
+     * should be a bounded pool, e.g. one thread per core, because every task
+     * reads, encodes and hashes a whole DataFile.
+     * 
+     * @param executor
+     *            executor to use or null to calculate digests sequentially
+     */
+    public void setDigestExecutor(Executor executor) {
+        digestExecutor = executor;
+    }
+
+    /**
+     * Accessor for deflateExecutor attribute
+     * 
+     * @return executor used for compressing BDOC entries, null if they are
+     *         compressed on the writing thread
+     */
+    public Executor getDeflateExecutor() {
+        return deflateExecutor;
+    }
+
+    /**
+     * Mutator for deflateExecutor attribute. When set, BDOC containers are
+     * written with a {@link ParallelZipOutputStream} that compresses large
+     * entries in blocks on this executor.
+     * 
+     * @param executor
+     *            executor to use or null to compress on the writing thread
+     */
+    public void setDeflateExecutor(Executor executor) {
+        deflateExecutor = executor;
+    }
+
     /**
      * Writes the SignedDoc to an output file and automatically calculates
      * DataFile sizes and digests
@@ -291,7 +398,8 @@ public class SignedDoc implements Serializable {
     public void writeToStream(OutputStream os) throws DigiDocException {
         if (FORMAT_BDOC.equals(format)) {
             try {
-                ZipOutputStream zos = new ZipOutputStream(os);
+                ZipOutputStream zos = (deflateExecutor != null) ? new ParallelZipOutputStream(os, deflateExecutor)
+                        : new ZipOutputStream(os);
                 writeMimetypeFile(zos);
                 writeToZipStream(zos);
                 zos.close();
@@ -307,17 +415,23 @@ public class SignedDoc implements Serializable {
         try {
             os.write(xmlHeader().getBytes());
             
-            for (int i = 0; i < countDataFiles(); i++) {
-                DataFile df = getDataFile(i);
-                df.writeToFile(os);
-                os.write("\n".getBytes());
+            if (digestExecutor != null && countDataFiles() > 1) {
+                writeDataFilesParallel(os);
+            } else {
+                for (int i = 0; i < countDataFiles(); i++) {
+                    DataFile df = getDataFile(i);
+                    df.writeToFile(os);
+                    os.write("\n".getBytes());
+                }
             }
             
+            XmlWriter w = new XmlWriter(os);
             for (int i = 0; i < countSignatures(); i++) {
                 Signature sig = getSignature(i);
-                os.write(sig.toXML());
-                os.write("\n".getBytes());
+                sig.writeXML(w);
+                w.write("\n");
             }
+            w.flush();
             
             os.write(xmlTrailer().getBytes());
         } catch (DigiDocException ex) {
@@ -327,6 +441,109 @@ public class SignedDoc implements Serializable {
         }
     }
 
+    /**
+     * Serializes all DataFiles concurrently on the digest executor, each into
+     * its own body from the DataFile's body store (spilled to a temporary file
+     * if large), and then copies them to the output in document order.
+     * 
+     * @param os
+     *            output stream
+     * @throws DigiDocException
+     *             for all errors
+     */
+    private void writeDataFilesParallel(OutputStream os) throws DigiDocException, IOException {
+        List<CompletableFuture<StoredBody>> parts = new ArrayList<CompletableFuture<StoredBody>>();
+        for (int i = 0; i < countDataFiles(); i++) {
+            final DataFile df = getDataFile(i);
+            parts.add(AsyncUtils.supplyAsync(new Callable<StoredBody>() {
+                public StoredBody call() throws Exception {
+                    BodyStore store = df.getBodyStore();
+                    if (store instanceof ContentAddressedBodyStore) {
+                        // the serialized DataFile is not a body to keep
+                        store = ((ContentAddressedBodyStore) store).getScratchStore();
+                    }
+                    BodySink sink = store.create(-1);
+                    try {
+                        df.writeToFile(sink);
+                        return sink.finish();
+                    } finally {
+                        sink.close();
+                    }
+                }
+            }, digestExecutor));
+        }
+        int i = 0;
+        try {
+            byte[] buf = new byte[8192];
+            for (; i < parts.size(); i++) {
+                StoredBody part = AsyncUtils.join(parts.get(i), DigiDocException.ERR_WRITE_FILE);
+                try {
+                    InputStream is = part.openStream();
+                    try {
+                        int n;
+                        while ((n = is.read(buf)) > 0) {
+                            os.write(buf, 0, n);
+                        }
+                    } finally {
+                        is.close();
+                    }
+                } finally {
+                    part.release();
+                }
+                os.write("\n".getBytes());
+            }
+        } finally {
+            // free the parts that will not be written
+            for (i++; i < parts.size(); i++) {
+                parts.get(i).thenAccept(new Consumer<StoredBody>() {
+                    public void accept(StoredBody part) {
+                        part.release();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Calculates the digests of all DataFiles that do not have one yet,
+     * concurrently if a digest executor has been set. The content of BDOC
+     * DataFiles is read from the shared ZipFile, one stream per entry.
+     * 
+     * @throws DigiDocException
+     *             for the first DataFile that could not be digested
+     */
+    public void calculateDataFileDigests() throws DigiDocException {
+        if (digestExecutor != null && countDataFiles() > 1) {
+            calculateDigestsParallel();
+        } else {
+            for (int i = 0; i < countDataFiles(); i++) {
+                getDataFile(i).getDigest();
+            }
+        }
+    }
+
+    /**
+     * Calculates the digests of all DataFiles concurrently on the digest
+     * executor. DataFiles that already have a digest are not processed again.
+     * 
+     * @throws DigiDocException
+     *             for all errors
+     */
+    private void calculateDigestsParallel() throws DigiDocException {
+        List<CompletableFuture<byte[]>> digests = new ArrayList<CompletableFuture<byte[]>>();
+        for (int i = 0; i < countDataFiles(); i++) {
+            final DataFile df = getDataFile(i);
+            digests.add(AsyncUtils.supplyAsync(new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    return df.getDigest();
+                }
+            }, digestExecutor));
+        }
+        for (CompletableFuture<byte[]> f : digests) {
+            AsyncUtils.join(f, DigiDocException.ERR_READ_FILE);
+        }
+    }
+
     // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
     /**
      * Writes the mimetype file to a zip stream
@@ -401,8 +618,10 @@ public class SignedDoc implements Serializable {
                 zos.putNextEntry(new ZipEntry(SIG_FILE_NAME + iSigNr + ".xml"));
                 String xmlHeader = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
                 zos.write(xmlHeader.getBytes());
-                zos.write(sig.toXML());
-                zos.write("\n".getBytes());
+                XmlWriter w = new XmlWriter(zos);
+                sig.writeXML(w);
+                w.write("\n");
+                w.flush();
                 // Complete the entry
                 zos.closeEntry();
 
@@ -456,6 +675,9 @@ public class SignedDoc implements Serializable {
         }
            
         dataFiles.add(df);
+        if (dataFilesById != null && df.getId() != null && !dataFilesById.containsKey(df.getId())) {
+            dataFilesById.put(df.getId(), df);
+        }
     }
 
     /**
@@ -491,6 +713,7 @@ public class SignedDoc implements Serializable {
         }
 
         dataFiles.remove(idx);
+        dataFilesById = null;
     }
 
     /**
@@ -508,22 +731,11 @@ public class SignedDoc implements Serializable {
      * @return new Signature id
      */
     public String getNewSignatureId() {
-        int nS = 0;
-        String id = "S" + nS;
-        boolean bExists = false;
-        do {
-            bExists = false;
-            for (int i = 0; i < countSignatures(); i++) {
-                Signature sig = getSignature(i);
-                if (sig.getId().equals(id)) {
-                    nS++;
-                    id = "S" + nS;
-                    bExists = true;
-                    continue;
-                }
-            }
-        } while (bExists);
-        return id;
+        Map<String, Signature> idx = getSignatureIndex();
+        while (idx.containsKey("S" + nextSignatureId)) {
+            nextSignatureId++;
+        }
+        return "S" + nextSignatureId;
     }
 
     /**
@@ -534,12 +746,35 @@ public class SignedDoc implements Serializable {
      * @return signature object or null if not found
      */
     public Signature findSignatureById(String sigId) {
-        for (int i = 0; i < countSignatures(); i++) {
-            Signature sig = getSignature(i);
-            if (sig.getId().equals(sigId))
-                return sig;
+        return getSignatureIndex().get(sigId);
+    }
+
+    /**
+     * Returns the Signature index, building it if necessary. If several
+     * Signatures share an id the first one is indexed.
+     * 
+     * @return Signatures by id
+     */
+    private Map<String, Signature> getSignatureIndex() {
+        if (signaturesById == null) {
+            Map<String, Signature> idx = new HashMap<String, Signature>();
+            for (int i = 0; i < countSignatures(); i++) {
+                Signature sig = getSignature(i);
+                if (sig.getId() != null && !idx.containsKey(sig.getId()))
+                    idx.put(sig.getId(), sig);
+            }
+            signaturesById = idx;
+            nextSignatureId = 0;
         }
-        return null;
+        return signaturesById;
+    }
+
+    /**
+     * Drops the Signature index. Called when a Signature of this document
+     * changes its id.
+     */
+    void signatureIdChanged() {
+        signaturesById = null;
     }
 
     /**
@@ -559,6 +794,9 @@ public class SignedDoc implements Serializable {
         sig.setId(getNewSignatureId());
         // create SignedInfo block
         SignedInfo si = new SignedInfo(sig, RSA_SHA1_SIGNATURE_METHOD, CANONICALIZATION_METHOD_20010315);
+        if (digestExecutor != null && countDataFiles() > 1) {
+            calculateDigestsParallel();
+        }
         // add DataFile references
         for (int i = 0; i < countDataFiles(); i++) {
             DataFile df = getDataFile(i);
@@ -598,6 +836,8 @@ public class SignedDoc implements Serializable {
         if (signatures == null)
             signatures = new ArrayList<Signature>();
         signatures.add(sig);
+        if (signaturesById != null && sig.getId() != null && !signaturesById.containsKey(sig.getId()))
+            signaturesById.put(sig.getId(), sig);
     }
 
     /**
@@ -619,6 +859,7 @@ public class SignedDoc implements Serializable {
      */
     public void removeSignature(int idx) {
         signatures.remove(idx);
+        signaturesById = null;
     }
 
     /**
@@ -673,25 +914,29 @@ public class SignedDoc implements Serializable {
      * @return XML representation of SignedDoc
      */
     public String toXML() {
-        StringBuffer sb = new StringBuffer(xmlHeader());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            XmlWriter w = new XmlWriter(bos);
+            w.write(xmlHeader());
 
-        for (int i = 0; i < countDataFiles(); i++) {
-            DataFile df = getDataFile(i);
-            String str = df.toString();
-            sb.append(str);
-            sb.append("\n");
-        }
+            for (int i = 0; i < countDataFiles(); i++) {
+                DataFile df = getDataFile(i);
+                df.writeXML(w);
+                w.write("\n");
+            }
 
-        for (int i = 0; i < countSignatures(); i++) {
-            Signature sig = getSignature(i);
-            String str = sig.toString();
-            sb.append(str);
-            sb.append("\n");
+            for (int i = 0; i < countSignatures(); i++) {
+                Signature sig = getSignature(i);
+                sig.writeXML(w);
+                w.write("\n");
+            }
+            
+            w.write(xmlTrailer());
+            w.flush();
+            return bos.toString("UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        
-        sb.append(xmlTrailer());
-
-        return sb.toString();
     }
 
     @Override
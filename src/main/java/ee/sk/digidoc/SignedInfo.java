@@ -25,10 +25,13 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import ee.sk.digidoc.services.CanonicalizationService;
 import ee.sk.utils.DDUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Represents an XML-DSIG SignedInfo block
@@ -47,6 +50,14 @@ public class SignedInfo implements Serializable {
     private List<Reference> m_references;
     /** digest over the original bytes read from XML file */
     private byte[] m_origDigest;
+    /** canonical form of this block, cleared when the XML form changes */
+    private transient byte[] m_canonicalXml;
+    /** digests of m_canonicalXml by JCA algorithm name */
+    private transient Map<String, byte[]> m_digests;
+    /** format and version of the SignedDoc m_canonicalXml was made for */
+    private transient String m_cachedDocForm;
+    /** References by URI, built on demand */
+    private transient Map<String, Reference> m_refsByUri;
 
     /**
      * Creates new SignedInfo. Initializes everything to null.
@@ -97,6 +108,7 @@ public class SignedInfo implements Serializable {
      */
     public void setSignature(Signature sig) {
         m_signature = sig;
+        invalidateCache();
     }
 
     /**
@@ -140,6 +152,7 @@ public class SignedInfo implements Serializable {
         if (ex != null)
             throw ex;
         m_signatureMethod = str;
+        invalidateCache();
     }
 
     /**
@@ -179,6 +192,7 @@ public class SignedInfo implements Serializable {
         if (ex != null)
             throw ex;
         m_canonicalizationMethod = str;
+        invalidateCache();
     }
 
     /**
@@ -215,6 +229,9 @@ public class SignedInfo implements Serializable {
         if (m_references == null)
             m_references = new ArrayList<Reference>();
         m_references.add(ref);
+        if (m_refsByUri != null && ref.getUri() != null && !m_refsByUri.containsKey(ref.getUri()))
+            m_refsByUri.put(ref.getUri(), ref);
+        invalidateCache();
     }
 
     /**
@@ -236,22 +253,13 @@ public class SignedInfo implements Serializable {
      * @return desired Reference object
      */
     public Reference getReferenceForDataFile(DataFile df) {
+        Map<String, Reference> idx = getReferenceIndex();
         Reference ref = null;
-        for (int i = 0; (m_references != null) && (i < m_references.size()); i++) {
-            Reference r1 = (Reference) m_references.get(i);
-            // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-            // IS Fix reference algus
-            if (r1.getUri().equals(df.getFullName())) {
-                ref = r1;
-                break;
-            }
-            // IS Fix reference lopp
-            // L Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-            if (r1.getUri().equals("#" + df.getId())) {
-                ref = r1;
-                break;
-            }
-        }
+        // BDOC references use the file name
+        if (df.getFullName() != null)
+            ref = idx.get(df.getFullName());
+        if (ref == null)
+            ref = idx.get("#" + df.getId());
         return ref;
     }
 
@@ -263,15 +271,33 @@ public class SignedInfo implements Serializable {
      * @return desired Reference object
      */
     public Reference getReferenceForSignedProperties(SignedProperties sp) {
-        Reference ref = null;
-        for (int i = 0; (m_references != null) && (i < m_references.size()); i++) {
-            Reference r1 = (Reference) m_references.get(i);
-            if (r1.getUri().equals("#" + sp.getId())) {
-                ref = r1;
-                break;
+        return getReferenceIndex().get("#" + sp.getId());
+    }
+
+    /**
+     * Returns the Reference index, building it if necessary. If several
+     * References share an URI the first one is indexed.
+     * 
+     * @return References by URI
+     */
+    private synchronized Map<String, Reference> getReferenceIndex() {
+        if (m_refsByUri == null) {
+            Map<String, Reference> idx = new HashMap<String, Reference>();
+            for (int i = 0; i < countReferences(); i++) {
+                Reference ref = getReference(i);
+                if (ref.getUri() != null && !idx.containsKey(ref.getUri()))
+                    idx.put(ref.getUri(), ref);
             }
+            m_refsByUri = idx;
         }
-        return ref;
+        return m_refsByUri;
+    }
+
+    /**
+     * Drops the Reference index. Called when a Reference changes its URI.
+     */
+    synchronized void invalidateReferenceIndex() {
+        m_refsByUri = null;
     }
 
     /**
@@ -332,12 +358,84 @@ public class SignedInfo implements Serializable {
      */
     public byte[] calculateDigest(CanonicalizationService canonicalizationService) throws DigiDocException {
         if (m_origDigest == null) {
-            byte[] tmp = canonicalizationService.canonicalize(toXML(), SignedDoc.CANONICALIZATION_METHOD_20010315);
-            return DDUtils.digest(tmp);
+            return calculateDigest(canonicalizationService, "SHA-1");
         } else
             return m_origDigest;
     }
 
+    /**
+     * Calculates the digest of the canonical form of this block. The
+     * canonical form and digests are cached until this block, one of its
+     * References or the format or version of the SignedDoc is modified.
+     * 
+     * @param canonicalizationService
+     *            canonicalizer to use if the form is not cached
+     * @param algorithm
+     *            JCA digest algorithm name
+     * @return SignedInfo block digest
+     * @throws DigiDocException
+     *             for canonicalization or digest errors
+     */
+    public synchronized byte[] calculateDigest(CanonicalizationService canonicalizationService, String algorithm)
+            throws DigiDocException {
+        byte[] can = canonicalXml(canonicalizationService);
+        byte[] dig = (m_digests != null) ? m_digests.get(algorithm) : null;
+        if (dig == null) {
+            dig = DDUtils.digest(can, algorithm);
+            if (m_digests == null)
+                m_digests = new HashMap<String, byte[]>(2);
+            m_digests.put(algorithm, dig);
+        }
+        return dig.clone();
+    }
+
+    /**
+     * Returns the canonical form of this block, canonicalizing it only if
+     * it has changed since the last call
+     * 
+     * @param canonicalizationService
+     *            canonicalizer to use if the form is not cached
+     * @return canonicalized SignedInfo
+     * @throws DigiDocException
+     *             for canonicalization errors
+     */
+    public synchronized byte[] getCanonicalXml(CanonicalizationService canonicalizationService)
+            throws DigiDocException {
+        return canonicalXml(canonicalizationService).clone();
+    }
+
+    private byte[] canonicalXml(CanonicalizationService canonicalizationService) throws DigiDocException {
+        String docForm = docForm((m_signature != null) ? m_signature.getSignedDoc() : null);
+        if (m_canonicalXml != null && !docForm.equals(m_cachedDocForm))
+            invalidateCache();
+        if (m_canonicalXml == null) {
+            m_canonicalXml = canonicalizationService.canonicalize(toXML(), SignedDoc.CANONICALIZATION_METHOD_20010315);
+            m_cachedDocForm = docForm;
+        }
+        return m_canonicalXml;
+    }
+
+    /**
+     * Returns the format and version of a SignedDoc, the XML form of the
+     * signature blocks depends on them
+     * 
+     * @param doc
+     *            signed doc or null
+     * @return format and version
+     */
+    static String docForm(SignedDoc doc) {
+        return (doc != null) ? doc.getFormat() + "/" + doc.getVersion() : "";
+    }
+
+    /**
+     * Drops the cached canonical form and digests. Called by the mutators of
+     * this class and of the contained References.
+     */
+    synchronized void invalidateCache() {
+        m_canonicalXml = null;
+        m_digests = null;
+    }
+
     /**
      * Converts the SignedInfo to XML form
      * 
@@ -346,27 +444,39 @@ public class SignedInfo implements Serializable {
     public byte[] toXML() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            bos.write("<SignedInfo xmlns=\"http://www.w3.org/2000/09/xmldsig#\">\n".getBytes());
-            bos.write("<CanonicalizationMethod Algorithm=\"".getBytes());
-            bos.write(m_canonicalizationMethod.getBytes());
-            bos.write("\">\n</CanonicalizationMethod>\n".getBytes());
-            bos.write("<SignatureMethod Algorithm=\"".getBytes());
-            bos.write(m_signatureMethod.getBytes());
-            bos.write("\">\n</SignatureMethod>\n".getBytes());
-            
-            for (int i = 0; (m_references != null) && (i < m_references.size()); i++) {
-                Reference ref = (Reference) m_references.get(i);
-                bos.write(ref.toXML());
-                bos.write("\n".getBytes());
-            }
-            
-            bos.write("</SignedInfo>".getBytes());
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
         return bos.toByteArray();
     }
 
+    /**
+     * Writes the SignedInfo in XML form
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w) throws IOException {
+        w.write("<SignedInfo xmlns=\"http://www.w3.org/2000/09/xmldsig#\">\n");
+        w.write("<CanonicalizationMethod Algorithm=\"");
+        w.writeAttribute(m_canonicalizationMethod);
+        w.write("\">\n</CanonicalizationMethod>\n");
+        w.write("<SignatureMethod Algorithm=\"");
+        w.writeAttribute(m_signatureMethod);
+        w.write("\">\n</SignatureMethod>\n");
+        
+        for (int i = 0; (m_references != null) && (i < m_references.size()); i++) {
+            Reference ref = (Reference) m_references.get(i);
+            ref.writeXML(w);
+            w.write("\n");
+        }
+        
+        w.write("</SignedInfo>");
+    }
+
     /**
      * Returns the stringified form of SignedInfo
      * 
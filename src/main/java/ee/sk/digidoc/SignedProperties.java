@@ -28,12 +28,14 @@ import java.math.BigInteger;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import ee.sk.digidoc.services.CanonicalizationService;
-import ee.sk.utils.Base64Util;
 import ee.sk.utils.ConvertUtils;
 import ee.sk.utils.DDUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Models the SignedProperties element of an XML-DSIG/ETSI Signature.
@@ -64,6 +66,15 @@ public class SignedProperties implements Serializable {
     private List<String> m_claimedRoles;
     /** digest over the original bytes read from XML file */
     private byte[] m_origDigest;
+    /** canonical form of this block, cleared when the XML form changes */
+    private transient byte[] m_canonicalXml;
+    /** digests of m_canonicalXml by JCA algorithm name */
+    private transient Map<String, byte[]> m_digests;
+    /** signers certificate and production place version m_canonicalXml was made with */
+    private transient X509Certificate m_cachedSignerCert;
+    private transient int m_cachedAddressMod;
+    /** format and version of the SignedDoc m_canonicalXml was made for */
+    private transient String m_cachedDocForm;
     // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
     /** SignedDataObjectProperties */
     private String m_SignedDataObjectProperties;
@@ -189,6 +200,7 @@ public class SignedProperties implements Serializable {
         if (ex != null)
             throw ex;
         m_id = str;
+        invalidateCache();
     }
 
     /**
@@ -246,6 +258,7 @@ public class SignedProperties implements Serializable {
         if (ex != null)
             throw ex;
         m_target = str;
+        invalidateCache();
     }
 
     /**
@@ -290,6 +303,7 @@ public class SignedProperties implements Serializable {
                 throw ex;
         }
         m_certId = str;
+        invalidateCache();
     }
 
     /**
@@ -326,6 +340,7 @@ public class SignedProperties implements Serializable {
      */
     public void setSignatureProductionPlace(SignatureProductionPlace adr) throws DigiDocException {
         m_address = adr;
+        invalidateCache();
     }
 
     /**
@@ -334,7 +349,7 @@ public class SignedProperties implements Serializable {
      * @return value of signingTime attribute
      */
     public Date getSigningTime() {
-        return m_signingTime;
+        return (m_signingTime != null) ? (Date) m_signingTime.clone() : null;
     }
 
     /**
@@ -349,7 +364,8 @@ public class SignedProperties implements Serializable {
         DigiDocException ex = validateSigningTime(d);
         if (ex != null)
             throw ex;
-        m_signingTime = d;
+        m_signingTime = (Date) d.clone();
+        invalidateCache();
     }
 
     /**
@@ -388,6 +404,7 @@ public class SignedProperties implements Serializable {
         if (ex != null)
             throw ex;
         m_certDigestAlgorithm = str;
+        invalidateCache();
     }
 
     /**
@@ -411,7 +428,7 @@ public class SignedProperties implements Serializable {
      * @return value of certDigestValue attribute
      */
     public byte[] getCertDigestValue() {
-        return m_certDigestValue;
+        return (m_certDigestValue != null) ? m_certDigestValue.clone() : null;
     }
 
     /**
@@ -426,7 +443,8 @@ public class SignedProperties implements Serializable {
         DigiDocException ex = validateCertDigestValue(data);
         if (ex != null)
             throw ex;
-        m_certDigestValue = data;
+        m_certDigestValue = data.clone();
+        invalidateCache();
     }
 
     /**
@@ -466,6 +484,7 @@ public class SignedProperties implements Serializable {
         if (ex != null)
             throw ex;
         m_certSerial = i;
+        invalidateCache();
     }
 
     /**
@@ -502,6 +521,7 @@ public class SignedProperties implements Serializable {
         if (m_claimedRoles == null)
             m_claimedRoles = new ArrayList<String>();
         m_claimedRoles.add(role);
+        invalidateCache();
     }
 
     /**
@@ -557,12 +577,79 @@ public class SignedProperties implements Serializable {
      */
     public byte[] calculateDigest(CanonicalizationService canonicalizationService) throws DigiDocException {
         if (m_origDigest == null) {
-            byte[] tmp = canonicalizationService.canonicalize(toXML(), SignedDoc.CANONICALIZATION_METHOD_20010315);
-            return DDUtils.digest(tmp);
+            return calculateDigest(canonicalizationService, "SHA-1");
         } else
             return m_origDigest;
     }
 
+    /**
+     * Calculates the digest of the canonical form of this block. The
+     * canonical form and digests are cached until this block, its
+     * SignatureProductionPlace, the signers certificate or the format or
+     * version of the SignedDoc changes.
+     * 
+     * @param canonicalizationService
+     *            canonicalizer to use if the form is not cached
+     * @param algorithm
+     *            JCA digest algorithm name
+     * @return SignedProperties block digest
+     * @throws DigiDocException
+     *             for canonicalization or digest errors
+     */
+    public synchronized byte[] calculateDigest(CanonicalizationService canonicalizationService, String algorithm)
+            throws DigiDocException {
+        byte[] can = canonicalXml(canonicalizationService);
+        byte[] dig = (m_digests != null) ? m_digests.get(algorithm) : null;
+        if (dig == null) {
+            dig = DDUtils.digest(can, algorithm);
+            if (m_digests == null)
+                m_digests = new HashMap<String, byte[]>(2);
+            m_digests.put(algorithm, dig);
+        }
+        return dig.clone();
+    }
+
+    /**
+     * Returns the canonical form of this block, canonicalizing it only if
+     * it has changed since the last call
+     * 
+     * @param canonicalizationService
+     *            canonicalizer to use if the form is not cached
+     * @return canonicalized SignedProperties
+     * @throws DigiDocException
+     *             for canonicalization errors
+     */
+    public synchronized byte[] getCanonicalXml(CanonicalizationService canonicalizationService)
+            throws DigiDocException {
+        return canonicalXml(canonicalizationService).clone();
+    }
+
+    private byte[] canonicalXml(CanonicalizationService canonicalizationService) throws DigiDocException {
+        X509Certificate cert = (m_sig != null && m_sig.getKeyInfo() != null) ? m_sig.getKeyInfo()
+                .getSignersCertificate() : null;
+        int addressMod = (m_address != null) ? m_address.getModCount() : 0;
+        String docForm = SignedInfo.docForm((m_sig != null) ? m_sig.getSignedDoc() : null);
+        if (m_canonicalXml != null
+                && (cert != m_cachedSignerCert || addressMod != m_cachedAddressMod || !docForm
+                        .equals(m_cachedDocForm)))
+            invalidateCache();
+        if (m_canonicalXml == null) {
+            m_canonicalXml = canonicalizationService.canonicalize(toXML(), SignedDoc.CANONICALIZATION_METHOD_20010315);
+            m_cachedSignerCert = cert;
+            m_cachedAddressMod = addressMod;
+            m_cachedDocForm = docForm;
+        }
+        return m_canonicalXml;
+    }
+
+    /**
+     * Drops the cached canonical form and digests
+     */
+    private synchronized void invalidateCache() {
+        m_canonicalXml = null;
+        m_digests = null;
+    }
+
     /**
      * Converts the SignedProperties to XML form
      * 
@@ -571,119 +658,120 @@ public class SignedProperties implements Serializable {
     public byte[] toXML() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            // In version 1.3 we use xmlns atributes like specified in XAdES
-            if (m_sig.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3)) {
-                bos.write(ConvertUtils.str2data("<SignedProperties xmlns=\""));
-                bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_ETSI));
-                bos.write(ConvertUtils.str2data("\" Id=\""));
-                bos.write(ConvertUtils.str2data(m_id));
-                bos.write(ConvertUtils.str2data("\">\n"));
-                // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-            } else if (m_sig.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
-                // bos.write(ConvertUtils.str2data("<SignedProperties Id=\""));
-                // FIXME: Adding xmlns as an ugly hack to make canonization
-                // happy (temporarily)
-                bos.write(ConvertUtils.str2data("<SignedProperties xmlns=\""));
-                bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_XADES_123));
-                bos.write(ConvertUtils.str2data("\" Id=\""));
-                bos.write(ConvertUtils.str2data(m_id));
-                bos.write(ConvertUtils.str2data("\">\n"));
-            }
-            // L Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-            else { // in prior versions we used the wrong namespace
-                bos.write(ConvertUtils.str2data("<SignedProperties xmlns=\""));
-                bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_XMLDSIG));
-                bos.write(ConvertUtils.str2data("\" Id=\""));
-                bos.write(ConvertUtils.str2data(m_id));
-                bos.write(ConvertUtils.str2data("\""));
-                if (m_target != null)// Lauri fix, if target does not exist
-                                     // ignore the attribute
-                {
-                    bos.write(ConvertUtils.str2data(" Target=\""));
-                    bos.write(ConvertUtils.str2data(m_target));
-                    bos.write(ConvertUtils.str2data("\""));
-                }
-                bos.write(ConvertUtils.str2data(">\n"));
-            }
-            bos.write(ConvertUtils.str2data("<SignedSignatureProperties>\n<SigningTime>"));
-            bos.write(ConvertUtils.str2data(ConvertUtils.date2string(m_signingTime, m_sig.getSignedDoc())));
-            bos.write(ConvertUtils.str2data("</SigningTime>\n<SigningCertificate>\n"));
-            if ((m_sig.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3)) ||
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Writes the SignedProperties in XML form
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w) throws IOException {
+        // In version 1.3 we use xmlns atributes like specified in XAdES
+        if (m_sig.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3)) {
+            w.write("<SignedProperties xmlns=\"");
+            w.write(SignedDoc.XMLNS_ETSI);
+            w.write("\" Id=\"");
+            w.writeAttribute(m_id);
+            w.write("\">\n");
             // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-                    m_sig.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
-                // L Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-                bos.write(ConvertUtils.str2data("<Cert>"));
-            } else {
-                bos.write(ConvertUtils.str2data("<Cert Id=\""));
-                bos.write(ConvertUtils.str2data(m_certId));
-                bos.write(ConvertUtils.str2data("\">"));
+        } else if (m_sig.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
+            // FIXME: Adding xmlns as an ugly hack to make canonization
+            // happy (temporarily)
+            w.write("<SignedProperties xmlns=\"");
+            w.write(SignedDoc.XMLNS_XADES_123);
+            w.write("\" Id=\"");
+            w.writeAttribute(m_id);
+            w.write("\">\n");
+        }
+        // L Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
+        else { // in prior versions we used the wrong namespace
+            w.write("<SignedProperties xmlns=\"");
+            w.write(SignedDoc.XMLNS_XMLDSIG);
+            w.write("\" Id=\"");
+            w.writeAttribute(m_id);
+            w.write("\"");
+            if (m_target != null)// Lauri fix, if target does not exist
+                                 // ignore the attribute
+            {
+                w.write(" Target=\"");
+                w.writeAttribute(m_target);
+                w.write("\"");
             }
-            bos.write(ConvertUtils.str2data("\n<CertDigest>\n<DigestMethod Algorithm=\""));
-            bos.write(ConvertUtils.str2data(m_certDigestAlgorithm));
-            bos.write(ConvertUtils.str2data("\" xmlns=\""));
-            bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_XMLDSIG));
-            bos.write(ConvertUtils.str2data("\">\n</DigestMethod>\n<DigestValue xmlns=\""));
-            bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_XMLDSIG));
-            bos.write(ConvertUtils.str2data("\">"));
-            bos.write(ConvertUtils.str2data(Base64Util.encode(m_certDigestValue, 0)));
-            bos.write(ConvertUtils.str2data("</DigestValue>\n</CertDigest>\n"));
-            // In version 1.3 we use correct <IssuerSerial> content
-            // e.g. subelements <X509IssuerName> and <X509SerialNumber>
+            w.write(">\n");
+        }
+        w.write("<SignedSignatureProperties>\n<SigningTime>");
+        w.write(ConvertUtils.date2string(m_signingTime, m_sig.getSignedDoc()));
+        w.write("</SigningTime>\n<SigningCertificate>\n");
+        if ((m_sig.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3)) ||
+        // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
+                m_sig.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
+            // L Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
+            w.write("<Cert>");
+        } else {
+            w.write("<Cert Id=\"");
+            w.writeAttribute(m_certId);
+            w.write("\">");
+        }
+        w.write("\n<CertDigest>\n<DigestMethod Algorithm=\"");
+        w.writeAttribute(m_certDigestAlgorithm);
+        w.write("\" xmlns=\"");
+        w.write(SignedDoc.XMLNS_XMLDSIG);
+        w.write("\">\n</DigestMethod>\n<DigestValue xmlns=\"");
+        w.write(SignedDoc.XMLNS_XMLDSIG);
+        w.write("\">");
+        w.writeBase64(m_certDigestValue, 0);
+        w.write("</DigestValue>\n</CertDigest>\n");
+        // In version 1.3 we use correct <IssuerSerial> content
+        // e.g. subelements <X509IssuerName> and <X509SerialNumber>
+        // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
+        if ((m_sig.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3))
+                || m_sig.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
             // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-            if ((m_sig.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3))
-                    || m_sig.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
-                // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-                bos.write(ConvertUtils.str2data("<IssuerSerial>"));
-                bos.write(ConvertUtils.str2data("\n<X509IssuerName xmlns=\""));
-                bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_XMLDSIG));
-                bos.write(ConvertUtils.str2data("\">"));
-                bos.write(ConvertUtils.str2data(m_sig.getKeyInfo().getSignersCertificate().getIssuerX500Principal()
-                        .getName("RFC1779")));
-                bos.write(ConvertUtils.str2data("</X509IssuerName>"));
-                bos.write(ConvertUtils.str2data("\n<X509SerialNumber xmlns=\""));
-                bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_XMLDSIG));
-                bos.write(ConvertUtils.str2data("\">"));
-                bos.write(ConvertUtils.str2data(m_certSerial.toString()));
-                bos.write(ConvertUtils.str2data("</X509SerialNumber>\n"));
-                bos.write(ConvertUtils.str2data("</IssuerSerial>"));
-            } else { // in prior versions we used wrong <IssuerSerial> content
-                bos.write(ConvertUtils.str2data("<IssuerSerial>"));
-                bos.write(ConvertUtils.str2data(m_certSerial.toString()));
-                bos.write(ConvertUtils.str2data("</IssuerSerial>"));
-            }
-            bos.write(ConvertUtils.str2data("</Cert></SigningCertificate>\n"));
+            w.write("<IssuerSerial>");
+            w.write("\n<X509IssuerName xmlns=\"");
+            w.write(SignedDoc.XMLNS_XMLDSIG);
+            w.write("\">");
+            w.writeText(m_sig.getKeyInfo().getSignersCertificate().getIssuerX500Principal().getName("RFC1779"));
+            w.write("</X509IssuerName>");
+            w.write("\n<X509SerialNumber xmlns=\"");
+            w.write(SignedDoc.XMLNS_XMLDSIG);
+            w.write("\">");
+            w.write(m_certSerial.toString());
+            w.write("</X509SerialNumber>\n");
+            w.write("</IssuerSerial>");
+        } else { // in prior versions we used wrong <IssuerSerial> content
+            w.write("<IssuerSerial>");
+            w.write(m_certSerial.toString());
+            w.write("</IssuerSerial>");
+        }
+        w.write("</Cert></SigningCertificate>\n");
 
-            // A Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-            /*
-             * if
-             * (m_sig.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)){
-             * bos.write(ConvertUtils.str2data(
-             * "<SignaturePolicyIdentifier>\n<SignaturePolicyImplied>\n</SignaturePolicyImplied>\n</SignaturePolicyIdentifier>"
-             * )); }
-             */
-            // L Inga <2008 aprill> BDOCiga seotud muudatused xml-is 1
-            if (m_address != null) {
-                bos.write(ConvertUtils.str2data("\n"));
-                bos.write(m_address.toXML());
-            }
-            if (countClaimedRoles() > 0) {
-                if (m_address != null)
-                    bos.write(ConvertUtils.str2data("\n"));
-                bos.write(ConvertUtils.str2data("<SignerRole>\n<ClaimedRoles>\n"));
-                for (int i = 0; i < countClaimedRoles(); i++) {
-                    bos.write(ConvertUtils.str2data("<ClaimedRole>"));
-                    bos.write(ConvertUtils.str2data(getClaimedRole(i)));
-                    bos.write(ConvertUtils.str2data("</ClaimedRole>\n"));
-                }
-                bos.write(ConvertUtils.str2data("</ClaimedRoles>\n</SignerRole>"));
+        if (m_address != null) {
+            w.write("\n");
+            m_address.writeXML(w);
+        }
+        if (countClaimedRoles() > 0) {
+            if (m_address != null)
+                w.write("\n");
+            w.write("<SignerRole>\n<ClaimedRoles>\n");
+            for (int i = 0; i < countClaimedRoles(); i++) {
+                w.write("<ClaimedRole>");
+                w.writeText(getClaimedRole(i));
+                w.write("</ClaimedRole>\n");
             }
-            bos.write(ConvertUtils.str2data("\n</SignedSignatureProperties>"));
-            bos.write(ConvertUtils.str2data("\n<SignedDataObjectProperties>\n</SignedDataObjectProperties>"));
-            bos.write(ConvertUtils.str2data("\n</SignedProperties>"));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            w.write("</ClaimedRoles>\n</SignerRole>");
         }
-        return bos.toByteArray();
+        w.write("\n</SignedSignatureProperties>");
+        w.write("\n<SignedDataObjectProperties>\n</SignedDataObjectProperties>");
+        w.write("\n</SignedProperties>");
     }
 
     /**
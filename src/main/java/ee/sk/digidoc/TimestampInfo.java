@@ -27,11 +27,18 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import org.bouncycastle.asn1.ASN1Object;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.cmp.PKIStatus;
+import org.bouncycastle.asn1.cmp.PKIStatusInfo;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.tsp.TimeStampResp;
+import org.bouncycastle.tsp.TSPException;
 import org.bouncycastle.tsp.TimeStampResponse;
 import org.bouncycastle.tsp.TimeStampToken;
 
-import ee.sk.utils.Base64Util;
-import ee.sk.utils.ConvertUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Models the ETSI timestamp element(s) Holds timestamp info and TS_RESP
@@ -50,11 +57,20 @@ public class TimestampInfo implements Serializable {
     /** Include sublements */
     private ArrayList<IncludeInfo> m_includes;
 
-    private TimeStampResponse tsResp;
+    /** TS_RESP data as read from XML */
+    private byte[] tsRespData;
+
+    /** ASN.1 structure of tsRespData, decoded when the data is set */
+    private transient TimeStampResp tsRespStruct;
+
+    /** TS_RESP, decoded from tsRespData on first access if read from XML */
+    private transient volatile TimeStampResponse tsResp;
 
     private TimeStampToken tsToken;
     /** real hash calculated over the corresponding xml block */
     private byte[] hash;
+    /** Merkle inclusion proof of hash if the TSA stamped a batch root */
+    private byte[] aggregationProof;
 
     /** possible values for type atribute */
     public static final int TIMESTAMP_TYPE_UNKNOWN = 0;
@@ -65,6 +81,9 @@ public class TimestampInfo implements Serializable {
     public static final int TIMESTAMP_TYPE_REFS_ONLY = 5;
     public static final int TIMESTAMP_TYPE_ARCHIVE = 6;
 
+    /** namespace of the AggregationProof element, not part of XAdES */
+    public static final String XMLNS_AGGREGATION_PROOF = "urn:jdigidoc:aggregation-proof";
+
     public TimestampInfo() {
     }
 
@@ -122,6 +141,26 @@ public class TimestampInfo implements Serializable {
         hash = b;
     }
 
+    /**
+     * Accessor for the aggregation proof. If set, the timestamp covers the
+     * root of a Merkle tree and the proof links the hash to that root.
+     * 
+     * @return encoded MerkleProof or null if the hash was stamped directly
+     */
+    public byte[] getAggregationProof() {
+        return aggregationProof;
+    }
+
+    /**
+     * Mutator for the aggregation proof
+     * 
+     * @param proof
+     *            encoded MerkleProof or null
+     */
+    public void setAggregationProof(byte[] proof) {
+        aggregationProof = proof;
+    }
+
     /**
      * Accessor for Id attribute
      * 
@@ -208,12 +247,85 @@ public class TimestampInfo implements Serializable {
     }
 
     /**
-     * Accessor for TimeStampResponse attribute
+     * Accessor for TimeStampResponse attribute. If the TS_RESP was read from
+     * XML then the token is decoded from the structure checked by
+     * setTimeStampResponseData() on first access only.
      * 
      * @return value of TimeStampResponse attribute
+     * @throws IllegalStateException
+     *             if the checked TS_RESP still cannot be decoded
      */
     public TimeStampResponse getTimeStampResponse() {
-        return tsResp;
+        TimeStampResponse resp = tsResp;
+        if (resp == null && tsRespData != null) {
+            synchronized (this) {
+                resp = tsResp;
+                if (resp == null) {
+                    try {
+                        if (tsRespStruct == null) {
+                            // deserialized object
+                            tsRespStruct = decodeTimeStampResp(tsRespData);
+                        }
+                        resp = new TimeStampResponse(tsRespStruct);
+                    } catch (TSPException ex) {
+                        throw new IllegalStateException("Cannot decode timestamp response " + id, ex);
+                    } catch (IOException ex) {
+                        throw new IllegalStateException("Cannot decode timestamp response " + id, ex);
+                    } catch (DigiDocException ex) {
+                        throw new IllegalStateException("Cannot decode timestamp response " + id, ex);
+                    }
+                    tsResp = resp;
+                }
+            }
+        }
+        return resp;
+    }
+
+    /**
+     * Decodes the ASN.1 structure of TS_RESP data. EncapsulatedTimeStamp
+     * elements written by writeXML() hold only the TimeStampToken, such data
+     * is wrapped in a granted TS_RESP.
+     */
+    private static TimeStampResp decodeTimeStampResp(byte[] data) throws DigiDocException {
+        TimeStampResp resp = null;
+        try {
+            ASN1Sequence seq = ASN1Sequence.getInstance(ASN1Object.fromByteArray(data));
+            if (seq.size() > 0 && seq.getObjectAt(0) instanceof DERObjectIdentifier) {
+                resp = new TimeStampResp(new PKIStatusInfo(PKIStatus.GRANTED), ContentInfo.getInstance(seq));
+            } else {
+                resp = TimeStampResp.getInstance(seq);
+            }
+        } catch (Exception ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_TIMESTAMP_RESP);
+        }
+        return resp;
+    }
+
+    /**
+     * Accessor for the raw TS_RESP data
+     * 
+     * @return TS_RESP data or null if not read from XML
+     */
+    public byte[] getTimeStampResponseData() {
+        return tsRespData;
+    }
+
+    /**
+     * Mutator for the raw TS_RESP data. Only the ASN.1 structure is decoded
+     * here, the TimeStampResponse object will be created only when requested
+     * 
+     * @param data
+     *            TS_RESP data
+     * @throws DigiDocException
+     *             for validation errors or if data is not a TS_RESP
+     */
+    public synchronized void setTimeStampResponseData(byte[] data) throws DigiDocException {
+        if (data == null || data.length == 0) {
+            throw new DigiDocException(DigiDocException.ERR_TIMESTAMP_RESP, "timestamp cannot be null", null);
+        }
+        tsRespStruct = decodeTimeStampResp(data);
+        tsRespData = data;
+        tsResp = null;
     }
 
     /**
@@ -238,7 +350,11 @@ public class TimestampInfo implements Serializable {
         DigiDocException ex = validateTimeStampResponse(tsr);
         if (ex != null)
             throw ex;
-        tsResp = tsr;
+        synchronized (this) {
+            tsResp = tsr;
+            tsRespData = null;
+            tsRespStruct = null;
+        }
     }
 
     /**
@@ -341,8 +457,9 @@ public class TimestampInfo implements Serializable {
      */
     public String getAlgorithmOid() {
         String oid = null;
-        if (tsResp != null) {
-            oid = tsResp.getTimeStampToken().getTimeStampInfo().getMessageImprintAlgOID();
+        TimeStampResponse resp = getTimeStampResponse();
+        if (resp != null) {
+            oid = resp.getTimeStampToken().getTimeStampInfo().getMessageImprintAlgOID();
         }
         return oid;
     }
@@ -354,8 +471,9 @@ public class TimestampInfo implements Serializable {
      */
     public String getPolicy() {
         String oid = null;
-        if (tsResp != null) {
-            oid = tsResp.getTimeStampToken().getTimeStampInfo().getPolicy();
+        TimeStampResponse resp = getTimeStampResponse();
+        if (resp != null) {
+            oid = resp.getTimeStampToken().getTimeStampInfo().getPolicy();
         }
         return oid;
     }
@@ -367,8 +485,9 @@ public class TimestampInfo implements Serializable {
      */
     public Date getTime() {
         Date d = null;
-        if (tsResp != null) {
-            d = tsResp.getTimeStampToken().getTimeStampInfo().getGenTime();
+        TimeStampResponse resp = getTimeStampResponse();
+        if (resp != null) {
+            d = resp.getTimeStampToken().getTimeStampInfo().getGenTime();
         }
         return d;
     }
@@ -380,8 +499,9 @@ public class TimestampInfo implements Serializable {
      */
     public byte[] getMessageImprint() {
         byte[] b = null;
-        if (tsResp != null) {
-            b = tsResp.getTimeStampToken().getTimeStampInfo().getMessageImprintDigest();
+        TimeStampResponse resp = getTimeStampResponse();
+        if (resp != null) {
+            b = resp.getTimeStampToken().getTimeStampInfo().getMessageImprintDigest();
         }
         return b;
     }
@@ -393,8 +513,9 @@ public class TimestampInfo implements Serializable {
      */
     public BigInteger getNonce() {
         BigInteger b = null;
-        if (tsResp != null) {
-            b = tsResp.getTimeStampToken().getTimeStampInfo().getNonce();
+        TimeStampResponse resp = getTimeStampResponse();
+        if (resp != null) {
+            b = resp.getTimeStampToken().getTimeStampInfo().getNonce();
         }
         return b;
     }
@@ -406,8 +527,9 @@ public class TimestampInfo implements Serializable {
      */
     public BigInteger getSerialNumber() {
         BigInteger b = null;
-        if (tsResp != null) {
-            b = tsResp.getTimeStampToken().getTimeStampInfo().getSerialNumber();
+        TimeStampResponse resp = getTimeStampResponse();
+        if (resp != null) {
+            b = resp.getTimeStampToken().getTimeStampInfo().getSerialNumber();
         }
         return b;
     }
@@ -419,8 +541,9 @@ public class TimestampInfo implements Serializable {
      */
     public boolean isOrdered() {
         boolean b = false;
-        if (tsResp != null) {
-            b = tsResp.getTimeStampToken().getTimeStampInfo().isOrdered();
+        TimeStampResponse resp = getTimeStampResponse();
+        if (resp != null) {
+            b = resp.getTimeStampToken().getTimeStampInfo().isOrdered();
         }
         return b;
     }
@@ -465,64 +588,88 @@ public class TimestampInfo implements Serializable {
     public byte[] toXML() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            switch (type) {
-            case TIMESTAMP_TYPE_ALL_DATA_OBJECTS:
-                bos.write(ConvertUtils.str2data("<AllDataObjectsTimeStamp Id=\""));
-                break;
-            case TIMESTAMP_TYPE_INDIVIDUAL_DATA_OBJECTS:
-                bos.write(ConvertUtils.str2data("<IndividualDataObjectsTimeStamp Id=\""));
-                break;
-            case TIMESTAMP_TYPE_SIGNATURE:
-                bos.write(ConvertUtils.str2data("<SignatureTimeStamp Id=\""));
-                break;
-            case TIMESTAMP_TYPE_SIG_AND_REFS:
-                bos.write(ConvertUtils.str2data("<SigAndRefsTimeStamp Id=\""));
-                break;
-            case TIMESTAMP_TYPE_REFS_ONLY:
-                bos.write(ConvertUtils.str2data("<RefsOnlyTimeStamp Id=\""));
-                break;
-            case TIMESTAMP_TYPE_ARCHIVE:
-                bos.write(ConvertUtils.str2data("<ArchiveTimeStamp Id=\""));
-                break;
-            }
-            bos.write(ConvertUtils.str2data(id));
-            bos.write(ConvertUtils.str2data("\">"));
-            
-            for (int i = 0; i < countIncludeInfos(); i++) {
-                IncludeInfo inc = getIncludeInfo(i);
-                bos.write(inc.toXML());
-            }
-            
-            bos.write(ConvertUtils.str2data("<EncapsulatedTimeStamp>"));
-            if (tsResp != null)
-                bos.write(ConvertUtils.str2data(Base64Util.encode(tsResp.getTimeStampToken().getEncoded(), 64)));
-            bos.write(ConvertUtils.str2data("</EncapsulatedTimeStamp>"));
-            switch (type) {
-            case TIMESTAMP_TYPE_ALL_DATA_OBJECTS:
-                bos.write(ConvertUtils.str2data("</AllDataObjectsTimeStamp>"));
-                break;
-            case TIMESTAMP_TYPE_INDIVIDUAL_DATA_OBJECTS:
-                bos.write(ConvertUtils.str2data("</IndividualDataObjectsTimeStamp>"));
-                break;
-            case TIMESTAMP_TYPE_SIGNATURE:
-                bos.write(ConvertUtils.str2data("</SignatureTimeStamp>"));
-                break;
-            case TIMESTAMP_TYPE_SIG_AND_REFS:
-                bos.write(ConvertUtils.str2data("</SigAndRefsTimeStamp>"));
-                break;
-            case TIMESTAMP_TYPE_REFS_ONLY:
-                bos.write(ConvertUtils.str2data("</RefsOnlyTimeStamp>"));
-                break;
-            case TIMESTAMP_TYPE_ARCHIVE:
-                bos.write(ConvertUtils.str2data("</ArchiveTimeStamp>"));
-                break;
-            }
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
         return bos.toByteArray();
     }
 
+    /**
+     * Writes the TimestampInfo in XML form
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w) throws IOException {
+        String elem = null;
+        switch (type) {
+        case TIMESTAMP_TYPE_ALL_DATA_OBJECTS:
+            elem = "AllDataObjectsTimeStamp";
+            break;
+        case TIMESTAMP_TYPE_INDIVIDUAL_DATA_OBJECTS:
+            elem = "IndividualDataObjectsTimeStamp";
+            break;
+        case TIMESTAMP_TYPE_SIGNATURE:
+            elem = "SignatureTimeStamp";
+            break;
+        case TIMESTAMP_TYPE_SIG_AND_REFS:
+            elem = "SigAndRefsTimeStamp";
+            break;
+        case TIMESTAMP_TYPE_REFS_ONLY:
+            elem = "RefsOnlyTimeStamp";
+            break;
+        case TIMESTAMP_TYPE_ARCHIVE:
+            elem = "ArchiveTimeStamp";
+            break;
+        }
+        if (elem != null) {
+            w.write("<");
+            w.write(elem);
+            w.write(" Id=\"");
+        }
+        w.writeAttribute(id);
+        w.write("\">");
+        
+        for (int i = 0; i < countIncludeInfos(); i++) {
+            IncludeInfo inc = getIncludeInfo(i);
+            inc.writeXML(w);
+        }
+        
+        w.write("<EncapsulatedTimeStamp>");
+        TimeStampResponse resp = getTimeStampResponse();
+        if (resp != null)
+            w.writeBase64(resp.getTimeStampToken().getEncoded(), 64);
+        w.write("</EncapsulatedTimeStamp>");
+        if (elem != null) {
+            w.write("</");
+            w.write(elem);
+            w.write(">");
+        }
+    }
+
+    /**
+     * Writes the aggregation proof as an AggregationProof element in its own
+     * namespace. Its Target attribute refers to the Id of this timestamp.
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeAggregationProofXML(XmlWriter w) throws IOException {
+        if (aggregationProof == null) {
+            return;
+        }
+        w.write("<AggregationProof xmlns=\"");
+        w.write(XMLNS_AGGREGATION_PROOF);
+        w.write("\" Target=\"#");
+        w.writeAttribute(id);
+        w.write("\">");
+        w.writeBase64(aggregationProof, 64);
+        w.write("</AggregationProof>");
+    }
+
     /**
      * Returns the stringified form of CompleteCertificateRefs
      * 
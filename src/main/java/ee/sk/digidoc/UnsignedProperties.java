@@ -28,7 +28,7 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
 
-import ee.sk.utils.ConvertUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Models the unsigned properties of a signature.
@@ -188,51 +188,73 @@ public class UnsignedProperties implements Serializable {
     public byte[] toXML() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            if (signature.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3)) {
-                bos.write(ConvertUtils.str2data("<UnsignedProperties>"));
-            } else if (signature.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
-                bos.write(ConvertUtils.str2data("<UnsignedProperties xmlns=\""));
-                bos.write(ConvertUtils.str2data(SignedDoc.XMLNS_XADES_123 + "\">\n"));
-            } else {
-                bos.write(ConvertUtils.str2data("<UnsignedProperties Target=\"#"));
-                bos.write(ConvertUtils.str2data(signature.getId()));
-                bos.write(ConvertUtils.str2data("\">"));
-            }
-            bos.write(ConvertUtils.str2data("\n<UnsignedSignatureProperties>"));
-
-            if (signature.getTimestampInfo(TimestampInfo.TIMESTAMP_TYPE_SIGNATURE) != null) {
-                bos.write(signature.getTimestampInfo(TimestampInfo.TIMESTAMP_TYPE_SIGNATURE).toXML());
-            }
-
-            if (completeCertRefs != null)
-                bos.write(completeCertRefs.toXML());
-            if (completeRevRefs != null) {
-                bos.write(completeRevRefs.toXML());
-                bos.write(ConvertUtils.str2data("\n"));
-            }
-            
-            bos.write(ConvertUtils.str2data("<CertificateValues>\n"));
-            
-            for (int i = 0; i < signature.countCertValues(); i++) {
-                CertValue cval = signature.getCertValue(i);
-                if (cval.getType() != CertValue.CERTVAL_TYPE_SIGNER)
-                    bos.write(cval.toXML());
-            }
-            
-            bos.write(ConvertUtils.str2data("</CertificateValues>"));
-            
-            if (notary != null) {
-                bos.write(ConvertUtils.str2data("\n"));
-                bos.write(notary.toXML(signature.getSignedDoc().getVersion()));
-            }
-            
-            bos.write(ConvertUtils.str2data("</UnsignedSignatureProperties>\n</UnsignedProperties>"));
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
         return bos.toByteArray();
     }
 
+    /**
+     * Writes the UnsignedProperties in XML form
+     * 
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w) throws IOException {
+        if (signature.getSignedDoc().getVersion().equals(SignedDoc.VERSION_1_3)) {
+            w.write("<UnsignedProperties>");
+        } else if (signature.getSignedDoc().getFormat().equals(SignedDoc.FORMAT_BDOC)) {
+            w.write("<UnsignedProperties xmlns=\"");
+            w.write(SignedDoc.XMLNS_XADES_123);
+            w.write("\">\n");
+        } else {
+            w.write("<UnsignedProperties Target=\"#");
+            w.writeAttribute(signature.getId());
+            w.write("\">");
+        }
+        w.write("\n<UnsignedSignatureProperties>");
+
+        TimestampInfo ts = signature.getTimestampInfoOfType(TimestampInfo.TIMESTAMP_TYPE_SIGNATURE);
+        if (ts != null) {
+            ts.writeXML(w);
+        }
+
+        if (completeCertRefs != null)
+            completeCertRefs.writeXML(w);
+        if (completeRevRefs != null) {
+            completeRevRefs.writeXML(w);
+            w.write("\n");
+        }
+        
+        w.write("<CertificateValues>\n");
+        
+        for (int i = 0; i < signature.countCertValues(); i++) {
+            CertValue cval = signature.getCertValue(i);
+            if (cval.getType() != CertValue.CERTVAL_TYPE_SIGNER)
+                cval.writeXML(w);
+        }
+        
+        w.write("</CertificateValues>");
+        
+        if (notary != null) {
+            w.write("\n");
+            notary.writeXML(w, signature.getSignedDoc().getVersion());
+        }
+        
+        w.write("</UnsignedSignatureProperties>");
+        // the token of an aggregated timestamp covers the root of the
+        // aggregation tree, the proof goes to the extension point of XAdES
+        if (ts != null && ts.getAggregationProof() != null) {
+            w.write("\n<UnsignedDataObjectProperties><UnsignedDataObjectProperty>");
+            ts.writeAggregationProofXML(w);
+            w.write("</UnsignedDataObjectProperty></UnsignedDataObjectProperties>");
+        }
+        w.write("\n</UnsignedProperties>");
+    }
+
     /**
      * Returns the stringified form of UnsignedProperties
      * 
@@ -5,6 +5,16 @@ import ee.sk.digidoc.c14n.FragmentBase_Bounds;
 
 public final class EntityParser_Fragment extends FragmentBase
 {
+    /** byte classes of the entity tokenizer */
+    private static final byte[] CLASSES = FragmentBase.ClassTable("&#;", "", "");
+
+    private static final String[] MARKUP_TOKENS = new String[]
+        {
+            "&",
+            ";",
+            "#"
+        };
+
     private EntityParser_Fragment _next;
 
 
@@ -32,18 +42,10 @@ public final class EntityParser_Fragment extends FragmentBase
 
     public void SplitMarkup()
     {
-        String[] stringArray1;
-
 
         if (this.get_IsMarkup())
         {
-            stringArray1 = new String[]
-                {
-                    "&",
-                    ";",
-                    "#"
-                };
-            this.SplitBy(stringArray1);
+            this.SplitBy(MARKUP_TOKENS);
         }
 
     }
@@ -83,57 +85,19 @@ public final class EntityParser_Fragment extends FragmentBase
         return false;
     }
 
-    private boolean GetMarkupChar(int o)
-    {
-        return ("&#;".indexOf(this.GetChar(o)) > -1);
-    }
-
-    private boolean GetLiteralChar(int o)
-    {
-
-        if (this.GetMarkupChar(o))
-        {
-            return false;
-        }
-
-        return true;
-    }
-
     public boolean get_IsMarkup()
     {
-        return this.GetMarkupChar((int)0);
+        return (this.GetClass(CLASSES, 0) == CLASS_MARKUP);
     }
 
     public boolean get_IsLiteral()
     {
-        return this.GetLiteralChar((int)0);
+        return (this.GetClass(CLASSES, 0) == CLASS_LITERAL);
     }
 
     private void SpawnAtOffset(int p)
     {
-        this.Offset = p;
-        this.Length = -1;
-
-        if (this.GetMarkupChar((int)0))
-        {
-
-            for (this.Length = 0; (this.InBounds(this.get_LastOffset()) && this.GetMarkupChar(this.Length)); this.Length = (this.Length + 1))
-            {
-            }
-
-            return;
-        }
-
-
-        if (this.GetLiteralChar((int)0))
-        {
-
-            for (this.Length = 0; (this.InBounds(this.get_LastOffset()) && this.GetLiteralChar(this.Length)); this.Length = (this.Length + 1))
-            {
-            }
-
-        }
-
+        this.SpawnRun(CLASSES, p);
     }
 
     public static EntityParser_Fragment Of(byte[] data, int offset, FragmentBase_Bounds bounds)
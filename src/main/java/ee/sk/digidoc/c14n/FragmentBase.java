@@ -17,6 +17,12 @@ public abstract class FragmentBase
     public int Length;
     public FragmentBase_Bounds ExplicitBounds;
 
+    /** byte class of bytes that are not markup, space or quote */
+    protected static final byte CLASS_LITERAL = 0;
+    protected static final byte CLASS_MARKUP = 1;
+    protected static final byte CLASS_SPACE = 2;
+    protected static final byte CLASS_QUOTE = 3;
+
 
     protected FragmentBase()
     {
@@ -62,6 +68,94 @@ public abstract class FragmentBase
 
     abstract protected boolean SplitBy(String e);
 
+    /**
+     * builds a 256 entry table that maps each byte to CLASS_LITERAL or
+     * to the class given for the characters in the strings
+     */
+    protected static byte[] ClassTable(String markup, String space, String quote)
+    {
+        byte[] t = new byte[256];
+        for (int i = 0; i < markup.length(); i++)
+        {
+            t[markup.charAt(i)] = CLASS_MARKUP;
+        }
+        for (int i = 0; i < space.length(); i++)
+        {
+            t[space.charAt(i)] = CLASS_SPACE;
+        }
+        for (int i = 0; i < quote.length(); i++)
+        {
+            t[quote.charAt(i)] = CLASS_QUOTE;
+        }
+        return t;
+    }
+
+    /**
+     * returns the class of the byte at offset o of the fragment
+     */
+    protected final byte GetClass(byte[] classes, int o)
+    {
+        return classes[this.Data[this.Offset + o] & 0xFF];
+    }
+
+    /**
+     * starts the fragment at offset p and extends it over all following
+     * bytes of the same class as the first one
+     */
+    protected final void SpawnRun(byte[] classes, int p)
+    {
+        byte[] data = this.Data;
+        int limit = data.length;
+        byte c;
+        int i;
+
+        if (this.ExplicitBounds != null)
+        {
+            limit = Math.min(limit, this.ExplicitBounds.Offset + this.ExplicitBounds.Length);
+        }
+
+        c = classes[data[p] & 0xFF];
+        for (i = p + 1; i < limit && classes[data[i] & 0xFF] == c; i++)
+        {
+        }
+
+        this.Offset = p;
+        this.Length = i - p;
+    }
+
+    /**
+     * returns true if the first n bytes equal the characters of the ascii
+     * string e
+     */
+    private boolean RegionEquals(String e, int n)
+    {
+        byte[] data = this.Data;
+        int o = this.Offset;
+
+        for (int i = 0; i < n; i++)
+        {
+            if (data[o + i] != (byte) e.charAt(i))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean IsAscii(String e)
+    {
+        for (int i = 0; i < e.length(); i++)
+        {
+            if (e.charAt(i) >= 0x80)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     /**
      * returns true if the whole fragment starts with a given string
      */
@@ -73,6 +167,11 @@ public abstract class FragmentBase
             return false;
         }
 
+        if (IsAscii(e))
+        {
+            return this.RegionEquals(e, e.length());
+        }
+
         return Convert.ToString(this.Data, this.Offset, e.length()).equals(e);
     }
 
@@ -86,6 +185,13 @@ public abstract class FragmentBase
 
     public boolean get_Item(String ds)
     {
+
+        if (IsAscii(ds))
+        {
+            // an ascii string can only be decoded from the same ascii bytes
+            return this.Length == ds.length() && this.RegionEquals(ds, ds.length());
+        }
+
         return this.get_DataString().equals(ds);
     }
 
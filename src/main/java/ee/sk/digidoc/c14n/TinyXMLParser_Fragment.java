@@ -10,117 +10,73 @@ public final class TinyXMLParser_Fragment extends FragmentBase
     private TinyXMLParser_Fragment _next;
 
 
-    public TinyXMLParser_Fragment()
-    {
-        super();
-    }
-
+    /** byte classes of the xml tokenizer */
+    private static final byte[] CLASSES = FragmentBase.ClassTable("<?![=]/->", "\t\n\r ", "\"\'");
 
-    private boolean GetMarkupChar(int o)
-    {
-        return ("<?![=]/->".indexOf(this.GetChar(o)) > -1);
-    }
-
-    private boolean GetSpaceChar(int o)
-    {
-        return ("\t\n\r ".indexOf(this.GetChar(o)) > -1);
-    }
-
-    private boolean GetQuoteChar(int o)
-    {
-        return ("\"\'".indexOf(this.GetChar(o)) > -1);
-    }
-
-    private boolean GetLiteralChar(int o)
-    {
-
-        if (this.GetMarkupChar(o))
+    private static final String[] MARKUP_TOKENS = new String[]
         {
-            return false;
-        }
-
-
-        if (this.GetSpaceChar(o))
+            "<!--",
+            "-->",
+            "<?",
+            "?>",
+            "<![",
+            "]]>",
+            "[",
+            "]",
+            "<!",
+            "/>",
+            "</",
+            ">",
+            "<",
+            "="
+        };
+
+    private static final String[] QUOTE_TOKENS = new String[]
         {
-            return false;
-        }
-
+            "\'",
+            "\""
+        };
 
-        if (this.GetQuoteChar(o))
+    private static final String[] TAG_START_TOKENS = new String[]
         {
-            return false;
-        }
+            "<![",
+            "<!--",
+            "<?",
+            "<",
+            "</",
+            "<!"
+        };
+
 
-        return true;
+    public TinyXMLParser_Fragment()
+    {
+        super();
     }
 
+
     public boolean get_IsMarkup()
     {
-        return this.GetMarkupChar((int)0);
+        return (this.GetClass(CLASSES, 0) == CLASS_MARKUP);
     }
 
     public boolean get_IsSpace()
     {
-        return this.GetSpaceChar((int)0);
+        return (this.GetClass(CLASSES, 0) == CLASS_SPACE);
     }
 
     public boolean get_IsQuote()
     {
-        return this.GetQuoteChar((int)0);
+        return (this.GetClass(CLASSES, 0) == CLASS_QUOTE);
     }
 
     public boolean get_IsLiteral()
     {
-        return this.GetLiteralChar((int)0);
+        return (this.GetClass(CLASSES, 0) == CLASS_LITERAL);
     }
 
     private void SpawnAtOffset(int p)
     {
-        this.Offset = p;
-        this.Length = -1;
-
-        if (this.GetMarkupChar((int)0))
-        {
-
-            for (this.Length = 0; (this.InBounds(this.get_LastOffset()) && this.GetMarkupChar(this.Length)); this.Length = (this.Length + 1))
-            {
-            }
-
-            return;
-        }
-
-
-        if (this.GetSpaceChar((int)0))
-        {
-
-            for (this.Length = 0; (this.InBounds(this.get_LastOffset()) && this.GetSpaceChar(this.Length)); this.Length = (this.Length + 1))
-            {
-            }
-
-            return;
-        }
-
-
-        if (this.GetQuoteChar((int)0))
-        {
-
-            for (this.Length = 0; (this.InBounds(this.get_LastOffset()) && this.GetQuoteChar(this.Length)); this.Length = (this.Length + 1))
-            {
-            }
-
-            return;
-        }
-
-
-        if (this.GetLiteralChar((int)0))
-        {
-
-            for (this.Length = 0; (this.InBounds(this.get_LastOffset()) && this.GetLiteralChar(this.Length)); this.Length = (this.Length + 1))
-            {
-            }
-
-        }
-
+        this.SpawnRun(CLASSES, p);
     }
 
     public void ToConsole()
@@ -196,30 +152,12 @@ public final class TinyXMLParser_Fragment extends FragmentBase
 
     public void SplitMarkup()
     {
-        String[] stringArray1;
+        byte c = this.GetClass(CLASSES, 0);
 
-
-        if (this.get_IsMarkup())
+        if (c == CLASS_MARKUP)
         {
-            stringArray1 = new String[]
-                {
-                    "<!--",
-                    "-->",
-                    "<?",
-                    "?>",
-                    "<![",
-                    "]]>",
-                    "[",
-                    "]",
-                    "<!",
-                    "/>",
-                    "</",
-                    ">",
-                    "<",
-                    "="
-                };
-
-            if (!this.SplitBy(stringArray1))
+
+            if (!this.SplitBy(MARKUP_TOKENS))
             {
                 this.SplitBy((int)1);
             }
@@ -228,14 +166,9 @@ public final class TinyXMLParser_Fragment extends FragmentBase
         }
 
 
-        if (this.get_IsQuote())
+        if (c == CLASS_QUOTE)
         {
-            stringArray1 = new String[]
-                {
-                    "\'",
-                    "\""
-                };
-            this.SplitBy(stringArray1);
+            this.SplitBy(QUOTE_TOKENS);
         }
 
     }
@@ -243,7 +176,6 @@ public final class TinyXMLParser_Fragment extends FragmentBase
     public void JoinNonMarkup()
     {
         boolean seek;
-        String[] stringArray2;
 
         seek = true;
         while (seek)
@@ -258,17 +190,7 @@ public final class TinyXMLParser_Fragment extends FragmentBase
 
                 if (this.get_InternalNext().get_IsMarkup())
                 {
-                    stringArray2 = new String[]
-                        {
-                            "<![",
-                            "<!--",
-                            "<?",
-                            "<",
-                            "</",
-                            "<!"
-                        };
-
-                    if (this.get_Next().get_Item(stringArray2))
+                    if (this.get_Next().get_Item(TAG_START_TOKENS))
                     {
                         seek = false;
                     }
@@ -0,0 +1,480 @@
+package ee.sk.digidoc.crl;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.security.cert.CRLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Revoked serial numbers of one CRL, sorted for binary search. Serial
+ * numbers that fit in a long are kept in a long array next to the revocation
+ * times. Longer serial numbers are kept outside the heap in fixed width
+ * slots. Instances are immutable and thread safe.
+ * <p>
+ * A delta CRL is indexed the same way, the serial numbers it removes from the
+ * base CRL are kept separately. {@link #applyDelta(CrlIndex)} merges a delta
+ * into its base.
+ */
+public final class CrlIndex {
+
+    private static final Logger LOG = Logger.getLogger(CrlIndex.class);
+
+    /** cRLNumber extension */
+    public static final String CRL_NUMBER = "2.5.29.20";
+    /** deltaCRLIndicator extension */
+    public static final String DELTA_CRL_INDICATOR = "2.5.29.27";
+
+    private final X500Principal issuer;
+    private final long thisUpdate;
+    private final long nextUpdate;
+    private final Map<String, byte[]> extensions;
+    /** serial numbers removed from the base CRL, only in delta CRLs */
+    private final Set<BigInteger> removed;
+
+    private final long[] serials;
+    private final long[] dates;
+
+    /** slots of bigWidth bytes of sign extended serial and 8 bytes of time */
+    private final ByteBuffer bigSerials;
+    private final int bigWidth;
+    private final int bigCount;
+
+    private CrlIndex(Builder b) {
+        issuer = b.issuer;
+        thisUpdate = b.thisUpdate;
+        nextUpdate = b.nextUpdate;
+        extensions = Collections.unmodifiableMap(new HashMap<String, byte[]>(b.extensions));
+        removed = b.removed.isEmpty() ? Collections.<BigInteger> emptySet() : new HashSet<BigInteger>(b.removed);
+        serials = trim(b.serials, b.count);
+        dates = trim(b.dates, b.count);
+        sort(serials, dates, 0, serials.length - 1);
+        bigCount = b.big.size();
+        if (bigCount > 0) {
+            Collections.sort(b.big);
+            int width = 0;
+            for (BigEntry e : b.big) {
+                width = Math.max(width, e.serial.toByteArray().length);
+            }
+            bigWidth = width;
+            bigSerials = ByteBuffer.allocateDirect(bigCount * (width + 8));
+            for (BigEntry e : b.big) {
+                bigSerials.put(pad(e.serial, width));
+                bigSerials.putLong(e.date);
+            }
+        } else {
+            bigWidth = 0;
+            bigSerials = null;
+        }
+    }
+
+    public X500Principal getIssuer() {
+        return issuer;
+    }
+
+    public Date getThisUpdate() {
+        return new Date(thisUpdate);
+    }
+
+    /**
+     * Returns the time of the next CRL
+     *
+     * @return next update or null if the CRL does not announce it
+     */
+    public Date getNextUpdate() {
+        return (nextUpdate >= 0) ? new Date(nextUpdate) : null;
+    }
+
+    /**
+     * Checks whether a newer CRL should have been issued by now
+     *
+     * @param now
+     *            current time
+     * @return true if nextUpdate has passed
+     */
+    public boolean isExpired(Date now) {
+        return nextUpdate >= 0 && now.getTime() > nextUpdate;
+    }
+
+    /**
+     * Returns the value of a CRL extension
+     *
+     * @param oid
+     *            extension OID
+     * @return content of the extnValue OCTET STRING or null
+     */
+    public byte[] getExtensionValue(String oid) {
+        byte[] v = extensions.get(oid);
+        return (v != null) ? v.clone() : null;
+    }
+
+    /**
+     * Returns the CRL number
+     *
+     * @return value of the cRLNumber extension or null
+     */
+    public BigInteger getCrlNumber() {
+        return decodeInteger(extensions.get(CRL_NUMBER));
+    }
+
+    /**
+     * Returns the number of the base CRL of a delta CRL
+     *
+     * @return value of the deltaCRLIndicator extension, null if this is not a
+     *         delta CRL
+     */
+    public BigInteger getDeltaBaseNumber() {
+        return decodeInteger(extensions.get(DELTA_CRL_INDICATOR));
+    }
+
+    public boolean isDelta() {
+        return extensions.containsKey(DELTA_CRL_INDICATOR);
+    }
+
+    /**
+     * Returns the locations of the delta CRLs
+     *
+     * @return possibly empty list of URLs from the FreshestCRL extension
+     */
+    public List<String> getFreshestCrlUrls() {
+        byte[] v = extensions.get(DistributionPoints.FRESHEST_CRL);
+        if (v == null) {
+            return Collections.emptyList();
+        }
+        try {
+            return DistributionPoints.getUrls(v);
+        } catch (CRLException ex) {
+            LOG.warn("Invalid FreshestCRL extension in CRL of " + issuer + ": " + ex);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Merges a delta CRL into this base CRL
+     *
+     * @param delta
+     *            delta CRL of the same issuer
+     * @return index of the current revocation status. It keeps the
+     *         extensions of this CRL, its nextUpdate is the earlier one of
+     *         both CRLs.
+     * @throws CRLException
+     *             if the delta does not apply to this CRL
+     */
+    public CrlIndex applyDelta(CrlIndex delta) throws CRLException {
+        if (!issuer.equals(delta.issuer)) {
+            throw new CRLException("Delta CRL of " + delta.issuer + " does not apply to CRL of " + issuer);
+        }
+        BigInteger baseNumber = delta.getDeltaBaseNumber();
+        if (baseNumber == null) {
+            throw new CRLException("Not a delta CRL");
+        }
+        BigInteger number = getCrlNumber();
+        if (number == null || number.compareTo(baseNumber) < 0) {
+            throw new CRLException("Delta CRL requires base CRL " + baseNumber + ", have " + number);
+        }
+        Builder b = new Builder();
+        b.issuer = issuer;
+        b.thisUpdate = Math.max(thisUpdate, delta.thisUpdate);
+        b.nextUpdate = (nextUpdate < 0 || (delta.nextUpdate >= 0 && delta.nextUpdate < nextUpdate))
+                ? delta.nextUpdate : nextUpdate;
+        b.extensions.putAll(extensions);
+        for (int i = 0; i < serials.length; i++) {
+            // entries of the delta replace those of the base
+            if (delta.getRevocationTime(serials[i]) == Long.MIN_VALUE
+                    && (delta.removed.isEmpty() || !delta.removed.contains(BigInteger.valueOf(serials[i])))) {
+                b.add(serials[i], dates[i]);
+            }
+        }
+        int slot = bigWidth + 8;
+        for (int i = 0; i < bigCount; i++) {
+            byte[] v = new byte[bigWidth];
+            for (int j = 0; j < bigWidth; j++) {
+                v[j] = bigSerials.get(i * slot + j);
+            }
+            BigInteger serial = new BigInteger(v);
+            if (!delta.isRevoked(serial) && !delta.removed.contains(serial)) {
+                b.add(serial, bigSerials.getLong(i * slot + bigWidth));
+            }
+        }
+        for (int i = 0; i < delta.serials.length; i++) {
+            b.add(delta.serials[i], delta.dates[i]);
+        }
+        for (int i = 0; i < delta.bigCount; i++) {
+            byte[] v = new byte[delta.bigWidth];
+            for (int j = 0; j < delta.bigWidth; j++) {
+                v[j] = delta.bigSerials.get(i * (delta.bigWidth + 8) + j);
+            }
+            b.add(new BigInteger(v), delta.bigSerials.getLong(i * (delta.bigWidth + 8) + delta.bigWidth));
+        }
+        return b.build();
+    }
+
+    /**
+     * Returns the number of revoked serial numbers
+     *
+     * @return number of entries
+     */
+    public int size() {
+        return serials.length + bigCount;
+    }
+
+    public boolean isRevoked(BigInteger serial) {
+        return getRevocationTime(serial) != Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the revocation date of a serial number
+     *
+     * @param serial
+     *            certificate serial number
+     * @return revocation date or null if the serial number is not revoked
+     */
+    public Date getRevocationDate(BigInteger serial) {
+        long t = getRevocationTime(serial);
+        return (t != Long.MIN_VALUE) ? new Date(t) : null;
+    }
+
+    private long getRevocationTime(BigInteger serial) {
+        return (serial.bitLength() < 64) ? getRevocationTime(serial.longValue()) : getRevocationTimeBig(serial);
+    }
+
+    private long getRevocationTime(long key) {
+        int lo = 0, hi = serials.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long v = serials[mid];
+            if (v < key) {
+                lo = mid + 1;
+            } else if (v > key) {
+                hi = mid - 1;
+            } else {
+                return dates[mid];
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    private long getRevocationTimeBig(BigInteger serial) {
+        byte[] b = serial.toByteArray();
+        if (bigCount == 0 || b.length > bigWidth) {
+            return Long.MIN_VALUE;
+        }
+        byte[] key = pad(serial, bigWidth);
+        int slot = bigWidth + 8;
+        int lo = 0, hi = bigCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(mid * slot, key);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return bigSerials.getLong(mid * slot + bigWidth);
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /** compares the stored serial at pos to key, both padded to bigWidth */
+    private int compare(int pos, byte[] key) {
+        int c = Byte.compare(bigSerials.get(pos), key[0]);
+        for (int i = 1; c == 0 && i < bigWidth; i++) {
+            c = (bigSerials.get(pos + i) & 0xff) - (key[i] & 0xff);
+        }
+        return c;
+    }
+
+    private static byte[] pad(BigInteger v, int width) {
+        byte[] b = v.toByteArray();
+        byte[] r = new byte[width];
+        byte fill = (byte) ((v.signum() < 0) ? 0xff : 0);
+        int n = width - b.length;
+        for (int i = 0; i < n; i++) {
+            r[i] = fill;
+        }
+        System.arraycopy(b, 0, r, n, b.length);
+        return r;
+    }
+
+    /** decodes a DER INTEGER */
+    private static BigInteger decodeInteger(byte[] der) {
+        if (der == null || der.length < 3 || der[0] != DerReader.INTEGER || der[1] != der.length - 2) {
+            return null;
+        }
+        byte[] v = new byte[der.length - 2];
+        System.arraycopy(der, 2, v, 0, v.length);
+        return new BigInteger(v);
+    }
+
+    private static long[] trim(long[] a, int n) {
+        if (a.length == n) {
+            return a;
+        }
+        long[] r = new long[n];
+        System.arraycopy(a, 0, r, 0, n);
+        return r;
+    }
+
+    /** sorts keys ascending and permutes values alike */
+    private static void sort(long[] keys, long[] values, int lo, int hi) {
+        while (hi - lo > 16) {
+            int mid = (lo + hi) >>> 1;
+            // median of three as pivot
+            if (keys[mid] < keys[lo]) {
+                swap(keys, values, mid, lo);
+            }
+            if (keys[hi] < keys[lo]) {
+                swap(keys, values, hi, lo);
+            }
+            if (keys[hi] < keys[mid]) {
+                swap(keys, values, hi, mid);
+            }
+            long pivot = keys[mid];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, values, i++, j--);
+                }
+            }
+            // recurse into the smaller part to bound the stack depth
+            if (j - lo < hi - i) {
+                sort(keys, values, lo, j);
+                lo = i;
+            } else {
+                sort(keys, values, i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            long k = keys[i], v = values[i];
+            int j = i - 1;
+            while (j >= lo && keys[j] > k) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            keys[j + 1] = k;
+            values[j + 1] = v;
+        }
+    }
+
+    private static void swap(long[] keys, long[] values, int a, int b) {
+        long t = keys[a];
+        keys[a] = keys[b];
+        keys[b] = t;
+        t = values[a];
+        values[a] = values[b];
+        values[b] = t;
+    }
+
+    /**
+     * Collects the entries of a CRL while it is parsed
+     */
+    static final class Builder {
+
+        X500Principal issuer;
+        long thisUpdate;
+        long nextUpdate = -1;
+        final Map<String, byte[]> extensions = new HashMap<String, byte[]>();
+        final Set<BigInteger> removed = new HashSet<BigInteger>();
+
+        private long[] serials = new long[1024];
+        private long[] dates = new long[1024];
+        private int count;
+        private final List<BigEntry> big = new ArrayList<BigEntry>();
+
+        /**
+         * Adds a revoked certificate
+         *
+         * @param serial
+         *            content octets of the serial number INTEGER
+         * @param date
+         *            revocation time
+         */
+        void add(byte[] serial, long date) {
+            int off = 0;
+            // skip redundant sign octets of non-minimal encodings
+            while (off < serial.length - 1
+                    && ((serial[off] == 0 && serial[off + 1] >= 0) || (serial[off] == -1 && serial[off + 1] < 0))) {
+                off++;
+            }
+            int len = serial.length - off;
+            if (len <= 8) {
+                long v = (len > 0 && serial[off] < 0) ? -1 : 0;
+                for (int i = off; i < serial.length; i++) {
+                    v = (v << 8) | (serial[i] & 0xff);
+                }
+                add(v, date);
+            } else {
+                big.add(new BigEntry(new BigInteger(serial), date));
+            }
+        }
+
+        void add(long serial, long date) {
+            if (count == serials.length) {
+                long[] s = new long[count * 2];
+                long[] d = new long[count * 2];
+                System.arraycopy(serials, 0, s, 0, count);
+                System.arraycopy(dates, 0, d, 0, count);
+                serials = s;
+                dates = d;
+            }
+            serials[count] = serial;
+            dates[count] = date;
+            count++;
+        }
+
+        void add(BigInteger serial, long date) {
+            if (serial.bitLength() < 64) {
+                add(serial.longValue(), date);
+            } else {
+                big.add(new BigEntry(serial, date));
+            }
+        }
+
+        /**
+         * Records a serial number removed from the base CRL by a delta CRL
+         *
+         * @param serial
+         *            content octets of the serial number INTEGER
+         */
+        void remove(byte[] serial) {
+            removed.add(new BigInteger(serial));
+        }
+
+        CrlIndex build() {
+            return new CrlIndex(this);
+        }
+    }
+
+    private static final class BigEntry implements Comparable<BigEntry> {
+        final BigInteger serial;
+        final long date;
+
+        BigEntry(BigInteger serial, long date) {
+            this.serial = serial;
+            this.date = date;
+        }
+
+        public int compareTo(BigEntry o) {
+            return serial.compareTo(o.serial);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package ee.sk.digidoc.crl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CRLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.log4j.Logger;
+
+import ee.sk.digidoc.metrics.Metrics;
+
+/**
+ * Streaming reader of DER encoded X.509 CRLs. Instead of building an X509CRL
+ * with one object per revoked certificate, the reader extracts the serial
+ * numbers and revocation dates into a {@link CrlIndex} and verifies the
+ * signature of the CRL while reading it, so the encoded CRL is never held in
+ * memory.
+ */
+public final class CrlParser {
+
+    private static final Logger LOG = Logger.getLogger(CrlParser.class);
+
+    /** encoded OID 2.5.29.21 of the reasonCode entry extension */
+    private static final byte[] REASON_CODE_OID = { 0x55, 0x1d, 0x15 };
+    private static final int REASON_REMOVE_FROM_CRL = 8;
+
+    private static final Map<String, String> SIGNATURE_ALGORITHMS = new HashMap<String, String>();
+
+    static {
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.4", "MD5withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.5", "SHA1withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.14", "SHA224withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.11", "SHA256withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.12", "SHA384withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.13", "SHA512withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.1", "SHA1withECDSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.3.1", "SHA224withECDSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.3.2", "SHA256withECDSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.3.3", "SHA384withECDSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.3.4", "SHA512withECDSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.10040.4.3", "SHA1withDSA");
+    }
+
+    private CrlParser() {
+    }
+
+    /**
+     * Returns the key for verifying the signature of a CRL
+     */
+    public interface KeyResolver {
+
+        /**
+         * @param issuer
+         *            issuer named in the CRL
+         * @return public key of the issuer
+         * @throws CRLException
+         *             if the issuer is not trusted
+         */
+        PublicKey getKey(X500Principal issuer) throws CRLException;
+    }
+
+    /**
+     * Reads a DER encoded CRL
+     *
+     * @param in
+     *            encoded CRL, not closed by this method
+     * @param issuerKey
+     *            public key of the CRL issuer, or null to skip signature
+     *            verification
+     * @return index of the revoked serial numbers
+     * @throws CRLException
+     *             if the CRL cannot be decoded or its signature is invalid
+     * @throws IOException
+     *             for read errors
+     */
+    public static CrlIndex parse(InputStream in, final PublicKey issuerKey) throws IOException, CRLException {
+        return parse(in, (issuerKey != null) ? new KeyResolver() {
+            public PublicKey getKey(X500Principal issuer) {
+                return issuerKey;
+            }
+        } : null);
+    }
+
+    /**
+     * Reads a DER encoded CRL, looking up the signature key by the issuer of
+     * the CRL
+     *
+     * @param in
+     *            encoded CRL, not closed by this method
+     * @param keys
+     *            resolver of the signature key, or null to skip signature
+     *            verification
+     * @return index of the revoked serial numbers
+     * @throws CRLException
+     *             if the CRL cannot be decoded, its issuer is not trusted or
+     *             its signature is invalid
+     * @throws IOException
+     *             for read errors
+     */
+    public static CrlIndex parse(InputStream in, KeyResolver keys) throws IOException, CRLException {
+        long start = Metrics.start();
+        DerReader r = new DerReader((in instanceof BufferedInputStream) ? in : new BufferedInputStream(in, 16384));
+        try {
+            CrlIndex index = parse(r, keys);
+            Metrics.record(Metrics.CRL_PARSE, start, r.position());
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Parsed CRL of " + index.getIssuer() + " with " + index.size() + " entries");
+            }
+            return index;
+        } catch (IOException ex) {
+            Metrics.recordError(Metrics.CRL_PARSE, start);
+            throw ex;
+        } catch (CRLException ex) {
+            Metrics.recordError(Metrics.CRL_PARSE, start);
+            throw ex;
+        }
+    }
+
+    private static CrlIndex parse(DerReader r, KeyResolver keys) throws IOException, CRLException {
+        CrlIndex.Builder b = new CrlIndex.Builder();
+        r.expectTag(DerReader.SEQUENCE); // CertificateList
+        r.readLength();
+
+        r.startSigned();
+        r.expectTag(DerReader.SEQUENCE); // TBSCertList
+        long tbsLen = r.readLength();
+        long tbsEnd = r.position() + tbsLen;
+
+        int tag = r.readTag();
+        if (tag == DerReader.INTEGER) { // version
+            r.skip(r.readLength());
+            tag = r.readTag();
+        }
+        checkTag(tag, DerReader.SEQUENCE);
+        String sigAlg = readAlgorithm(r.readContent(r.readLength()));
+
+        r.expectTag(DerReader.SEQUENCE); // issuer
+        byte[] issuer = r.readContent(r.readLength());
+        ByteArrayOutputStream name = new ByteArrayOutputStream();
+        name.write(DerReader.SEQUENCE);
+        name.write(DerReader.encodeLength(issuer.length));
+        name.write(issuer);
+        b.issuer = new X500Principal(name.toByteArray());
+
+        Signature verifier = null;
+        if (keys != null) {
+            PublicKey issuerKey = keys.getKey(b.issuer);
+            try {
+                verifier = Signature.getInstance(jcaName(sigAlg));
+                verifier.initVerify(issuerKey);
+            } catch (GeneralSecurityException ex) {
+                throw (CRLException) new CRLException("Cannot verify CRL signature: " + ex).initCause(ex);
+            }
+        }
+        r.setVerifier(verifier);
+
+        tag = r.readTag();
+        b.thisUpdate = DerReader.decodeTime(tag, r.readContent(r.readLength()));
+
+        while (r.position() < tbsEnd) {
+            tag = r.readTag();
+            long len = r.readLength();
+            if (tag == DerReader.UTC_TIME || tag == DerReader.GENERALIZED_TIME) {
+                b.nextUpdate = DerReader.decodeTime(tag, r.readContent(len));
+            } else if (tag == DerReader.SEQUENCE) {
+                readRevoked(r, b, r.position() + len);
+            } else if (tag == 0xa0) {
+                readExtensions(r, b.extensions);
+            } else {
+                r.skip(len);
+            }
+        }
+        if (r.position() != tbsEnd) {
+            throw new CRLException("invalid TBSCertList length");
+        }
+        r.endSigned();
+
+        r.expectTag(DerReader.SEQUENCE);
+        String outerAlg = readAlgorithm(r.readContent(r.readLength()));
+        byte[] bits = r.readElement(DerReader.BIT_STRING);
+        if (!outerAlg.equals(sigAlg)) {
+            throw new CRLException("CRL signature algorithm mismatch");
+        }
+        if (verifier != null) {
+            boolean ok;
+            try {
+                byte[] sig = new byte[bits.length - 1];
+                System.arraycopy(bits, 1, sig, 0, sig.length);
+                ok = verifier.verify(sig);
+            } catch (GeneralSecurityException ex) {
+                throw (CRLException) new CRLException("Invalid CRL signature: " + ex).initCause(ex);
+            }
+            if (!ok) {
+                throw new CRLException("Invalid CRL signature");
+            }
+        }
+        return b.build();
+    }
+
+    private static void readRevoked(DerReader r, CrlIndex.Builder b, long end) throws IOException, CRLException {
+        while (r.position() < end) {
+            r.expectTag(DerReader.SEQUENCE);
+            long entryEnd = r.readLength();
+            entryEnd += r.position();
+            byte[] serial = r.readElement(DerReader.INTEGER);
+            int tag = r.readTag();
+            long date = DerReader.decodeTime(tag, r.readContent(r.readLength()));
+            int reason = -1;
+            if (r.position() < entryEnd) {
+                reason = readReason(r, entryEnd);
+            }
+            if (reason == REASON_REMOVE_FROM_CRL) {
+                b.remove(serial);
+            } else {
+                b.add(serial, date);
+            }
+        }
+    }
+
+    /**
+     * Reads the entry extensions of a revoked certificate
+     *
+     * @param end
+     *            end position of the entry
+     * @return reason code or -1 if absent
+     */
+    private static int readReason(DerReader r, long end) throws IOException, CRLException {
+        int reason = -1;
+        r.expectTag(DerReader.SEQUENCE);
+        r.readLength();
+        while (r.position() < end) {
+            r.expectTag(DerReader.SEQUENCE);
+            r.readLength();
+            byte[] oid = r.readElement(DerReader.OID);
+            int tag = r.readTag();
+            if (tag == DerReader.BOOLEAN) { // critical
+                r.skip(r.readLength());
+                tag = r.readTag();
+            }
+            checkTag(tag, DerReader.OCTET_STRING);
+            byte[] value = r.readContent(r.readLength());
+            if (Arrays.equals(oid, REASON_CODE_OID) && value.length == 3 && value[0] == DerReader.ENUMERATED) {
+                reason = value[2];
+            }
+        }
+        return reason;
+    }
+
+    private static void readExtensions(DerReader r, Map<String, byte[]> extensions) throws IOException, CRLException {
+        r.expectTag(DerReader.SEQUENCE);
+        long end = r.readLength();
+        end += r.position();
+        while (r.position() < end) {
+            r.expectTag(DerReader.SEQUENCE);
+            r.readLength();
+            String oid = DerReader.decodeOid(r.readElement(DerReader.OID));
+            int tag = r.readTag();
+            if (tag == DerReader.BOOLEAN) { // critical
+                r.skip(r.readLength());
+                tag = r.readTag();
+            }
+            checkTag(tag, DerReader.OCTET_STRING);
+            extensions.put(oid, r.readContent(r.readLength()));
+        }
+    }
+
+    /** returns the OID of an AlgorithmIdentifier */
+    private static String readAlgorithm(byte[] content) throws CRLException {
+        if (content.length < 2 || content[0] != DerReader.OID || content[1] < 0 || content[1] + 2 > content.length) {
+            throw new CRLException("invalid AlgorithmIdentifier");
+        }
+        byte[] oid = new byte[content[1]];
+        System.arraycopy(content, 2, oid, 0, oid.length);
+        return DerReader.decodeOid(oid);
+    }
+
+    private static String jcaName(String oid) {
+        String name = SIGNATURE_ALGORITHMS.get(oid);
+        return (name != null) ? name : oid;
+    }
+
+    private static void checkTag(int tag, int expected) throws CRLException {
+        if (tag != expected) {
+            throw new CRLException("unexpected tag 0x" + Integer.toHexString(tag));
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package ee.sk.digidoc.crl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CRLException;
+
+/**
+ * Minimal reader of DER encoded data from a stream. Bytes can be passed to a
+ * signature verifier while they are read, so that a signed structure is
+ * verified without keeping it in memory. Only definite lengths are supported
+ * since DER does not allow anything else.
+ */
+final class DerReader {
+
+    static final int INTEGER = 0x02;
+    static final int BIT_STRING = 0x03;
+    static final int OCTET_STRING = 0x04;
+    static final int OID = 0x06;
+    static final int ENUMERATED = 0x0a;
+    static final int UTC_TIME = 0x17;
+    static final int GENERALIZED_TIME = 0x18;
+    static final int SEQUENCE = 0x30;
+    static final int BOOLEAN = 0x01;
+
+    private final InputStream in;
+    private final byte[] skipBuf = new byte[4096];
+    private long position;
+
+    /** bytes collected for the verifier before it was initialized */
+    private byte[] pending;
+    private int pendingLen;
+    private Signature verifier;
+
+    DerReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Returns the number of bytes read so far
+     *
+     * @return stream position
+     */
+    long position() {
+        return position;
+    }
+
+    /**
+     * Starts collecting the bytes read for a verifier set later with
+     * {@link #setVerifier(Signature)}
+     */
+    void startSigned() {
+        pending = new byte[256];
+        pendingLen = 0;
+    }
+
+    /**
+     * Passes the bytes collected since startSigned() and all bytes read from
+     * now on to the verifier
+     *
+     * @param sig
+     *            verifier, null to drop the collected bytes
+     */
+    void setVerifier(Signature sig) throws CRLException {
+        if (sig != null && pendingLen > 0) {
+            update(sig, pending, 0, pendingLen);
+        }
+        verifier = sig;
+        pending = null;
+    }
+
+    /**
+     * Stops collecting bytes for the verifier
+     */
+    void endSigned() {
+        verifier = null;
+        pending = null;
+    }
+
+    /**
+     * Reads an identifier octet
+     *
+     * @return tag, only low tag numbers are supported
+     */
+    int readTag() throws IOException, CRLException {
+        int tag = read();
+        if ((tag & 0x1f) == 0x1f) {
+            throw new CRLException("high tag numbers are not supported");
+        }
+        return tag;
+    }
+
+    /**
+     * Reads an identifier octet and checks it
+     *
+     * @param expected
+     *            expected tag
+     */
+    void expectTag(int expected) throws IOException, CRLException {
+        int tag = readTag();
+        if (tag != expected) {
+            throw new CRLException("unexpected tag 0x" + Integer.toHexString(tag) + " at " + (position - 1)
+                    + ", expected 0x" + Integer.toHexString(expected));
+        }
+    }
+
+    /**
+     * Reads a definite length
+     *
+     * @return content length
+     */
+    long readLength() throws IOException, CRLException {
+        int b = read();
+        if (b < 0x80) {
+            return b;
+        }
+        int n = b & 0x7f;
+        if (n == 0 || n > 7) {
+            throw new CRLException("unsupported length encoding at " + (position - 1));
+        }
+        long len = 0;
+        for (int i = 0; i < n; i++) {
+            len = (len << 8) | read();
+        }
+        return len;
+    }
+
+    /**
+     * Reads content bytes
+     *
+     * @param len
+     *            number of bytes
+     * @return content
+     */
+    byte[] readContent(long len) throws IOException, CRLException {
+        if (len > Integer.MAX_VALUE) {
+            throw new CRLException("element too large");
+        }
+        byte[] b = new byte[(int) len];
+        readFully(b, 0, b.length);
+        return b;
+    }
+
+    /**
+     * Reads the content of an element with the given tag
+     *
+     * @param tag
+     *            expected tag
+     * @return content
+     */
+    byte[] readElement(int tag) throws IOException, CRLException {
+        expectTag(tag);
+        return readContent(readLength());
+    }
+
+    /**
+     * Skips content bytes, they are still passed to the verifier
+     *
+     * @param len
+     *            number of bytes
+     */
+    void skip(long len) throws IOException, CRLException {
+        while (len > 0) {
+            int n = (int) Math.min(len, skipBuf.length);
+            readFully(skipBuf, 0, n);
+            len -= n;
+        }
+    }
+
+    private int read() throws IOException, CRLException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("unexpected end of CRL");
+        }
+        position++;
+        if (verifier != null) {
+            try {
+                verifier.update((byte) b);
+            } catch (SignatureException ex) {
+                throw new CRLException(ex.toString());
+            }
+        } else if (pending != null) {
+            if (pendingLen == pending.length) {
+                byte[] tmp = new byte[pending.length * 2];
+                System.arraycopy(pending, 0, tmp, 0, pendingLen);
+                pending = tmp;
+            }
+            pending[pendingLen++] = (byte) b;
+        }
+        return b;
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException, CRLException {
+        int start = off;
+        while (len > 0) {
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                throw new EOFException("unexpected end of CRL");
+            }
+            off += n;
+            len -= n;
+        }
+        int total = off - start;
+        position += total;
+        if (verifier != null) {
+            update(verifier, b, start, total);
+        } else if (pending != null) {
+            if (pendingLen + total > pending.length) {
+                byte[] tmp = new byte[Math.max(pending.length * 2, pendingLen + total)];
+                System.arraycopy(pending, 0, tmp, 0, pendingLen);
+                pending = tmp;
+            }
+            System.arraycopy(b, start, pending, pendingLen, total);
+            pendingLen += total;
+        }
+    }
+
+    private static void update(Signature sig, byte[] b, int off, int len) throws CRLException {
+        try {
+            sig.update(b, off, len);
+        } catch (SignatureException ex) {
+            throw new CRLException(ex.toString());
+        }
+    }
+
+    /**
+     * Decodes an object identifier
+     *
+     * @param content
+     *            content octets of the OID
+     * @return dotted decimal form
+     */
+    static String decodeOid(byte[] content) {
+        StringBuilder sb = new StringBuilder();
+        long value = 0;
+        boolean first = true;
+        for (int i = 0; i < content.length; i++) {
+            value = (value << 7) | (content[i] & 0x7f);
+            if ((content[i] & 0x80) == 0) {
+                if (first) {
+                    int root = (int) Math.min(2, value / 40);
+                    sb.append(root).append('.').append(value - root * 40);
+                    first = false;
+                } else {
+                    sb.append('.').append(value);
+                }
+                value = 0;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decodes an UTCTime or GeneralizedTime in UTC
+     *
+     * @param tag
+     *            element tag
+     * @param content
+     *            content octets
+     * @return milliseconds since the epoch
+     */
+    static long decodeTime(int tag, byte[] content) throws CRLException {
+        int p = 0;
+        int year;
+        if (tag == UTC_TIME) {
+            year = digits(content, p, 2);
+            year += (year < 50) ? 2000 : 1900;
+            p += 2;
+        } else if (tag == GENERALIZED_TIME) {
+            year = digits(content, p, 4);
+            p += 4;
+        } else {
+            throw new CRLException("unexpected time tag 0x" + Integer.toHexString(tag));
+        }
+        int month = digits(content, p, 2);
+        int day = digits(content, p + 2, 2);
+        int hour = digits(content, p + 4, 2);
+        int minute = digits(content, p + 6, 2);
+        p += 8;
+        int second = 0;
+        if (p + 1 < content.length && content[p] >= '0' && content[p] <= '9') {
+            second = digits(content, p, 2);
+        }
+        return (daysFromCivil(year, month, day) * 86400L + hour * 3600L + minute * 60L + second) * 1000L;
+    }
+
+    private static int digits(byte[] b, int off, int n) throws CRLException {
+        if (off + n > b.length) {
+            throw new CRLException("invalid time");
+        }
+        int v = 0;
+        for (int i = off; i < off + n; i++) {
+            int d = b[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new CRLException("invalid time");
+            }
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    /**
+     * Days since 1970-01-01 of a date in the proleptic Gregorian calendar
+     */
+    private static long daysFromCivil(int y, int m, int d) {
+        y -= (m <= 2) ? 1 : 0;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yoe = y - era * 400;
+        long doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * Returns the DER encoding of a length
+     *
+     * @param len
+     *            length
+     * @return length octets
+     */
+    static byte[] encodeLength(long len) {
+        if (len < 0x80) {
+            return new byte[] { (byte) len };
+        }
+        int n = 0;
+        for (long l = len; l > 0; l >>>= 8) {
+            n++;
+        }
+        byte[] b = new byte[n + 1];
+        b[0] = (byte) (0x80 | n);
+        for (int i = n; i > 0; i--, len >>>= 8) {
+            b[i] = (byte) len;
+        }
+        return b;
+    }
+}
@@ -0,0 +1,105 @@
+package ee.sk.digidoc.crl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.cert.CRLException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decodes the URLs of the CRLDistributionPoints and FreshestCRL extensions.
+ * Both use the CRLDistributionPoints syntax of RFC 5280, only full names of
+ * type uniformResourceIdentifier are returned.
+ */
+public final class DistributionPoints {
+
+    private static final Logger LOG = Logger.getLogger(DistributionPoints.class);
+
+    /** CRLDistributionPoints certificate extension */
+    public static final String CRL_DISTRIBUTION_POINTS = "2.5.29.31";
+    /** FreshestCRL extension, points to delta CRLs */
+    public static final String FRESHEST_CRL = "2.5.29.46";
+
+    private static final int CTX_0 = 0xa0;
+    private static final int URI = 0x86;
+
+    private DistributionPoints() {
+    }
+
+    /**
+     * Returns the CRL URLs of a certificate
+     *
+     * @param cert
+     *            certificate
+     * @return possibly empty list of URLs
+     */
+    public static List<String> getCrlUrls(X509Certificate cert) {
+        byte[] ext = cert.getExtensionValue(CRL_DISTRIBUTION_POINTS);
+        if (ext == null) {
+            return Collections.emptyList();
+        }
+        try {
+            // getExtensionValue() returns the extnValue OCTET STRING
+            DerReader r = new DerReader(new ByteArrayInputStream(ext));
+            return getUrls(r.readElement(DerReader.OCTET_STRING));
+        } catch (Exception ex) {
+            LOG.warn("Invalid CRLDistributionPoints in certificate " + cert.getSubjectX500Principal() + ": " + ex);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Decodes the URLs of a CRLDistributionPoints value
+     *
+     * @param value
+     *            content of the extnValue OCTET STRING
+     * @return possibly empty list of URLs
+     * @throws CRLException
+     *             for decoding errors
+     */
+    public static List<String> getUrls(byte[] value) throws CRLException {
+        List<String> urls = new ArrayList<String>();
+        try {
+            DerReader r = new DerReader(new ByteArrayInputStream(value));
+            r.expectTag(DerReader.SEQUENCE);
+            long end = r.readLength();
+            while (r.position() < end) {
+                r.expectTag(DerReader.SEQUENCE); // DistributionPoint
+                long dpEnd = r.readLength();
+                dpEnd += r.position();
+                while (r.position() < dpEnd) {
+                    int tag = r.readTag();
+                    long len = r.readLength();
+                    if (tag != CTX_0) { // reasons, cRLIssuer
+                        r.skip(len);
+                        continue;
+                    }
+                    long nameEnd = r.position() + len;
+                    while (r.position() < nameEnd) {
+                        tag = r.readTag();
+                        len = r.readLength();
+                        if (tag != CTX_0) { // nameRelativeToCRLIssuer
+                            r.skip(len);
+                            continue;
+                        }
+                        long namesEnd = r.position() + len;
+                        while (r.position() < namesEnd) {
+                            tag = r.readTag();
+                            byte[] name = r.readContent(r.readLength());
+                            if (tag == URI) {
+                                urls.add(new String(name, "US-ASCII"));
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            throw (CRLException) new CRLException("Invalid distribution points: " + ex).initCause(ex);
+        }
+        return urls;
+    }
+}
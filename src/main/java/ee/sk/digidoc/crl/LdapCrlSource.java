@@ -0,0 +1,277 @@
+package ee.sk.digidoc.crl;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Hashtable;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads a CRL from an LDAP directory entry. Directory contexts are kept in a
+ * small pool and reused between fetches, so a check does not cost a new
+ * connection and bind. Before the CRL attribute is pulled, a cheap attribute
+ * of the entry, modifyTimestamp by default, is compared with the version
+ * known by the caller. If the directory does not return that attribute, the
+ * CRL is pulled and its SHA-256 hash is used as the version instead, which
+ * still saves decoding an unchanged CRL.
+ */
+public final class LdapCrlSource {
+
+    private static final Logger LOG = Logger.getLogger(LdapCrlSource.class);
+
+    /** default attribute for change detection */
+    public static final String DEFAULT_CHANGE_ATTR = "modifyTimestamp";
+
+    private final Hashtable<String, String> env = new Hashtable<String, String>();
+    private final String searchBase;
+    private final String filter;
+    private final String crlAttr;
+    private String changeAttr = DEFAULT_CHANGE_ATTR;
+    private int maxIdle = 4;
+
+    /** idle contexts, guarded by this */
+    private final Deque<DirContext> idle = new ArrayDeque<DirContext>();
+    private boolean closed;
+
+    /**
+     * Creates a source
+     *
+     * @param driver
+     *            JNDI initial context factory class
+     * @param url
+     *            LDAP URL of the directory
+     * @param searchBase
+     *            name of the CRL entry
+     * @param filter
+     *            search filter
+     * @param crlAttr
+     *            attribute holding the CRL, e.g. certificateRevocationList;binary
+     */
+    public LdapCrlSource(String driver, String url, String searchBase, String filter, String crlAttr) {
+        env.put(Context.INITIAL_CONTEXT_FACTORY, driver);
+        env.put(Context.PROVIDER_URL, url);
+        this.searchBase = searchBase;
+        this.filter = filter;
+        this.crlAttr = crlAttr;
+    }
+
+    /**
+     * Sets the attribute compared before pulling the CRL
+     *
+     * @param changeAttr
+     *            attribute name or null to compare hashes of the CRL only
+     */
+    public void setChangeAttr(String changeAttr) {
+        this.changeAttr = changeAttr;
+    }
+
+    /**
+     * Sets the number of idle connections kept open
+     *
+     * @param maxIdle
+     *            maximum number of pooled connections
+     */
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Returns the number of idle pooled connections
+     *
+     * @return idle connections
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Reads the CRL unless it has not changed
+     *
+     * @param knownVersion
+     *            version returned by an earlier fetch or null to always read
+     *            the CRL
+     * @return version and, if it differs from knownVersion, the encoded CRL
+     * @throws NamingException
+     *             for directory errors, NameNotFoundException if no entry
+     *             matches
+     */
+    public Result fetch(String knownVersion) throws NamingException {
+        DirContext ctx = borrow();
+        boolean ok = false;
+        try {
+            Result r = fetch(ctx, knownVersion);
+            ok = true;
+            return r;
+        } finally {
+            release(ctx, ok);
+        }
+    }
+
+    private Result fetch(DirContext ctx, String knownVersion) throws NamingException {
+        String version = null;
+        if (changeAttr != null) {
+            Object value = search(ctx, changeAttr);
+            if (value != null) {
+                version = changeAttr + ":" + ((value instanceof byte[]) ? hex((byte[]) value) : value);
+                if (version.equals(knownVersion)) {
+                    return new Result(version, null);
+                }
+            } else if (LOG.isDebugEnabled()) {
+                LOG.debug("No " + changeAttr + " in " + searchBase + ", comparing CRL hashes");
+            }
+        }
+        Object value = search(ctx, crlAttr);
+        if (!(value instanceof byte[])) {
+            throw new NameNotFoundException("No binary " + crlAttr + " in " + searchBase);
+        }
+        byte[] crl = (byte[]) value;
+        if (version == null) {
+            version = "sha256:" + hex(sha256(crl));
+            if (version.equals(knownVersion)) {
+                return new Result(version, null);
+            }
+        }
+        return new Result(version, crl);
+    }
+
+    /**
+     * Returns the value of one attribute of the CRL entry
+     */
+    private Object search(DirContext ctx, String attr) throws NamingException {
+        SearchControls constraints = new SearchControls();
+        constraints.setSearchScope(SearchControls.OBJECT_SCOPE);
+        constraints.setReturningAttributes(new String[] { attr });
+        NamingEnumeration<SearchResult> ne = ctx.search(searchBase, filter, constraints);
+        try {
+            if (!ne.hasMore()) {
+                throw new NameNotFoundException("No CRL entry found: " + searchBase);
+            }
+            Attribute a = ne.next().getAttributes().get(attr);
+            return (a != null) ? a.get() : null;
+        } finally {
+            ne.close();
+        }
+    }
+
+    private DirContext borrow() throws NamingException {
+        synchronized (this) {
+            if (closed) {
+                throw new NamingException("LDAP CRL source has been closed");
+            }
+            DirContext ctx = idle.poll();
+            if (ctx != null) {
+                return ctx;
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Connecting to " + env.get(Context.PROVIDER_URL));
+        }
+        return new InitialLdapContext(env, new Control[0]);
+    }
+
+    /**
+     * Returns a context to the pool, contexts that failed are closed since
+     * the connection may be broken
+     */
+    private void release(DirContext ctx, boolean ok) {
+        synchronized (this) {
+            if (ok && !closed && idle.size() < maxIdle) {
+                idle.push(ctx);
+                return;
+            }
+        }
+        closeQuietly(ctx);
+    }
+
+    /**
+     * Closes the pooled connections, fetches fail afterwards
+     */
+    public void close() {
+        DirContext[] ctxs;
+        synchronized (this) {
+            closed = true;
+            ctxs = idle.toArray(new DirContext[idle.size()]);
+            idle.clear();
+        }
+        for (DirContext ctx : ctxs) {
+            closeQuietly(ctx);
+        }
+    }
+
+    private static void closeQuietly(DirContext ctx) {
+        try {
+            ctx.close();
+        } catch (NamingException ex) {
+            LOG.warn("Error closing LDAP connection: " + ex);
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (int i = 0; i < b.length; i++) {
+            sb.append(Character.forDigit((b[i] >> 4) & 0xf, 16)).append(Character.forDigit(b[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Outcome of a fetch
+     */
+    public static final class Result {
+        private final String version;
+        private final byte[] data;
+
+        Result(String version, byte[] data) {
+            this.version = version;
+            this.data = data;
+        }
+
+        /**
+         * Returns the version to pass to the next fetch
+         *
+         * @return version of the CRL in the directory
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * Returns the encoded CRL
+         *
+         * @return CRL or null if it was not modified
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * Tells if the CRL differs from the known version
+         *
+         * @return true if getData() returns the CRL
+         */
+        public boolean isModified() {
+            return data != null;
+        }
+    }
+}
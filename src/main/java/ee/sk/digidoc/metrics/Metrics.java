@@ -0,0 +1,250 @@
+package ee.sk.digidoc.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Library wide counters and latency histograms of the main processing stages.
+ * <p>
+ * Instrumented code calls {@link #start()} before and
+ * {@link #record(String, long, long)} (or {@link #recordError(String, long)})
+ * after an operation. The measurements are kept per stage in
+ * {@link StageMetrics} objects and passed on to the registered
+ * {@link MetricsSink}s. {@link #registerMBeans()} publishes the stages as JMX
+ * MBeans named <code>ee.sk.digidoc:type=Metrics,name=&lt;stage&gt;</code>.
+ */
+public final class Metrics {
+
+    private static final Logger LOG = Logger.getLogger(Metrics.class);
+
+    /** SAX parsing of a digidoc container */
+    public static final String SAX_PARSE = "SaxParse";
+    /** canonicalization, bytes of input */
+    public static final String C14N = "Canonicalization";
+    /** DataFile digest calculation, bytes of content */
+    public static final String DATAFILE_DIGEST = "DataFileDigest";
+    /** RSA signature verification */
+    public static final String RSA_VERIFY = "RsaVerify";
+    /** OCSP request round trip to a responder */
+    public static final String OCSP_ROUNDTRIP = "OcspRoundTrip";
+    /** CRL download */
+    public static final String CRL_FETCH = "CrlFetch";
+    /** CRL decoding, bytes of encoded CRL */
+    public static final String CRL_PARSE = "CrlParse";
+    /** timestamp token verification */
+    public static final String TSA_VERIFY = "TsaVerify";
+    /** timestamp request round trip to a TSA */
+    public static final String TSA_REQUEST = "TsaRequest";
+    /** DataFile content written to temporary files, counter only */
+    public static final String TEMPFILE_SPILL = "TempFileSpill";
+    /** DataFile bodies found in a content-addressed store, counter only */
+    public static final String BODY_DEDUP = "BodyDedup";
+    /** verification results served from a result store, counter only */
+    public static final String RESULT_STORE_HIT = "ResultStoreHit";
+
+    private static final String DOMAIN = "ee.sk.digidoc";
+
+    /** returned by start() while measuring is disabled */
+    private static final long DISABLED = Long.MIN_VALUE;
+
+    private static final ConcurrentMap<String, StageMetrics> STAGES = new ConcurrentHashMap<String, StageMetrics>();
+    private static final List<MetricsSink> SINKS = new CopyOnWriteArrayList<MetricsSink>();
+
+    private static volatile boolean enabled = true;
+    private static MBeanServer mbeanServer;
+
+    private Metrics() {
+    }
+
+    /**
+     * Enables or disables measuring. Enabled by default.
+     *
+     * @param on
+     *            new state
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the start time of an operation
+     *
+     * @return value to be passed to record()
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : DISABLED;
+    }
+
+    /**
+     * Records a successful operation
+     *
+     * @param stage
+     *            stage name
+     * @param start
+     *            value returned by start()
+     * @param bytes
+     *            number of bytes processed, 0 if not applicable
+     */
+    public static void record(String stage, long start, long bytes) {
+        record(stage, start, bytes, false);
+    }
+
+    /**
+     * Records a failed operation
+     *
+     * @param stage
+     *            stage name
+     * @param start
+     *            value returned by start()
+     */
+    public static void recordError(String stage, long start) {
+        record(stage, start, 0, true);
+    }
+
+    /**
+     * Records an untimed event, e.g. bytes written to a temporary file
+     *
+     * @param stage
+     *            stage name
+     * @param bytes
+     *            number of bytes
+     */
+    public static void count(String stage, long bytes) {
+        if (!enabled) {
+            return;
+        }
+        getStage(stage).count(bytes);
+        notifySinks(stage, -1, bytes, false);
+    }
+
+    private static void record(String stage, long start, long bytes, boolean error) {
+        if (start == DISABLED || !enabled) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        getStage(stage).record(nanos, bytes, error);
+        notifySinks(stage, nanos, bytes, error);
+    }
+
+    private static void notifySinks(String stage, long nanos, long bytes, boolean error) {
+        for (MetricsSink sink : SINKS) {
+            try {
+                sink.record(stage, nanos, bytes, error);
+            } catch (RuntimeException ex) {
+                LOG.warn("Metrics sink failed: " + ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the measurements of a stage, creating it if necessary
+     *
+     * @param stage
+     *            stage name
+     * @return stage measurements
+     */
+    public static StageMetrics getStage(String stage) {
+        StageMetrics m = STAGES.get(stage);
+        if (m == null) {
+            StageMetrics m2 = new StageMetrics(stage);
+            m = STAGES.putIfAbsent(stage, m2);
+            if (m == null) {
+                m = m2;
+                registerMBean(m);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Returns all stages measured so far
+     *
+     * @return stage measurements
+     */
+    public static Collection<StageMetrics> getStages() {
+        return new ArrayList<StageMetrics>(STAGES.values());
+    }
+
+    /**
+     * Clears all measurements
+     */
+    public static void reset() {
+        for (StageMetrics m : STAGES.values()) {
+            m.reset();
+        }
+    }
+
+    public static void addSink(MetricsSink sink) {
+        SINKS.add(sink);
+    }
+
+    public static void removeSink(MetricsSink sink) {
+        SINKS.remove(sink);
+    }
+
+    /**
+     * Registers the stages with the platform MBean server. Stages created
+     * later are registered when they are first used.
+     */
+    public static synchronized void registerMBeans() {
+        if (mbeanServer != null) {
+            return;
+        }
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (StageMetrics m : STAGES.values()) {
+            registerMBean(m);
+        }
+    }
+
+    /**
+     * Removes the MBeans registered by registerMBeans()
+     */
+    public static synchronized void unregisterMBeans() {
+        if (mbeanServer == null) {
+            return;
+        }
+        for (StageMetrics m : STAGES.values()) {
+            try {
+                ObjectName name = objectName(m);
+                if (mbeanServer.isRegistered(name)) {
+                    mbeanServer.unregisterMBean(name);
+                }
+            } catch (Exception ex) {
+                LOG.warn("Cannot unregister metrics MBean " + m.getName() + ": " + ex);
+            }
+        }
+        mbeanServer = null;
+    }
+
+    private static synchronized void registerMBean(StageMetrics m) {
+        if (mbeanServer == null) {
+            return;
+        }
+        try {
+            ObjectName name = objectName(m);
+            if (!mbeanServer.isRegistered(name)) {
+                mbeanServer.registerMBean(m, name);
+            }
+        } catch (Exception ex) {
+            LOG.warn("Cannot register metrics MBean " + m.getName() + ": " + ex);
+        }
+    }
+
+    private static ObjectName objectName(StageMetrics m) throws Exception {
+        return new ObjectName(DOMAIN + ":type=Metrics,name=" + m.getName());
+    }
+}
@@ -0,0 +1,24 @@
+package ee.sk.digidoc.metrics;
+
+/**
+ * Receives every measurement recorded through {@link Metrics}. Register an
+ * implementation with {@link Metrics#addSink(MetricsSink)} to forward the
+ * data to a monitoring system. Implementations are called on the measuring
+ * thread and must be fast and thread-safe.
+ */
+public interface MetricsSink {
+
+    /**
+     * Called for each measurement
+     * 
+     * @param stage
+     *            name of the measured stage, one of the Metrics constants
+     * @param nanos
+     *            elapsed time in nanoseconds, -1 for plain counters
+     * @param bytes
+     *            number of bytes processed, 0 if not applicable
+     * @param error
+     *            true if the operation failed
+     */
+    void record(String stage, long nanos, long bytes, boolean error);
+}
@@ -0,0 +1,161 @@
+package ee.sk.digidoc.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histogram of one stage. The histogram has one bucket
+ * per power of two microseconds, so percentiles are reported as the upper
+ * bound of the bucket they fall into (at most a factor of two too high).
+ */
+public class StageMetrics implements StageMetricsMBean {
+
+    private static final int BUCKETS = 40;
+
+    private final String name;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    StageMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records a timed operation
+     *
+     * @param nanos
+     *            elapsed time in nanoseconds
+     * @param nBytes
+     *            number of bytes processed
+     * @param error
+     *            true if the operation failed
+     */
+    void record(long nanos, long nBytes, boolean error) {
+        count.increment();
+        if (error) {
+            errors.increment();
+        }
+        bytes.add(nBytes);
+        totalNanos.add(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+        buckets.incrementAndGet(bucket(nanos));
+    }
+
+    /**
+     * Records an untimed event
+     *
+     * @param nBytes
+     *            number of bytes processed
+     */
+    void count(long nBytes) {
+        count.increment();
+        bytes.add(nBytes);
+    }
+
+    private static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public double getBytesPerSecond() {
+        long nanos = totalNanos.sum();
+        return (nanos > 0) ? bytes.sum() * 1e9 / nanos : 0;
+    }
+
+    public double getTotalTimeMillis() {
+        return totalNanos.sum() / 1e6;
+    }
+
+    public double getMeanTimeMillis() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += buckets.get(i);
+        }
+        return (n > 0) ? totalNanos.sum() / 1e6 / n : 0;
+    }
+
+    public double getMaxTimeMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    public double getP50TimeMillis() {
+        return percentile(0.50);
+    }
+
+    public double getP95TimeMillis() {
+        return percentile(0.95);
+    }
+
+    public double getP99TimeMillis() {
+        return percentile(0.99);
+    }
+
+    /**
+     * Returns the upper bound of the histogram bucket containing the given
+     * percentile
+     *
+     * @param p
+     *            percentile between 0 and 1
+     * @return time in milliseconds, 0 if nothing was timed
+     */
+    public double percentile(double p) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return Math.min((1L << i) / 1e3, getMaxTimeMillis());
+            }
+        }
+        return getMaxTimeMillis();
+    }
+
+    public void reset() {
+        count.reset();
+        errors.reset();
+        bytes.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+    }
+
+    public String toString() {
+        return name + ": count=" + getCount() + " errors=" + getErrorCount() + " bytes=" + getBytes() + " mean="
+                + getMeanTimeMillis() + "ms p95=" + getP95TimeMillis() + "ms max=" + getMaxTimeMillis() + "ms";
+    }
+}
@@ -0,0 +1,31 @@
+package ee.sk.digidoc.metrics;
+
+/**
+ * JMX view of the measurements of one stage
+ */
+public interface StageMetricsMBean {
+
+    String getName();
+
+    long getCount();
+
+    long getErrorCount();
+
+    long getBytes();
+
+    double getBytesPerSecond();
+
+    double getTotalTimeMillis();
+
+    double getMeanTimeMillis();
+
+    double getMaxTimeMillis();
+
+    double getP50TimeMillis();
+
+    double getP95TimeMillis();
+
+    double getP99TimeMillis();
+
+    void reset();
+}
@@ -0,0 +1,292 @@
+package ee.sk.digidoc.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.utils.AsyncUtils;
+
+/**
+ * Minimal non-blocking HTTP/1.0 POST client used for OCSP requests. The
+ * exchange runs on an AsynchronousSocketChannel, so no thread is held while
+ * the responder is working. Only plain http URLs are supported, directly or
+ * through the HTTP proxy chosen by the default ProxySelector like
+ * URLConnection does. Host names are resolved on the given executor. The
+ * response is read until the server closes the connection.
+ */
+class AsyncHttpPost {
+
+    /** upper limit for a response, OCSP responses are a few kilobytes */
+    private static final int MAX_RESPONSE = 1024 * 1024;
+
+    private AsyncHttpPost() {
+    }
+
+    /**
+     * Checks if the URL can be handled by this client
+     *
+     * @param url
+     *            target URL
+     * @return true for http URLs that are reached directly or through an HTTP
+     *         proxy
+     */
+    static boolean supports(String url) {
+        if (!url.regionMatches(true, 0, "http://", 0, 7)) {
+            return false;
+        }
+        try {
+            Proxy.Type type = selectProxy(new URL(url)).type();
+            return type == Proxy.Type.DIRECT || type == Proxy.Type.HTTP;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the proxy URLConnection would use for the URL
+     */
+    private static Proxy selectProxy(URL u) throws IOException {
+        ProxySelector ps = ProxySelector.getDefault();
+        if (ps == null) {
+            return Proxy.NO_PROXY;
+        }
+        List<Proxy> proxies;
+        try {
+            proxies = ps.select(new URI(u.getProtocol(), null, u.getHost(), u.getPort(), "/", null, null));
+        } catch (Exception ex) {
+            throw new IOException("Cannot select proxy for " + u, ex);
+        }
+        return (proxies == null || proxies.isEmpty()) ? Proxy.NO_PROXY : proxies.get(0);
+    }
+
+    /**
+     * Posts the data. Cancelling the returned future closes the connection.
+     *
+     * @param url
+     *            http URL
+     * @param contentType
+     *            Content-Type of the request
+     * @param body
+     *            request body
+     * @param connectTimeout
+     *            connect timeout in milliseconds
+     * @param readTimeout
+     *            timeout for each read and write in milliseconds
+     * @param executor
+     *            executor for resolving the host name
+     * @return future completed with the response body
+     */
+    static CompletableFuture<byte[]> post(String url, String contentType, byte[] body, int connectTimeout,
+            final int readTimeout, Executor executor) {
+        final CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+        try {
+            final URL u = new URL(url);
+            int port = (u.getPort() != -1) ? u.getPort() : u.getDefaultPort();
+            String path = (u.getFile().length() > 0) ? u.getFile() : "/";
+            Proxy proxy = selectProxy(u);
+            final InetSocketAddress target;
+            if (proxy.type() == Proxy.Type.DIRECT) {
+                target = InetSocketAddress.createUnresolved(u.getHost(), port);
+            } else if (proxy.type() == Proxy.Type.HTTP && proxy.address() instanceof InetSocketAddress) {
+                // the proxy gets the absolute URL in the request line
+                InetSocketAddress pa = (InetSocketAddress) proxy.address();
+                target = InetSocketAddress.createUnresolved(pa.getHostString(), pa.getPort());
+                path = new URL(u.getProtocol(), u.getHost(), port, path).toExternalForm();
+            } else {
+                throw new IOException("Unsupported proxy for " + u + ": " + proxy);
+            }
+            StringBuilder sb = new StringBuilder(128);
+            sb.append("POST ").append(path).append(" HTTP/1.0\r\n");
+            sb.append("Host: ").append(u.getHost());
+            if (port != u.getDefaultPort()) {
+                sb.append(':').append(port);
+            }
+            sb.append("\r\nContent-Type: ").append(contentType);
+            sb.append("\r\nContent-Length: ").append(body.length);
+            sb.append("\r\nConnection: close\r\n\r\n");
+            byte[] head = sb.toString().getBytes("ISO-8859-1");
+            final ByteBuffer out = ByteBuffer.allocate(head.length + body.length);
+            out.put(head).put(body).flip();
+
+            final AsynchronousSocketChannel ch = AsynchronousSocketChannel.open();
+            result.whenComplete((data, ex) -> closeQuietly(ch));
+            final ScheduledFuture<?> timeout = AsyncUtils.timer().schedule(
+                    () -> result.completeExceptionally(new SocketTimeoutException("connect timed out: " + u)),
+                    connectTimeout, TimeUnit.MILLISECONDS);
+            // name lookup blocks, so it is not done on the calling thread
+            AsyncUtils.supplyAsync(() -> resolve(target), executor).whenComplete((addr, ex) -> {
+                if (ex != null) {
+                    timeout.cancel(false);
+                    result.completeExceptionally(AsyncUtils.unwrap(ex));
+                } else if (!result.isDone()) {
+                    connect(ch, addr, out, readTimeout, timeout, result, u);
+                }
+            });
+        } catch (Exception ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    private static SocketAddress resolve(InetSocketAddress addr) throws IOException {
+        InetSocketAddress resolved = new InetSocketAddress(addr.getHostString(), addr.getPort());
+        if (resolved.isUnresolved()) {
+            throw new UnknownHostException(addr.getHostString());
+        }
+        return resolved;
+    }
+
+    private static void connect(final AsynchronousSocketChannel ch, SocketAddress addr, final ByteBuffer out,
+            final int readTimeout, final ScheduledFuture<?> timeout, final CompletableFuture<byte[]> result,
+            final URL u) {
+        try {
+            ch.connect(addr, null, new CompletionHandler<Void, Void>() {
+                public void completed(Void v, Void att) {
+                    timeout.cancel(false);
+                    write(ch, out, readTimeout, result, u);
+                }
+
+                public void failed(Throwable ex, Void att) {
+                    timeout.cancel(false);
+                    result.completeExceptionally(ex);
+                }
+            });
+        } catch (RuntimeException ex) {
+            // the channel was closed by a timeout or cancellation
+            timeout.cancel(false);
+            result.completeExceptionally(ex);
+        }
+    }
+
+    private static void write(final AsynchronousSocketChannel ch, final ByteBuffer out, final int readTimeout,
+            final CompletableFuture<byte[]> result, final URL u) {
+        ch.write(out, readTimeout, TimeUnit.MILLISECONDS, null, new CompletionHandler<Integer, Void>() {
+            public void completed(Integer n, Void att) {
+                if (out.hasRemaining()) {
+                    ch.write(out, readTimeout, TimeUnit.MILLISECONDS, null, this);
+                } else {
+                    read(ch, readTimeout, result, u);
+                }
+            }
+
+            public void failed(Throwable ex, Void att) {
+                result.completeExceptionally(timeout(ex, "write", u));
+            }
+        });
+    }
+
+    private static void read(final AsynchronousSocketChannel ch, final int readTimeout,
+            final CompletableFuture<byte[]> result, final URL u) {
+        final ByteBuffer buf = ByteBuffer.allocate(4096);
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+        ch.read(buf, readTimeout, TimeUnit.MILLISECONDS, null, new CompletionHandler<Integer, Void>() {
+            public void completed(Integer n, Void att) {
+                if (n < 0) {
+                    try {
+                        result.complete(parseResponse(bos.toByteArray(), u));
+                    } catch (Exception ex) {
+                        result.completeExceptionally(ex);
+                    }
+                    return;
+                }
+                bos.write(buf.array(), 0, buf.position());
+                buf.clear();
+                if (bos.size() > MAX_RESPONSE) {
+                    result.completeExceptionally(new IOException("Response from " + u + " is too large"));
+                    return;
+                }
+                ch.read(buf, readTimeout, TimeUnit.MILLISECONDS, null, this);
+            }
+
+            public void failed(Throwable ex, Void att) {
+                result.completeExceptionally(timeout(ex, "read", u));
+            }
+        });
+    }
+
+    /**
+     * Splits off the headers and checks the status code
+     *
+     * @param data
+     *            complete HTTP response
+     * @param u
+     *            URL used in error messages
+     * @return response body
+     */
+    static byte[] parseResponse(byte[] data, URL u) throws IOException, DigiDocException {
+        int end = -1;
+        for (int i = 0; i + 3 < data.length; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new IOException("Invalid HTTP response from " + u);
+        }
+        String[] headers = new String(data, 0, end, "ISO-8859-1").split("\r\n");
+        String[] status = headers[0].split(" ");
+        int code;
+        try {
+            code = (status.length > 1 && status[0].startsWith("HTTP/")) ? Integer.parseInt(status[1]) : -1;
+        } catch (NumberFormatException ex) {
+            code = -1;
+        }
+        if (code != 200) {
+            throw new DigiDocException(DigiDocException.ERR_OCSP_REQ_SEND, "OCSP responder " + u + " returned HTTP "
+                    + code, null);
+        }
+        int bodyLen = data.length - end - 4;
+        for (int i = 1; i < headers.length; i++) {
+            int idx = headers[i].indexOf(':');
+            if (idx > 0 && headers[i].substring(0, idx).trim().equalsIgnoreCase("Content-Length")) {
+                int len;
+                try {
+                    len = Integer.parseInt(headers[i].substring(idx + 1).trim());
+                } catch (NumberFormatException ex) {
+                    continue; // read until end of stream
+                }
+                if (len > bodyLen) {
+                    throw new IOException("Truncated response from " + u + ": got " + bodyLen + " of " + len
+                            + " bytes");
+                }
+                bodyLen = len;
+            }
+        }
+        byte[] body = new byte[bodyLen];
+        System.arraycopy(data, end + 4, body, 0, bodyLen);
+        return body;
+    }
+
+    private static Throwable timeout(Throwable ex, String op, URL u) {
+        if (ex instanceof InterruptedByTimeoutException) {
+            return new SocketTimeoutException(op + " timed out: " + u);
+        }
+        return ex;
+    }
+
+    private static void closeQuietly(AsynchronousSocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException ex) {
+            // nothing to do
+        }
+    }
+}
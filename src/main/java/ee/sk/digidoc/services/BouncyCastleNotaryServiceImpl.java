@@ -1,10 +1,6 @@
 package ee.sk.digidoc.services;
 
 import java.io.FileInputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URL;
-import java.net.URLConnection;
 import java.security.KeyStore;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -17,7 +13,10 @@ import java.security.cert.X509Certificate;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import org.apache.log4j.Logger;
 import org.bouncycastle.asn1.ASN1OctetString;
@@ -38,6 +37,7 @@ import org.bouncycastle.jce.PrincipalUtil;
 import org.bouncycastle.jce.X509Principal;
 import org.bouncycastle.ocsp.BasicOCSPResp;
 import org.bouncycastle.ocsp.CertificateID;
+import org.bouncycastle.ocsp.OCSPException;
 import org.bouncycastle.ocsp.OCSPReq;
 import org.bouncycastle.ocsp.OCSPReqGenerator;
 import org.bouncycastle.ocsp.OCSPResp;
@@ -50,10 +50,11 @@ import ee.sk.digidoc.DigiDocException;
 import ee.sk.digidoc.Notary;
 import ee.sk.digidoc.Signature;
 import ee.sk.digidoc.SignedDoc;
+import ee.sk.utils.AsyncUtils;
 import ee.sk.utils.Base64Util;
 import ee.sk.utils.DDUtils;
 
-public class BouncyCastleNotaryServiceImpl implements NotaryService {
+public class BouncyCastleNotaryServiceImpl implements NotaryService, Versioned {
 
     private static final String nonceOid = "1.3.6.1.5.5.7.48.1.2";
     private static final String sha1NoSign = "1.3.14.3.2.26";
@@ -65,10 +66,14 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
     private PrivateKey signRequestKey;
     
     private Hashtable<String, X509Certificate> ocspCerts = new Hashtable<String, X509Certificate>();
+    /** digest of ocspCerts, null until computed */
+    private volatile String version;
 
     private boolean useOCSP = true;
     
     private String responderUrl;
+    
+    private OCSPResponderPool responderPool;
 
     private final CRLService crlService;
     private final CAService caService;
@@ -77,8 +82,42 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
         this.useOCSP = useOCSP;
     }
     
-    public void setResponderUrl(String responderUrl) {
+    public synchronized void setResponderUrl(String responderUrl) {
         this.responderUrl = responderUrl;
+        this.responderPool = null;
+    }
+    
+    /**
+     * Sets several OCSP responders to be used with failover. Shorthand for
+     * setResponderPool(new OCSPResponderPool(urls)).
+     * 
+     * @param urls
+     *            responder URLs
+     */
+    public synchronized void setResponderUrls(List<String> urls) {
+        this.responderPool = new OCSPResponderPool(urls);
+        this.responderUrl = urls.get(0);
+    }
+    
+    /**
+     * Sets the pool of OCSP responders to use instead of the single
+     * responderUrl
+     * 
+     * @param responderPool
+     *            configured responder pool
+     */
+    public synchronized void setResponderPool(OCSPResponderPool responderPool) {
+        this.responderPool = responderPool;
+    }
+    
+    private synchronized OCSPResponderPool getResponderPool() throws DigiDocException {
+        if (responderPool == null) {
+            if (responderUrl == null) {
+                throw new DigiDocException(DigiDocException.ERR_OCSP_REQ_SEND, "OCSP responder URL not configured", null);
+            }
+            responderPool = new OCSPResponderPool(responderUrl);
+        }
+        return responderPool;
     }
     
     public void setSignRequests(boolean signRequests) {
@@ -99,8 +138,8 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
     public X509Certificate findNotaryCertByIndex(String responderCN, int idx) {
         X509Certificate cert = null;
 
-        if (LOG.isInfoEnabled()) {
-            LOG.info("Find responder for: " + responderCN + " index: " + idx);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Find responder for: " + responderCN + " index: " + idx);
         }
             
         String certKey = null;
@@ -110,14 +149,14 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
             certKey = responderCN + "-" + idx;
         }
             
-        if (LOG.isInfoEnabled()) {
-            LOG.info("Searching responder: " + certKey);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Searching responder: " + certKey);
         }
             
         cert = ocspCerts.get(certKey);
         
-        if (LOG.isInfoEnabled() && cert != null && certKey != null) {
-            LOG.info("Selecting cert " + cert.getSerialNumber().toString() 
+        if (LOG.isDebugEnabled() && cert != null && certKey != null) {
+            LOG.debug("Selecting cert " + cert.getSerialNumber().toString() 
                     + " key: " + certKey 
                     + " valid until: " + cert.getNotAfter().toString());
         }
@@ -140,8 +179,8 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
         Date d1 = null;
         String key = null;
 
-        if (LOG.isInfoEnabled()) {
-            LOG.info("Find responder for: " + responderCN + " cert: " + ((specificCertNr != null) ? specificCertNr : "NEWEST"));
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Find responder for: " + responderCN + " cert: " + ((specificCertNr != null) ? specificCertNr : "NEWEST"));
         }
             
         int i = 0;
@@ -154,8 +193,8 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
                 certKey = responderCN + "-" + i;
             }
                 
-            if (LOG.isInfoEnabled()) {
-                LOG.info("Searching responder: " + certKey);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Searching responder: " + certKey);
             }
 
             cert2 = (X509Certificate) ocspCerts.get(certKey);
@@ -163,8 +202,8 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
                 if (specificCertNr != null) { // specific cert
                     String certNr = cert2.getSerialNumber().toString();
                     if (certNr.equals(specificCertNr)) {
-                        if (LOG.isInfoEnabled()) {
-                            LOG.info("Found specific responder: " + specificCertNr);
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Found specific responder: " + specificCertNr);
                         }
 
                         return cert2;
@@ -189,8 +228,8 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
             i++;
         } while (cert2 != null || i < 2);
         
-        if (LOG.isInfoEnabled() && cert1 != null && key != null) {
-            LOG.info("Selecting cert " + cert1.getSerialNumber().toString() + " key: " + key + " valid until: "
+        if (LOG.isDebugEnabled() && cert1 != null && key != null) {
+            LOG.debug("Selecting cert " + cert1.getSerialNumber().toString() + " key: " + key + " valid until: "
                     + cert1.getNotAfter().toString());
         }
             
@@ -206,8 +245,8 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
      * @return certificate if fond or null if not
      */
     public X509Certificate findNotaryCertByKeyHash(byte[] certHash) {
-        if (LOG.isInfoEnabled()) {
-            LOG.info("find notary cert by hash: " + Base64Util.encode(certHash));
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("find notary cert by hash: " + Base64Util.encode(certHash));
         }
 
         Enumeration<X509Certificate> eCerts = ocspCerts.elements();
@@ -215,8 +254,8 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
             X509Certificate cert = eCerts.nextElement();
             byte[] hash = getCertFingerprint(cert);
             
-            if (LOG.isInfoEnabled()) {
-                LOG.info("Cert: " + cert.getSubjectDN().getName() 
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Cert: " + cert.getSubjectDN().getName() 
                         + " fingerprint: " + Base64Util.encode(hash)
                         + " len: " + hash.length 
                         + " compare: " + Base64Util.encode(certHash));
@@ -291,22 +330,45 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
             }
                 
             // send it
-            OCSPResp resp = sendRequest(req);
+            CheckedResponse resp = sendRequest(req);
             // debugWriteFile("resp.der", resp.getEncoded());
             
+            not = checkConfirmation(resp, signersCert, nonce, notId);
+        } catch (DigiDocException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_OCSP_GET_CONF);
+        }
+        return not;
+    }
+
+    /**
+     * Checks the OCSP response received for a confirmation request
+     * 
+     * @param resp
+     *            OCSP response with successful status
+     * @param signersCert
+     *            signature owners cert
+     * @param nonce
+     *            nonce value used for request
+     * @param notId
+     *            new id for Notary object
+     * @returns Notary object
+     */
+    private Notary checkConfirmation(CheckedResponse resp, X509Certificate signersCert, byte[] nonce, String notId)
+            throws DigiDocException {
+        Notary not = null;
+        try {
             if (LOG.isDebugEnabled()) {
-                LOG.debug("RESPONSE:\n" + Base64Util.encode(resp.getEncoded(), 0));
+                LOG.debug("RESPONSE:\n" + Base64Util.encode(resp.resp.getEncoded(), 0));
             }
             
-            // check response status
-            verifyRespStatus(resp);
             // check the result
-            not = parseAndVerifyResponse(null, notId, signersCert, resp, nonce);
+            not = parseAndVerifyResponse(null, notId, signersCert, resp.resp, nonce, resp.signer);
             
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Confirmation OK!");
             }
-                
         } catch (DigiDocException ex) {
             throw ex;
         } catch (Exception ex) {
@@ -340,22 +402,7 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
                 notaryCert = sig.getUnsignedProperties().getRespondersCertificate();
             // check the result
             not = getConfirmation(nonce, signersCert, caCert, notaryCert, notId);
-            // add cert to signature
-            if (notaryCert == null && sig != null && sig.getUnsignedProperties() != null) {
-                OCSPResp resp = new OCSPResp(sig.getUnsignedProperties().getNotary().getOcspResponseData());
-                if (resp != null && resp.getResponseObject() != null) {
-                    // VS: 02.01.2009 - fix finding ocsp responders cert
-                    notaryCert = findNotaryCertByResponderId((BasicOCSPResp) resp.getResponseObject());
-                    if (LOG.isDebugEnabled())
-                        LOG.debug("Using notary cert: "
-                                + ((notaryCert != null) ? notaryCert.getSubjectDN().getName() : "NULL"));
-                    if (notaryCert == null)
-                        throw new DigiDocException(DigiDocException.ERR_OCSP_VERIFY, "OCSP responders cert not found",
-                                null);
-                    // VS: 02.01.2009 - fix finding ocsp responders cert
-                    sig.getUnsignedProperties().setRespondersCertificate(notaryCert);
-                }
-            }
+            setRespondersCertificate(sig, notaryCert);
         } catch (DigiDocException ex) {
             throw ex;
         } catch (Exception ex) {
@@ -364,6 +411,71 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
         return not;
     }
 
+    /**
+     * Asynchronous variant of getConfirmation(). The request is created and
+     * the response verified on the executor; the exchange with the responder
+     * does not hold a thread.
+     * 
+     * @param sig
+     *            Signature object.
+     * @param signersCert
+     *            signature owners cert
+     * @param caCert
+     *            CA cert for this signer
+     * @param executor
+     *            executor for the CPU bound steps
+     * @returns future completed with the Notary object
+     */
+    public CompletableFuture<Notary> getConfirmationAsync(final Signature sig, final X509Certificate signersCert,
+            final X509Certificate caCert, final Executor executor) {
+        // everything that can fail goes into the future
+        return AsyncUtils.supplyAsync(() -> {
+            try {
+                final String notId = sig.getId().replace('S', 'N');
+                // calculate the nonce
+                final byte[] nonce = DDUtils.digest(sig.getSignatureValue().getValue());
+                final X509Certificate notaryCert = (sig.getUnsignedProperties() != null) ? sig
+                        .getUnsignedProperties().getRespondersCertificate() : null;
+                OCSPReq req = createOCSPRequest(nonce, signersCert, caCert, signRequests);
+                return sendRequestAsync(req, executor).thenApplyAsync(resp -> AsyncUtils.call(() -> {
+                    Notary not = checkConfirmation(resp, signersCert, nonce, notId);
+                    setRespondersCertificate(sig, notaryCert);
+                    return not;
+                }), executor);
+            } catch (RuntimeException ex) {
+                throw new DigiDocException(DigiDocException.ERR_OCSP_GET_CONF, ex.getClass().getName(), ex);
+            }
+        }, executor).thenCompose(f -> f);
+    }
+
+    /**
+     * Stores the responders certificate of an existing confirmation in the
+     * signature if it was not known before the request
+     * 
+     * @param sig
+     *            Signature object
+     * @param notaryCert
+     *            responders certificate known before the request
+     */
+    private void setRespondersCertificate(Signature sig, X509Certificate notaryCert) throws DigiDocException {
+        // add cert to signature
+        if (notaryCert == null && sig != null && sig.getUnsignedProperties() != null) {
+            BasicOCSPResp basResp = sig.getUnsignedProperties().getNotary().getBasicResponse();
+            if (basResp != null) {
+                // VS: 02.01.2009 - fix finding ocsp responders cert
+                notaryCert = findNotaryCertByResponderId(basResp);
+                if (LOG.isDebugEnabled())
+                    LOG.debug("Using notary cert: "
+                            + ((notaryCert != null) ? notaryCert.getSubjectDN().getName() : "NULL"));
+                if (notaryCert == null)
+                    throw new DigiDocException(DigiDocException.ERR_OCSP_VERIFY, "OCSP responders cert not found",
+                            null);
+                // VS: 02.01.2009 - fix finding ocsp responders cert
+                sig.getUnsignedProperties().setRespondersCertificate(notaryCert);
+            }
+        }
+    }
+
     /*
      * private String ocspFileName(X509Certificate cert) { StringBuffer sb = new
      * StringBuffer(cert.getSerialNumber().toString()); sb.append("_"); Date
@@ -383,45 +495,116 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
     public void checkCertificate(X509Certificate cert) throws DigiDocException {
         try {
             if (useOCSP) {
-                // create the request
-                X509Certificate caCert = caService.findCAforCertificate(cert);
-                
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Find CA for: " + DDUtils.getCommonName(cert.getIssuerX500Principal().getName("RFC1779")));
-                    LOG.debug("Check cert: " + cert.getSubjectDN().getName());
-                    LOG.debug("Check CA cert: " + caCert.getSubjectDN().getName());
-                }
-                
                 String strTime = new java.util.Date().toString();
                 byte[] nonce1 = DDUtils.digest(strTime.getBytes());
-                
-                OCSPReq req = createOCSPRequest(nonce1, cert, caCert, signRequests);
-                
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Sending ocsp request: " + req.getEncoded().length + " bytes");
-                    LOG.debug("REQUEST:\n" + Base64Util.encode(req.getEncoded(), 0));
-                }
+                OCSPReq req = createCheckRequest(cert, nonce1);
                 
                 // send it
-                OCSPResp resp = sendRequest(req);
-                
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Got ocsp response: " + resp.getEncoded().length + " bytes");
-                    LOG.debug("RESPONSE:\n" + Base64Util.encode(resp.getEncoded(), 0));
-                }
-                
-                // check response status
-                verifyRespStatus(resp);
-                // now read the info from the response
-                BasicOCSPResp basResp = (BasicOCSPResp) resp.getResponseObject();
-                
-                byte[] nonce2 = getNonce(basResp);
-                if (!DDUtils.compareDigests(nonce1, nonce2)) {
-                    throw new DigiDocException(DigiDocException.ERR_OCSP_UNSUCCESSFULL,
-                            "Invalid nonce value! Possible replay attack!", null);
-                }
+                CheckedResponse resp = sendRequest(req);
+                checkCertificateResponse(cert, resp, nonce1);
+            } else {
+                crlService.checkCertificate(cert, new Date());
+            }
+        } catch (DigiDocException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_OCSP_GET_CONF);
+        }
+    }
+
+    /**
+     * Asynchronous variant of checkCertificate(). CRL checks run on the
+     * executor.
+     * 
+     * @param cert
+     *            certificate to verify
+     * @param executor
+     *            executor for the CPU bound steps and CRL checks
+     * @return future completed normally if the certificate is valid
+     */
+    public CompletableFuture<Void> checkCertificateAsync(final X509Certificate cert, final Executor executor) {
+        if (!useOCSP) {
+            return AsyncUtils.supplyAsync(() -> {
+                crlService.checkCertificate(cert, new Date());
+                return null;
+            }, executor);
+        }
+        return AsyncUtils.supplyAsync(() -> {
+            final byte[] nonce1 = DDUtils.digest(new java.util.Date().toString().getBytes());
+            OCSPReq req = createCheckRequest(cert, nonce1);
+            return sendRequestAsync(req, executor).thenApplyAsync(resp -> AsyncUtils.<Void>call(() -> {
+                checkCertificateResponse(cert, resp, nonce1);
+                return null;
+            }), executor);
+        }, executor).thenCompose(f -> f);
+    }
+
+    /**
+     * Creates the OCSP request for checkCertificate()
+     * 
+     * @param cert
+     *            certificate to verify
+     * @param nonce1
+     *            nonce value to use
+     * @return OCSP request
+     */
+    private OCSPReq createCheckRequest(X509Certificate cert, byte[] nonce1) throws DigiDocException {
+        OCSPReq req = null;
+        try {
+            // create the request
+            X509Certificate caCert = caService.findCAforCertificate(cert);
+            
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Find CA for: " + DDUtils.getCommonName(cert.getIssuerX500Principal().getName("RFC1779")));
+                LOG.debug("Check cert: " + cert.getSubjectDN().getName());
+                LOG.debug("Check CA cert: " + caCert.getSubjectDN().getName());
+            }
+            
+            req = createOCSPRequest(nonce1, cert, caCert, signRequests);
+            
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Sending ocsp request: " + req.getEncoded().length + " bytes");
+                LOG.debug("REQUEST:\n" + Base64Util.encode(req.getEncoded(), 0));
+            }
+        } catch (DigiDocException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_OCSP_GET_CONF);
+        }
+        return req;
+    }
 
-                // verify the response
+    /**
+     * Checks the OCSP response received by checkCertificate()
+     * 
+     * @param cert
+     *            certificate to verify
+     * @param resp
+     *            OCSP response with successful status
+     * @param nonce1
+     *            nonce value used for request
+     * @throws DigiDocException
+     *             if the certificate is not valid
+     */
+    private void checkCertificateResponse(X509Certificate cert, CheckedResponse resp, byte[] nonce1)
+            throws DigiDocException {
+        try {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Got ocsp response: " + resp.resp.getEncoded().length + " bytes");
+                LOG.debug("RESPONSE:\n" + Base64Util.encode(resp.resp.getEncoded(), 0));
+            }
+            
+            // now read the info from the response
+            BasicOCSPResp basResp = (BasicOCSPResp) resp.resp.getResponseObject();
+            
+            byte[] nonce2 = getNonce(basResp);
+            if (!DDUtils.compareDigests(nonce1, nonce2)) {
+                throw new DigiDocException(DigiDocException.ERR_OCSP_UNSUCCESSFULL,
+                        "Invalid nonce value! Possible replay attack!", null);
+            }
+
+            // verify the response unless it was verified on receipt
+            if (resp.signer == null) {
                 try {
                     // VS: 02.01.2009 - fix finding ocsp responders cert
                     X509Certificate notaryCert = findNotaryCertByResponderId(basResp);
@@ -435,18 +618,16 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
                     }
 
                     basResp.verify(notaryCert.getPublicKey(), "BC");
-                        
+                    
                     // VS: 02.01.2009 - fix finding ocsp responders cert
                 } catch (Exception ex) {
                     LOG.error("OCSP Signature verification error!!!", ex);
                     DigiDocException.handleException(ex, DigiDocException.ERR_OCSP_VERIFY);
                 }
-                
-                // check the response about this certificate
-                checkCertStatus(cert, basResp);
-            } else {
-                crlService.checkCertificate(cert, new Date());
             }
+            
+            // check the response about this certificate
+            checkCertStatus(cert, basResp);
         } catch (DigiDocException ex) {
             throw ex;
         } catch (Exception ex) {
@@ -467,12 +648,15 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
      *            OCSP response
      * @param nonce1
      *            nonve value used for request
+     * @param verifiedBy
+     *            responder certificate that has verified the response
+     *            already, null to verify here
      * @returns Notary object
      */
     private Notary parseAndVerifyResponse(Signature sig, String notId, X509Certificate signersCert, OCSPResp resp,
-            byte[] nonce1) throws DigiDocException {
+            byte[] nonce1, X509Certificate verifiedBy) throws DigiDocException {
         Notary not = null;
-        X509Certificate notaryCert = null;
+        X509Certificate notaryCert = verifiedBy;
 
         // check the result
         if (resp == null || resp.getStatus() != OCSPRespStatus.SUCCESSFUL) {
@@ -488,30 +672,32 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
             String notIdCN = DDUtils.getCommonName(respondIDstr);
             Exception exVerify = null;
             boolean bOk = false;
-            do {
-                exVerify = null;
-                if (LOG.isInfoEnabled()) {
-                    LOG.info("Find notary cert for: " + notIdCN + " index: " + nNotIdx);
-                }
+            if (verifiedBy == null) {
+                do {
+                    exVerify = null;
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Find notary cert for: " + notIdCN + " index: " + nNotIdx);
+                    }
                     
-                notaryCert = findNotaryCertByIndex(notIdCN, nNotIdx);
-                if (notaryCert != null) {
-                    try {
-                        bOk = basResp.verify(notaryCert.getPublicKey(), "BC");
-                        if (LOG.isInfoEnabled()) {
-                            LOG.info("Verification with cert: " + notaryCert.getSerialNumber().toString()
-                                    + " idx: " + nNotIdx + " RC: " + bOk);
-                        }
-                    } catch (Exception ex) {
-                        exVerify = ex;
-                        if (LOG.isInfoEnabled()) {
-                            LOG.info("Notary cert index: " + nNotIdx + " is not usable for this response!");
-                        }
+                    notaryCert = findNotaryCertByIndex(notIdCN, nNotIdx);
+                    if (notaryCert != null) {
+                        try {
+                            bOk = basResp.verify(notaryCert.getPublicKey(), "BC");
+                            if (LOG.isInfoEnabled()) {
+                                LOG.info("Verification with cert: " + notaryCert.getSerialNumber().toString()
+                                        + " idx: " + nNotIdx + " RC: " + bOk);
+                            }
+                        } catch (Exception ex) {
+                            exVerify = ex;
+                            if (LOG.isInfoEnabled()) {
+                                LOG.info("Notary cert index: " + nNotIdx + " is not usable for this response!");
+                            }
                             
+                        }
                     }
-                }
-                nNotIdx++;
-            } while (notaryCert != null && (exVerify != null || !bOk));
+                    nNotIdx++;
+                } while (notaryCert != null && (exVerify != null || !bOk));
+            }
             
             // if no suitable found the report error
             if (exVerify != null) {
@@ -692,9 +878,8 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
      */
     public Notary parseAndVerifyResponse(Signature sig, Notary not) throws DigiDocException {
         try {
-            OCSPResp resp = new OCSPResp(not.getOcspResponseData());
             // now read the info from the response
-            BasicOCSPResp basResp = (BasicOCSPResp) resp.getResponseObject();
+            BasicOCSPResp basResp = not.getBasicResponse();
             // verify the response
             try {
                 // X509Certificate notaryCert =
@@ -833,21 +1018,7 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
      * @return stringified responder ID
      */
     private String responderIDtoString(BasicOCSPResp basResp) {
-        if (basResp != null) {
-            ResponderID respid = basResp.getResponderId().toASN1Object();
-            Object o = ((DERTaggedObject) respid.toASN1Object()).getObject();
-
-            if (o instanceof ASN1Sequence) {
-                X509Name name = new X509Name((ASN1Sequence) o);
-                return "byName: " + name.toString();
-            } else if (o instanceof DEROctetString) {
-                // TODO: fix ...
-                return "byKey: " + o.toString();
-            } else {
-                return null;
-            }
-        } else
-            return null;
+        return Notary.responderIdToString(basResp);
     }
 
     /**
@@ -1030,61 +1201,114 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
     }
 
     /**
-     * Sends the OCSP request to Notary and retrieves the response
+     * Sends the OCSP request to Notary and retrieves the response. With
+     * several responders configured the first response that is successful
+     * and signed by a known responder is returned.
      * 
      * @param req
      *            OCSP request
      * @returns OCSP response
      */
-    private OCSPResp sendRequest(OCSPReq req) throws DigiDocException {
-        OCSPResp resp = null;
+    private CheckedResponse sendRequest(OCSPReq req) throws DigiDocException {
+        byte[] breq = null;
+        try {
+            breq = req.getEncoded();
+        } catch (Exception ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_OCSP_REQ_SEND);
+        }
+        return getResponderPool().send(breq, responseHandler);
+    }
 
+    /**
+     * Asynchronous variant of sendRequest()
+     * 
+     * @param req
+     *            OCSP request
+     * @param executor
+     *            executor for response checking
+     * @returns future completed with the OCSP response
+     */
+    private CompletableFuture<CheckedResponse> sendRequestAsync(OCSPReq req, Executor executor) {
         try {
-            byte[] breq = req.getEncoded();
-            URL url = new URL(responderUrl);
-            URLConnection con = url.openConnection();
-            con.setAllowUserInteraction(false);
-            con.setUseCaches(false);
-            con.setDoOutput(true);
-            con.setDoInput(true);
-            // send the OCSP request
-            con.setRequestProperty("Content-Type", "application/ocsp-request");
-            OutputStream os = con.getOutputStream();
-            os.write(breq);
-            os.close();
-            // read the response
-            InputStream is = con.getInputStream();
-            int cl = con.getContentLength();
-            byte[] bresp = null;
-
-            if (cl > 0) {
-                int avail = 0;
-                do {
-                    avail = is.available();
-                    byte[] data = new byte[avail];
-                    int rc = is.read(data);
-                    if (bresp == null) {
-                        bresp = new byte[rc];
-                        System.arraycopy(data, 0, bresp, 0, rc);
-                    } else {
-                        byte[] tmp = new byte[bresp.length + rc];
-                        System.arraycopy(bresp, 0, tmp, 0, bresp.length);
-                        System.arraycopy(data, 0, tmp, bresp.length, rc);
-                        bresp = tmp;
-                    }
+            return getResponderPool().sendAsync(req.getEncoded(), responseHandler, executor);
+        } catch (DigiDocException ex) {
+            return AsyncUtils.failed(ex);
+        } catch (Exception ex) {
+            return AsyncUtils.failed(new DigiDocException(DigiDocException.ERR_OCSP_REQ_SEND, ex.toString(), ex));
+        }
+    }
 
-                    cl -= rc;
-                } while (cl > 0);
-            }
-            is.close();
-            
-            if (bresp != null) {
+    /**
+     * OCSP response with successful status and the registered responder
+     * certificate that verified its signature
+     */
+    private static final class CheckedResponse {
+        final OCSPResp resp;
+        /** null if no certificate is registered for the responder */
+        final X509Certificate signer;
+
+        CheckedResponse(OCSPResp resp, X509Certificate signer) {
+            this.resp = resp;
+            this.signer = signer;
+        }
+    }
+
+    /**
+     * Accepts responses that parse, have a successful status and are signed by
+     * the responder. The signature is verified only here, the certificate that
+     * verified it is passed on with the response.
+     */
+    private final OCSPResponderPool.ResponseHandler<CheckedResponse> responseHandler =
+            new OCSPResponderPool.ResponseHandler<CheckedResponse>() {
+        public CheckedResponse handle(byte[] bresp) throws DigiDocException {
+            OCSPResp resp = null;
+            try {
                 resp = new OCSPResp(bresp);
+            } catch (Exception ex) {
+                DigiDocException.handleException(ex, DigiDocException.ERR_OCSP_PARSE);
             }
-        } catch (Exception ex) {
-            DigiDocException.handleException(ex, DigiDocException.ERR_OCSP_REQ_SEND);
+            verifyRespStatus(resp);
+            X509Certificate signer = null;
+            try {
+                signer = findResponseSigner((BasicOCSPResp) resp.getResponseObject());
+            } catch (OCSPException ex) {
+                DigiDocException.handleException(ex, DigiDocException.ERR_OCSP_PARSE);
+            }
+            return new CheckedResponse(resp, signer);
         }
-        return resp;
+    };
+
+    /**
+     * Checks the response signature against the registered certificates of
+     * the responder. Responses of responders without registered certificates
+     * are passed on, parseAndVerifyResponse() decides about those.
+     * 
+     * @param basResp
+     *            OCSP basic response
+     * @return certificate that verifies the response or null if no
+     *         certificate is registered for the responder
+     * @throws DigiDocException
+     *             if the responder is known but none of its certificates
+     *             verifies the response
+     */
+    private X509Certificate findResponseSigner(BasicOCSPResp basResp) throws DigiDocException {
+        String notIdCN = DDUtils.getCommonName(responderIDtoString(basResp));
+        X509Certificate notaryCert = findNotaryCertByIndex(notIdCN, 0);
+        if (notaryCert == null) {
+            return null;
+        }
+        for (int idx = 1; notaryCert != null; idx++) {
+            try {
+                if (basResp.verify(notaryCert.getPublicKey(), "BC")) {
+                    return notaryCert;
+                }
+            } catch (Exception ex) {
+                // try the next certificate of this responder
+            }
+            notaryCert = findNotaryCertByIndex(notIdCN, idx);
+        }
+        throw new DigiDocException(DigiDocException.ERR_OCSP_VERIFY,
+                "OCSP response not signed by a known responder", null);
     }
 
 
@@ -1146,11 +1370,26 @@ public class BouncyCastleNotaryServiceImpl implements NotaryService {
                 LOG.debug("Loaded OCSP cert with cn=" + cn);
                 ocspCerts.put(cn, cert);
             }
+            version = null;
         } catch (DigiDocException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Returns a digest of the trusted OCSP responder certificates
+     * 
+     * @return version of the responder trust anchors
+     */
+    public String getVersion() {
+        String v = version;
+        if (v == null) {
+            v = "ocsp:" + DDUtils.digestCertificates(ocspCerts.values());
+            version = v;
+        }
+        return v;
+    }
+
     /**
      * Checks if the certificate identified by this CN is
      * a known OCSP responders cert
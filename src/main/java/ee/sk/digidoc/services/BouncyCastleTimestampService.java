@@ -1,17 +1,31 @@
 package ee.sk.digidoc.services;
 
+import java.math.BigInteger;
+import java.security.MessageDigest;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
 
 import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1OctetString;
 import org.bouncycastle.asn1.cmp.PKIStatus;
+import org.bouncycastle.cms.SignerId;
 import org.bouncycastle.tsp.TimeStampResponse;
+import org.bouncycastle.tsp.TimeStampToken;
 
 import ee.sk.digidoc.DigiDocException;
 import ee.sk.digidoc.Signature;
 import ee.sk.digidoc.TimestampInfo;
+import ee.sk.digidoc.metrics.Metrics;
+import ee.sk.digidoc.tsp.MerkleProof;
 import ee.sk.utils.Base64Util;
 import ee.sk.utils.DDUtils;
 
@@ -20,6 +34,34 @@ public class BouncyCastleTimestampService implements TimestampService {
 
     private static final Logger LOG = Logger.getLogger(BouncyCastleTimestampService.class);
 
+    /** OID of the SubjectKeyIdentifier extension */
+    private static final String SUBJECT_KEY_IDENTIFIER = "2.5.29.14";
+
+    /** max number of verified token digests remembered */
+    private volatile int verifiedCacheSize = 1024;
+
+    /** digests of token and TSA cert pairs that have been verified */
+    private final Map<String, Boolean> verified = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(
+            16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > verifiedCacheSize;
+        }
+    });
+
+    /**
+     * Sets the number of verified timestamp tokens remembered, a token that
+     * has been verified with a TSA cert is not validated again
+     *
+     * @param size
+     *            max number of tokens, 0 disables the cache
+     */
+    public void setVerifiedCacheSize(int size) {
+        verifiedCacheSize = size;
+        if (size <= 0) {
+            verified.clear();
+        }
+    }
+
     /**
      * Verifies this one timestamp
      * @param ts TimestampInfo object
@@ -27,40 +69,107 @@ public class BouncyCastleTimestampService implements TimestampService {
      * @returns result of verification
      */
     public boolean verifyTimestamp(TimestampInfo ts, X509Certificate tsaCert) throws DigiDocException {
-        boolean bOk = false;
-        
         if(LOG.isDebugEnabled())
-            LOG.debug("Verifying TS: " + ts.getId() + " nr: " + ts.getSerialNumber());     
-        if(!DDUtils.compareDigests(ts.getMessageImprint(), ts.getHash())) {
-            LOG.error("TS digest: " + Base64Util.encode(ts.getMessageImprint()) + " real digest: " + Base64Util.encode(ts.getHash()));
-            throw new DigiDocException(DigiDocException.ERR_TIMESTAMP_VERIFY,
-                "Bad digest for timestamp: " + ts.getId(), null);
-        }
+            LOG.debug("Verifying TS: " + ts.getId() + " nr: " + ts.getSerialNumber());
         TimeStampResponse resp = ts.getTimeStampResponse();
+        DigiDocException ex = checkResponse(ts, resp);
+        if(ex == null && resp != null)
+            ex = checkToken(ts, resp.getTimeStampToken(), tsaCert);
+        if(ex != null)
+            throw ex;
+        return resp != null;
+    }
+
+    /**
+     * Checks the status and message imprint of a timestamp response. If the
+     * timestamp has an aggregation proof the imprint must equal the root the
+     * proof leads to.
+     *
+     * @param ts
+     *            timestamp
+     * @param resp
+     *            its response or null
+     * @return error or null if ok
+     */
+    private DigiDocException checkResponse(TimestampInfo ts, TimeStampResponse resp) {
         if(resp != null) {
             if(LOG.isDebugEnabled())
                 LOG.debug("TS status: " + resp.getStatus());
-            if(resp.getStatus() == PKIStatus.GRANTED ||
-                resp.getStatus() == PKIStatus.GRANTED_WITH_MODS) {
-                try {
-                    resp.getTimeStampToken().validate(tsaCert, "BC");
-                    bOk = true;
-                } catch(Exception ex) {
-                    bOk = false;
-                    LOG.error("Timestamp verification error: " + ex);
-                    throw new DigiDocException(DigiDocException.ERR_TIMESTAMP_VERIFY, "Invalid timestamp: " + ex.getMessage(), ex);
-                }
+            if(resp.getStatus() != PKIStatus.GRANTED && resp.getStatus() != PKIStatus.GRANTED_WITH_MODS)
+                return new DigiDocException(DigiDocException.ERR_TIMESTAMP_VERIFY, "Invalid timestamp status: " + resp.getStatus(), null);
+        }
+        byte[] hash = ts.getHash();
+        if(hash != null && ts.getAggregationProof() != null) {
+            // the token covers the root of a batch of hashes
+            try {
+                hash = MerkleProof.decode(ts.getAggregationProof()).computeRoot(hash);
+            } catch(IllegalArgumentException ex) {
+                return new DigiDocException(DigiDocException.ERR_TIMESTAMP_VERIFY,
+                    "Invalid aggregation proof for timestamp: " + ts.getId(), ex);
             }
-            else
-                throw new DigiDocException(DigiDocException.ERR_TIMESTAMP_VERIFY, "Invalid timestamp status: " + resp.getStatus(), null);
         }
-        
-        return bOk;
+        if(!DDUtils.compareDigests(ts.getMessageImprint(), hash)) {
+            LOG.error("TS digest: " + Base64Util.encode(ts.getMessageImprint()) + " real digest: " + Base64Util.encode(hash));
+            return new DigiDocException(DigiDocException.ERR_TIMESTAMP_VERIFY,
+                "Bad digest for timestamp: " + ts.getId(), null);
+        }
+        return null;
+    }
+
+    /**
+     * Validates the signature of a timestamp token unless the same token has
+     * already been verified with the same TSA cert
+     *
+     * @param ts
+     *            timestamp
+     * @param token
+     *            its token
+     * @param tsaCert
+     *            TSA certificate
+     * @return error or null if ok
+     */
+    private DigiDocException checkToken(TimestampInfo ts, TimeStampToken token, X509Certificate tsaCert) {
+        String key = (verifiedCacheSize > 0) ? tokenDigest(token, tsaCert) : null;
+        if(key != null && verified.containsKey(key)) {
+            if(LOG.isDebugEnabled())
+                LOG.debug("TS: " + ts.getId() + " verified earlier");
+            return null;
+        }
+        long start = Metrics.start();
+        try {
+            token.validate(tsaCert, "BC");
+            Metrics.record(Metrics.TSA_VERIFY, start, 0);
+        } catch(Exception ex) {
+            Metrics.recordError(Metrics.TSA_VERIFY, start);
+            LOG.error("Timestamp verification error: " + ex);
+            return new DigiDocException(DigiDocException.ERR_TIMESTAMP_VERIFY, "Invalid timestamp: " + ex.getMessage(), ex);
+        }
+        if(key != null)
+            verified.put(key, Boolean.TRUE);
+        return null;
     }
-    
+
+    /**
+     * Returns the digest of a token and the cert it was verified with
+     *
+     * @return digest or null if it cannot be calculated
+     */
+    private static String tokenDigest(TimeStampToken token, X509Certificate tsaCert) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(token.getEncoded());
+            sha.update(tsaCert.getEncoded());
+            return Base64Util.encode(sha.digest());
+        } catch(Exception ex) {
+            LOG.warn("Cannot calculate timestamp digest: " + ex);
+            return null;
+        }
+    }
+
     /**
      * Verifies all timestamps in this signature and
-     * return a list of errors.
+     * return a list of errors. The TSA cert of each timestamp is
+     * looked up by the SignerId of its token.
      * @param sig signature to verify timestamps
      * @return list of errors. Empty if no errors.
      * @throws DigiDocException
@@ -68,38 +177,36 @@ public class BouncyCastleTimestampService implements TimestampService {
     public List<DigiDocException> verifySignaturesTimestamps(Signature sig) {
         Date d1 = null, d2 = null;
         List<DigiDocException> errs = new ArrayList<DigiDocException>();
-        List<X509Certificate> tsaCerts = sig.findTSACerts();        
+        TsaCertIndex tsaCerts = null;
         for(int t = 0; t < sig.countTimestampInfos(); t++)  {
             TimestampInfo ts = sig.getTimestampInfo(t);
             if(ts.getType() == TimestampInfo.TIMESTAMP_TYPE_SIGNATURE)
                 d1 = ts.getTime();
             if(ts.getType() == TimestampInfo.TIMESTAMP_TYPE_SIG_AND_REFS)
                 d2 = ts.getTime();
-            boolean bVerified = false;
-            DigiDocException ex2 = null;
-            for(int j = 0; j < tsaCerts.size(); j++) {
-                X509Certificate tsaCert = (X509Certificate)tsaCerts.get(j);             
-                if(LOG.isDebugEnabled())
-                    LOG.debug("Verifying TS: " + ts.getId() + " with: " + 
-                        DDUtils.getCommonName(tsaCert.getSubjectDN().getName()));
-                // try verifying with all possible TSA certs
-                try {
-                    if(verifyTimestamp(ts, tsaCert)) {
-                        bVerified = true;
-                        if(LOG.isDebugEnabled())
-                            LOG.debug("TS: " + ts.getId() + " - OK");
-                        break;
-                    } else {
-                        LOG.error("TS: " + ts.getId() + " - NOK");
-                    }
-                } catch(DigiDocException ex) {
-                    ex2 = ex;
-                    LOG.error("TS: " + ts.getId() + " - ERROR: " + ex);
-                    //ex.printStackTrace(System.err);
+            TimeStampResponse resp = ts.getTimeStampResponse();
+            DigiDocException ex = checkResponse(ts, resp);
+            if(ex == null && resp == null)
+                ex = new DigiDocException(DigiDocException.ERR_TIMESTAMP_VERIFY, "Missing timestamp response: " + ts.getId(), null);
+            if(ex == null) {
+                if(tsaCerts == null)
+                    tsaCerts = new TsaCertIndex(sig.findTSACerts());
+                TimeStampToken token = resp.getTimeStampToken();
+                X509Certificate tsaCert = tsaCerts.find(token.getSID());
+                if(tsaCert == null) {
+                    ex = new DigiDocException(DigiDocException.ERR_TIMESTAMP_VERIFY, "TSA certificate not found for timestamp: " + ts.getId(), null);
+                } else {
+                    if(LOG.isDebugEnabled())
+                        LOG.debug("Verifying TS: " + ts.getId() + " with: " +
+                            DDUtils.getCommonName(tsaCert.getSubjectDN().getName()));
+                    ex = checkToken(ts, token, tsaCert);
                 }
             }
-            if(!bVerified) {
-                errs.add(ex2);
+            if(ex != null) {
+                LOG.error("TS: " + ts.getId() + " - ERROR: " + ex);
+                errs.add(ex);
+            } else if(LOG.isDebugEnabled()) {
+                LOG.debug("TS: " + ts.getId() + " - OK");
             }
         }
         // now check that SignatureTimeStamp is before SigAndRefsTimeStamp
@@ -114,4 +221,58 @@ public class BouncyCastleTimestampService implements TimestampService {
         return errs;
     }
 
+    /**
+     * TSA certs of a signature by issuer and serial number and by subject
+     * key identifier
+     */
+    private static final class TsaCertIndex {
+        private final Map<String, X509Certificate> byIssuerSerial = new HashMap<String, X509Certificate>();
+        private final Map<String, X509Certificate> byKeyId = new HashMap<String, X509Certificate>();
+        private final List<X509Certificate> certs;
+
+        TsaCertIndex(List<X509Certificate> certs) {
+            this.certs = certs;
+            for(X509Certificate cert : certs) {
+                byIssuerSerial.put(issuerSerial(cert.getIssuerX500Principal(), cert.getSerialNumber()), cert);
+                byte[] ext = cert.getExtensionValue(SUBJECT_KEY_IDENTIFIER);
+                if(ext != null) {
+                    try {
+                        // the selector holds the encoded KeyIdentifier
+                        ASN1OctetString value = (ASN1OctetString) new ASN1InputStream(ext).readObject();
+                        byKeyId.put(Base64Util.encode(value.getOctets()), cert);
+                    } catch(Exception ex) {
+                        LOG.warn("Invalid SubjectKeyIdentifier in TSA cert: " + cert.getSubjectX500Principal());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the cert identified by a SignerId
+         *
+         * @param sid
+         *            SignerId of a timestamp token
+         * @return cert or null if not found
+         */
+        X509Certificate find(SignerId sid) {
+            X509Certificate cert = null;
+            if(sid.getSerialNumber() != null && sid.getIssuer() != null)
+                cert = byIssuerSerial.get(issuerSerial(sid.getIssuer(), sid.getSerialNumber()));
+            if(cert == null && sid.getSubjectKeyIdentifier() != null)
+                cert = byKeyId.get(Base64Util.encode(sid.getSubjectKeyIdentifier()));
+            if(cert == null) {
+                // issuer names that do not compare equal in canonical form
+                for(X509Certificate c : certs) {
+                    if(sid.match(c))
+                        return c;
+                }
+            }
+            return cert;
+        }
+
+        private static String issuerSerial(X500Principal issuer, BigInteger serial) {
+            return issuer.getName(X500Principal.CANONICAL) + "#" + serial.toString(16);
+        }
+    }
+
 }
@@ -2,6 +2,8 @@ package ee.sk.digidoc.services;
 
 import java.security.cert.X509Certificate;
 
+import javax.security.auth.x500.X500Principal;
+
 import ee.sk.digidoc.DigiDocException;
 
 public interface CAService {
@@ -9,4 +11,16 @@ public interface CAService {
     boolean verifyCertificate(X509Certificate cert) throws DigiDocException;
     
     X509Certificate findCAforCertificate(X509Certificate cert);
+
+    /**
+     * Finds a CA certificate by its subject, e.g. the issuer named in a CRL.
+     * The default implementation knows no CA, so CRLs cannot be verified.
+     * 
+     * @param subject
+     *            subject of the CA certificate
+     * @return CA certificate or null if not found
+     */
+    default X509Certificate findCA(X500Principal subject) {
+        return null;
+    }
 }
@@ -4,17 +4,22 @@ import java.security.cert.X509Certificate;
 import java.util.Collection;
 import java.util.Hashtable;
 
+import javax.security.auth.x500.X500Principal;
+
 import org.apache.log4j.Logger;
 
 import ee.sk.digidoc.DigiDocException;
 import ee.sk.utils.DDUtils;
 
-public class CAServiceImpl implements CAService {
+public class CAServiceImpl implements CAService, Versioned {
 
     private static final Logger LOG = Logger.getLogger(CAServiceImpl.class);
 
     private Hashtable<String, X509Certificate> caCerts = new Hashtable<String, X509Certificate>();
 
+    /** digest of caCerts, null until computed */
+    private volatile String version;
+
     public void setCACerts(Collection<String> certificates) {
         try {
             for (String certFile : certificates) {
@@ -31,6 +36,7 @@ public class CAServiceImpl implements CAService {
                     caCerts.put(cert.getSubjectX500Principal().getName("RFC1779"), cert);
                 }
             }
+            version = null;
         } catch (DigiDocException e) {
             throw new RuntimeException(e);
         }
@@ -79,4 +85,29 @@ public class CAServiceImpl implements CAService {
         return caCert;
     }
 
+    /**
+     * Finds a CA certificate by its subject
+     * 
+     * @param subject
+     *            subject of the CA certificate
+     * @return CA certificate or null if not found
+     */
+    public X509Certificate findCA(X500Principal subject) {
+        return (subject != null) ? caCerts.get(subject.getName("RFC1779")) : null;
+    }
+
+    /**
+     * Returns a digest of the trusted CA certificates
+     * 
+     * @return version of the trust anchors
+     */
+    public String getVersion() {
+        String v = version;
+        if (v == null) {
+            v = "ca:" + DDUtils.digestCertificates(caCerts.values());
+            version = v;
+        }
+        return v;
+    }
+
 }
@@ -1,37 +1,50 @@
 package ee.sk.digidoc.services;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509CRL;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.cert.CRLException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Hashtable;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import javax.naming.Context;
-import javax.naming.NamingEnumeration;
-import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
-import javax.naming.directory.SearchControls;
-import javax.naming.directory.SearchResult;
-import javax.naming.ldap.Control;
-import javax.naming.ldap.InitialLdapContext;
+import javax.security.auth.x500.X500Principal;
 
 import org.apache.log4j.Logger;
 
 import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.crl.CrlIndex;
+import ee.sk.digidoc.crl.CrlParser;
+import ee.sk.digidoc.crl.DistributionPoints;
+import ee.sk.digidoc.crl.LdapCrlSource;
+import ee.sk.digidoc.metrics.Metrics;
+import ee.sk.utils.Base64Util;
 
-public class CRLServiceImpl implements CRLService {
+public class CRLServiceImpl implements CRLService, Versioned {
 
     private static final Logger LOG = Logger.getLogger(CRLServiceImpl.class);    
-    /** URL timestamp to known when to get a fresh CRL (timestamp) */
-    private long m_urlLastModified = 0;
+    /** suffix of the local file of the delta CRL */
+    public static final String DELTA_SUFFIX = ".delta";
+    /** suffix of a downloaded delta CRL that has not been applied yet */
+    private static final String NEW_SUFFIX = ".new";
     /** flag - use LDP connection or not */
     private boolean useLdap = false;
     
@@ -44,6 +57,22 @@ public class CRLServiceImpl implements CRLService {
     private String ldapDriver;
     private String ldapUrl;
     private String ldapAttr;
+    private String ldapChangeAttr = LdapCrlSource.DEFAULT_CHANGE_ATTR;
+    /** pooled LDAP connections, created on first use */
+    private LdapCrlSource ldapSource;
+
+    private int connectTimeout = 10000;
+    private int readTimeout = 30000;
+    /** time to wait after a failed delta CRL download */
+    private long deltaRetryInterval = 5 * 60 * 1000L;
+
+    /** used for finding the CRL issuer, CRL signatures are not checked if null */
+    private CAService caService;
+
+    /** CRL of crlUrl, used for certs without HTTP CRL distribution points */
+    private CrlState m_defaultState;
+    /** CRLs found from the CRLDistributionPoints of certs, by issuer */
+    private final ConcurrentMap<X500Principal, CrlState> m_states = new ConcurrentHashMap<X500Principal, CrlState>();
 
     
     /**
@@ -62,7 +91,7 @@ public class CRLServiceImpl implements CRLService {
             LOG.info("Checking cert");
         }
 
-        if (getCRL().isRevoked(cert)) {
+        if (getCRL(cert).isRevoked(cert.getSerialNumber())) {
             throw new DigiDocException(DigiDocException.ERR_CERT_REVOKED, "Certificate has been revoked!", null);
         } else {
             if (LOG.isInfoEnabled()) {
@@ -71,92 +100,546 @@ public class CRLServiceImpl implements CRLService {
         }
     }
 
-    private X509CRL getCRL() throws DigiDocException {
-        /** current/last CRL object downloaded from SK site */
-        X509CRL m_crl = null;
-        
-        if (useLdap) {
-            if (LOG.isInfoEnabled())
-                LOG.info("Get CRL from LDAP");
-            try {
-                SearchControls constraints = new SearchControls();
-                constraints.setSearchScope(SearchControls.OBJECT_SCOPE);
-                Hashtable<String, String> env = new Hashtable<String, String>();
-                env.put(Context.INITIAL_CONTEXT_FACTORY, ldapDriver);
-                env.put(Context.PROVIDER_URL, ldapUrl);
-                InitialLdapContext ctx = new InitialLdapContext(env, new Control[0]);
-                NamingEnumeration<SearchResult> ne = ctx.search(crlSearchBase, crlFilter, constraints);
-                if (ne.hasMore()) {
-                    SearchResult sr = ne.next();
-                    Attributes attrs = sr.getAttributes();
-                    Attribute subatt = attrs.get(ldapAttr);
-                    byte[] byteCrl = (byte[]) subatt.get();
-                    ByteArrayInputStream bais = new ByteArrayInputStream(byteCrl);
-                    m_crl = (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(bais);
+    /**
+     * Returns the current CRL of the issuer of a cert, downloading it if it
+     * has changed. A base CRL that announces its nextUpdate is downloaded
+     * again only when that time has passed, in between the delta CRLs listed
+     * in its FreshestCRL extension are applied to it. Each issuer has its own
+     * lock, so concurrent checks of a cold issuer wait for one download while
+     * checks of other issuers proceed.
+     * 
+     * @param cert
+     *            cert to be checked, used for finding the CRL issuer
+     * @return index of the revoked serial numbers
+     */
+    private CrlIndex getCRL(X509Certificate cert) throws DigiDocException {
+        CrlState st = getState(cert);
+        synchronized (st) {
+            CrlIndex index = getCRL(st, getKeyResolver());
+            // the configured CRL only covers certs of its own issuer
+            if (!cert.getIssuerX500Principal().equals(index.getIssuer())) {
+                throw new DigiDocException(DigiDocException.ERR_INIT_CRL, "CRL issuer " + index.getIssuer()
+                        + " does not match certificate issuer " + cert.getIssuerX500Principal(), null);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Returns the CRL state of the issuer of a cert. Certs with HTTP CRL
+     * distribution points get a state per issuer, other certs and LDAP mode
+     * use the configured crlUrl.
+     * 
+     * @param cert
+     *            cert to be checked
+     * @return CRL state, created on first use
+     */
+    private CrlState getState(X509Certificate cert) {
+        List<String> urls = useLdap ? Collections.<String> emptyList() : getHttpUrls(DistributionPoints
+                .getCrlUrls(cert));
+        if (urls.isEmpty()) {
+            synchronized (this) {
+                if (m_defaultState == null) {
+                    List<String> def = (crlUrl != null) ? Collections.singletonList(crlUrl) : Collections
+                            .<String> emptyList();
+                    m_defaultState = new CrlState(null, def, crlFile);
                 }
-            } catch (Exception ex) {
-                DigiDocException.handleException(ex, DigiDocException.ERR_INIT_CRL);
+                return m_defaultState;
             }
-        } else {
-            if (LOG.isInfoEnabled()) {
-                LOG.info("Get CRL from HTTP");
+        }
+        X500Principal issuer = cert.getIssuerX500Principal();
+        CrlState st = m_states.get(issuer);
+        if (st == null) {
+            String file = (crlFile != null) ? crlFile + "." + issuerHash(issuer) : null;
+            CrlState created = new CrlState(issuer, urls, file);
+            st = m_states.putIfAbsent(issuer, created);
+            if (st == null) {
+                st = created;
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Using CRL of " + issuer + " from " + urls);
+                }
+            }
+        }
+        return st;
+    }
+
+    private static List<String> getHttpUrls(List<String> urls) {
+        List<String> http = new ArrayList<String>(urls.size());
+        for (String url : urls) {
+            if (url.startsWith("http:") || url.startsWith("https:")) {
+                http.add(url);
+            }
+        }
+        return http;
+    }
+
+    /** returns a short file name safe hash of an issuer name */
+    private static String issuerHash(X500Principal issuer) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(issuer.getEncoded());
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
             }
+            return sb.toString();
+        } catch (Exception ex) {
+            return Integer.toHexString(issuer.hashCode());
+        }
+    }
+
+    /**
+     * Refreshes a CRL state, called with the lock of the state held
+     * 
+     * @param st
+     *            CRL state
+     * @param keys
+     *            resolver of the CRL signature key or null
+     * @return index of the revoked serial numbers
+     */
+    private CrlIndex getCRL(CrlState st, CrlParser.KeyResolver keys) throws DigiDocException {
+        Date now = new Date();
 
-            BufferedInputStream bis = null;
+        if (st.base == null && st.file != null) {
+            loadSavedCRL(st, keys, now);
+        }
+
+        if (st.base == null || st.base.getNextUpdate() == null || st.base.isExpired(now)) {
+            if (useLdap) {
+                fetchLdapCRL(st, keys);
+            } else {
+                fetchBaseCRL(st, keys);
+            }
+        }
+        if (st.base == null) {
+            throw new DigiDocException(DigiDocException.ERR_INIT_CRL, "No CRL available", null);
+        }
+
+        refreshDeltaCRL(st, keys, now);
+        return st.current;
+    }
+
+    /**
+     * Downloads the base CRL unless it has not been modified. The URLs of the
+     * state are tried in order until one succeeds.
+     * 
+     * @param st
+     *            CRL state to update
+     * @param keys
+     *            resolver of the CRL signature key or null
+     */
+    private void fetchBaseCRL(CrlState st, CrlParser.KeyResolver keys) throws DigiDocException {
+        if (st.urls.isEmpty()) {
+            throw new DigiDocException(DigiDocException.ERR_INIT_CRL, "No CRL URL configured", null);
+        }
+        DigiDocException err = null;
+        for (String url : st.urls) {
             try {
-                HttpURLConnection conn = (HttpURLConnection) new URL(crlUrl).openConnection();
-                conn.setDoInput(true);
-                long lastmodif = conn.getLastModified();
-                // System.out.println("URL time: " + lastmodif + " cache time: "
-                // + m_urlLastModified);
-                if (m_urlLastModified == 0 || lastmodif >= m_urlLastModified) {
-                    InputStream is = conn.getInputStream();
-                    bis = new BufferedInputStream(is);
-                    m_crl = (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(bis);
-                    m_urlLastModified = lastmodif;
-
-                    if (LOG.isInfoEnabled()) {
-                        LOG.info("Got CRL -> save");
-                    }
+                fetchBaseCRL(st, keys, url);
+                return;
+            } catch (DigiDocException ex) {
+                LOG.warn("Cannot get CRL from " + url + ": " + ex);
+                err = ex;
+            }
+        }
+        throw err;
+    }
 
-                    saveCRL(m_crl);
+    private void fetchBaseCRL(CrlState st, CrlParser.KeyResolver keys, String url) throws DigiDocException {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Get CRL from HTTP: " + url);
+        }
+
+        try {
+            HttpURLConnection conn = openConnection(url);
+            boolean cached = st.base != null && !st.base.isExpired(new Date());
+            if (cached && st.lastModified != 0) {
+                conn.setIfModifiedSince(st.lastModified);
+            }
+            long lastmodif = conn.getLastModified();
+            if (cached && (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED
+                    || (lastmodif != 0 && lastmodif <= st.lastModified))) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("CRL not modified");
                 }
+                conn.disconnect();
+            } else {
+                st.setBase(readCRL(conn, keys, st.file), lastmodif);
+            }
+        } catch (DigiDocException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_INIT_CRL);
+        }
+    }
 
-            } catch (Exception ex) {
-                DigiDocException.handleException(ex, DigiDocException.ERR_INIT_CRL);
-            } finally {
+    /**
+     * Reads the base CRL from LDAP unless the directory entry has not changed
+     * since the current base CRL was read
+     * 
+     * @param st
+     *            CRL state to update
+     * @param keys
+     *            resolver of the CRL signature key or null
+     */
+    private void fetchLdapCRL(CrlState st, CrlParser.KeyResolver keys) throws DigiDocException {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Get CRL from LDAP");
+        }
+        long start = Metrics.start();
+        try {
+            // an expired CRL is still the current one while the entry has not changed
+            LdapCrlSource.Result res = getLdapSource().fetch(st.version);
+            Metrics.record(Metrics.CRL_FETCH, start, res.isModified() ? res.getData().length : 0);
+            if (!res.isModified()) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("CRL not modified");
+                }
+                return;
+            }
+            st.setBase(parseCRL(new ByteArrayInputStream(res.getData()), keys, st.file), 0);
+            st.version = res.getVersion();
+        } catch (Exception ex) {
+            Metrics.recordError(Metrics.CRL_FETCH, start);
+            DigiDocException.handleException(ex, DigiDocException.ERR_INIT_CRL);
+        }
+    }
+
+    private synchronized LdapCrlSource getLdapSource() {
+        if (ldapSource == null) {
+            ldapSource = new LdapCrlSource(ldapDriver, ldapUrl, crlSearchBase, crlFilter, ldapAttr);
+            ldapSource.setChangeAttr(ldapChangeAttr);
+        }
+        return ldapSource;
+    }
+
+    /**
+     * Returns a digest of the issuer, number and issue time of each CRL
+     * loaded so far, one component per CRL issuer separated by commas. A
+     * component changes whenever a new base or delta CRL of its issuer is
+     * loaded, and a component is added when the CRL of a new issuer is loaded
+     * on first use. The loaded CRLs are refreshed first as a certificate
+     * check would do, so a CRL past its nextUpdate is downloaded again. An
+     * issuer whose CRL cannot be refreshed gets a component of its own.
+     * 
+     * @return version of the revocation data
+     */
+    public String getVersion() {
+        TreeMap<String, CrlState> states = new TreeMap<String, CrlState>();
+        for (CrlState st : m_states.values()) {
+            states.put(st.issuer.getName(X500Principal.RFC2253), st);
+        }
+        synchronized (this) {
+            if (m_defaultState != null) {
+                states.put("", m_defaultState);
+            }
+        }
+        CrlParser.KeyResolver keys = getKeyResolver();
+        StringBuilder version = new StringBuilder();
+        for (String name : states.keySet()) {
+            CrlState st = states.get(name);
+            StringBuilder sb = new StringBuilder(name).append('\n');
+            synchronized (st) {
                 try {
-                    if (bis != null) {
-                        bis.close();
+                    getCRL(st, keys);
+                    appendVersion(sb, st.base);
+                    appendVersion(sb, st.delta);
+                } catch (DigiDocException ex) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("CRL of " + name + " is not available: " + ex);
                     }
-                } catch (IOException e) {
+                    sb.append("unavailable\n");
                 }
             }
+            if (version.length() > 0) {
+                version.append(',');
+            }
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes("UTF-8"));
+                version.append("crl:").append(Base64Util.encode(hash, 0));
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
         }
-        return m_crl;
+        return version.toString();
     }
 
-    private void saveCRL(X509CRL crl) throws DigiDocException {
-        try {
-            if (LOG.isInfoEnabled()) {
-                LOG.info("Writing CRL to: " + crlFile);
+    private static void appendVersion(StringBuilder sb, CrlIndex index) {
+        if (index != null) {
+            sb.append(index.getCrlNumber()).append(' ').append(index.getThisUpdate().getTime()).append('\n');
+        } else {
+            sb.append("-\n");
+        }
+    }
+
+    /**
+     * Closes the pooled LDAP connections
+     */
+    public synchronized void close() {
+        if (ldapSource != null) {
+            ldapSource.close();
+            ldapSource = null;
+        }
+    }
+
+    /**
+     * Downloads the delta CRL if the base CRL announces one and the last one
+     * has expired, and applies it to the base CRL. Failures are logged and
+     * the CRLs known so far are used; the download is not tried again for
+     * deltaRetryInterval or until the base CRL expires, whichever is first.
+     * 
+     * @param st
+     *            CRL state to update
+     * @param keys
+     *            resolver of the CRL signature key or null
+     * @param now
+     *            current time
+     */
+    private void refreshDeltaCRL(CrlState st, CrlParser.KeyResolver keys, Date now) throws DigiDocException {
+        if (st.delta != null && !st.delta.isExpired(now)) {
+            return;
+        }
+        if (now.getTime() < st.deltaRetryAt) {
+            return;
+        }
+        boolean tried = false;
+        for (String url : st.base.getFreshestCrlUrls()) {
+            if (!url.startsWith("http:") && !url.startsWith("https:")) {
+                continue;
+            }
+            tried = true;
+            File saved = (st.file != null) ? new File(st.file + DELTA_SUFFIX) : null;
+            File fresh = (saved != null) ? new File(saved.getPath() + NEW_SUFFIX) : null;
+            try {
+                CrlIndex delta = readCRL(openConnection(url), keys, (fresh != null) ? fresh.getPath() : null);
+                BigInteger number = st.base.getCrlNumber();
+                if (number != null && delta.getDeltaBaseNumber() != null
+                        && delta.getDeltaBaseNumber().compareTo(number) > 0) {
+                    // a newer base CRL has been published
+                    st.lastModified = 0;
+                    st.version = null;
+                    if (useLdap) {
+                        fetchLdapCRL(st, keys);
+                    } else {
+                        fetchBaseCRL(st, keys);
+                    }
+                }
+                st.setDelta(delta);
+                // keep the file only once the delta has been accepted
+                if (fresh != null) {
+                    moveFile(fresh, saved);
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Applied delta CRL " + delta.getCrlNumber() + " with " + delta.size() + " entries");
+                }
+                return;
+            } catch (Exception ex) {
+                if (fresh != null) {
+                    fresh.delete();
+                }
+                LOG.warn("Cannot use delta CRL from " + url + ": " + ex);
             }
+        }
+        if (tried) {
+            long retry = now.getTime() + deltaRetryInterval;
+            Date next = st.base.getNextUpdate();
+            if (next != null && next.getTime() < retry) {
+                retry = next.getTime();
+            }
+            st.deltaRetryAt = retry;
+        }
+    }
 
-            File f = new File(crlFile);
-            FileOutputStream fos = new FileOutputStream(f);
-            fos.write(crl.getEncoded());
-            fos.close();
+    /**
+     * Opens a connection with the configured timeouts
+     * 
+     * @param url
+     *            CRL URL
+     * @return connection
+     */
+    private HttpURLConnection openConnection(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setDoInput(true);
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        return conn;
+    }
 
+    /**
+     * Loads the CRLs saved by an earlier run if they are still valid
+     * 
+     * @param st
+     *            CRL state to update
+     * @param keys
+     *            resolver of the CRL signature key or null
+     * @param now
+     *            current time
+     */
+    private void loadSavedCRL(CrlState st, CrlParser.KeyResolver keys, Date now) {
+        File f = new File(st.file);
+        if (!f.canRead()) {
+            return;
+        }
+        try {
+            CrlIndex base = parseCRLFile(f, keys);
+            if (base.isExpired(now)) {
+                return;
+            }
+            st.setBase(base, f.lastModified());
+            File d = new File(st.file + DELTA_SUFFIX);
+            if (d.canRead()) {
+                CrlIndex delta = parseCRLFile(d, keys);
+                if (!delta.isExpired(now)) {
+                    st.setDelta(delta);
+                }
+            }
             if (LOG.isInfoEnabled()) {
-                LOG.info("CRL file saved!");
+                LOG.info("Loaded CRL from: " + st.file);
             }
+        } catch (Exception ex) {
+            LOG.warn("Ignoring saved CRL " + f + ": " + ex);
+        }
+    }
 
+    private CrlIndex parseCRLFile(File f, CrlParser.KeyResolver keys) throws Exception {
+        InputStream is = new FileInputStream(f);
+        try {
+            return parseCRL(is, keys, null);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Reads a CRL from a connection
+     * 
+     * @param conn
+     *            connection, its stream is closed by this method
+     * @param keys
+     *            resolver of the CRL signature key or null
+     * @param saveFile
+     *            local file to save the CRL to or null
+     * @return index of the revoked serial numbers
+     */
+    private CrlIndex readCRL(HttpURLConnection conn, CrlParser.KeyResolver keys, String saveFile) throws Exception {
+        long start = Metrics.start();
+        CountingInputStream cis = new CountingInputStream(conn.getInputStream());
+        try {
+            CrlIndex index = parseCRL(cis, keys, saveFile);
+            Metrics.record(Metrics.CRL_FETCH, start, cis.getCount());
+            return index;
         } catch (Exception ex) {
-            LOG.error("Error writing CRL to file: " + crlFile);
-            DigiDocException.handleException(ex, DigiDocException.ERR_SAVE_CRL);
+            Metrics.recordError(Metrics.CRL_FETCH, start);
+            throw ex;
+        } finally {
+            try {
+                cis.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Returns the resolver of the keys for verifying CRL signatures. The key
+     * is looked up by the issuer named in the CRL, not by the cert that is
+     * checked.
+     * 
+     * @return resolver using the CA service or null if no CA service is set
+     */
+    private CrlParser.KeyResolver getKeyResolver() {
+        final CAService ca = caService;
+        if (ca == null) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("No CA service, CRL signature is not verified");
+            }
+            return null;
+        }
+        return new CrlParser.KeyResolver() {
+            public PublicKey getKey(X500Principal issuer) throws CRLException {
+                X509Certificate caCert = ca.findCA(issuer);
+                if (caCert == null) {
+                    throw new CRLException("CRL issuer not found: " + issuer);
+                }
+                return caCert.getPublicKey();
+            }
+        };
+    }
+
+    /**
+     * Decodes a DER or PEM encoded CRL into an index, verifying its signature
+     * 
+     * @param in
+     *            encoded CRL
+     * @param keys
+     *            resolver of the CRL signature key or null
+     * @param saveFile
+     *            local file to save the CRL to or null. The CRL is written to a
+     *            temporary file while it is read and renamed when it has been
+     *            decoded successfully.
+     * @return index of the revoked serial numbers
+     */
+    private CrlIndex parseCRL(InputStream in, CrlParser.KeyResolver keys, String saveFile) throws Exception {
+        BufferedInputStream bis = new BufferedInputStream(in, 16384);
+        bis.mark(1);
+        int first = bis.read();
+        bis.reset();
+        InputStream der = bis;
+        if (first == '-') {
+            // PEM, small enough to decode in memory
+            der = new ByteArrayInputStream(decodePem(bis));
+        }
+        if (saveFile == null) {
+            return CrlParser.parse(der, keys);
+        }
+
+        File f = new File(saveFile);
+        File tmp = new File(f.getPath() + ".tmp");
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Writing CRL to: " + saveFile);
+        }
+        OutputStream fos = new FileOutputStream(tmp);
+        CrlIndex index = null;
+        try {
+            index = CrlParser.parse(new TeeInputStream(der, fos), keys);
+        } finally {
+            fos.close();
+            if (index == null) {
+                tmp.delete();
+            }
+        }
+        moveFile(tmp, f);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("CRL file saved!");
+        }
+        return index;
+    }
+
+    /**
+     * Replaces a file, deleting the source on failure
+     */
+    private static void moveFile(File from, File to) throws DigiDocException {
+        if ((to.exists() && !to.delete()) || !from.renameTo(to)) {
+            from.delete();
+            LOG.error("Error writing CRL to file: " + to);
+            throw new DigiDocException(DigiDocException.ERR_SAVE_CRL, "Cannot save CRL to: " + to, null);
         }
     }
 
+    private static byte[] decodePem(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith("-----")) {
+                sb.append(line.trim());
+            }
+        }
+        return Base64Util.decode(sb.toString());
+    }
+
+    public void setCaService(CAService caService) {
+        this.caService = caService;
+    }
+
     public void setLdapDriver(String ldapDriver) {
         this.ldapDriver = ldapDriver;
     }
@@ -169,6 +652,17 @@ public class CRLServiceImpl implements CRLService {
         this.ldapAttr = ldapAttr;
     }
     
+    /**
+     * Sets the attribute of the LDAP CRL entry compared before the CRL is
+     * read, null compares hashes of the CRL instead
+     * 
+     * @param ldapChangeAttr
+     *            attribute name, modifyTimestamp by default
+     */
+    public void setLdapChangeAttr(String ldapChangeAttr) {
+        this.ldapChangeAttr = ldapChangeAttr;
+    }
+
     public void setUseLdap(boolean useLdap) {
         this.useLdap = useLdap;
     }
@@ -188,5 +682,123 @@ public class CRLServiceImpl implements CRLService {
     public void setCrlSearchBase(String crlSearchBase) {
         this.crlSearchBase = crlSearchBase;
     }
-    
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Sets the time to wait before trying again to download a delta CRL that
+     * could not be downloaded or applied
+     * 
+     * @param millis
+     *            interval in milliseconds, 5 minutes by default
+     */
+    public void setDeltaRetryInterval(long millis) {
+        this.deltaRetryInterval = millis;
+    }
+
+    /**
+     * Base CRL, the last delta CRL and the index with the delta applied.
+     * Guarded by its own lock.
+     */
+    private static final class CrlState {
+        /** expected CRL issuer, null for the configured CRL */
+        final X500Principal issuer;
+        final List<String> urls;
+        /** local file of the base CRL or null */
+        final String file;
+        CrlIndex base;
+        CrlIndex delta;
+        CrlIndex current;
+        /** URL timestamp to known when to get a fresh CRL (timestamp) */
+        long lastModified;
+        /** version of the LDAP entry of the base CRL */
+        String version;
+        /** time before which a failed delta CRL download is not tried again */
+        long deltaRetryAt;
+
+        CrlState(X500Principal issuer, List<String> urls, String file) {
+            this.issuer = issuer;
+            this.urls = urls;
+            this.file = file;
+        }
+
+        void setBase(CrlIndex index, long modified) {
+            base = index;
+            current = index;
+            delta = null;
+            lastModified = modified;
+            version = null;
+            deltaRetryAt = 0;
+        }
+
+        void setDelta(CrlIndex index) throws CRLException {
+            current = base.applyDelta(index);
+            delta = index;
+        }
+    }
+
+    /**
+     * Counts the bytes read
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Copies the bytes read to an output stream
+     */
+    private static final class TeeInputStream extends FilterInputStream {
+        private final OutputStream out;
+
+        TeeInputStream(InputStream in, OutputStream out) {
+            super(in);
+            this.out = out;
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                out.write(b);
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                out.write(b, off, n);
+            }
+            return n;
+        }
+    }
 }
@@ -3,6 +3,7 @@ package ee.sk.digidoc.services;
 import org.apache.xml.security.c14n.Canonicalizer;
 
 import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.metrics.Metrics;
 
 public class DOMCanonicalizationServiceImpl implements CanonicalizationService {
 
@@ -19,13 +20,16 @@ public class DOMCanonicalizationServiceImpl implements CanonicalizationService {
      */
     public byte[] canonicalize(byte[] data, String uri) {
         byte[] result = null;
+        long start = Metrics.start();
         try {
             org.apache.xml.security.Init.init();
             Canonicalizer c14n = Canonicalizer.getInstance("http://www.w3.org/TR/2001/REC-xml-c14n-20010315");
             result = c14n.canonicalize(data);
         } catch (Exception e) {
+            Metrics.recordError(Metrics.C14N, start);
             throw new RuntimeException(e);
         }
+        Metrics.record(Metrics.C14N, start, data.length);
         return result;
     }
 }
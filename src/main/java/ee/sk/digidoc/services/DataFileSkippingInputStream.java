@@ -0,0 +1,218 @@
+package ee.sk.digidoc.services;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Passes a DDOC document through with the content of every &lt;DataFile&gt;
+ * element removed, so that the XML parser only sees
+ * <code>&lt;DataFile ...&gt;&lt;/DataFile&gt;</code>. The content is skipped
+ * by looking for the end tag at byte level, without XML parsing or decoding.
+ * The byte range of each skipped element in the original stream is recorded,
+ * in document order.
+ * <p>
+ * DataFiles of a DDOC are children of the root element and their content is
+ * Base64 or embedded XML, so a DataFile start tag found outside of DataFile
+ * content always starts a DataFile of the document. DataFiles of a DigiDoc
+ * embedded in a DataFile are counted to find the matching end tag.
+ */
+class DataFileSkippingInputStream extends InputStream {
+
+    private static final byte[] START = { '<', 'D', 'a', 't', 'a', 'F', 'i', 'l', 'e' };
+    private static final byte[] END = { '<', '/', 'D', 'a', 't', 'a', 'F', 'i', 'l', 'e' };
+    private static final byte[] CLOSE = { '<', '/', 'D', 'a', 't', 'a', 'F', 'i', 'l', 'e', '>' };
+
+    private static final int TEXT = 0;
+    private static final int START_TAG = 1;
+    private static final int CONTENT = 2;
+
+    private final InputStream in;
+    private final byte[] buf = new byte[64 * 1024];
+    private int pos;
+    private int limit;
+    /** offset of buf[0] in the original stream */
+    private long bufOffset;
+
+    private int state = TEXT;
+    /** quote character of the attribute value being read, 0 if none */
+    private byte quote;
+    private byte last;
+    /** offset of the DataFile element being read */
+    private long elementStart;
+    /** end tag to return instead of the skipped content */
+    private int closePos = CLOSE.length;
+
+    private final List<long[]> ranges = new ArrayList<long[]>();
+
+    DataFileSkippingInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Returns the byte range of a DataFile element
+     *
+     * @param idx
+     *            index of the DataFile in the document
+     * @return offset of the start tag and length of the element including the
+     *         end tag
+     */
+    long[] getRange(int idx) {
+        return ranges.get(idx);
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return (n < 1) ? -1 : (b[0] & 0xff);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = 0;
+        while (n < len) {
+            if (closePos < CLOSE.length) {
+                int k = Math.min(len - n, CLOSE.length - closePos);
+                System.arraycopy(CLOSE, closePos, b, off + n, k);
+                closePos += k;
+                n += k;
+                continue;
+            }
+            if (state == CONTENT) {
+                skipContent();
+                continue;
+            }
+            if (!ensure(1)) {
+                break;
+            }
+            byte c = buf[pos];
+            if (state == TEXT) {
+                if (c == '<' && startsTag(START)) {
+                    elementStart = bufOffset + pos;
+                    state = START_TAG;
+                    quote = 0;
+                }
+            } else if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                if (last == '/') {
+                    ranges.add(new long[] { elementStart, bufOffset + pos + 1 - elementStart });
+                    state = TEXT;
+                } else {
+                    state = CONTENT;
+                }
+            }
+            last = c;
+            b[off + n++] = c;
+            pos++;
+        }
+        return (n == 0 && len > 0) ? -1 : n;
+    }
+
+    /**
+     * Skips DataFile content up to and including the matching end tag
+     */
+    private void skipContent() throws IOException {
+        int depth = 1;
+        while (true) {
+            while (pos < limit && buf[pos] != '<') {
+                pos++;
+            }
+            if (!ensure(1)) {
+                throw new EOFException("Unterminated DataFile element at offset " + elementStart);
+            }
+            if (startsTag(END)) {
+                pos += END.length;
+                skipTag();
+                if (--depth == 0) {
+                    ranges.add(new long[] { elementStart, bufOffset + pos - elementStart });
+                    state = TEXT;
+                    last = '>';
+                    closePos = 0;
+                    return;
+                }
+            } else if (startsTag(START)) {
+                pos += START.length;
+                if (!skipTag()) {
+                    depth++;
+                }
+            } else {
+                pos++;
+            }
+        }
+    }
+
+    /**
+     * Skips the rest of a tag
+     *
+     * @return true if the tag was an empty element tag
+     */
+    private boolean skipTag() throws IOException {
+        byte q = 0;
+        byte prev = 0;
+        while (ensure(1)) {
+            byte c = buf[pos++];
+            if (q != 0) {
+                if (c == q) {
+                    q = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                q = c;
+            } else if (c == '>') {
+                return prev == '/';
+            }
+            prev = c;
+        }
+        throw new EOFException("Unterminated DataFile tag at offset " + elementStart);
+    }
+
+    /**
+     * Checks if a tag name starts at the current position
+     */
+    private boolean startsTag(byte[] tag) throws IOException {
+        if (!ensure(tag.length + 1)) {
+            return false;
+        }
+        for (int i = 1; i < tag.length; i++) {
+            if (buf[pos + i] != tag[i]) {
+                return false;
+            }
+        }
+        byte c = buf[pos + tag.length];
+        return c == '>' || c == '/' || c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    /**
+     * Makes at least n bytes available in the buffer
+     *
+     * @return false if the stream ends first
+     */
+    private boolean ensure(int n) throws IOException {
+        if (limit - pos >= n) {
+            return true;
+        }
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            bufOffset += pos;
+            limit -= pos;
+            pos = 0;
+        }
+        while (limit < n) {
+            int r = in.read(buf, limit, buf.length - limit);
+            if (r < 0) {
+                return false;
+            }
+            limit += r;
+        }
+        return true;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
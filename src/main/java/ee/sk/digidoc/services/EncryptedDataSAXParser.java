@@ -23,6 +23,7 @@ package ee.sk.digidoc.services;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.store.MemoryBudget;
 import ee.sk.utils.Base64Util;
 import ee.sk.utils.DDUtils;
 import ee.sk.xmlenc.EncryptedData;
@@ -58,6 +59,7 @@ public class EncryptedDataSAXParser implements EncryptedDataParser {
     private SignatureService signatureService;
     private String encryptKeyAlg;
     private String secureRandomAlgorithm;
+    private MemoryBudget memoryBudget;
     
     public EncryptedDataSAXParser(
             SignatureService signatureService,
@@ -71,6 +73,17 @@ public class EncryptedDataSAXParser implements EncryptedDataParser {
         this.encryptKeyAlg = encryptKeyAlg;
         this.secureRandomAlgorithm = secureRandomAlgorithm;
     }
+
+    /**
+     * Sets the budget that collected element content is reserved against. If
+     * not set, the shared {@link MemoryBudget#getDefault()} is used.
+     * 
+     * @param memoryBudget
+     *            memory budget
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
     
     
     /**
@@ -83,7 +96,8 @@ public class EncryptedDataSAXParser implements EncryptedDataParser {
      * @see ee.sk.digidoc.services.EncryptedDataParser#readEncryptedData(java.io.InputStream)
      */
     public EncryptedData readEncryptedData(InputStream dencStream) throws DigiDocException {
-        EDSHandler handler = new EDSHandler(signatureService, encryptionAlgorithm, securityProviderName, encryptKeyAlg, secureRandomAlgorithm);
+        EDSHandler handler = new EDSHandler(signatureService, encryptionAlgorithm, securityProviderName, encryptKeyAlg, secureRandomAlgorithm,
+                (memoryBudget != null) ? memoryBudget : MemoryBudget.getDefault());
         // Use the default (non-validating) parser
         SAXParserFactory factory = SAXParserFactory.newInstance();
 
@@ -94,6 +108,8 @@ public class EncryptedDataSAXParser implements EncryptedDataParser {
             throw ex.getDigiDocException();
         } catch (Exception ex) {
             DigiDocException.handleException(ex, DigiDocException.ERR_PARSE_XML);
+        } finally {
+            handler.releaseMemory();
         }
         if (handler.getEncryptedData() == null)
             throw new DigiDocException(DigiDocException.ERR_DIGIDOC_FORMAT,
@@ -124,6 +140,10 @@ public class EncryptedDataSAXParser implements EncryptedDataParser {
 
         private StringBuffer m_sbCollectChars;
 
+        private final MemoryBudget memoryBudget;
+        /** memory reserved for m_sbCollectChars */
+        private MemoryBudget.Lease m_lease;
+
         private final SignatureService signatureService;
         private String encryptionAlgorithm; 
         private String securityProviderName;
@@ -135,16 +155,28 @@ public class EncryptedDataSAXParser implements EncryptedDataParser {
                 String encryptionAlgorithm,
                 String securityProviderName,
                 String encryptKeyAlg,
-                String secureRandomAlgorithm
+                String secureRandomAlgorithm,
+                MemoryBudget memoryBudget
                 ) {
             this.signatureService = signatureService;
             this.encryptionAlgorithm = encryptionAlgorithm;
             this.securityProviderName = securityProviderName;
             this.encryptKeyAlg = encryptKeyAlg;
             this.secureRandomAlgorithm = secureRandomAlgorithm;
+            this.memoryBudget = memoryBudget;
             
             tags = new Stack<String>();
         }
+
+        /**
+         * Returns the memory reserved for collected content
+         */
+        void releaseMemory() {
+            if (m_lease != null) {
+                m_lease.close();
+                m_lease = null;
+            }
+        }
         
         /**
          * Checks if this document is in <EncryptedData> format
@@ -258,7 +290,9 @@ public class EncryptedDataSAXParser implements EncryptedDataParser {
                 }
                 m_sbCollectChars = null; // stop collecting
             }
-
+            if (m_sbCollectChars == null) {
+                releaseMemory();
+            }
         }
 
         
@@ -285,8 +319,11 @@ public class EncryptedDataSAXParser implements EncryptedDataParser {
                         + namespaceURI);
             tags.push(tName);
             if (tName.equals("KeyName") || tName.equals("CarriedKeyName") || tName.equals("X509Certificate")
-                    || tName.equals("CipherValue") || tName.equals("EncryptionProperty"))
+                    || tName.equals("CipherValue") || tName.equals("EncryptionProperty")) {
                 m_sbCollectChars = new StringBuffer();
+                releaseMemory();
+                m_lease = memoryBudget.lease();
+            }
 
             // <EncryptedData>
             if (tName.equals("EncryptedData")) {
@@ -391,8 +428,14 @@ public class EncryptedDataSAXParser implements EncryptedDataParser {
             // just collect the data since it could
             // be on many lines and be processed in many events
             if (s != null) {
-                if (m_sbCollectChars != null)
+                if (m_sbCollectChars != null) {
                     m_sbCollectChars.append(s);
+                    if (m_lease != null && !m_lease.grow(2L * m_sbCollectChars.capacity())) {
+                        releaseMemory();
+                        throw new SAXDigiDocException(DigiDocException.ERR_MEMORY_BUDGET,
+                                "No memory available for element: " + tags.peek());
+                    }
+                }
             }
         }
         
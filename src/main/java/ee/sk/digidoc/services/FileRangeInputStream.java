@@ -0,0 +1,111 @@
+package ee.sk.digidoc.services;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads a byte range of a file, e.g. a DataFile element whose range was
+ * recorded by {@link DataFileSkippingInputStream}. Only a small buffer is
+ * held, so ranges of any length can be streamed. Reading past the end of the
+ * file before the range ends is an error.
+ */
+class FileRangeInputStream extends InputStream {
+
+    private final RandomAccessFile raf;
+    private final byte[] buf = new byte[64 * 1024];
+    private int pos;
+    private int limit;
+    /** bytes of the range not yet read into the buffer */
+    private long remaining;
+
+    /**
+     * Opens a range of a file
+     *
+     * @param fileName
+     *            file to read
+     * @param offset
+     *            offset of the range
+     * @param length
+     *            length of the range
+     * @throws IOException
+     *             if the file cannot be opened
+     */
+    FileRangeInputStream(String fileName, long offset, long length) throws IOException {
+        raf = new RandomAccessFile(fileName, "r");
+        try {
+            raf.seek(offset);
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+        remaining = length;
+    }
+
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long buffered = limit - pos;
+        if (n <= buffered) {
+            pos += (int) n;
+            return n;
+        }
+        long skip = Math.min(n - buffered, remaining);
+        raf.seek(raf.getFilePointer() + skip);
+        remaining -= skip;
+        pos = limit;
+        return buffered + skip;
+    }
+
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, limit - pos + remaining);
+    }
+
+    /**
+     * Reads the next part of the range into the buffer if it is empty
+     *
+     * @return false at the end of the range
+     */
+    private boolean fill() throws IOException {
+        if (pos < limit) {
+            return true;
+        }
+        if (remaining == 0) {
+            return false;
+        }
+        int n = raf.read(buf, 0, (int) Math.min(buf.length, remaining));
+        if (n < 0) {
+            throw new EOFException("File ends " + remaining + " bytes before the end of the range");
+        }
+        pos = 0;
+        limit = n;
+        remaining -= n;
+        return true;
+    }
+
+    public void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,399 @@
+package ee.sk.digidoc.services;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import javax.crypto.Cipher;
+
+import org.apache.log4j.Logger;
+
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.Signature;
+import ee.sk.utils.AsyncUtils;
+
+/**
+ * SignatureService backed by a private key in a Java keystore, typically a
+ * PKCS#12 file of a server side seal. The keystore is the only token, index
+ * 0. The key is unlocked once and initialized signature engines are reused,
+ * so signing costs one RSA operation per digest. Later calls must give the
+ * password the key was unlocked with. Many digests can be signed with
+ * {@link #signBatch(List)}, in parallel if an executor is set.
+ */
+public class KeyStoreSignatureServiceImpl implements SignatureService {
+
+    private static final Logger LOG = Logger.getLogger(KeyStoreSignatureServiceImpl.class);
+
+    /** DER prefixes of the PKCS#1 DigestInfo by digest length */
+    private static final byte[] SHA1_PREFIX = { 0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02, 0x1a,
+            0x05, 0x00, 0x04, 0x14 };
+    private static final byte[] SHA224_PREFIX = digestInfoPrefix(0x04, 28);
+    private static final byte[] SHA256_PREFIX = digestInfoPrefix(0x01, 32);
+    private static final byte[] SHA384_PREFIX = digestInfoPrefix(0x02, 48);
+    private static final byte[] SHA512_PREFIX = digestInfoPrefix(0x03, 64);
+
+    private String keystoreFile;
+    private String keystoreType = "PKCS12";
+    private String keystorePassword;
+    private String keyAlias;
+    private Executor signExecutor;
+    private int batchParallelism = Runtime.getRuntime().availableProcessors();
+
+    /** unlocked key, replaced on reset() */
+    private volatile KeyEntry entry;
+
+    /**
+     * Returns the alias of the signing key
+     *
+     * @return array with one token name
+     */
+    public String[] getAvailableTokenNames() throws DigiDocException {
+        KeyEntry e = entry;
+        return new String[] { ((e != null) ? e : getEntry(null)).alias };
+    }
+
+    /**
+     * Signs a digest with the keystore key
+     *
+     * @param digest
+     *            SHA-1, SHA-224, SHA-256, SHA-384 or SHA-512 digest
+     * @param token
+     *            token index, must be 0
+     * @param pin
+     *            key password, null to use the keystore password. Must be
+     *            the password the key was unlocked with.
+     * @return PKCS#1 v1.5 signature
+     */
+    public byte[] sign(byte[] digest, int token, String pin) throws DigiDocException {
+        checkToken(token);
+        return sign(getEntry(pin), digest);
+    }
+
+    /**
+     * Signs digests with the keystore key unlocked by the keystore password.
+     * If an executor is set the digests are divided between at most
+     * batchParallelism tasks.
+     *
+     * @param digests
+     *            digests to sign
+     * @return signatures in the order of the digests
+     * @throws DigiDocException
+     *             if any signature fails
+     */
+    public List<byte[]> signBatch(final List<byte[]> digests) throws DigiDocException {
+        final KeyEntry e = getEntry(null);
+        int tasks = Math.min(batchParallelism, digests.size());
+        if (signExecutor == null || tasks < 2) {
+            List<byte[]> sigs = new ArrayList<byte[]>(digests.size());
+            for (byte[] digest : digests) {
+                sigs.add(sign(e, digest));
+            }
+            return sigs;
+        }
+        final byte[][] sigs = new byte[digests.size()][];
+        List<CompletableFuture<Void>> parts = new ArrayList<CompletableFuture<Void>>(tasks);
+        int chunk = (digests.size() + tasks - 1) / tasks;
+        for (int from = 0; from < digests.size(); from += chunk) {
+            final int start = from;
+            final int end = Math.min(from + chunk, digests.size());
+            parts.add(AsyncUtils.supplyAsync(new Callable<Void>() {
+                public Void call() throws DigiDocException {
+                    for (int i = start; i < end; i++) {
+                        sigs[i] = sign(e, digests.get(i));
+                    }
+                    return null;
+                }
+            }, signExecutor));
+        }
+        AsyncUtils.join(CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])),
+                DigiDocException.ERR_SIGN);
+        List<byte[]> result = new ArrayList<byte[]>(sigs.length);
+        for (byte[] sig : sigs) {
+            result.add(sig);
+        }
+        return result;
+    }
+
+    /**
+     * Signs prepared signatures, e.g. from SignedDoc.prepareSignature(), and
+     * sets their signature values
+     *
+     * @param sigs
+     *            signatures whose SignedInfo is complete
+     * @param canonicalizationService
+     *            service for canonicalizing the SignedInfo
+     */
+    public void signSignatures(List<Signature> sigs, CanonicalizationService canonicalizationService)
+            throws DigiDocException {
+        List<byte[]> digests = new ArrayList<byte[]>(sigs.size());
+        for (Signature sig : sigs) {
+            digests.add(sig.calculateSignedInfoDigest(canonicalizationService));
+        }
+        List<byte[]> values = signBatch(digests);
+        for (int i = 0; i < sigs.size(); i++) {
+            sigs.get(i).setSignatureValue(values.get(i));
+        }
+    }
+
+    public X509Certificate getCertificate(int token, String pin) throws DigiDocException {
+        checkToken(token);
+        return getEntry(pin).cert;
+    }
+
+    /**
+     * Forgets the unlocked key and drops the signature engines initialized
+     * with it, the keystore is read again on next use
+     */
+    public void reset() throws DigiDocException {
+        KeyEntry e;
+        synchronized (this) {
+            e = entry;
+            entry = null;
+        }
+        if (e != null) {
+            e.release();
+        }
+    }
+
+    /**
+     * Decrypts data encrypted with the public key of the keystore key
+     */
+    public byte[] decrypt(byte[] data, int token, String pin) throws DigiDocException {
+        checkToken(token);
+        try {
+            Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+            cipher.init(Cipher.DECRYPT_MODE, getEntry(pin).key);
+            return cipher.doFinal(data);
+        } catch (Exception ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_XMLENC_DECRYPT);
+        }
+        return null;
+    }
+
+    private byte[] sign(KeyEntry e, byte[] digest) throws DigiDocException {
+        byte[] prefix = prefixFor(digest.length);
+        java.security.Signature sig = e.engines.poll();
+        try {
+            if (sig == null) {
+                sig = java.security.Signature.getInstance("NONEwithRSA");
+                sig.initSign(e.key);
+            }
+            sig.update(prefix);
+            sig.update(digest);
+            byte[] value = sig.sign();
+            e.recycle(sig);
+            return value;
+        } catch (Exception ex) {
+            // the engine may be in an undefined state and is not reused
+            DigiDocException.handleException(ex, DigiDocException.ERR_SIGN);
+        }
+        return null;
+    }
+
+    private static void checkToken(int token) throws DigiDocException {
+        if (token != 0) {
+            throw new DigiDocException(DigiDocException.ERR_READ_TOKEN_INFO, "Invalid token index: " + token, null);
+        }
+    }
+
+    /**
+     * Returns the unlocked key, loading it on first use
+     *
+     * @param pin
+     *            key password, null for the keystore password
+     * @throws DigiDocException
+     *             if the key was unlocked with another password
+     */
+    private KeyEntry getEntry(String pin) throws DigiDocException {
+        String password = (pin != null) ? pin : keystorePassword;
+        KeyEntry e = entry;
+        if (e == null) {
+            synchronized (this) {
+                e = entry;
+                if (e == null) {
+                    e = loadEntry(password);
+                    entry = e;
+                    return e;
+                }
+            }
+        }
+        if (!e.accepts(password)) {
+            throw new DigiDocException(DigiDocException.ERR_TOKEN_LOGIN, "Wrong password for key: " + e.alias, null);
+        }
+        return e;
+    }
+
+    private KeyEntry loadEntry(String password) throws DigiDocException {
+        if (keystoreFile == null) {
+            throw new DigiDocException(DigiDocException.ERR_READ_TOKEN_INFO, "Keystore file is not configured", null);
+        }
+        char[] storePass = (keystorePassword != null) ? keystorePassword.toCharArray() : null;
+        try {
+            KeyStore store = KeyStore.getInstance(keystoreType);
+            InputStream is = new FileInputStream(keystoreFile);
+            try {
+                store.load(is, storePass);
+            } finally {
+                is.close();
+            }
+            String alias = keyAlias;
+            if (alias == null) {
+                Enumeration<String> en = store.aliases();
+                while (alias == null && en.hasMoreElements()) {
+                    String n = en.nextElement();
+                    if (store.isKeyEntry(n)) {
+                        alias = n;
+                    }
+                }
+            }
+            if (alias == null || !store.isKeyEntry(alias)) {
+                throw new DigiDocException(DigiDocException.ERR_READ_TOKEN_INFO, "No private key in keystore: "
+                        + keystoreFile, null);
+            }
+            Key key;
+            try {
+                key = store.getKey(alias, (password != null) ? password.toCharArray() : null);
+            } catch (Exception ex) {
+                throw new DigiDocException(DigiDocException.ERR_TOKEN_LOGIN, "Cannot unlock key: " + alias, ex);
+            }
+            if (!(key instanceof PrivateKey) || !"RSA".equals(key.getAlgorithm())) {
+                throw new DigiDocException(DigiDocException.ERR_READ_TOKEN_INFO, "Not an RSA private key: " + alias,
+                        null);
+            }
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Unlocked signing key: " + alias);
+            }
+            return new KeyEntry(alias, (PrivateKey) key, (X509Certificate) store.getCertificate(alias), password);
+        } catch (DigiDocException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_READ_TOKEN_INFO);
+        }
+        return null;
+    }
+
+    private static byte[] prefixFor(int len) throws DigiDocException {
+        switch (len) {
+        case 20:
+            return SHA1_PREFIX;
+        case 28:
+            return SHA224_PREFIX;
+        case 32:
+            return SHA256_PREFIX;
+        case 48:
+            return SHA384_PREFIX;
+        case 64:
+            return SHA512_PREFIX;
+        default:
+            throw new DigiDocException(DigiDocException.ERR_SIGN, "Unsupported digest length: " + len, null);
+        }
+    }
+
+    /** DigestInfo prefix of a SHA-2 digest, id-sha2 arc 2.16.840.1.101.3.4.2 */
+    private static byte[] digestInfoPrefix(int alg, int len) {
+        return new byte[] { 0x30, (byte) (0x11 + len), 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65,
+                0x03, 0x04, 0x02, (byte) alg, 0x05, 0x00, 0x04, (byte) len };
+    }
+
+    public void setKeystoreFile(String keystoreFile) {
+        this.keystoreFile = keystoreFile;
+    }
+
+    public void setKeystoreType(String keystoreType) {
+        this.keystoreType = keystoreType;
+    }
+
+    public void setKeystorePassword(String keystorePassword) {
+        this.keystorePassword = keystorePassword;
+    }
+
+    public void setKeyAlias(String keyAlias) {
+        this.keyAlias = keyAlias;
+    }
+
+    /**
+     * Sets the executor for signBatch()
+     *
+     * @param signExecutor
+     *            executor or null to sign on the calling thread
+     */
+    public void setSignExecutor(Executor signExecutor) {
+        this.signExecutor = signExecutor;
+    }
+
+    public void setBatchParallelism(int batchParallelism) {
+        this.batchParallelism = batchParallelism;
+    }
+
+    /**
+     * Unlocked key with the signature engines initialized with it. Only a
+     * salted hash of the unlocking password is kept.
+     */
+    private static final class KeyEntry {
+        final String alias;
+        final PrivateKey key;
+        final X509Certificate cert;
+        final ConcurrentLinkedQueue<java.security.Signature> engines =
+                new ConcurrentLinkedQueue<java.security.Signature>();
+        private final byte[] salt = new byte[16];
+        private final byte[] passwordHash;
+        private volatile boolean released;
+
+        KeyEntry(String alias, PrivateKey key, X509Certificate cert, String password) throws DigiDocException {
+            this.alias = alias;
+            this.key = key;
+            this.cert = cert;
+            new SecureRandom().nextBytes(salt);
+            passwordHash = hash(password);
+        }
+
+        boolean accepts(String password) throws DigiDocException {
+            return MessageDigest.isEqual(passwordHash, hash(password));
+        }
+
+        private byte[] hash(String password) throws DigiDocException {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                md.update(salt);
+                // distinguishes no password from an empty one
+                if (password != null) {
+                    md.update((byte) 1);
+                    md.update(password.getBytes("UTF-8"));
+                }
+                return md.digest();
+            } catch (Exception ex) {
+                DigiDocException.handleException(ex, DigiDocException.ERR_TOKEN_LOGIN);
+            }
+            return null;
+        }
+
+        /**
+         * Returns an engine for reuse unless the key has been released
+         */
+        void recycle(java.security.Signature sig) {
+            if (!released) {
+                engines.offer(sig);
+                if (released) {
+                    engines.clear();
+                }
+            }
+        }
+
+        void release() {
+            released = true;
+            engines.clear();
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package ee.sk.digidoc.services;
 
 import java.security.cert.X509Certificate;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import ee.sk.digidoc.DigiDocException;
 import ee.sk.digidoc.Notary;
 import ee.sk.digidoc.Signature;
+import ee.sk.utils.AsyncUtils;
 
 public interface NotaryService {
 
@@ -26,6 +29,30 @@ public interface NotaryService {
      */
     Notary getConfirmation(Signature sig, X509Certificate signersCert, X509Certificate caCert) throws DigiDocException;
 
+    /**
+     * Asynchronous variant of
+     * {@link #getConfirmation(Signature, X509Certificate, X509Certificate)}.
+     * The OCSP exchange does not hold a thread while waiting for the
+     * responder; request signing and response verification run on the given
+     * executor. The default implementation runs the synchronous call on the
+     * executor.
+     * 
+     * @param sig
+     *            Signature object
+     * @param signersCert
+     *            signature owners cert
+     * @param caCert
+     *            CA cert for this signer
+     * @param executor
+     *            executor for the CPU bound steps
+     * @returns future completed with the Notary object or with a
+     *          DigiDocException
+     */
+    default CompletableFuture<Notary> getConfirmationAsync(Signature sig, X509Certificate signersCert,
+            X509Certificate caCert, Executor executor) {
+        return AsyncUtils.supplyAsync(() -> getConfirmation(sig, signersCert, caCert), executor);
+    }
+
     /**
      * Check the response and parse it's data
      * 
@@ -57,4 +84,20 @@ public interface NotaryService {
      */
     void checkCertificate(X509Certificate cert) throws DigiDocException;
 
+    /**
+     * Asynchronous variant of {@link #checkCertificate(X509Certificate)}. The
+     * default implementation runs the synchronous call on the executor.
+     * 
+     * @param cert certificate to verify
+     * @param executor executor for the CPU bound steps and CRL checks
+     * @return future completed normally if the certificate is valid, with a
+     *         DigiDocException otherwise
+     */
+    default CompletableFuture<Void> checkCertificateAsync(X509Certificate cert, Executor executor) {
+        return AsyncUtils.supplyAsync(() -> {
+            checkCertificate(cert);
+            return null;
+        }, executor);
+    }
+
 }
@@ -0,0 +1,650 @@
+package ee.sk.digidoc.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.metrics.Metrics;
+import ee.sk.utils.AsyncUtils;
+
+/**
+ * Set of OCSP responder endpoints used by BouncyCastleNotaryServiceImpl.
+ * <p>
+ * Responders are tried in order of their observed latency. A responder that
+ * fails <code>failureThreshold</code> times in a row is taken out of rotation
+ * (circuit open) for <code>openCircuitMillis</code>, after which a single trial
+ * request decides whether it comes back. Only transport errors (connection,
+ * timeout, HTTP status) count as failures of the responder. A response the
+ * caller's handler rejects makes the pool try the next responder but does not
+ * affect the circuit.
+ * <p>
+ * With hedging enabled a second responder is asked if the first one has not
+ * answered within its 95th latency percentile (but not sooner than
+ * <code>hedgeDelay</code>); the first response that passes the handler wins
+ * and the connections of the others are closed. Hedged requests run on at
+ * most <code>maxConcurrentRequests</code> daemon threads without a queue. When
+ * all threads are busy no hedged request is sent, and a first request is
+ * sent on the caller's thread.
+ * <p>
+ * {@link #sendAsync} applies the same rules without blocking: http responders
+ * are contacted over non-blocking sockets, and only the response handlers
+ * (and requests to https responders) run on the caller's executor.
+ */
+public class OCSPResponderPool {
+
+    private static final Logger LOG = Logger.getLogger(OCSPResponderPool.class);
+
+    /** number of latency samples kept per responder */
+    private static final int LATENCY_SAMPLES = 64;
+    /** samples needed before the percentile is trusted */
+    private static final int MIN_SAMPLES = 8;
+
+    /**
+     * Checks and converts a raw response. Throwing an exception rejects the
+     * response and the next responder is tried. The responder did answer, so
+     * a rejection does not count as its failure and does not open its circuit.
+     */
+    public interface ResponseHandler<T> {
+        T handle(byte[] response) throws DigiDocException;
+    }
+
+    private final List<Responder> responders;
+
+    private int connectTimeout = 10000;
+    private int readTimeout = 30000;
+    private int failureThreshold = 3;
+    private long openCircuitMillis = 30000;
+    private boolean hedging = false;
+    private long hedgeDelay = 500;
+    private int maxConcurrentRequests = 8;
+
+    private volatile ThreadPoolExecutor executor;
+
+    /**
+     * Creates a pool of the given responder URLs
+     *
+     * @param urls
+     *            responder URLs, at least one
+     */
+    public OCSPResponderPool(List<String> urls) {
+        if (urls == null || urls.isEmpty()) {
+            throw new IllegalArgumentException("At least one OCSP responder URL is required");
+        }
+        List<Responder> list = new ArrayList<Responder>(urls.size());
+        for (String url : urls) {
+            list.add(new Responder(url));
+        }
+        responders = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Creates a pool with a single responder
+     *
+     * @param url
+     *            responder URL
+     */
+    public OCSPResponderPool(String url) {
+        this(Arrays.asList(url));
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public void setOpenCircuitMillis(long openCircuitMillis) {
+        this.openCircuitMillis = openCircuitMillis;
+    }
+
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * Sets the minimum delay before a hedged request is sent. Also used as
+     * the delay while a responder has too few latency samples.
+     */
+    public void setHedgeDelay(long hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Returns the responder URLs of this pool
+     *
+     * @return responder URLs
+     */
+    public List<String> getUrls() {
+        List<String> urls = new ArrayList<String>(responders.size());
+        for (Responder r : responders) {
+            urls.add(r.url);
+        }
+        return urls;
+    }
+
+    /**
+     * Checks if the circuit of a responder is currently open
+     *
+     * @param url
+     *            responder URL
+     * @return true if the responder is out of rotation
+     */
+    public boolean isCircuitOpen(String url) {
+        for (Responder r : responders) {
+            if (r.url.equals(url)) {
+                return r.isOpen(System.currentTimeMillis());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends the request to the responders and returns the first response
+     * accepted by the handler
+     *
+     * @param request
+     *            DER encoded OCSP request
+     * @param handler
+     *            checks and converts the response
+     * @return result of the handler
+     * @throws DigiDocException
+     *             if no responder gave an acceptable response
+     */
+    public <T> T send(byte[] request, ResponseHandler<T> handler) throws DigiDocException {
+        List<Responder> order = candidates();
+        try {
+            if (hedging && order.size() > 1) {
+                return sendHedged(order, request, handler);
+            }
+            Exception last = null;
+            for (Responder r : order) {
+                try {
+                    return r.exchange(request, handler, new Call());
+                } catch (Exception ex) {
+                    last = ex;
+                }
+            }
+            throw failure(last);
+        } finally {
+            // give back trial slots of responders that were not needed
+            for (Responder r : order) {
+                r.release();
+            }
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #send}. Failover and hedging follow the
+     * same rules but no thread waits for the responders.
+     *
+     * @param request
+     *            DER encoded OCSP request
+     * @param handler
+     *            checks and converts the response, called on the executor
+     * @param executor
+     *            executor for the handler and for blocking transports
+     * @return future completed with the result of the handler, or with a
+     *         DigiDocException if no responder gave an acceptable response
+     */
+    public <T> CompletableFuture<T> sendAsync(byte[] request, ResponseHandler<T> handler, Executor executor) {
+        final List<Responder> order = candidates();
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        final AsyncExchange<T> exchange = new AsyncExchange<T>(order, request, handler, executor, result);
+        result.whenComplete((v, ex) -> {
+            exchange.cancelAll();
+            // give back trial slots of responders that were not needed
+            for (Responder r : order) {
+                r.release();
+            }
+        });
+        exchange.launch();
+        return result;
+    }
+
+    /**
+     * Releases the hedging threads
+     */
+    public void shutdown() {
+        ThreadPoolExecutor ex = executor;
+        if (ex != null) {
+            ex.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private <T> T sendHedged(List<Responder> order, final byte[] request, final ResponseHandler<T> handler)
+            throws DigiDocException {
+        CompletionService<T> cs = new ExecutorCompletionService<T>(executor());
+        List<Future<T>> futures = new ArrayList<Future<T>>(order.size());
+        List<Call> calls = new ArrayList<Call>(order.size());
+        Exception last = null;
+        int next = 0, pending = 0;
+        try {
+            while (next < order.size() || pending > 0) {
+                long delay = 0;
+                if (next < order.size()) {
+                    final Responder r = order.get(next);
+                    final Call call = new Call();
+                    try {
+                        futures.add(cs.submit(new Callable<T>() {
+                            public T call() throws Exception {
+                                return r.exchange(request, handler, call);
+                            }
+                        }));
+                        calls.add(call);
+                        next++;
+                        pending++;
+                        delay = (next < order.size()) ? Math.max(hedgeDelay, r.percentile(0.95)) : 0;
+                    } catch (RejectedExecutionException ex) {
+                        if (pending == 0) {
+                            // all threads busy with other callers, do it here
+                            next++;
+                            try {
+                                return r.exchange(request, handler, call);
+                            } catch (Exception e) {
+                                last = e;
+                            }
+                            continue;
+                        }
+                        // no thread for a hedged request, wait for the running one
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("No thread for a hedged OCSP request");
+                        }
+                    }
+                }
+                Future<T> done = (delay > 0) ? cs.poll(delay, TimeUnit.MILLISECONDS) : cs.take();
+                if (done == null) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("No OCSP response in " + delay + " ms, sending hedged request");
+                    }
+                    continue;
+                }
+                pending--;
+                try {
+                    return done.get();
+                } catch (ExecutionException ex) {
+                    last = (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            last = ex;
+        } finally {
+            // blocking reads do not react to interrupts, close the connections
+            for (Call call : calls) {
+                call.cancel();
+            }
+            for (Future<T> f : futures) {
+                f.cancel(true);
+            }
+        }
+        throw failure(last);
+    }
+
+    /**
+     * Returns the responders to try, fastest first. If every circuit is open
+     * the one that opened first is tried anyway.
+     */
+    private List<Responder> candidates() {
+        long now = System.currentTimeMillis();
+        List<Responder> list = new ArrayList<Responder>(responders.size());
+        Responder oldest = null;
+        for (Responder r : responders) {
+            if (r.tryAcquire(now)) {
+                list.add(r);
+            } else if (oldest == null || r.openUntil < oldest.openUntil) {
+                oldest = r;
+            }
+        }
+        if (list.isEmpty()) {
+            list.add(oldest);
+        }
+        // insertion sort on a snapshot, latencies change while we sort
+        int n = list.size();
+        double[] keys = new double[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = list.get(i).avgLatency;
+        }
+        for (int i = 1; i < n; i++) {
+            for (int j = i; j > 0 && keys[j] < keys[j - 1]; j--) {
+                double k = keys[j];
+                keys[j] = keys[j - 1];
+                keys[j - 1] = k;
+                list.set(j - 1, list.set(j, list.get(j - 1)));
+            }
+        }
+        return list;
+    }
+
+    private ThreadPoolExecutor executor() {
+        ThreadPoolExecutor ex = executor;
+        if (ex == null) {
+            synchronized (this) {
+                ex = executor;
+                if (ex == null) {
+                    ex = new ThreadPoolExecutor(maxConcurrentRequests, maxConcurrentRequests, 60, TimeUnit.SECONDS,
+                            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                                public Thread newThread(Runnable r) {
+                                    Thread t = new Thread(r, "ocsp-responder");
+                                    t.setDaemon(true);
+                                    return t;
+                                }
+                            });
+                    ex.allowCoreThreadTimeOut(true);
+                    executor = ex;
+                }
+            }
+        }
+        return ex;
+    }
+
+    private static DigiDocException failure(Throwable last) {
+        last = AsyncUtils.unwrap(last);
+        if (last instanceof DigiDocException) {
+            return (DigiDocException) last;
+        }
+        return new DigiDocException(DigiDocException.ERR_OCSP_REQ_SEND, "No OCSP responder available", last);
+    }
+
+    /**
+     * State of one asynchronous send: the responders tried so far and the
+     * attempts still running
+     */
+    private class AsyncExchange<T> {
+        private final List<Responder> order;
+        private final byte[] request;
+        private final ResponseHandler<T> handler;
+        private final Executor executor;
+        private final CompletableFuture<T> result;
+        private final List<CompletableFuture<T>> attempts = new ArrayList<CompletableFuture<T>>();
+        private int next;
+        private int pending;
+        private Throwable last;
+
+        AsyncExchange(List<Responder> order, byte[] request, ResponseHandler<T> handler, Executor executor,
+                CompletableFuture<T> result) {
+            this.order = order;
+            this.request = request;
+            this.handler = handler;
+            this.executor = executor;
+            this.result = result;
+        }
+
+        synchronized void launch() {
+            if (result.isDone() || next >= order.size()) {
+                return;
+            }
+            Responder r = order.get(next++);
+            pending++;
+            CompletableFuture<T> f = r.exchangeAsync(request, handler, executor);
+            attempts.add(f);
+            f.whenComplete((v, ex) -> completed(v, ex));
+            if (hedging && next < order.size()) {
+                final int expected = next;
+                long delay = Math.max(hedgeDelay, r.percentile(0.95));
+                AsyncUtils.timer().schedule(() -> hedge(expected, delay), delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void hedge(int expected, long delay) {
+            // nothing to do if an answer came or a failure already moved on
+            if (!result.isDone() && next == expected) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("No OCSP response in " + delay + " ms, sending hedged request");
+                }
+                launch();
+            }
+        }
+
+        private synchronized void completed(T value, Throwable ex) {
+            pending--;
+            if (ex == null) {
+                result.complete(value);
+                return;
+            }
+            last = ex;
+            if (next < order.size()) {
+                launch();
+            } else if (pending == 0) {
+                result.completeExceptionally(failure(last));
+            }
+        }
+
+        synchronized void cancelAll() {
+            for (CompletableFuture<T> f : attempts) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * One request to a responder. Blocking HttpURLConnection I/O does not
+     * react to interrupts, so cancelling a call disconnects its connection.
+     */
+    private static final class Call {
+        private volatile URLConnection con;
+        private volatile boolean cancelled;
+
+        void connected(URLConnection c) {
+            con = c;
+            if (cancelled) {
+                disconnect(c);
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            URLConnection c = con;
+            if (c != null) {
+                disconnect(c);
+            }
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        private static void disconnect(URLConnection c) {
+            if (c instanceof HttpURLConnection) {
+                ((HttpURLConnection) c).disconnect();
+            }
+        }
+    }
+
+    /**
+     * Single responder endpoint and its health data
+     */
+    private class Responder {
+        final String url;
+        private final long[] latencies = new long[LATENCY_SAMPLES];
+        private int nSamples;
+        private int consecutiveFailures;
+        private boolean trialRunning;
+        volatile long openUntil;
+        volatile double avgLatency;
+
+        Responder(String url) {
+            this.url = url;
+        }
+
+        /**
+         * Sends the request and passes the response to the handler. Only
+         * transport errors count as failures of this responder.
+         */
+        <T> T exchange(byte[] request, ResponseHandler<T> handler, Call call) throws Exception {
+            long start = System.currentTimeMillis();
+            long mStart = Metrics.start();
+            byte[] response = null;
+            try {
+                response = post(request, call);
+            } catch (Exception ex) {
+                Metrics.recordError(Metrics.OCSP_ROUNDTRIP, mStart);
+                if (call.isCancelled() || Thread.currentThread().isInterrupted()) {
+                    release(); // cancelled by a faster responder
+                } else {
+                    failure(ex);
+                }
+                throw ex;
+            }
+            Metrics.record(Metrics.OCSP_ROUNDTRIP, mStart, response.length);
+            success(System.currentTimeMillis() - start);
+            return handler.handle(response);
+        }
+
+        <T> CompletableFuture<T> exchangeAsync(final byte[] request, final ResponseHandler<T> handler,
+                Executor executor) {
+            final long start = System.currentTimeMillis();
+            final long mStart = Metrics.start();
+            final Call call = new Call();
+            final CompletableFuture<byte[]> response;
+            if (AsyncHttpPost.supports(url)) {
+                response = AsyncHttpPost.post(url, "application/ocsp-request", request, connectTimeout, readTimeout,
+                        executor);
+            } else {
+                response = AsyncUtils.supplyAsync(() -> post(request, call), executor);
+            }
+            response.whenComplete((data, ex) -> {
+                if (data != null) {
+                    Metrics.record(Metrics.OCSP_ROUNDTRIP, mStart, data.length);
+                    success(System.currentTimeMillis() - start);
+                } else if (response.isCancelled() || call.isCancelled()) {
+                    release(); // cancelled by a faster responder
+                } else {
+                    Metrics.recordError(Metrics.OCSP_ROUNDTRIP, mStart);
+                    failure(AsyncUtils.unwrap(ex));
+                }
+            });
+            final CompletableFuture<T> result = response.thenApplyAsync(
+                    data -> AsyncUtils.call(() -> handler.handle(data)), executor);
+            result.whenComplete((v, ex) -> {
+                if (result.isCancelled()) {
+                    call.cancel();
+                    response.cancel(true);
+                }
+            });
+            return result;
+        }
+
+        private byte[] post(byte[] request, Call call) throws Exception {
+            URLConnection con = new URL(url).openConnection();
+            call.connected(con);
+            if (call.isCancelled()) {
+                throw new InterruptedIOException("OCSP request to " + url + " cancelled");
+            }
+            con.setAllowUserInteraction(false);
+            con.setUseCaches(false);
+            con.setDoOutput(true);
+            con.setDoInput(true);
+            con.setConnectTimeout(connectTimeout);
+            con.setReadTimeout(readTimeout);
+            con.setRequestProperty("Content-Type", "application/ocsp-request");
+            OutputStream os = con.getOutputStream();
+            try {
+                os.write(request);
+            } finally {
+                os.close();
+            }
+            if (con instanceof HttpURLConnection) {
+                int code = ((HttpURLConnection) con).getResponseCode();
+                if (code != HttpURLConnection.HTTP_OK) {
+                    throw new DigiDocException(DigiDocException.ERR_OCSP_REQ_SEND, "OCSP responder " + url
+                            + " returned HTTP " + code, null);
+                }
+            }
+            InputStream is = con.getInputStream();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(con.getContentLength(), 512));
+            try {
+                byte[] buf = new byte[4096];
+                int n;
+                while ((n = is.read(buf)) > 0) {
+                    bos.write(buf, 0, n);
+                }
+            } finally {
+                is.close();
+            }
+            return bos.toByteArray();
+        }
+
+        synchronized boolean isOpen(long now) {
+            return consecutiveFailures >= failureThreshold && (now < openUntil || trialRunning);
+        }
+
+        /** false if the circuit is open; lets a single trial request through once it expires */
+        synchronized boolean tryAcquire(long now) {
+            if (consecutiveFailures < failureThreshold) {
+                return true;
+            }
+            if (now < openUntil || trialRunning) {
+                return false;
+            }
+            trialRunning = true;
+            return true;
+        }
+
+        synchronized void release() {
+            trialRunning = false;
+        }
+
+        synchronized void success(long latency) {
+            latencies[nSamples % LATENCY_SAMPLES] = latency;
+            nSamples++;
+            avgLatency = (nSamples == 1) ? latency : avgLatency * 0.8 + latency * 0.2;
+            consecutiveFailures = 0;
+            trialRunning = false;
+        }
+
+        synchronized void failure(Throwable ex) {
+            consecutiveFailures++;
+            trialRunning = false;
+            if (consecutiveFailures >= failureThreshold) {
+                openUntil = System.currentTimeMillis() + openCircuitMillis;
+                // an open responder goes to the end of the list once it is retried
+                avgLatency = Math.max(avgLatency, openCircuitMillis);
+            }
+            LOG.warn("OCSP responder " + url + " failed (" + consecutiveFailures + " in a row): " + ex);
+        }
+
+        synchronized long percentile(double p) {
+            int n = Math.min(nSamples, LATENCY_SAMPLES);
+            if (n < MIN_SAMPLES) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, n);
+            Arrays.sort(sorted);
+            return sorted[Math.min(n - 1, (int) Math.ceil(p * n) - 1)];
+        }
+    }
+}
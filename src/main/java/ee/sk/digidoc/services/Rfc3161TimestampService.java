@@ -0,0 +1,323 @@
+package ee.sk.digidoc.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.cmp.PKIStatus;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampResponse;
+
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.TimestampInfo;
+import ee.sk.digidoc.metrics.Metrics;
+import ee.sk.digidoc.tsp.MerkleTree;
+
+/**
+ * Timestamp service that also obtains timestamps from an RFC 3161 TSA over
+ * HTTP. In aggregation mode the hashes passed to {@link #stamp(TimestampInfo)}
+ * during a short window are collected into a Merkle tree and only its root is
+ * sent to the TSA. Each TimestampInfo then gets the shared token and its own
+ * inclusion proof, which {@link BouncyCastleTimestampService} checks when
+ * verifying the timestamp.
+ */
+public class Rfc3161TimestampService extends BouncyCastleTimestampService {
+
+    private static final Logger LOG = Logger.getLogger(Rfc3161TimestampService.class);
+
+    private String tsaUrl;
+    private String policy;
+    private boolean certReq = true;
+    private int connectTimeout = 10000;
+    private int readTimeout = 30000;
+    /** aggregation window in milliseconds, 0 disables aggregation */
+    private long aggregationWindow;
+    private int maxBatchSize = 1024;
+
+    private final SecureRandom random = new SecureRandom();
+    /** batch collecting hashes, guarded by this */
+    private Batch current;
+
+    /**
+     * Obtains a timestamp for the hash of a TimestampInfo and stores the
+     * response, and in aggregation mode the inclusion proof, in it. In
+     * aggregation mode the call returns when the batch has been stamped.
+     *
+     * @param ts
+     *            timestamp with its hash set
+     * @throws DigiDocException
+     *             if the TSA cannot be reached or refuses the request
+     */
+    public void stamp(TimestampInfo ts) throws DigiDocException {
+        byte[] hash = ts.getHash();
+        if (hash == null) {
+            throw new DigiDocException(DigiDocException.ERR_TIMESTAMP_RESP, "Timestamp hash is not set: "
+                    + ts.getId(), null);
+        }
+        if (aggregationWindow <= 0) {
+            ts.setTimeStampResponse(requestTimestamp(hash));
+            ts.setAggregationProof(null);
+            return;
+        }
+        Batch b;
+        int index;
+        boolean leader = false;
+        synchronized (this) {
+            b = current;
+            if (b == null) {
+                b = new Batch();
+                current = b;
+                leader = true;
+            }
+            index = b.add(hash);
+            if (b.size() >= maxBatchSize) {
+                current = null;
+                b.close();
+            }
+        }
+        if (leader) {
+            // the first caller waits for the window and stamps the batch
+            b.awaitClose(aggregationWindow);
+            synchronized (this) {
+                if (current == b) {
+                    current = null;
+                }
+            }
+            stampBatch(b);
+        }
+        b.await();
+        ts.setTimeStampResponse(b.response);
+        ts.setAggregationProof(b.tree.getProof(index).getEncoded());
+    }
+
+    private void stampBatch(Batch b) {
+        List<byte[]> hashes = b.getHashes();
+        try {
+            MerkleTree tree = new MerkleTree(hashes);
+            TimeStampResponse resp = requestTimestamp(tree.getRoot());
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Timestamped batch of " + hashes.size() + " hashes");
+            }
+            b.complete(tree, resp, null);
+        } catch (DigiDocException ex) {
+            b.complete(null, null, ex);
+        } catch (RuntimeException ex) {
+            b.complete(null, null, new DigiDocException(DigiDocException.ERR_TIMESTAMP_RESP, ex.toString(), ex));
+        }
+    }
+
+    /**
+     * Requests a timestamp for a digest from the TSA
+     *
+     * @param digest
+     *            SHA-1, SHA-224, SHA-256, SHA-384 or SHA-512 digest
+     * @return granted response, checked against the request
+     * @throws DigiDocException
+     *             if the TSA cannot be reached or refuses the request
+     */
+    public TimeStampResponse requestTimestamp(byte[] digest) throws DigiDocException {
+        if (tsaUrl == null) {
+            throw new DigiDocException(DigiDocException.ERR_TIMESTAMP_RESP, "TSA URL is not configured", null);
+        }
+        TimeStampRequestGenerator gen = new TimeStampRequestGenerator();
+        gen.setCertReq(certReq);
+        if (policy != null) {
+            gen.setReqPolicy(policy);
+        }
+        BigInteger nonce;
+        synchronized (random) {
+            nonce = new BigInteger(64, random);
+        }
+        TimeStampRequest req = gen.generate(digestOid(digest.length), digest, nonce);
+        TimeStampResponse resp = null;
+        long start = Metrics.start();
+        try {
+            byte[] data = post(req.getEncoded());
+            resp = new TimeStampResponse(data);
+            if (resp.getStatus() != PKIStatus.GRANTED && resp.getStatus() != PKIStatus.GRANTED_WITH_MODS) {
+                throw new DigiDocException(DigiDocException.ERR_TIMESTAMP_RESP, "TSA refused request, status: "
+                        + resp.getStatus() + " " + resp.getStatusString(), null);
+            }
+            resp.validate(req);
+            Metrics.record(Metrics.TSA_REQUEST, start, data.length);
+        } catch (DigiDocException ex) {
+            Metrics.recordError(Metrics.TSA_REQUEST, start);
+            LOG.error("Timestamp request to " + tsaUrl + " failed: " + ex);
+            throw ex;
+        } catch (Exception ex) {
+            Metrics.recordError(Metrics.TSA_REQUEST, start);
+            LOG.error("Timestamp request to " + tsaUrl + " failed: " + ex);
+            DigiDocException.handleException(ex, DigiDocException.ERR_TIMESTAMP_RESP);
+        }
+        return resp;
+    }
+
+    private byte[] post(byte[] req) throws Exception {
+        HttpURLConnection con = (HttpURLConnection) new URL(tsaUrl).openConnection();
+        con.setConnectTimeout(connectTimeout);
+        con.setReadTimeout(readTimeout);
+        con.setRequestMethod("POST");
+        con.setDoOutput(true);
+        con.setRequestProperty("Content-Type", "application/timestamp-query");
+        OutputStream os = con.getOutputStream();
+        try {
+            os.write(req);
+        } finally {
+            os.close();
+        }
+        int code = con.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK) {
+            con.disconnect();
+            throw new DigiDocException(DigiDocException.ERR_TIMESTAMP_RESP, "TSA returned HTTP status: " + code, null);
+        }
+        InputStream is = con.getInputStream();
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                bos.write(buf, 0, n);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static String digestOid(int len) throws DigiDocException {
+        switch (len) {
+        case 20:
+            return TSPAlgorithms.SHA1;
+        case 28:
+            return TSPAlgorithms.SHA224;
+        case 32:
+            return TSPAlgorithms.SHA256;
+        case 48:
+            return TSPAlgorithms.SHA384;
+        case 64:
+            return TSPAlgorithms.SHA512;
+        default:
+            throw new DigiDocException(DigiDocException.ERR_TIMESTAMP_RESP, "Unsupported digest length: " + len,
+                    null);
+        }
+    }
+
+    public void setTsaUrl(String tsaUrl) {
+        this.tsaUrl = tsaUrl;
+    }
+
+    public void setPolicy(String policy) {
+        this.policy = policy;
+    }
+
+    public void setCertReq(boolean certReq) {
+        this.certReq = certReq;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Enables aggregation mode
+     *
+     * @param aggregationWindow
+     *            time in milliseconds hashes are collected for one TSA
+     *            request, 0 requests a timestamp for each hash
+     */
+    public void setAggregationWindow(long aggregationWindow) {
+        this.aggregationWindow = aggregationWindow;
+    }
+
+    /**
+     * Sets the number of hashes after which a batch is stamped without
+     * waiting for the rest of the window
+     *
+     * @param maxBatchSize
+     *            max hashes per TSA request
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Hashes collected for one TSA request and the outcome of the request
+     */
+    private static final class Batch {
+        private final List<byte[]> hashes = new ArrayList<byte[]>();
+        private boolean closed;
+        private boolean done;
+        MerkleTree tree;
+        TimeStampResponse response;
+        private DigiDocException error;
+
+        synchronized int add(byte[] hash) {
+            hashes.add(hash);
+            return hashes.size() - 1;
+        }
+
+        synchronized int size() {
+            return hashes.size();
+        }
+
+        synchronized List<byte[]> getHashes() {
+            return new ArrayList<byte[]>(hashes);
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        /** waits until the batch is full or the window has passed */
+        synchronized void awaitClose(long window) {
+            long end = System.currentTimeMillis() + window;
+            long left = window;
+            while (!closed && left > 0) {
+                try {
+                    wait(left);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                left = end - System.currentTimeMillis();
+            }
+            closed = true;
+        }
+
+        synchronized void complete(MerkleTree tree, TimeStampResponse response, DigiDocException error) {
+            this.tree = tree;
+            this.response = response;
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void await() throws DigiDocException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new DigiDocException(DigiDocException.ERR_TIMESTAMP_RESP, "Interrupted", ex);
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
@@ -1,22 +1,23 @@
 package ee.sk.digidoc.services;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Stack;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 import org.apache.log4j.Logger;
-import org.bouncycastle.tsp.TSPException;
-import org.bouncycastle.tsp.TimeStampResponse;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
@@ -40,6 +41,10 @@ import ee.sk.digidoc.SignedInfo;
 import ee.sk.digidoc.SignedProperties;
 import ee.sk.digidoc.TimestampInfo;
 import ee.sk.digidoc.UnsignedProperties;
+import ee.sk.digidoc.metrics.Metrics;
+import ee.sk.digidoc.store.BodySink;
+import ee.sk.digidoc.store.BodyStore;
+import ee.sk.digidoc.store.MemoryBudget;
 import ee.sk.utils.Base64Util;
 import ee.sk.utils.ConvertUtils;
 import ee.sk.utils.DDUtils;
@@ -48,9 +53,19 @@ public class SAXDigidocServiceImpl implements DigiDocService {
 
     private static final Logger LOG = Logger.getLogger(SAXDigidocServiceImpl.class);
 
+    /**
+     * upper limit for the initial buffer of a DataFile, the declared Size
+     * attribute is not trusted beyond this
+     */
+    private static final int MAX_PREALLOCATED_CHARS = 64 * 1024;
+
     private final CanonicalizationService canonicalizationService;
     
     private final NotaryService notaryService;
+
+    private BodyStore bodyStore;
+
+    private MemoryBudget memoryBudget;
     
     public SAXDigidocServiceImpl(
             CanonicalizationService canonicalizationService,
@@ -58,17 +73,170 @@ public class SAXDigidocServiceImpl implements DigiDocService {
         this.canonicalizationService = canonicalizationService;
         this.notaryService = notaryService;
     }
+
+    /**
+     * Sets the store for DataFile content exceeding the heap limit of the
+     * store. If not set, the default store is used.
+     * 
+     * @param bodyStore
+     *            body store for the DataFiles read by this service
+     */
+    public void setBodyStore(BodyStore bodyStore) {
+        this.bodyStore = bodyStore;
+    }
+
+    /**
+     * Sets the budget that DataFile content buffered in memory is reserved
+     * against. If not set, the shared {@link MemoryBudget#getDefault()} is
+     * used.
+     * 
+     * @param memoryBudget
+     *            memory budget
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    private MemoryBudget getMemoryBudget() {
+        return (memoryBudget != null) ? memoryBudget : MemoryBudget.getDefault();
+    }
     
     public SignedDoc readSignedDoc(InputStream digiDocStream) throws DigiDocException {
+        return parse(digiDocStream, null, 0);
+    }
+
+    public SignedDoc readSignedDoc(String fileName) throws DigiDocException {
+        InputStream is = openFile(fileName);
+        try {
+            return parse(is, null, new File(fileName).length());
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
+    /**
+     * Reads a DDOC without the DataFile content. Signatures, certificates
+     * and OCSP responses are read as usual, but the content of each
+     * &lt;DataFile&gt; is skipped at byte level without parsing, caching or
+     * digesting it. The DataFiles only get their attributes, including the
+     * declared size and digest, and the byte range of their element, see
+     * {@link DataFile#getSourceOffset()}. Their digests can be calculated
+     * later with {@link #calculateDataFileDigest(String, SignedDoc, DataFile)}.
+     * 
+     * @param fileName
+     *            DDOC file
+     * @return document with DataFiles whose content was skipped
+     * @throws DigiDocException
+     *             for read and parse errors
+     */
+    public SignedDoc readSignatures(String fileName) throws DigiDocException {
+        InputStream is = openFile(fileName);
+        try {
+            DataFileSkippingInputStream skipper = new DataFileSkippingInputStream(is);
+            return parse(skipper, skipper, new File(fileName).length());
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
+    /**
+     * Reads a DDOC from a stream without the DataFile content, see
+     * {@link #readSignatures(String)}
+     * 
+     * @param digiDocStream
+     *            DDOC data, positioned at its beginning for the byte ranges
+     *            to be useful
+     * @return document with DataFiles whose content was skipped
+     * @throws DigiDocException
+     *             for read and parse errors
+     */
+    public SignedDoc readSignatures(InputStream digiDocStream) throws DigiDocException {
+        DataFileSkippingInputStream skipper = new DataFileSkippingInputStream(digiDocStream);
+        return parse(skipper, skipper, 0);
+    }
+
+    /**
+     * Calculates the digest of a DataFile read by readSignatures() from its
+     * byte range in the file. The element is parsed as in readSignedDoc() and
+     * its content is discarded.
+     * 
+     * @param fileName
+     *            file the document was read from
+     * @param doc
+     *            document read from the file
+     * @param df
+     *            DataFile of the document
+     * @return digest, also set as the digest of the DataFile
+     * @throws DigiDocException
+     *             if the range cannot be read or parsed
+     */
+    public byte[] calculateDataFileDigest(String fileName, SignedDoc doc, DataFile df) throws DigiDocException {
+        if (df.getSourceOffset() < 0) {
+            throw new DigiDocException(DigiDocException.ERR_READ_FILE, "Source range of DataFile " + df.getId()
+                    + " is not known", null);
+        }
+        // the digest only depends on the element, parse it in a minimal document
+        byte[] head = ConvertUtils.str2data("<SignedDoc format=\"" + doc.getFormat() + "\" version=\""
+                + doc.getVersion() + "\">");
+        byte[] tail = ConvertUtils.str2data("</SignedDoc>");
+        InputStream element = null;
+        try {
+            element = new FileRangeInputStream(fileName, df.getSourceOffset(), df.getSourceLength());
+        } catch (IOException ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_READ_FILE);
+        }
+        SignedDoc part;
+        try {
+            InputStream is = new SequenceInputStream(Collections.enumeration(Arrays.<InputStream> asList(
+                    new ByteArrayInputStream(head), element, new ByteArrayInputStream(tail))));
+            part = parse(is, null, df.getSourceLength());
+        } finally {
+            try {
+                element.close();
+            } catch (IOException ex) {
+                LOG.warn("Error closing " + fileName + ": " + ex);
+            }
+        }
+        if (part.countDataFiles() != 1) {
+            throw new DigiDocException(DigiDocException.ERR_PARSE_XML, "Source range of DataFile " + df.getId()
+                    + " does not hold one DataFile", null);
+        }
+        DataFile parsed = part.getDataFile(0);
+        byte[] digest = parsed.getDigest();
+        parsed.cleanupDfCache();
+        df.setDigest(digest);
+        return digest;
+    }
+
+    /**
+     * Parses a document
+     * 
+     * @param is
+     *            document data
+     * @param skipper
+     *            the same stream if DataFile content is skipped, otherwise
+     *            null
+     * @param bytes
+     *            document size for metrics, 0 if unknown
+     */
+    private SignedDoc parse(InputStream is, DataFileSkippingInputStream skipper, long bytes)
+            throws DigiDocException {
         DDHandler handler = new DDHandler();
+        handler.m_skipper = skipper;
         SAXParserFactory factory = SAXParserFactory.newInstance();
+        long start = Metrics.start();
         try {
             SAXParser saxParser = factory.newSAXParser();
-            saxParser.parse(digiDocStream, handler);
+            saxParser.parse(is, handler);
+            Metrics.record(Metrics.SAX_PARSE, start, bytes);
         } catch (SAXDigiDocException ex) {
+            Metrics.recordError(Metrics.SAX_PARSE, start);
             throw ex.getDigiDocException();
         } catch (Exception ex) {
+            Metrics.recordError(Metrics.SAX_PARSE, start);
             DigiDocException.handleException(ex, DigiDocException.ERR_PARSE_XML);
+        } finally {
+            handler.discardCache();
         }
         
         if (handler.getSignedDoc() == null) {
@@ -78,26 +246,21 @@ public class SAXDigidocServiceImpl implements DigiDocService {
         return handler.getSignedDoc();
     }
 
-    public SignedDoc readSignedDoc(String fileName) throws DigiDocException {
-        DDHandler handler = new DDHandler();
-        SAXParserFactory factory = SAXParserFactory.newInstance();
-
+    private static InputStream openFile(String fileName) throws DigiDocException {
         try {
-            SAXParser saxParser = factory.newSAXParser();
-            FileInputStream is = new FileInputStream(fileName);
-            saxParser.parse(is, handler);
-            is.close();
-        } catch (SAXDigiDocException ex) {
-            throw ex.getDigiDocException();
-        } catch (Exception ex) {
+            return new FileInputStream(fileName);
+        } catch (IOException ex) {
             DigiDocException.handleException(ex, DigiDocException.ERR_PARSE_XML);
         }
-        
-        if (handler.getSignedDoc() == null) {
-            throw new DigiDocException(DigiDocException.ERR_DIGIDOC_FORMAT,"This document is not in digidoc format", null);
+        return null;
+    }
+
+    private static void closeQuietly(InputStream is) {
+        try {
+            is.close();
+        } catch (IOException ex) {
+            LOG.warn("Error closing input: " + ex);
         }
-            
-        return handler.getSignedDoc();
     }
     
     
@@ -105,6 +268,8 @@ public class SAXDigidocServiceImpl implements DigiDocService {
         private Stack<String> m_tags = new Stack<String>();
         private SignedDoc doc;
         private String m_strSigValTs, m_strSigAndRefsTs;
+        /** Target attribute of the AggregationProof being read */
+        private String m_strProofTarget;
         private StringBuffer m_sbCollectChars;
         private StringBuffer m_sbCollectItem;
         private StringBuffer m_sbCollectSignature;
@@ -124,8 +289,12 @@ public class SAXDigidocServiceImpl implements DigiDocService {
 
         /** calculation of digest */
         private MessageDigest m_digest;
-        /** temp output stream used to cache DataFile content */
-        private FileOutputStream dataFileCacheOutStream;
+        /** body store sink used to cache DataFile content */
+        private BodySink dataFileCacheOutStream;
+        /** memory reserved for DataFile content collected in memory */
+        private MemoryBudget.Lease m_dfLease;
+        /** stream skipping DataFile content, null if content is read */
+        private DataFileSkippingInputStream m_skipper;
         
         public SignedDoc getSignedDoc() {
             return doc;
@@ -157,6 +326,16 @@ public class SAXDigidocServiceImpl implements DigiDocService {
             
             m_tags.push(qName);
             
+            // <DataFile> without content, see readSignatures()
+            if (m_skipper != null && qName.equals("DataFile") && m_nCollectMode == 0) {
+                try {
+                    doc.addDataFile(createDataFile(attrs));
+                } catch (DigiDocException ex) {
+                    SAXDigiDocException.handleException(ex);
+                }
+                return;
+            }
+            
             if (qName.equals("SigningTime") ||
                qName.equals("IssuerSerial") ||
                qName.equals("X509SerialNumber") ||
@@ -174,10 +353,16 @@ public class SAXDigidocServiceImpl implements DigiDocService {
                qName.equals("X509SerialNumber") ||
                qName.equals("ProducedAt") ||
                qName.equals("EncapsulatedTimeStamp") ||
+               qName.equals("AggregationProof") ||
                qName.equals("EncapsulatedOCSPValue") ) {
                 m_sbCollectItem = new StringBuffer();
             }
 
+            // <AggregationProof>
+            if (qName.equals("AggregationProof")) {
+                m_strProofTarget = attrs.getValue("Target");
+            }
+
             // <X509Certificate>
             // Prepare CertValue object
             if (qName.equals("X509Certificate")) {
@@ -224,76 +409,22 @@ public class SAXDigidocServiceImpl implements DigiDocService {
             // in and out
             // <DataFile>
             if (qName.equals("DataFile")) {
-                String ContentType = null, Filename = null, Id = null, MimeType = null, Size = null, DigestType = null, Codepage = null;
-                byte[] DigestValue = null;
-                ArrayList<DataFileAttribute> dfAttrs = new ArrayList<DataFileAttribute>();
-                for (int i = 0; i < attrs.getLength(); i++) {
-                    String key = attrs.getQName(i);
-
-                    if (key.equals("ContentType")) {
-                        ContentType = attrs.getValue(i);
-                    } else if (key.equals("Filename")) {
-                        Filename = attrs.getValue(i);
-                    } else if (key.equals("Id")) {
-                        Id = attrs.getValue(i);
-                    } else if (key.equals("MimeType")) {
-                        MimeType = attrs.getValue(i);
-                    } else if (key.equals("Size")) {
-                        Size = attrs.getValue(i);
-                    } else if (key.equals("DigestType")) {
-                        DigestType = attrs.getValue(i);
-                    } else if (key.equals("Codepage")) {
-                        Codepage = attrs.getValue(i);
-                    } else if (key.equals("DigestValue")) {
-                        DigestValue = Base64Util.decode(attrs.getValue(i));
-                    } else {
-                        try {
-                            if (!key.equals("xmlns")) {
-                                DataFileAttribute attr = new DataFileAttribute(key, attrs.getValue(i));
-                                dfAttrs.add(attr);
-                            }
-                        } catch (DigiDocException ex) {
-                            SAXDigiDocException.handleException(ex);
-                        }
-                    } // else
-                } // for
+                String ContentType = attrs.getValue("ContentType");
+                String Size = attrs.getValue("Size");
                 
                 if (m_nCollectMode == 0) {
                     try {
-                        DataFile df = new DataFile(Id, ContentType, Filename, MimeType, doc);
+                        DataFile df = createDataFile(attrs);
                         dataFileCacheOutStream = null; // default is don't use cache file
-                        
-                        if (Size != null) {
-                            df.setSize(Long.parseLong(Size));
-                        }
-                            
-                        if (DigestType != null) {
-                            df.setDigestType(DigestType);
-                        }
-
-                        if (DigestValue != null) {
-                            df.setDigestValue(DigestValue);
-                        }
-
-                        if (Codepage != null) {
-                            df.setCodepage(Codepage);
-                        }
-
-                        for (int i = 0; i < dfAttrs.size(); i++) {
-                            df.addAttribute((DataFileAttribute) dfAttrs.get(i));
-                        }
 
                         // enable caching if requested
                         if (df.schouldUseTempFile()) {
-                            File fCache = df.createCacheFile();
-                            
                             if (LOG.isTraceEnabled()) {
-                                LOG.trace("Datafile cache enabled, Id: " + Id 
-                                        + " size: " + df.getSize() 
-                                        + " cache-file: " + fCache.getAbsolutePath());
+                                LOG.trace("Datafile cache enabled, Id: " + df.getId()
+                                        + " size: " + df.getSize());
                             }
                             
-                            dataFileCacheOutStream = new FileOutputStream(fCache);
+                            dataFileCacheOutStream = df.openCacheStream();
                         }
                         
                         doc.addDataFile(df);
@@ -306,27 +437,32 @@ public class SAXDigidocServiceImpl implements DigiDocService {
                 
                 m_nCollectMode++;
                 
-                // try to anticipate how much memory we need for collecting this <DataFile>
-                try {
-                    if (Size != null) {
-                        int nSize = Integer.parseInt(Size);
-                        
-                        if (ContentType.equals(DataFile.CONTENT_EMBEDDED)) {
-                            nSize += 1024; // just a little bit for whitespace & xml tags
-                            m_bCollectDigest = false;
+                // collect the content of the document level <DataFile>
+                if (m_nCollectMode == 1) {
+                    // digest of base64 content is calculated on the fly
+                    m_bCollectDigest = DataFile.CONTENT_EMBEDDED_BASE64.equals(ContentType);
+
+                    // if we use temp files then we don't cache in memory
+                    if (dataFileCacheOutStream == null) {
+                        // try to anticipate how much memory we need, Size is only a hint
+                        long nSize = 0;
+                        try {
+                            if (Size != null) {
+                                nSize = Long.parseLong(Size);
+                            }
+                        } catch (NumberFormatException ex) {
+                            LOG.error("Error: " + ex);
                         }
-                        
-                        if (ContentType.equals(DataFile.CONTENT_EMBEDDED_BASE64)) {
+                        if (DataFile.CONTENT_EMBEDDED.equals(ContentType)) {
+                            nSize += 1024; // just a little bit for whitespace & xml tags
+                        } else if (m_bCollectDigest) {
                             nSize *= 2;
-                            m_bCollectDigest = true;
-                        }
-
-                        if (dataFileCacheOutStream == null) {// if we use temp files then we don't cache in memory 
-                            m_sbCollectChars = new StringBuffer(nSize);
                         }
-                    }                   
-                } catch(Exception ex) {
-                    LOG.error("Error: " + ex);
+                        int nInitial = (int) Math.max(16, Math.min(nSize, MAX_PREALLOCATED_CHARS));
+                        m_dfLease = getMemoryBudget().lease();
+                        m_sbCollectChars = new StringBuffer(nInitial);
+                        checkMemoryBudget();
+                    }
                 }
             }
             
@@ -472,11 +608,12 @@ public class SAXDigidocServiceImpl implements DigiDocService {
                                 LOG.trace("Writing dataFile to cache stream");
                             }
 
-                            dataFileCacheOutStream.write(ConvertUtils.str2data(sb.toString()));
+                            spill(ConvertUtils.str2data(sb.toString()));
                         }
                     } catch (IOException ex) {
                         SAXDigiDocException.handleException(ex);
                     }
+                    checkMemoryBudget();
                 }
             }
             
@@ -797,6 +934,13 @@ public class SAXDigidocServiceImpl implements DigiDocService {
             // remove last tag from stack
             m_tags.pop();
             
+            // </DataFile> without content
+            if (m_skipper != null && qName.equals("DataFile") && m_nCollectMode == 0) {
+                long[] range = m_skipper.getRange(doc.countDataFiles() - 1);
+                doc.getLastDataFile().setSourceRange(range[0], range[1]);
+                return;
+            }
+            
             // collect SAX event data to original XML data
             // for <DataFile> we don't collect the begin and
             // end tags unless this an embedded <DataFile>
@@ -832,13 +976,14 @@ public class SAXDigidocServiceImpl implements DigiDocService {
                                     LOG.trace("Writing into dataFile cache");
                                 }
                                 
-                                dataFileCacheOutStream.write(ConvertUtils.str2data(sb.toString()));
+                                spill(ConvertUtils.str2data(sb.toString()));
                             }
                             
                             if (LOG.isTraceEnabled()) {
                                 LOG.trace("Closing datafile cache");
                             }
                             
+                            dataFileCacheOutStream.finish();
                             dataFileCacheOutStream.close();
                             dataFileCacheOutStream = null;
                         }
@@ -850,7 +995,7 @@ public class SAXDigidocServiceImpl implements DigiDocService {
  
                     if (df.getContentType().equals(DataFile.CONTENT_EMBEDDED)) {
                         try {
-                            if (df.getDfCacheFile() == null) { 
+                            if (!df.hasCachedBody()) { 
                                 df.setBody(ConvertUtils.str2data(sb.toString(), df.getCodepage()));
                             }
 
@@ -910,7 +1055,7 @@ public class SAXDigidocServiceImpl implements DigiDocService {
                             updateDigest("</DataFile>".getBytes());
                             df.setDigest(getDigest());
 
-                            if (df.getDfCacheFile() == null) {
+                            if (!df.hasCachedBody()) {
                                 if (sb != null) {
                                     df.setBody(ConvertUtils.str2data(sb.toString(), df.getCodepage()));
                                 } else { // TODO review and validate. ad-hoc fix
@@ -927,6 +1072,7 @@ public class SAXDigidocServiceImpl implements DigiDocService {
                     }
 
                     m_bCollectDigest = false;
+                    releaseMemory();
                 }
             }
             
@@ -1229,20 +1375,34 @@ public class SAXDigidocServiceImpl implements DigiDocService {
                 try {
                     Signature sig = getLastSignature();
                     TimestampInfo ts = sig.getLastTimestampInfo();
-                    try {
-                        //System.out.println("\n--TS_RESP--\n" + m_sbCollectItem.toString() + "\n--TS_RESP--\n");
-                        ts.setTimeStampResponse(new TimeStampResponse(Base64Util.decode(m_sbCollectItem.toString())));
-                        //ts.setTimeStampToken(new TimeStampToken(new CMSSignedData(Base64Util.decode(m_sbCollectItem.toString()))));
-                    } catch(TSPException ex) {
-                        throw new DigiDocException(DigiDocException.ERR_TIMESTAMP_RESP, "Invalid timestamp response", ex);
-                    } catch(IOException ex) {
-                        throw new DigiDocException(DigiDocException.ERR_TIMESTAMP_RESP, "Invalid timestamp response", ex);
-                    }
+                    // TS_RESP is decoded only when somebody asks for it
+                    ts.setTimeStampResponseData(Base64Util.decode(m_sbCollectItem.toString()));
                     m_sbCollectItem = null; // stop collecting
                 } catch (DigiDocException ex) {
                     SAXDigiDocException.handleException(ex);
                 }
             }
+
+            //</AggregationProof>
+            if (qName.equals("AggregationProof")) {
+                Signature sig = getLastSignature();
+                String id = (m_strProofTarget != null && m_strProofTarget.startsWith("#")) ? m_strProofTarget
+                        .substring(1) : m_strProofTarget;
+                TimestampInfo ts = null;
+                for (int i = 0; (ts == null) && (i < sig.countTimestampInfos()); i++) {
+                    if (id != null && id.equals(sig.getTimestampInfo(i).getId())) {
+                        ts = sig.getTimestampInfo(i);
+                    }
+                }
+                if (ts != null) {
+                    ts.setAggregationProof(Base64Util.decode(m_sbCollectItem.toString()));
+                } else {
+                    LOG.warn("No timestamp " + m_strProofTarget + " for aggregation proof in signature "
+                            + sig.getId());
+                }
+                m_strProofTarget = null;
+                m_sbCollectItem = null; // stop collecting
+            }
             
             // </ResponderID>
             if (qName.equals("ResponderID")) {
@@ -1292,7 +1452,9 @@ public class SAXDigidocServiceImpl implements DigiDocService {
                     try {
                         Signature sig = getLastSignature();
                         CertValue cval = sig.getLastCertValue();
-                        cval.setCert(DDUtils.readCertificate(Base64Util.decode(m_sbCollectItem.toString())));                 
+                        // only the structure is checked here, the certificate
+                        // is decoded when somebody asks for it
+                        cval.setCertData(Base64Util.decode(m_sbCollectItem.toString()));
                         m_sbCollectItem = null; // stop collecting
                     } catch (DigiDocException ex) {
                         SAXDigiDocException.handleException(ex);
@@ -1304,7 +1466,7 @@ public class SAXDigidocServiceImpl implements DigiDocService {
                     try {
                         Signature sig = getLastSignature();
                         CertValue cval = sig.getLastCertValue();
-                        cval.setCert(DDUtils.readCertificate(Base64Util.decode(m_sbCollectItem.toString())));
+                        cval.setCertData(Base64Util.decode(m_sbCollectItem.toString()));
                         m_sbCollectItem = null; // stop collecting
                     } catch (DigiDocException ex) {
                         SAXDigiDocException.handleException(ex);
@@ -1319,8 +1481,10 @@ public class SAXDigidocServiceImpl implements DigiDocService {
                         findCertIDandCertValueTypes(sig);
                         UnsignedProperties up = sig.getUnsignedProperties();
                         Notary not = up.getNotary();
+                        // OCSP response is decoded here but verified only on
+                        // demand
                         not.setOcspResponseData(Base64Util.decode(m_sbCollectItem.toString()));
-                        notaryService.parseAndVerifyResponse(sig, not);
+                        not.getBasicResponse();
                         // in 1.1 we had bad OCPS digest
                         if (doc.getVersion().equals(SignedDoc.VERSION_1_1)) {
                             CompleteRevocationRefs rrefs = up.getCompleteRevocationRefs();
@@ -1368,11 +1532,143 @@ public class SAXDigidocServiceImpl implements DigiDocService {
                         LOG.trace("Writing dataFile to cache stream");
                     } 
 
-                    dataFileCacheOutStream.write(ConvertUtils.str2data(s)); // TODO don't "middle-convert" to string
+                    spill(ConvertUtils.str2data(s)); // TODO don't "middle-convert" to string
                 }
             } catch (IOException ex) {
                 SAXDigiDocException.handleException(ex);
             }
+            // may move the collected content, including s, to the cache
+            checkMemoryBudget();
+        }
+
+        /**
+         * Writes DataFile content to the cache
+         * 
+         * @param data
+         *            content to write
+         */
+        private void spill(byte[] data) throws IOException {
+            dataFileCacheOutStream.write(data);
+        }
+
+        /**
+         * Reserves memory for the DataFile content collected so far. If the
+         * budget is exhausted, base64 content is moved to the body store, other
+         * content waits for memory to be released.
+         */
+        private void checkMemoryBudget() throws SAXDigiDocException {
+            if (m_dfLease == null) {
+                return;
+            }
+            long needed = 2L * m_sbCollectChars.capacity();
+            if (m_dfLease.tryGrow(needed)) {
+                return;
+            }
+            DataFile df = doc.getLastDataFile();
+            if (m_bCollectDigest && dataFileCacheOutStream == null) {
+                // digest is calculated on the fly, the content can go to the store
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Memory budget exhausted, caching DataFile: " + df.getId() + " in body store");
+                }
+                try {
+                    dataFileCacheOutStream = df.openCacheStream();
+                    spill(ConvertUtils.str2data(m_sbCollectChars.toString()));
+                } catch (IOException ex) {
+                    SAXDigiDocException.handleException(ex);
+                }
+                m_sbCollectChars = null;
+                releaseMemory();
+            } else if (!m_dfLease.grow(needed)) {
+                releaseMemory();
+                SAXDigiDocException.handleException(new DigiDocException(DigiDocException.ERR_MEMORY_BUDGET,
+                        "No memory available for DataFile: " + df.getId(), null));
+            }
+        }
+
+        /**
+         * Returns the memory reserved for DataFile content
+         */
+        private void releaseMemory() {
+            if (m_dfLease != null) {
+                m_dfLease.close();
+                m_dfLease = null;
+            }
+        }
+
+        /**
+         * Discards a DataFile cache left open by a parse error
+         */
+        void discardCache() {
+            releaseMemory();
+            if (dataFileCacheOutStream != null) {
+                try {
+                    dataFileCacheOutStream.close();
+                } catch (IOException ex) {
+                    LOG.warn("Error discarding DataFile cache: " + ex);
+                }
+                dataFileCacheOutStream = null;
+            }
+        }
+
+        /**
+         * Creates a DataFile from the attributes of a &lt;DataFile&gt; element
+         * 
+         * @param attrs
+         *            element attributes
+         * @return new DataFile without content
+         */
+        private DataFile createDataFile(Attributes attrs) throws DigiDocException {
+            String ContentType = null, Filename = null, Id = null, MimeType = null, Size = null, DigestType = null, Codepage = null;
+            byte[] DigestValue = null;
+            ArrayList<DataFileAttribute> dfAttrs = new ArrayList<DataFileAttribute>();
+            for (int i = 0; i < attrs.getLength(); i++) {
+                String key = attrs.getQName(i);
+
+                if (key.equals("ContentType")) {
+                    ContentType = attrs.getValue(i);
+                } else if (key.equals("Filename")) {
+                    Filename = attrs.getValue(i);
+                } else if (key.equals("Id")) {
+                    Id = attrs.getValue(i);
+                } else if (key.equals("MimeType")) {
+                    MimeType = attrs.getValue(i);
+                } else if (key.equals("Size")) {
+                    Size = attrs.getValue(i);
+                } else if (key.equals("DigestType")) {
+                    DigestType = attrs.getValue(i);
+                } else if (key.equals("Codepage")) {
+                    Codepage = attrs.getValue(i);
+                } else if (key.equals("DigestValue")) {
+                    DigestValue = Base64Util.decode(attrs.getValue(i));
+                } else if (!key.equals("xmlns")) {
+                    dfAttrs.add(new DataFileAttribute(key, attrs.getValue(i)));
+                }
+            }
+
+            DataFile df = new DataFile(Id, ContentType, Filename, MimeType, doc);
+            df.setBodyStore(bodyStore);
+            
+            if (Size != null) {
+                df.setSize(Long.parseLong(Size));
+            }
+                
+            if (DigestType != null) {
+                df.setDigestType(DigestType);
+            }
+
+            if (DigestValue != null) {
+                df.setDigestValue(DigestValue);
+            }
+
+            if (Codepage != null) {
+                df.setCodepage(Codepage);
+            }
+
+            for (int i = 0; i < dfAttrs.size(); i++) {
+                df.addAttribute((DataFileAttribute) dfAttrs.get(i));
+            }
+
+            return df;
         }
 
         public Signature getLastSignature() {
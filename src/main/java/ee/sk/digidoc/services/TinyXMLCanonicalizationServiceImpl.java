@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 
 import ee.sk.digidoc.c14n.TinyXMLCanonicalizerHandler;
 import ee.sk.digidoc.c14n.TinyXMLParser;
+import ee.sk.digidoc.metrics.Metrics;
 
 public class TinyXMLCanonicalizationServiceImpl implements CanonicalizationService {
 
@@ -15,10 +16,12 @@ public class TinyXMLCanonicalizationServiceImpl implements CanonicalizationServi
         TinyXMLCanonicalizerHandler h;
         byte[] byteArray3;
 
+        long start = Metrics.start();
         p = new TinyXMLParser();
         h = new TinyXMLCanonicalizerHandler();
         p.Parse(h, TinyXMLCanonicalizationServiceImpl.normalizeLineBreaks(data));
         byteArray3 = h.get_Bytes();
+        Metrics.record(Metrics.C14N, start, data.length);
         return byteArray3;
     }
 
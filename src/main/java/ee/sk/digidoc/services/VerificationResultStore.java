@@ -0,0 +1,318 @@
+package ee.sk.digidoc.services;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.utils.Base64Util;
+
+/**
+ * File based store of verification results. A result is stored under a key,
+ * normally the SHA-256 of the container, together with the version of the
+ * validation data it was computed with. A version is a comma separated list
+ * of components, see {@link Versioned}. A stored result is only returned
+ * while every component of its version is part of the current version, so
+ * new trust anchors or revocation data invalidate it while loading more
+ * data does not.
+ * <p>
+ * Results are appended to a text file, one line per result, and all entries
+ * are kept in memory. The last line of a key wins. The file is rewritten
+ * when it holds more than twice as many lines as live entries.
+ */
+public class VerificationResultStore {
+
+    private static final Logger LOG = Logger.getLogger(VerificationResultStore.class);
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    /** number of lines in the file */
+    private int lines;
+    private Writer out;
+    /** max age of a result in milliseconds, 0 for no limit */
+    private long maxAge;
+
+    /**
+     * Opens a store, reading the results saved so far
+     *
+     * @param file
+     *            store file, created on first write
+     * @throws DigiDocException
+     *             if the file cannot be read
+     */
+    public VerificationResultStore(File file) throws DigiDocException {
+        this.file = file;
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    private void load() throws DigiDocException {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lines++;
+                    try {
+                        Entry e = Entry.parse(line);
+                        entries.put(e.key, e);
+                    } catch (RuntimeException ex) {
+                        // e.g. a line cut short by a crash
+                        LOG.warn("Skipping invalid line " + lines + " of " + file);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_READ_FILE);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Loaded " + entries.size() + " verification results from " + file);
+        }
+    }
+
+    /**
+     * Returns a stored result
+     *
+     * @param key
+     *            key of the verified data
+     * @param version
+     *            current version of the validation data
+     * @return errors found when the result was stored, or null if there is no
+     *         result for this version
+     */
+    public synchronized List<DigiDocException> get(String key, String version) {
+        Entry e = entries.get(key);
+        if (e == null || !covers(version, e.version)) {
+            return null;
+        }
+        if (maxAge > 0 && System.currentTimeMillis() - e.saved > maxAge) {
+            return null;
+        }
+        List<DigiDocException> errs = new ArrayList<DigiDocException>(e.codes.length);
+        for (int i = 0; i < e.codes.length; i++) {
+            errs.add(new DigiDocException(e.codes[i], e.messages[i], null));
+        }
+        return errs;
+    }
+
+    /**
+     * Checks if every component of a stored version is part of the current
+     * version
+     */
+    private static boolean covers(String current, String stored) {
+        if (stored.equals(current)) {
+            return true;
+        }
+        Set<String> components = new HashSet<String>(Arrays.asList(current.split(",")));
+        for (String c : stored.split(",")) {
+            if (c.length() > 0 && !components.contains(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stores a result, replacing the previous result of the key
+     *
+     * @param key
+     *            key of the verified data, must not contain whitespace
+     * @param version
+     *            version of the validation data, must not contain whitespace
+     * @param errs
+     *            errors found in verification
+     * @throws DigiDocException
+     *             if the file cannot be written
+     */
+    public synchronized void put(String key, String version, List<DigiDocException> errs) throws DigiDocException {
+        Entry e = new Entry(key, version, System.currentTimeMillis(), errs);
+        entries.put(key, e);
+        try {
+            if (lines >= 2 * entries.size() && lines > 16) {
+                compact();
+            } else {
+                if (out == null) {
+                    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "US-ASCII"));
+                }
+                out.write(e.format());
+                out.write('\n');
+                out.flush();
+                lines++;
+            }
+        } catch (IOException ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_WRITE_FILE);
+        }
+    }
+
+    /**
+     * Rewrites the file with the live entries only
+     */
+    private void compact() throws IOException {
+        closeWriter();
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "US-ASCII"));
+        try {
+            for (Entry e : entries.values()) {
+                w.write(e.format());
+                w.write('\n');
+            }
+        } finally {
+            w.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+        }
+        lines = entries.size();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Compacted " + file + " to " + lines + " results");
+        }
+    }
+
+    /**
+     * Returns the number of stored results
+     *
+     * @return number of keys
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all results
+     *
+     * @throws DigiDocException
+     *             if the file cannot be deleted
+     */
+    public synchronized void clear() throws DigiDocException {
+        entries.clear();
+        try {
+            closeWriter();
+        } catch (IOException ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_WRITE_FILE);
+        }
+        if (file.exists() && !file.delete()) {
+            throw new DigiDocException(DigiDocException.ERR_WRITE_FILE, "Cannot delete " + file, null);
+        }
+        lines = 0;
+    }
+
+    /**
+     * Closes the file, the store can still be used
+     */
+    public synchronized void close() {
+        try {
+            closeWriter();
+        } catch (IOException ex) {
+            LOG.warn("Error closing " + file + ": " + ex);
+        }
+    }
+
+    private void closeWriter() throws IOException {
+        if (out != null) {
+            Writer w = out;
+            out = null;
+            w.close();
+        }
+    }
+
+    /**
+     * Sets the time after which results are verified again even if the
+     * validation data has not changed
+     *
+     * @param maxAge
+     *            max age in milliseconds, 0 for no limit
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Stored result. The line format is the key, version, save time, number
+     * of errors and the code and Base64 encoded message of each error, all
+     * separated by spaces.
+     */
+    private static final class Entry {
+        final String key;
+        final String version;
+        final long saved;
+        final int[] codes;
+        final String[] messages;
+
+        Entry(String key, String version, long saved, int[] codes, String[] messages) {
+            this.key = key;
+            this.version = version;
+            this.saved = saved;
+            this.codes = codes;
+            this.messages = messages;
+        }
+
+        Entry(String key, String version, long saved, List<DigiDocException> errs) {
+            this(key, version, saved, new int[errs.size()], new String[errs.size()]);
+            for (int i = 0; i < errs.size(); i++) {
+                codes[i] = errs.get(i).getCode();
+                messages[i] = errs.get(i).getMessage();
+            }
+        }
+
+        String format() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(key).append(' ').append(version).append(' ').append(saved).append(' ').append(codes.length);
+            for (int i = 0; i < codes.length; i++) {
+                sb.append(' ').append(codes[i]).append(' ');
+                if (messages[i] == null) {
+                    sb.append('-');
+                } else {
+                    try {
+                        sb.append('m').append(Base64Util.encode(messages[i].getBytes("UTF-8"), 0));
+                    } catch (IOException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            }
+            return sb.toString();
+        }
+
+        static Entry parse(String line) {
+            String[] f = line.split(" ", -1);
+            int n = Integer.parseInt(f[3]);
+            if (f.length != 4 + 2 * n) {
+                throw new IllegalArgumentException("invalid result line");
+            }
+            int[] codes = new int[n];
+            String[] messages = new String[n];
+            for (int i = 0; i < n; i++) {
+                codes[i] = Integer.parseInt(f[4 + 2 * i]);
+                String m = f[5 + 2 * i];
+                if (!"-".equals(m)) {
+                    try {
+                        messages[i] = new String(Base64Util.decode(m.substring(1)), "UTF-8");
+                    } catch (IOException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            }
+            return new Entry(f[0], f[1], Long.parseLong(f[2]), codes, messages);
+        }
+    }
+}
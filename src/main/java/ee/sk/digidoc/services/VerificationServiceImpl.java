@@ -1,10 +1,16 @@
 package ee.sk.digidoc.services;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import javax.crypto.Cipher;
 
@@ -15,6 +21,9 @@ import ee.sk.digidoc.Signature;
 import ee.sk.digidoc.SignedDoc;
 import ee.sk.digidoc.TimestampInfo;
 import ee.sk.digidoc.UnsignedProperties;
+import ee.sk.digidoc.metrics.Metrics;
+import ee.sk.utils.AsyncUtils;
+import ee.sk.utils.Base64Util;
 import ee.sk.utils.DDUtils;
 
 public class VerificationServiceImpl {
@@ -31,6 +40,8 @@ public class VerificationServiceImpl {
     // old DIGIDOC_SIGNATURE_VERIFIER
     private String signatureVerifier = "OCSP";
     
+    private VerificationResultStore resultStore;
+    
     
     public VerificationServiceImpl(
             CAService caService, 
@@ -54,6 +65,14 @@ public class VerificationServiceImpl {
     public List<DigiDocException> verify(SignedDoc signedDoc, boolean checkDate, boolean demandConfirmation) {
         List<DigiDocException> errs = validate(signedDoc, false);
         
+        // digest the DataFiles up front, concurrently if the document has a
+        // digest executor. Failures are reported for each signature below
+        try {
+            signedDoc.calculateDataFileDigests();
+        } catch (DigiDocException ex) {
+            // reported by verify(Signature, ...)
+        }
+
         for (int i = 0; i < signedDoc.countSignatures(); i++) {
             Signature sig = signedDoc.getSignature(i);
             List<DigiDocException> e = verify(sig, signedDoc, checkDate, demandConfirmation);
@@ -72,6 +91,111 @@ public class VerificationServiceImpl {
 
     
     
+    /**
+     * Verifies a container file. If a result store is set, the result is
+     * stored under the SHA-256 of the file and returned without parsing the
+     * file again until the CA certificates, OCSP responder certificates or
+     * CRLs loaded at the time of the verification change. Expired CRLs are
+     * refreshed when the version of the validation data is taken.
+     * 
+     * @param container
+     *            DigiDoc file
+     * @param parser
+     *            service for reading the file
+     * @param checkDate
+     *            Date on which to check the signature validity
+     * @param demandConfirmation
+     *            true if you demand OCSP confirmation from every signature
+     * @return a possibly empty list of DigiDocException objects
+     * @throws DigiDocException
+     *             if the file cannot be read or parsed
+     */
+    public List<DigiDocException> verify(File container, DigiDocService parser, boolean checkDate,
+            boolean demandConfirmation) throws DigiDocException {
+        if (resultStore == null) {
+            return verify(parser.readSignedDoc(container.getPath()), checkDate, demandConfirmation);
+        }
+        // results of other options are stored separately
+        String key = (checkDate ? "d" : "-") + (demandConfirmation ? "c" : "-") + ":" + digestFile(container);
+        List<DigiDocException> errs = resultStore.get(key, getValidationVersion());
+        if (errs != null) {
+            Metrics.count(Metrics.RESULT_STORE_HIT, container.length());
+            return errs;
+        }
+        errs = verify(parser.readSignedDoc(container.getPath()), checkDate, demandConfirmation);
+        // CRLs loaded during verification add components to the version,
+        // results stored before stay valid
+        resultStore.put(key, getValidationVersion(), errs);
+        return errs;
+    }
+
+    /**
+     * Returns the combined version of the validation data of the services,
+     * a short digest of each component of their versions
+     */
+    private String getValidationVersion() {
+        StringBuilder sb = new StringBuilder();
+        Object[] services = { caService, notaryService, crlService };
+        try {
+            for (Object s : services) {
+                if (s instanceof Versioned) {
+                    for (String c : ((Versioned) s).getVersion().split(",")) {
+                        if (c.length() == 0) {
+                            continue;
+                        }
+                        byte[] hash = MessageDigest.getInstance("SHA-256").digest(c.getBytes("UTF-8"));
+                        if (sb.length() > 0) {
+                            sb.append(',');
+                        }
+                        sb.append(Base64Util.encode(Arrays.copyOf(hash, 12), 0));
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+        return sb.toString();
+    }
+
+    private static String digestFile(File f) throws DigiDocException {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            InputStream is = new FileInputStream(f);
+            try {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = is.read(buf)) > 0) {
+                    sha.update(buf, 0, n);
+                }
+            } finally {
+                is.close();
+            }
+            return Base64Util.encode(sha.digest(), 0);
+        } catch (Exception ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_READ_FILE);
+        }
+        return null;
+    }
+    
+    /**
+     * Asynchronous variant of {@link #verify(SignedDoc, boolean, boolean)}.
+     * The document must not be modified until the returned future has
+     * completed.
+     * 
+     * @param checkDate
+     *            Date on which to check the signature validity
+     * @param demandConfirmation
+     *            true if you demand OCSP confirmation from every signature
+     * @param executor
+     *            executor to run the verification on
+     * @return future completed with a possibly empty list of DigiDocException
+     *         objects
+     */
+    public CompletableFuture<List<DigiDocException>> verifyAsync(final SignedDoc signedDoc, final boolean checkDate,
+            final boolean demandConfirmation, Executor executor) {
+        return AsyncUtils.supplyAsync(() -> verify(signedDoc, checkDate, demandConfirmation), executor);
+    }
+
     /**
      * Helper method to validate the whole SignedDoc object
      * 
@@ -608,6 +732,7 @@ public class VerificationServiceImpl {
      */
     public boolean verify(byte[] digest, byte[] signature, X509Certificate cert) throws DigiDocException {
         boolean rc = false;
+        long start = Metrics.start();
         try {
             // VS - for some reason this JDK internal method sometimes failes
 
@@ -630,6 +755,7 @@ public class VerificationServiceImpl {
             // "\'");
             // now compare the digests
             rc = DDUtils.compareDigests(digest, cdigest);
+            Metrics.record(Metrics.RSA_VERIFY, start, 0);
 
             // System.out.println("Result: " + rc);
             if (!rc)
@@ -638,10 +764,24 @@ public class VerificationServiceImpl {
             throw ex; // pass it on, but check other exceptions
         } catch (Exception ex) {
             // System.out.println("Exception: " + ex);
+            Metrics.recordError(Metrics.RSA_VERIFY, start);
             DigiDocException.handleException(ex, DigiDocException.ERR_VERIFY);
         }
         return rc;
     }
 
+    public void setCrlService(CRLService crlService) {
+        this.crlService = crlService;
+    }
+
+    /**
+     * Sets the store for results of {@link #verify(File, DigiDocService, boolean, boolean)}
+     * 
+     * @param resultStore
+     *            store or null to verify every time
+     */
+    public void setResultStore(VerificationResultStore resultStore) {
+        this.resultStore = resultStore;
+    }
 
 }
@@ -0,0 +1,23 @@
+package ee.sk.digidoc.services;
+
+/**
+ * Implemented by services holding validation data, such as trust anchors or
+ * revocation lists, whose changes must invalidate stored verification
+ * results.
+ */
+public interface Versioned {
+
+    /**
+     * Returns an identifier of the current validation data. It changes
+     * whenever the data that verification results depend on changes, and
+     * stays the same across restarts for the same data.
+     * <p>
+     * The version may consist of components separated by commas, e.g. one
+     * per CRL issuer. Data loaded later adds a component and changed data
+     * replaces one, so a result stays valid while all components of the
+     * version it was computed with are still present.
+     * 
+     * @return version string without whitespace, possibly empty
+     */
+    String getVersion();
+}
@@ -0,0 +1,29 @@
+package ee.sk.digidoc.store;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Receives the content of a body. Call {@link #finish()} to obtain the stored
+ * body or {@link #close()} to discard the content.
+ */
+public abstract class BodySink extends OutputStream {
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /**
+     * Completes the body
+     * 
+     * @return stored body, owned by the caller
+     * @throws IOException
+     *             for write errors
+     */
+    public abstract StoredBody finish() throws IOException;
+
+    /**
+     * Discards the content unless finish() was called
+     */
+    public abstract void close() throws IOException;
+}
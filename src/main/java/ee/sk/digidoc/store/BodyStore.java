@@ -0,0 +1,45 @@
+package ee.sk.digidoc.store;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Storage for DataFile content that is too large to be kept on the Java
+ * heap. A DataFile asks the store whether a body of a given size stays on
+ * the heap; if not, the content is written to a {@link BodySink} obtained
+ * from {@link #create(long)}.
+ */
+public interface BodyStore {
+
+    /**
+     * Checks if a body of the given size should be kept in a heap byte array
+     * 
+     * @param size
+     *            body size in bytes, 0 if unknown
+     * @return true if the body stays on the heap
+     */
+    boolean keepOnHeap(long size);
+
+    /**
+     * Opens a sink for a body that is not kept on the heap
+     * 
+     * @param expectedSize
+     *            expected body size in bytes, -1 if unknown
+     * @return sink for the content
+     * @throws IOException
+     *             if no storage can be allocated
+     */
+    BodySink create(long expectedSize) throws IOException;
+
+    /**
+     * Creates an empty temporary file for content that is written to a file
+     * directly instead of through a sink
+     * 
+     * @return new temporary file
+     * @throws IOException
+     *             if the file cannot be created
+     */
+    default File createTempFile() throws IOException {
+        return File.createTempFile("jdigidoc-", ".df");
+    }
+}
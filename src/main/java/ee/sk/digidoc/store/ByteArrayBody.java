@@ -0,0 +1,37 @@
+package ee.sk.digidoc.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+
+/**
+ * Body held in a heap byte array. Used for bodies that were moved out of
+ * direct buffers by serialization.
+ */
+class ByteArrayBody extends RefCountedBody {
+
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] data;
+
+    ByteArrayBody(byte[] data) {
+        super(null);
+        this.data = data;
+    }
+
+    public long length() {
+        return data.length;
+    }
+
+    public InputStream openStream() {
+        return new ByteArrayInputStream(data);
+    }
+
+    public byte[] toByteArray() {
+        return data.clone();
+    }
+
+    public File getFile() {
+        return null;
+    }
+}
@@ -0,0 +1,425 @@
+package ee.sk.digidoc.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import ee.sk.digidoc.metrics.Metrics;
+import ee.sk.utils.Base64Util;
+
+/**
+ * Persistent body store that keeps every distinct DataFile body once. Bodies
+ * are files in a directory, named by the SHA-256 of their content, so the
+ * same attachment in many containers is stored only once.
+ * <p>
+ * An index file records the SHA-1 and length of each body and the DataFile
+ * digests computed over stored bodies. A DataFile whose body comes from this
+ * store gets its digest from the index when the same body has been digested
+ * with the same DataFile attributes before.
+ * <p>
+ * Stored bodies are shared and are not deleted when released. Bodies of up to
+ * heapThreshold bytes stay on the heap as usual.
+ */
+public class ContentAddressedBodyStore implements BodyStore {
+
+    private static final Logger LOG = Logger.getLogger(ContentAddressedBodyStore.class);
+
+    private static final String INDEX = "index";
+
+    private final File dir;
+    private long heapThreshold = 4096;
+    private BodyStore scratchStore;
+
+    /** known bodies by SHA-256 hex, guarded by this */
+    private final Map<String, Entry> bodies = new HashMap<String, Entry>();
+    /** DataFile digests by body and attribute digest, guarded by this */
+    private final Map<String, byte[]> digests = new HashMap<String, byte[]>();
+    private Writer index;
+
+    /**
+     * Opens a store, creating the directory if needed
+     *
+     * @param dir
+     *            store directory
+     * @throws IOException
+     *             if the directory cannot be created or the index read
+     */
+    public ContentAddressedBodyStore(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create body store directory: " + dir);
+        }
+        loadIndex();
+    }
+
+    private void loadIndex() throws IOException {
+        File f = new File(dir, INDEX);
+        if (!f.exists()) {
+            return;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), "US-ASCII"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] p = line.split(" ");
+                try {
+                    if (p.length == 4 && p[0].equals("b")) {
+                        bodies.put(p[1], new Entry(Base64Util.decode(p[2]), Long.parseLong(p[3])));
+                    } else if (p.length == 3 && p[0].equals("d")) {
+                        digests.put(p[1], Base64Util.decode(p[2]));
+                    }
+                } catch (RuntimeException ex) {
+                    LOG.warn("Skipping invalid line in " + f + ": " + line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Body store " + dir + ": " + bodies.size() + " bodies, " + digests.size() + " digests");
+        }
+    }
+
+    private void appendIndex(String line) throws IOException {
+        if (index == null) {
+            index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, INDEX), true),
+                    "US-ASCII"));
+        }
+        index.write(line);
+        index.write('\n');
+        index.flush();
+    }
+
+    public boolean keepOnHeap(long size) {
+        return size > 0 && size <= heapThreshold;
+    }
+
+    public BodySink create(long expectedSize) throws IOException {
+        return new HashingSink();
+    }
+
+    public File createTempFile() throws IOException {
+        return getScratchStore().createTempFile();
+    }
+
+    /**
+     * Opens a stored body
+     *
+     * @param sha256
+     *            hex encoded SHA-256 of the content
+     * @return body or null if the store does not have it
+     */
+    public synchronized ContentBody open(String sha256) {
+        Entry e = bodies.get(sha256);
+        File f = blobFile(sha256);
+        if (e == null || !f.exists()) {
+            return null;
+        }
+        return new ContentBody(this, f, sha256, e.sha1, e.length);
+    }
+
+    /**
+     * Checks if a body is stored
+     *
+     * @param sha256
+     *            hex encoded SHA-256 of the content
+     * @return true if the body is stored
+     */
+    public synchronized boolean contains(String sha256) {
+        return bodies.containsKey(sha256) && blobFile(sha256).exists();
+    }
+
+    /**
+     * Returns the number of stored bodies
+     *
+     * @return number of distinct bodies
+     */
+    public synchronized int size() {
+        return bodies.size();
+    }
+
+    /**
+     * Returns a DataFile digest recorded for a body
+     *
+     * @param body
+     *            body of the DataFile
+     * @param context
+     *            data the digest depends on besides the body, e.g. the
+     *            canonical DataFile start tag
+     * @return SHA-1 digest or null if not recorded
+     */
+    public byte[] getDigest(ContentBody body, byte[] context) {
+        String key = digestKey(body, context);
+        synchronized (this) {
+            byte[] d = digests.get(key);
+            return (d != null) ? d.clone() : null;
+        }
+    }
+
+    /**
+     * Records a DataFile digest computed over a body
+     *
+     * @param body
+     *            body of the DataFile
+     * @param context
+     *            data the digest depends on besides the body
+     * @param digest
+     *            computed digest
+     */
+    public void putDigest(ContentBody body, byte[] context, byte[] digest) {
+        String key = digestKey(body, context);
+        synchronized (this) {
+            if (digests.containsKey(key)) {
+                return;
+            }
+            digests.put(key, digest.clone());
+            try {
+                appendIndex("d " + key + " " + Base64Util.encode(digest, 0));
+            } catch (IOException ex) {
+                LOG.warn("Cannot update body store index: " + ex);
+            }
+        }
+    }
+
+    private static String digestKey(ContentBody body, byte[] context) {
+        return body.getSha256() + ":" + toHex(sha256().digest(context));
+    }
+
+    /**
+     * Moves a completed temporary file into the store, or drops it if the
+     * content is already stored
+     */
+    private synchronized ContentBody commit(File tmp, String sha256, byte[] sha1, long length) throws IOException {
+        File f = blobFile(sha256);
+        if (f.exists()) {
+            tmp.delete();
+            Metrics.count(Metrics.BODY_DEDUP, length);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("DataFile body already stored: " + sha256);
+            }
+        } else {
+            File parent = f.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                tmp.delete();
+                throw new IOException("Cannot create directory: " + parent);
+            }
+            if (!tmp.renameTo(f)) {
+                tmp.delete();
+                throw new IOException("Cannot move DataFile body to " + f);
+            }
+        }
+        if (!bodies.containsKey(sha256)) {
+            bodies.put(sha256, new Entry(sha1, length));
+            appendIndex("b " + sha256 + " " + Base64Util.encode(sha1, 0) + " " + length);
+        }
+        return new ContentBody(this, f, sha256, sha1, length);
+    }
+
+    private File blobFile(String sha256) {
+        return new File(new File(dir, sha256.substring(0, 2)), sha256);
+    }
+
+    /**
+     * Closes the index file, the store can still be used
+     */
+    public synchronized void close() {
+        if (index != null) {
+            try {
+                index.close();
+            } catch (IOException ex) {
+                LOG.warn("Error closing body store index: " + ex);
+            }
+            index = null;
+        }
+    }
+
+    /**
+     * Sets the size up to which bodies stay on the heap
+     *
+     * @param heapThreshold
+     *            size in bytes, 0 to store all bodies
+     */
+    public void setHeapThreshold(long heapThreshold) {
+        this.heapThreshold = heapThreshold;
+    }
+
+    /**
+     * Returns the store for temporary data that is not a DataFile body, e.g.
+     * serialized DataFiles while writing a container
+     *
+     * @return scratch store, the default store if not set
+     */
+    public BodyStore getScratchStore() {
+        return (scratchStore != null) ? scratchStore : TieredBodyStore.getDefault();
+    }
+
+    public void setScratchStore(BodyStore scratchStore) {
+        this.scratchStore = scratchStore;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (int i = 0; i < b.length; i++) {
+            sb.append(Character.forDigit((b[i] >> 4) & 0xf, 16)).append(Character.forDigit(b[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static final class Entry {
+        final byte[] sha1;
+        final long length;
+
+        Entry(byte[] sha1, long length) {
+            this.sha1 = sha1;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Writes to a temporary file in the store directory and digests the
+     * content on the way
+     */
+    private class HashingSink extends BodySink {
+        private final File file;
+        private final OutputStream out;
+        private final MessageDigest sha256 = sha256();
+        private final MessageDigest sha1;
+        private long length = 0;
+        private boolean done;
+
+        HashingSink() throws IOException {
+            try {
+                sha1 = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+            file = File.createTempFile("body-", ".part", dir);
+            OutputStream os = null;
+            try {
+                os = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+            } finally {
+                if (os == null) {
+                    file.delete();
+                }
+            }
+            out = os;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            sha256.update(b, off, len);
+            sha1.update(b, off, len);
+            length += len;
+        }
+
+        public StoredBody finish() throws IOException {
+            if (done) {
+                throw new IOException("Body sink is closed");
+            }
+            done = true;
+            try {
+                out.close();
+            } catch (IOException ex) {
+                file.delete();
+                throw ex;
+            }
+            return commit(file, toHex(sha256.digest()), sha1.digest(), length);
+        }
+
+        public void close() throws IOException {
+            if (!done) {
+                done = true;
+                try {
+                    out.close();
+                } finally {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Body stored in a content-addressed store. The file is shared by all
+     * DataFiles with the same content and is not deleted on release.
+     */
+    public static final class ContentBody extends RefCountedBody {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient ContentAddressedBodyStore store;
+        private final File file;
+        private final String sha256;
+        private final byte[] sha1;
+        private final long length;
+
+        ContentBody(ContentAddressedBodyStore store, File file, String sha256, byte[] sha1, long length) {
+            super(null);
+            this.store = store;
+            this.file = file;
+            this.sha256 = sha256;
+            this.sha1 = sha1;
+            this.length = length;
+        }
+
+        /**
+         * @return store holding this body, null if deserialized
+         */
+        public ContentAddressedBodyStore getStore() {
+            return store;
+        }
+
+        /**
+         * @return hex encoded SHA-256 of the content, the key of the body
+         */
+        public String getSha256() {
+            return sha256;
+        }
+
+        /**
+         * @return SHA-1 of the content
+         */
+        public byte[] getSha1() {
+            return sha1.clone();
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public InputStream openStream() throws IOException {
+            return new BufferedInputStream(new FileInputStream(file));
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String toString() {
+            return "ContentBody[" + sha256 + "]";
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package ee.sk.digidoc.store;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Body held in a temporary file. The file is deleted when the body is
+ * released or becomes unreachable. A deserialized body refers to the same file
+ * but does not own it.
+ */
+public class DiskBody extends RefCountedBody {
+
+    private static final long serialVersionUID = 1L;
+
+    private final File file;
+
+    /**
+     * Takes ownership of a temporary file
+     * 
+     * @param file
+     *            file holding the content, may still be written to
+     */
+    public DiskBody(File file) {
+        super(new FileResource(file));
+        this.file = file;
+    }
+
+    public long length() {
+        return file.length();
+    }
+
+    public InputStream openStream() throws IOException {
+        checkNotFreed();
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String toString() {
+        return "DiskBody[" + file + "]";
+    }
+
+    private static final class FileResource extends Resource {
+        private static final Logger LOG = Logger.getLogger(DiskBody.class);
+
+        private final File file;
+
+        FileResource(File file) {
+            this.file = file;
+        }
+
+        void doFree() {
+            if (file.exists() && !file.delete()) {
+                LOG.warn("Cannot delete DataFile cache file: " + file);
+            } else if (LOG.isDebugEnabled()) {
+                LOG.debug("Deleted DataFile cache file: " + file);
+            }
+        }
+
+        public String toString() {
+            return file.toString();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package ee.sk.digidoc.store;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Process wide limit for memory used to buffer container content. Parsers and
+ * body stores reserve memory before buffering data; when the budget is
+ * exhausted they either spill to disk or wait until other work releases its
+ * reservation, so a burst of concurrent requests degrades throughput instead
+ * of running out of heap.
+ * <p>
+ * A single reservation larger than the whole budget is admitted only when
+ * nothing else is reserved.
+ */
+public class MemoryBudget {
+
+    private static final Logger LOG = Logger.getLogger(MemoryBudget.class);
+
+    /** reservations grow at least by this amount */
+    private static final long MIN_GROWTH = 64 * 1024;
+
+    private static volatile MemoryBudget defaultBudget = new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+
+    private long maxBytes;
+    private long maxWaitMillis = 30000;
+    private long reserved;
+    private int waiting;
+
+    /**
+     * Creates a budget
+     * 
+     * @param maxBytes
+     *            number of bytes that can be reserved
+     */
+    public MemoryBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return budget shared by the library, a quarter of the maximum heap by
+     *         default
+     */
+    public static MemoryBudget getDefault() {
+        return defaultBudget;
+    }
+
+    /**
+     * Replaces the shared budget
+     * 
+     * @param budget
+     *            new budget
+     */
+    public static void setDefault(MemoryBudget budget) {
+        defaultBudget = budget;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        notifyAll();
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets how long {@link #reserve(long)} waits for memory. Default is 30
+     * seconds.
+     * 
+     * @param millis
+     *            wait time in milliseconds
+     */
+    public synchronized void setMaxWaitMillis(long millis) {
+        this.maxWaitMillis = millis;
+    }
+
+    public synchronized long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * @return number of bytes currently reserved
+     */
+    public synchronized long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * @return number of threads waiting for memory
+     */
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+
+    private boolean fits(long bytes) {
+        return reserved + bytes <= maxBytes || reserved == 0;
+    }
+
+    /**
+     * Reserves memory if available
+     * 
+     * @param bytes
+     *            number of bytes
+     * @return true if reserved
+     */
+    public synchronized boolean tryReserve(long bytes) {
+        if (!fits(bytes)) {
+            return false;
+        }
+        reserved += bytes;
+        return true;
+    }
+
+    /**
+     * Reserves memory, waiting up to maxWaitMillis for other work to release
+     * its reservation
+     * 
+     * @param bytes
+     *            number of bytes
+     * @return true if reserved, false on timeout or interrupt
+     */
+    public synchronized boolean reserve(long bytes) {
+        if (fits(bytes)) {
+            reserved += bytes;
+            return true;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Memory budget exhausted, waiting for " + bytes + " bytes, reserved: " + reserved + " of "
+                    + maxBytes);
+        }
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        waiting++;
+        try {
+            while (!fits(bytes)) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiting--;
+        }
+        reserved += bytes;
+        return true;
+    }
+
+    /**
+     * Returns reserved memory
+     * 
+     * @param bytes
+     *            number of bytes
+     */
+    public synchronized void release(long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * @return new empty lease on this budget
+     */
+    public Lease lease() {
+        return new Lease();
+    }
+
+    /**
+     * Reservation of a growing buffer. Not thread safe, a lease belongs to the
+     * code filling the buffer.
+     */
+    public final class Lease {
+        private long held;
+
+        /**
+         * @return number of bytes held
+         */
+        public long getHeld() {
+            return held;
+        }
+
+        private long growth(long total) {
+            return Math.max(total - held, Math.min(MIN_GROWTH, Math.max(maxBytes - total, 0)));
+        }
+
+        /**
+         * Makes the lease cover the given total if memory is available
+         * 
+         * @param total
+         *            bytes needed in total
+         * @return true if covered
+         */
+        public boolean tryGrow(long total) {
+            if (total <= held) {
+                return true;
+            }
+            long n = growth(total);
+            if (tryReserve(n)) {
+                held += n;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Makes the lease cover the given total, waiting for memory
+         * 
+         * @param total
+         *            bytes needed in total
+         * @return true if covered, false on timeout
+         */
+        public boolean grow(long total) {
+            if (total <= held) {
+                return true;
+            }
+            long n = growth(total);
+            if (reserve(n)) {
+                held += n;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Returns everything held
+         */
+        public void close() {
+            if (held > 0) {
+                release(held);
+                held = 0;
+            }
+        }
+    }
+}
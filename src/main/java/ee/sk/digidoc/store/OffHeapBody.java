@@ -0,0 +1,134 @@
+package ee.sk.digidoc.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Body held in direct byte buffers outside the Java heap. The buffers are
+ * returned to the store pool when the body is released and no stream is
+ * open on it. Serialized as a heap copy.
+ */
+class OffHeapBody extends RefCountedBody {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient BufferResource buffers;
+    private final long length;
+
+    OffHeapBody(BufferResource buffers, long length) {
+        super(buffers);
+        this.buffers = buffers;
+        this.length = length;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public InputStream openStream() throws IOException {
+        checkNotFreed();
+        // the buffers are reused once freed, so the stream holds a reference
+        try {
+            buffers.retain();
+        } catch (IllegalStateException ex) {
+            throw new IOException("DataFile body has been released");
+        }
+        final ByteBuffer[] chunks = buffers.chunks();
+        return new InputStream() {
+            private int idx = 0;
+            private ByteBuffer cur = next();
+            private boolean closed;
+
+            private ByteBuffer next() {
+                return (idx < chunks.length) ? (ByteBuffer) chunks[idx++].duplicate().flip() : null;
+            }
+
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) == 1) ? (b[0] & 0xff) : -1;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                while (cur != null && !cur.hasRemaining()) {
+                    cur = next();
+                }
+                if (cur == null) {
+                    return -1;
+                }
+                int n = Math.min(len, cur.remaining());
+                cur.get(b, off, n);
+                return n;
+            }
+
+            public int available() {
+                return (cur != null && !closed) ? cur.remaining() : 0;
+            }
+
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    cur = null;
+                    buffers.release();
+                }
+            }
+        };
+    }
+
+    public File getFile() {
+        return null;
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        try {
+            return new ByteArrayBody(toByteArray());
+        } catch (IOException ex) {
+            throw new java.io.NotSerializableException("Released DataFile body: " + ex.getMessage());
+        }
+    }
+
+    public String toString() {
+        return "OffHeapBody[" + length + " bytes]";
+    }
+
+    /**
+     * Direct buffers of a body, each filled from position 0 to its position
+     */
+    static final class BufferResource extends Resource {
+        private final TieredBodyStore store;
+        private final MemoryBudget budget;
+        private volatile ByteBuffer[] chunks;
+
+        BufferResource(TieredBodyStore store, MemoryBudget budget, List<ByteBuffer> chunks) {
+            this.store = store;
+            this.budget = budget;
+            this.chunks = chunks.toArray(new ByteBuffer[chunks.size()]);
+        }
+
+        ByteBuffer[] chunks() throws IOException {
+            ByteBuffer[] c = chunks;
+            if (c == null) {
+                throw new IOException("DataFile body has been released");
+            }
+            return c;
+        }
+
+        void doFree() {
+            ByteBuffer[] c = chunks;
+            chunks = null;
+            store.releaseChunks(Arrays.asList(c), budget);
+        }
+
+        public String toString() {
+            ByteBuffer[] c = chunks;
+            return "off-heap " + ((c != null) ? c.length : 0) + " buffers";
+        }
+    }
+}
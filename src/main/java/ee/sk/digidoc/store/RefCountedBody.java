@@ -0,0 +1,113 @@
+package ee.sk.digidoc.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base class of bodies whose storage is freed by reference counting, with the
+ * {@link ResourceCleaner} as a safety net for bodies that are never released.
+ */
+abstract class RefCountedBody implements StoredBody {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient Resource resource;
+
+    /**
+     * @param resource
+     *            storage owned by this body, null if the body does not own
+     *            its storage
+     */
+    RefCountedBody(Resource resource) {
+        this.resource = resource;
+        if (resource != null) {
+            ResourceCleaner.register(this, resource);
+        }
+    }
+
+    public StoredBody retain() {
+        if (resource != null) {
+            resource.retain();
+        }
+        return this;
+    }
+
+    public void release() {
+        if (resource != null) {
+            resource.release();
+        }
+    }
+
+    /**
+     * @throws IOException
+     *             if the storage has been freed
+     */
+    void checkNotFreed() throws IOException {
+        if (resource != null && resource.isFreed()) {
+            throw new IOException("DataFile body has been released");
+        }
+    }
+
+    public byte[] toByteArray() throws IOException {
+        long len = length();
+        if (len > Integer.MAX_VALUE - 8) {
+            throw new IOException("DataFile body too large for a byte array: " + len);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream((int) len);
+        InputStream is = openStream();
+        try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                bos.write(buf, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Storage of a body. Must not refer to the body object, otherwise the body
+     * never becomes unreachable.
+     */
+    abstract static class Resource {
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private final AtomicBoolean freed = new AtomicBoolean();
+
+        void retain() {
+            if (refs.getAndIncrement() <= 0) {
+                refs.decrementAndGet();
+                throw new IllegalStateException("DataFile body has been released");
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                free();
+            }
+        }
+
+        boolean isFreed() {
+            return freed.get();
+        }
+
+        /**
+         * Frees the storage once
+         * 
+         * @return true if this call freed the storage
+         */
+        boolean free() {
+            if (freed.compareAndSet(false, true)) {
+                doFree();
+                return true;
+            }
+            return false;
+        }
+
+        abstract void doFree();
+    }
+}
@@ -0,0 +1,76 @@
+package ee.sk.digidoc.store;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Frees the storage of bodies that became unreachable without being released.
+ * A daemon thread waits on a reference queue of phantom references to the
+ * bodies and frees the associated {@link RefCountedBody.Resource}.
+ */
+final class ResourceCleaner {
+
+    private static final Logger LOG = Logger.getLogger(ResourceCleaner.class);
+
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+    /** keeps the phantom references reachable until they are enqueued */
+    private static final Set<Cleanable> PENDING = Collections.synchronizedSet(Collections
+            .newSetFromMap(new IdentityHashMap<Cleanable, Boolean>()));
+
+    static {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Reference<?> ref = QUEUE.remove();
+                        ((Cleanable) ref).clean();
+                    } catch (InterruptedException ex) {
+                        // keep running, the thread is a daemon
+                    } catch (RuntimeException ex) {
+                        LOG.warn("Error freeing DataFile body: " + ex);
+                    }
+                }
+            }
+        }, "jdigidoc-body-cleaner");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private ResourceCleaner() {
+    }
+
+    /**
+     * Frees the resource when the owner becomes unreachable. The resource must
+     * not refer to the owner.
+     * 
+     * @param owner
+     *            object holding the resource
+     * @param resource
+     *            storage to be freed
+     */
+    static void register(Object owner, RefCountedBody.Resource resource) {
+        PENDING.add(new Cleanable(owner, resource));
+    }
+
+    private static final class Cleanable extends PhantomReference<Object> {
+        private final RefCountedBody.Resource resource;
+
+        Cleanable(Object owner, RefCountedBody.Resource resource) {
+            super(owner, QUEUE);
+            this.resource = resource;
+        }
+
+        void clean() {
+            PENDING.remove(this);
+            if (resource.free() && LOG.isDebugEnabled()) {
+                LOG.debug("Freed unreleased DataFile body: " + resource);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package ee.sk.digidoc.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+
+/**
+ * Content held by a {@link BodyStore}. The storage is reference counted: it is
+ * freed when the last owner calls {@link #release()}, or when the object
+ * becomes unreachable.
+ */
+public interface StoredBody extends Serializable {
+
+    /**
+     * @return content length in bytes
+     */
+    long length();
+
+    /**
+     * Opens a stream over the content
+     * 
+     * @return content stream
+     * @throws IOException
+     *             if the body has been released or cannot be read
+     */
+    InputStream openStream() throws IOException;
+
+    /**
+     * Reads the whole content
+     * 
+     * @return content
+     * @throws IOException
+     *             if the body has been released or cannot be read
+     */
+    byte[] toByteArray() throws IOException;
+
+    /**
+     * @return file holding the content, null if the body is not on disk
+     */
+    File getFile();
+
+    /**
+     * Adds an owner
+     * 
+     * @return this body
+     */
+    StoredBody retain();
+
+    /**
+     * Removes an owner, the storage is freed when the last one is gone
+     */
+    void release();
+}
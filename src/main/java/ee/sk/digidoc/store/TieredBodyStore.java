@@ -0,0 +1,422 @@
+package ee.sk.digidoc.store;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import ee.sk.digidoc.metrics.Metrics;
+
+/**
+ * Default body store with three tiers:
+ * <ul>
+ * <li>bodies up to heapThreshold bytes stay in heap byte arrays</li>
+ * <li>bodies up to offHeapThreshold bytes are kept in direct byte buffers, as
+ * long as the total stays within maxOffHeapBytes and the {@link MemoryBudget}
+ * </li>
+ * <li>larger bodies are written to temporary files in tempDir</li>
+ * </ul>
+ * A body whose size is not known in advance starts off-heap and is moved to
+ * disk when it grows past the threshold or the off-heap budget runs out.
+ * Storage is freed when a body is released or becomes unreachable, so
+ * temporary files do not pile up in long running processes.
+ * <p>
+ * Direct buffers of released bodies go to a pool of up to maxPooledBytes and
+ * are reused by later bodies. Pooled buffers stay reserved against
+ * maxOffHeapBytes and the memory budget until {@link #trimPool()} is called.
+ * Buffers that do not fit in the pool are left to the garbage collector.
+ */
+public class TieredBodyStore implements BodyStore {
+
+    private static final Logger LOG = Logger.getLogger(TieredBodyStore.class);
+
+    /** size of one direct buffer */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static volatile BodyStore defaultStore = new TieredBodyStore();
+
+    private long heapThreshold = 4096;
+    private long offHeapThreshold = 1024 * 1024;
+    private long maxOffHeapBytes = 64L * 1024 * 1024;
+    private File tempDir;
+    private MemoryBudget memoryBudget;
+    private long maxPooledBytes = 4L * 1024 * 1024;
+    private final AtomicLong offHeapInUse = new AtomicLong();
+    /** buffers ready for reuse, guarded by itself */
+    private final ArrayDeque<Chunk> pool = new ArrayDeque<Chunk>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    /**
+     * @return store used by DataFiles that have no store of their own
+     */
+    public static BodyStore getDefault() {
+        return defaultStore;
+    }
+
+    /**
+     * Sets the store used by DataFiles that have no store of their own
+     * 
+     * @param store
+     *            new default store
+     */
+    public static void setDefault(BodyStore store) {
+        defaultStore = (store != null) ? store : new TieredBodyStore();
+    }
+
+    /**
+     * Sets the largest body kept in a heap byte array. Default is 4096.
+     * 
+     * @param bytes
+     *            size limit
+     */
+    public void setHeapThreshold(long bytes) {
+        this.heapThreshold = bytes;
+    }
+
+    public long getHeapThreshold() {
+        return heapThreshold;
+    }
+
+    /**
+     * Sets the largest body kept in direct buffers. 0 disables the off-heap
+     * tier. Default is 1MB.
+     * 
+     * @param bytes
+     *            size limit
+     */
+    public void setOffHeapThreshold(long bytes) {
+        this.offHeapThreshold = bytes;
+    }
+
+    public long getOffHeapThreshold() {
+        return offHeapThreshold;
+    }
+
+    /**
+     * Sets the total size of direct buffers held by this store, including
+     * pooled buffers. Default is 64MB.
+     * 
+     * @param bytes
+     *            size limit
+     */
+    public void setMaxOffHeapBytes(long bytes) {
+        this.maxOffHeapBytes = bytes;
+    }
+
+    public long getMaxOffHeapBytes() {
+        return maxOffHeapBytes;
+    }
+
+    /**
+     * @return direct buffer bytes currently held by bodies of this store
+     */
+    public long getOffHeapInUse() {
+        return offHeapInUse.get();
+    }
+
+    /**
+     * Sets the total size of direct buffers kept for reuse after their bodies
+     * are released. 0 disables pooling. Default is 4MB.
+     * 
+     * @param bytes
+     *            size limit
+     */
+    public void setMaxPooledBytes(long bytes) {
+        this.maxPooledBytes = bytes;
+    }
+
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    /**
+     * @return direct buffer bytes kept for reuse
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Drops all pooled buffers and returns their reservations to the memory
+     * budget
+     */
+    public void trimPool() {
+        List<Chunk> dropped;
+        synchronized (pool) {
+            dropped = new ArrayList<Chunk>(pool);
+            pool.clear();
+            pooledBytes.addAndGet(-(long) dropped.size() * CHUNK_SIZE);
+        }
+        for (Chunk c : dropped) {
+            c.budget.release(CHUNK_SIZE);
+        }
+    }
+
+    /**
+     * Sets the directory of temporary files. Default is java.io.tmpdir.
+     * 
+     * @param dir
+     *            directory
+     */
+    public void setTempDir(File dir) {
+        this.tempDir = dir;
+    }
+
+    public File getTempDir() {
+        return tempDir;
+    }
+
+    /**
+     * Sets the budget that direct buffers are reserved against. Default is
+     * the shared {@link MemoryBudget#getDefault()}.
+     * 
+     * @param budget
+     *            memory budget
+     */
+    public void setMemoryBudget(MemoryBudget budget) {
+        this.memoryBudget = budget;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return (memoryBudget != null) ? memoryBudget : MemoryBudget.getDefault();
+    }
+
+    public boolean keepOnHeap(long size) {
+        return size <= heapThreshold;
+    }
+
+    public File createTempFile() throws IOException {
+        return File.createTempFile("jdigidoc-", ".df", tempDir);
+    }
+
+    public BodySink create(long expectedSize) throws IOException {
+        if (expectedSize > offHeapThreshold || offHeapThreshold <= 0) {
+            return new DiskSink();
+        }
+        return new OffHeapSink();
+    }
+
+    /**
+     * Takes a buffer from the pool or allocates a new one
+     * 
+     * @param budget
+     *            budget the buffer is reserved against
+     * @return empty buffer of CHUNK_SIZE bytes, null if the limits are reached
+     */
+    private ByteBuffer allocateChunk(MemoryBudget budget) {
+        synchronized (pool) {
+            Chunk c = pool.pollLast();
+            if (c != null) {
+                if (c.budget != budget) {
+                    if (!budget.tryReserve(CHUNK_SIZE)) {
+                        pool.addLast(c);
+                        return null;
+                    }
+                    c.budget.release(CHUNK_SIZE);
+                }
+                pooledBytes.addAndGet(-CHUNK_SIZE);
+                offHeapInUse.addAndGet(CHUNK_SIZE);
+                return c.buffer;
+            }
+        }
+        long cur;
+        do {
+            cur = offHeapInUse.get();
+            if (cur + pooledBytes.get() + CHUNK_SIZE > maxOffHeapBytes) {
+                return null;
+            }
+        } while (!offHeapInUse.compareAndSet(cur, cur + CHUNK_SIZE));
+        if (!budget.tryReserve(CHUNK_SIZE)) {
+            offHeapInUse.addAndGet(-CHUNK_SIZE);
+            return null;
+        }
+        return ByteBuffer.allocateDirect(CHUNK_SIZE);
+    }
+
+    /**
+     * Returns buffers that are no longer used to the pool
+     * 
+     * @param chunks
+     *            buffers allocated by {@link #allocateChunk(MemoryBudget)}
+     * @param budget
+     *            budget the buffers are reserved against
+     */
+    void releaseChunks(List<ByteBuffer> chunks, MemoryBudget budget) {
+        long dropped = 0;
+        synchronized (pool) {
+            for (ByteBuffer bb : chunks) {
+                offHeapInUse.addAndGet(-CHUNK_SIZE);
+                if (pooledBytes.get() + CHUNK_SIZE <= maxPooledBytes) {
+                    bb.clear();
+                    pool.addLast(new Chunk(bb, budget));
+                    pooledBytes.addAndGet(CHUNK_SIZE);
+                } else {
+                    dropped += CHUNK_SIZE;
+                }
+            }
+        }
+        if (dropped > 0) {
+            budget.release(dropped);
+        }
+    }
+
+    private static final class Chunk {
+        final ByteBuffer buffer;
+        final MemoryBudget budget;
+
+        Chunk(ByteBuffer buffer, MemoryBudget budget) {
+            this.buffer = buffer;
+            this.budget = budget;
+        }
+    }
+
+    /**
+     * Writes to direct buffers and switches to a temporary file when the
+     * content does not fit
+     */
+    private class OffHeapSink extends BodySink {
+        private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        private final MemoryBudget budget = getMemoryBudget();
+        private long length = 0;
+        private DiskSink disk;
+        private boolean done;
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                throw new IOException("Body sink is closed");
+            }
+            if (disk == null && length + len > offHeapThreshold) {
+                spill();
+            }
+            if (disk != null) {
+                disk.write(b, off, len);
+                return;
+            }
+            while (len > 0) {
+                ByteBuffer cur = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+                if (cur == null || !cur.hasRemaining()) {
+                    cur = allocateChunk(budget);
+                    if (cur == null) {
+                        spill();
+                        disk.write(b, off, len);
+                        return;
+                    }
+                    chunks.add(cur);
+                }
+                int n = Math.min(len, cur.remaining());
+                cur.put(b, off, n);
+                off += n;
+                len -= n;
+                length += n;
+            }
+        }
+
+        private void spill() throws IOException {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("DataFile body exceeds off-heap limits after " + length + " bytes, moving to disk");
+            }
+            disk = new DiskSink();
+            byte[] buf = new byte[CHUNK_SIZE];
+            for (ByteBuffer bb : chunks) {
+                ByteBuffer src = (ByteBuffer) bb.duplicate().flip();
+                int n = src.remaining();
+                src.get(buf, 0, n);
+                disk.write(buf, 0, n);
+            }
+            freeChunks();
+        }
+
+        private void freeChunks() {
+            releaseChunks(chunks, budget);
+            chunks.clear();
+        }
+
+        public StoredBody finish() throws IOException {
+            if (done) {
+                throw new IOException("Body sink is closed");
+            }
+            done = true;
+            if (disk != null) {
+                return disk.finish();
+            }
+            return new OffHeapBody(new OffHeapBody.BufferResource(TieredBodyStore.this, budget, chunks), length);
+        }
+
+        public void close() throws IOException {
+            if (!done) {
+                done = true;
+                freeChunks();
+                if (disk != null) {
+                    disk.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes to a temporary file
+     */
+    private class DiskSink extends BodySink {
+        private final File file;
+        private final OutputStream out;
+        private long length = 0;
+        private boolean done;
+
+        DiskSink() throws IOException {
+            file = createTempFile();
+            OutputStream os = null;
+            try {
+                os = new BufferedOutputStream(new FileOutputStream(file), CHUNK_SIZE);
+            } finally {
+                if (os == null) {
+                    file.delete();
+                }
+            }
+            out = os;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("DataFile cache file: " + file.getAbsolutePath());
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            length += len;
+        }
+
+        public StoredBody finish() throws IOException {
+            if (done) {
+                throw new IOException("Body sink is closed");
+            }
+            done = true;
+            // own the file before closing, so that it is deleted on failure
+            DiskBody body = new DiskBody(file);
+            try {
+                out.close();
+            } catch (IOException ex) {
+                body.release();
+                throw ex;
+            }
+            Metrics.count(Metrics.TEMPFILE_SPILL, length);
+            return body;
+        }
+
+        public void close() throws IOException {
+            if (!done) {
+                done = true;
+                try {
+                    out.close();
+                } finally {
+                    file.delete();
+                }
+            }
+        }
+    }
+}
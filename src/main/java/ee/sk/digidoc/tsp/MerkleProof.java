@@ -0,0 +1,111 @@
+package ee.sk.digidoc.tsp;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Inclusion proof of a digest in a {@link MerkleTree}: the sibling hashes on
+ * the path from the leaf to the root. The encoded form is a version octet,
+ * the number of steps and for each step a side octet (1 if the sibling is on
+ * the left) followed by the 32 byte sibling hash.
+ */
+public final class MerkleProof {
+
+    private static final int VERSION = 1;
+    private static final int HASH_LEN = 32;
+
+    private final byte[][] siblings;
+    private final boolean[] left;
+
+    MerkleProof(byte[][] siblings, boolean[] left) {
+        this.siblings = siblings;
+        this.left = left;
+    }
+
+    /**
+     * Returns the root of the tree a digest belongs to according to this
+     * proof
+     *
+     * @param digest
+     *            covered digest
+     * @return SHA-256 root
+     */
+    public byte[] computeRoot(byte[] digest) {
+        byte[] h = MerkleTree.leafHash(digest);
+        for (int i = 0; i < siblings.length; i++) {
+            h = left[i] ? MerkleTree.nodeHash(siblings[i], h) : MerkleTree.nodeHash(h, siblings[i]);
+        }
+        return h;
+    }
+
+    /**
+     * Checks that a digest is covered by a root
+     *
+     * @param digest
+     *            covered digest
+     * @param root
+     *            stamped root
+     * @return true if the proof links the digest to the root
+     */
+    public boolean verify(byte[] digest, byte[] root) {
+        return MessageDigest.isEqual(computeRoot(digest), root);
+    }
+
+    /**
+     * Returns the number of steps from the leaf to the root
+     *
+     * @return path length
+     */
+    public int length() {
+        return siblings.length;
+    }
+
+    /**
+     * Returns the encoded proof
+     *
+     * @return encoded form, see the class description
+     */
+    public byte[] getEncoded() {
+        byte[] b = new byte[2 + siblings.length * (1 + HASH_LEN)];
+        b[0] = VERSION;
+        b[1] = (byte) siblings.length;
+        int p = 2;
+        for (int i = 0; i < siblings.length; i++) {
+            b[p++] = (byte) (left[i] ? 1 : 0);
+            System.arraycopy(siblings[i], 0, b, p, HASH_LEN);
+            p += HASH_LEN;
+        }
+        return b;
+    }
+
+    /**
+     * Decodes a proof
+     *
+     * @param encoded
+     *            value returned by getEncoded()
+     * @return proof
+     * @throws IllegalArgumentException
+     *             if the encoding is invalid
+     */
+    public static MerkleProof decode(byte[] encoded) {
+        if (encoded == null || encoded.length < 2 || encoded[0] != VERSION) {
+            throw new IllegalArgumentException("unsupported Merkle proof");
+        }
+        int n = encoded[1] & 0xff;
+        if (encoded.length != 2 + n * (1 + HASH_LEN)) {
+            throw new IllegalArgumentException("invalid Merkle proof length");
+        }
+        byte[][] siblings = new byte[n][];
+        boolean[] left = new boolean[n];
+        int p = 2;
+        for (int i = 0; i < n; i++) {
+            if (encoded[p] != 0 && encoded[p] != 1) {
+                throw new IllegalArgumentException("invalid Merkle proof step");
+            }
+            left[i] = encoded[p++] == 1;
+            siblings[i] = Arrays.copyOfRange(encoded, p, p + HASH_LEN);
+            p += HASH_LEN;
+        }
+        return new MerkleProof(siblings, left);
+    }
+}
@@ -0,0 +1,119 @@
+package ee.sk.digidoc.tsp;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SHA-256 Merkle tree over a batch of digests, used to cover many digests
+ * with one timestamp. Leaves and inner nodes are hashed with different
+ * prefixes as in RFC 6962, so a leaf cannot be passed off as an inner node.
+ * A node without a sibling is promoted to the next level unchanged.
+ */
+public final class MerkleTree {
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    /** levels of the tree, leaves first, the last level holds the root */
+    private final List<byte[][]> levels = new ArrayList<byte[][]>();
+
+    /**
+     * Builds the tree
+     *
+     * @param digests
+     *            digests to cover, at least one
+     */
+    public MerkleTree(List<byte[]> digests) {
+        if (digests.isEmpty()) {
+            throw new IllegalArgumentException("no digests");
+        }
+        byte[][] level = new byte[digests.size()][];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = leafHash(digests.get(i));
+        }
+        levels.add(level);
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < next.length; i++) {
+                int l = 2 * i;
+                next[i] = (l + 1 < level.length) ? nodeHash(level[l], level[l + 1]) : level[l];
+            }
+            levels.add(next);
+            level = next;
+        }
+    }
+
+    /**
+     * Returns the root hash
+     *
+     * @return SHA-256 root
+     */
+    public byte[] getRoot() {
+        return levels.get(levels.size() - 1)[0].clone();
+    }
+
+    /**
+     * Returns the number of leaves
+     *
+     * @return number of digests
+     */
+    public int size() {
+        return levels.get(0).length;
+    }
+
+    /**
+     * Returns the inclusion proof of a digest
+     *
+     * @param index
+     *            position of the digest in the list passed to the constructor
+     * @return path from the leaf to the root
+     */
+    public MerkleProof getProof(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("leaf " + index);
+        }
+        List<byte[]> siblings = new ArrayList<byte[]>();
+        List<Boolean> left = new ArrayList<Boolean>();
+        for (int k = 0; k < levels.size() - 1; k++) {
+            byte[][] level = levels.get(k);
+            if ((index & 1) == 1) {
+                siblings.add(level[index - 1]);
+                left.add(Boolean.TRUE);
+            } else if (index + 1 < level.length) {
+                siblings.add(level[index + 1]);
+                left.add(Boolean.FALSE);
+            }
+            index >>= 1;
+        }
+        boolean[] sides = new boolean[left.size()];
+        for (int i = 0; i < sides.length; i++) {
+            sides[i] = left.get(i).booleanValue();
+        }
+        return new MerkleProof(siblings.toArray(new byte[siblings.size()][]), sides);
+    }
+
+    static byte[] leafHash(byte[] digest) {
+        MessageDigest sha = sha256();
+        sha.update(LEAF);
+        sha.update(digest);
+        return sha.digest();
+    }
+
+    static byte[] nodeHash(byte[] left, byte[] right) {
+        MessageDigest sha = sha256();
+        sha.update(NODE);
+        sha.update(left);
+        sha.update(right);
+        return sha.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
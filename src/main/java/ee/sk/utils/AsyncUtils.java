@@ -0,0 +1,169 @@
+/*
+ * AsyncUtils.java
+ * PROJECT: JDigiDoc
+ * DESCRIPTION: Digi Doc functions for creating
+ *	and reading signed documents.
+ *==================================================
+ * Copyright (C) AS Sertifitseerimiskeskus
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * GNU Lesser General Public Licence is available at
+ * http://www.gnu.org/copyleft/lesser.html
+ *==================================================
+ */
+
+package ee.sk.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+import ee.sk.digidoc.DigiDocException;
+
+/**
+ * Helpers for the CompletableFuture based variants of the service methods.
+ * Futures returned by the library complete exceptionally with the same
+ * DigiDocException the blocking method would have thrown.
+ */
+public final class AsyncUtils {
+
+    private static final ScheduledExecutorService TIMER;
+
+    static {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "jdigidoc-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        TIMER = timer;
+    }
+
+    private AsyncUtils() {
+    }
+
+    /**
+     * Runs the task on the given executor
+     *
+     * @param task
+     *            task to run
+     * @param executor
+     *            executor to run it on
+     * @return future completed with the result or the exception of the task
+     */
+    public static <T> CompletableFuture<T> supplyAsync(final Callable<T> task, Executor executor) {
+        final CompletableFuture<T> f = new CompletableFuture<T>();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    if (f.isDone()) {
+                        return;
+                    }
+                    try {
+                        f.complete(task.call());
+                    } catch (Throwable ex) {
+                        f.completeExceptionally(ex);
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            f.completeExceptionally(ex);
+        }
+        return f;
+    }
+
+    /**
+     * Calls the task from within a CompletableFuture stage, wrapping checked
+     * exceptions in CompletionException
+     *
+     * @param task
+     *            task to call
+     * @return result of the task
+     */
+    public static <T> T call(Callable<T> task) {
+        try {
+            return task.call();
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    /**
+     * Returns a future that has already failed
+     *
+     * @param ex
+     *            failure
+     * @return failed future
+     */
+    public static <T> CompletableFuture<T> failed(Throwable ex) {
+        CompletableFuture<T> f = new CompletableFuture<T>();
+        f.completeExceptionally(ex);
+        return f;
+    }
+
+    /**
+     * Strips CompletionException and ExecutionException wrappers
+     *
+     * @param ex
+     *            exception from a future
+     * @return the original failure
+     */
+    public static Throwable unwrap(Throwable ex) {
+        while ((ex instanceof CompletionException || ex instanceof ExecutionException) && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        return ex;
+    }
+
+    /**
+     * Waits for the future and rethrows its failure as DigiDocException. Meant
+     * for bridging the asynchronous methods back to blocking code.
+     *
+     * @param future
+     *            future to wait for
+     * @param code
+     *            error code used for failures that are not DigiDocExceptions
+     * @return result of the future
+     * @throws DigiDocException
+     *             the failure of the future
+     */
+    public static <T> T join(CompletableFuture<T> future, int code) throws DigiDocException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DigiDocException(code, "Interrupted", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = unwrap(ex);
+            if (cause instanceof DigiDocException) {
+                throw (DigiDocException) cause;
+            }
+            throw new DigiDocException(code, cause.toString(), cause);
+        }
+    }
+
+    /**
+     * Returns the shared daemon timer used for timeouts and delayed tasks.
+     * Scheduled tasks must be short and must not block.
+     *
+     * @return timer
+     */
+    public static ScheduledExecutorService timer() {
+        return TIMER;
+    }
+}
@@ -0,0 +1,130 @@
+package ee.sk.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Streaming conversion of text data from one charset to another. Bytes of a
+ * multi-byte sequence that is split between two blocks are carried over to
+ * the next block, so the result does not depend on how the input is divided.
+ * Malformed and unmappable input is replaced like in
+ * <code>new String(data, charset).getBytes(charset)</code>.
+ * <p>
+ * An instance can be reused after {@link #finish(OutputStream)} but is not
+ * thread safe.
+ */
+public class CharsetTranscoder {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final CharsetDecoder decoder;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE * 3);
+
+    /**
+     * Creates a transcoder
+     * 
+     * @param from
+     *            charset of the input data
+     * @param to
+     *            charset of the output data
+     * @throws IllegalArgumentException
+     *             if a charset is not supported
+     */
+    public CharsetTranscoder(String from, String to) {
+        decoder = Charset.forName(from).newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        encoder = Charset.forName(to).newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Converts a block of input data. Incomplete characters at the end of the
+     * block are kept until the next call.
+     * 
+     * @param data
+     *            input data
+     * @param off
+     *            offset of the block
+     * @param len
+     *            length of the block
+     * @param os
+     *            receives the converted data
+     * @throws IOException
+     *             for write errors
+     */
+    public void transcode(byte[] data, int off, int len, OutputStream os) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, in.remaining());
+            in.put(data, off, n);
+            off += n;
+            len -= n;
+            in.flip();
+            decode(os, false);
+            in.compact();
+        }
+    }
+
+    /**
+     * Converts the remaining input and resets the transcoder
+     * 
+     * @param os
+     *            receives the converted data
+     * @throws IOException
+     *             for write errors
+     */
+    public void finish(OutputStream os) throws IOException {
+        in.flip();
+        decode(os, true);
+        while (decoder.flush(chars).isOverflow()) {
+            encode(os, false);
+        }
+        encode(os, true);
+        while (encoder.flush(out).isOverflow()) {
+            drain(os);
+        }
+        drain(os);
+        in.clear();
+        chars.clear();
+        decoder.reset();
+        encoder.reset();
+    }
+
+    private void decode(OutputStream os, boolean endOfInput) throws IOException {
+        CoderResult r;
+        do {
+            r = decoder.decode(in, chars, endOfInput);
+            encode(os, false);
+        } while (r.isOverflow());
+    }
+
+    /**
+     * Encodes the decoded characters, a trailing high surrogate stays in the
+     * buffer unless this is the end of input
+     */
+    private void encode(OutputStream os, boolean endOfInput) throws IOException {
+        chars.flip();
+        CoderResult r;
+        do {
+            r = encoder.encode(chars, out, endOfInput);
+            drain(os);
+        } while (r.isOverflow());
+        chars.compact();
+    }
+
+    private void drain(OutputStream os) throws IOException {
+        if (out.position() > 0) {
+            os.write(out.array(), 0, out.position());
+            out.clear();
+        }
+    }
+}
@@ -43,6 +43,39 @@ public class ConvertUtils {
     private static final String m_dateFormat = "yyyy.MM.dd'T'HH:mm:ss'Z'";
     private static final String m_dateFormatXAdES = "yyyy-MM-dd'T'HH:mm:ss'Z'";
     
+    /** length of the fixed width date forms above */
+    private static final int DATE_LEN = 20;
+    private static final long MILLIS_PER_DAY = 86400000L;
+    /**
+     * first year handled by the fixed width code. SimpleDateFormat uses the
+     * Julian calendar before 1582-10-15, the fixed width code is Gregorian only
+     */
+    private static final int FIRST_GREGORIAN_YEAR = 1583;
+    
+    /**
+     * Checks if the container uses the XAdES date form
+     * @param ddoc signed doc
+     * @return true for XAdES (yyyy-MM-dd) and false for legacy (yyyy.MM.dd)
+     */
+    private static boolean isXAdESDate(SignedDoc ddoc) {
+        return ddoc.getVersion().equals(SignedDoc.VERSION_1_3) 
+            || ddoc.getVersion().equals(SignedDoc.VERSION_1_4) 
+            || ddoc.getFormat().equals(SignedDoc.FORMAT_BDOC);
+    }
+    
+    /**
+     * Creates a formatter for the uncommon cases the fixed
+     * width code does not handle (years outside 1583-9999,
+     * lenient parsing of malformed input).
+     * @param xades true for XAdES date form
+     * @return new formatter in GMT
+     */
+    private static SimpleDateFormat slowFormat(boolean xades) {
+        SimpleDateFormat f = new SimpleDateFormat(xades ? m_dateFormatXAdES : m_dateFormat);
+        f.setTimeZone(TimeZone.getTimeZone("GMT+00:00"));
+        return f;
+    }
+    
     /**
      * Helper method to convert a Date
      * object to xsd:date format
@@ -52,17 +85,46 @@ public class ConvertUtils {
      * @throws DigiDocException for errors
      */
     public static String date2string(Date d, SignedDoc ddoc) {
-        String str = null;
-        
-        SimpleDateFormat f = new SimpleDateFormat(((ddoc.getVersion().equals(SignedDoc.VERSION_1_3) 
-                  || ddoc.getVersion().equals(SignedDoc.VERSION_1_4) 
-                  || ddoc.getFormat().equals(SignedDoc.FORMAT_BDOC)) ? m_dateFormatXAdES : m_dateFormat));
-        
-        f.setTimeZone(TimeZone.getTimeZone("GMT+00:00"));
-        str = f.format(d);
-        return str;
+        boolean xades = isXAdESDate(ddoc);
+        long millis = d.getTime();
+        long days = Math.floorDiv(millis, MILLIS_PER_DAY);
+        int secs = (int)(Math.floorMod(millis, MILLIS_PER_DAY) / 1000);
+        // civil date from days since epoch (H. Hinnant)
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int)(doy - (153 * mp + 2) / 5 + 1);
+        int month = (int)(mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < FIRST_GREGORIAN_YEAR || year > 9999) {
+            return slowFormat(xades).format(d);
+        }
+        char sep = xades ? '-' : '.';
+        char[] buf = new char[DATE_LEN];
+        put(buf, 0, (int)year, 4);
+        buf[4] = sep;
+        put(buf, 5, month, 2);
+        buf[7] = sep;
+        put(buf, 8, day, 2);
+        buf[10] = 'T';
+        put(buf, 11, secs / 3600, 2);
+        buf[13] = ':';
+        put(buf, 14, (secs / 60) % 60, 2);
+        buf[16] = ':';
+        put(buf, 17, secs % 60, 2);
+        buf[19] = 'Z';
+        return new String(buf);
     }
     
+    private static void put(char[] buf, int pos, int value, int width) {
+        for (int i = pos + width - 1; i >= pos; i--) {
+            buf[i] = (char)('0' + value % 10);
+            value /= 10;
+        }
+    }
     
     /**
      * Helper method to convert a string
@@ -73,21 +135,87 @@ public class ConvertUtils {
      * @throws DigiDocException for errors
      */
     public static Date string2date(String str, SignedDoc ddoc) throws DigiDocException {
+        return string2date(str, isXAdESDate(ddoc));
+    }
+    
+    /**
+     * Converts a string in yyyy-MM-dd'T'HH:mm:ss'Z' (XAdES) or
+     * yyyy.MM.dd'T'HH:mm:ss'Z' (legacy DDOC) form to a Date.
+     * The fixed width form is parsed without intermediate objects,
+     * anything else goes through the lenient SimpleDateFormat path.
+     * @param str stringified date, may be surrounded by whitespace
+     * @param xades true for XAdES date form
+     * @return Date object or null for empty input
+     * @throws DigiDocException for errors
+     */
+    public static Date string2date(CharSequence str, boolean xades) throws DigiDocException {
+        if (str == null) {
+            return null;
+        }
+        int from = 0, to = str.length();
+        while (from < to && str.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && str.charAt(to - 1) <= ' ') {
+            to--;
+        }
+        if (from == to) {
+            return null;
+        }
+        long millis = (to - from == DATE_LEN) ? parseFixed(str, from, xades ? '-' : '.') : -1;
+        if (millis != -1) {
+            return new Date(millis);
+        }
         Date d = null;
         try {
-            SimpleDateFormat f = new SimpleDateFormat(
-            	((ddoc.getVersion().equals(SignedDoc.VERSION_1_3) ||
-                  ddoc.getVersion().equals(SignedDoc.VERSION_1_4)) ||
-                //IS FIX date format
-                	ddoc.getFormat().equals(SignedDoc.FORMAT_BDOC)) ? m_dateFormatXAdES : m_dateFormat);
-            f.setTimeZone(TimeZone.getTimeZone("GMT+00:00"));
-            if(str != null && str.length() > 0)
-            	d = f.parse(str.trim());
+            d = slowFormat(xades).parse(str.subSequence(from, to).toString());
         } catch(Exception ex) {
             DigiDocException.handleException(ex, DigiDocException.ERR_DATE_FORMAT);
         }
         return d;
     }
+    
+    /**
+     * Parses the fixed width date form
+     * @return milliseconds since epoch or -1 if the input
+     * does not strictly match the expected layout
+     */
+    private static long parseFixed(CharSequence s, int off, char sep) {
+        if (s.charAt(off + 4) != sep || s.charAt(off + 7) != sep || s.charAt(off + 10) != 'T'
+                || s.charAt(off + 13) != ':' || s.charAt(off + 16) != ':' || s.charAt(off + 19) != 'Z') {
+            return -1;
+        }
+        int year = digits(s, off, 4);
+        int month = digits(s, off + 5, 2);
+        int day = digits(s, off + 8, 2);
+        int hour = digits(s, off + 11, 2);
+        int min = digits(s, off + 14, 2);
+        int sec = digits(s, off + 17, 2);
+        if (year < FIRST_GREGORIAN_YEAR || month < 1 || month > 12 || day < 1 || day > 31
+                || hour < 0 || hour > 23 || min < 0 || min > 59 || sec < 0 || sec > 59) {
+            return -1; // out of range values and Julian dates are left to the lenient parser
+        }
+        // days since epoch from civil date (H. Hinnant)
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        long days = era * 146097L + doe - 719468;
+        return days * MILLIS_PER_DAY + (hour * 3600 + min * 60 + sec) * 1000L;
+    }
+    
+    private static int digits(CharSequence s, int off, int len) {
+        int v = 0;
+        for (int i = off; i < off + len; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
 
     /**
      * Helper method to convert a string
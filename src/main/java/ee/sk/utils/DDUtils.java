@@ -7,7 +7,12 @@ import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 import ee.sk.digidoc.DigiDocException;
 import ee.sk.digidoc.SignedDoc;
@@ -33,6 +38,24 @@ public class DDUtils {
         return dig;
     }
 
+    /**
+     * Calculates a digest with the given algorithm
+     * @param data input data
+     * @param algorithm JCA digest algorithm name, e.g. "SHA-1"
+     * @return digest value
+     * @throws DigiDocException for unsupported algorithms
+     */
+    public static byte[] digest(byte[] data, String algorithm) throws DigiDocException {
+        byte[] dig = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance(algorithm);
+            dig = md.digest(data);
+        } catch (NoSuchAlgorithmException ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_DIGEST_ALGORITHM);
+        }
+        return dig;
+    }
+
     /**
      * return CN part of DN
      * 
@@ -132,4 +155,30 @@ public class DDUtils {
         return ok;
     }
 
+    /**
+     * Computes an order independent SHA-256 digest of a set of certificates
+     * 
+     * @param certs
+     *            certificates
+     * @return Base64 encoded digest, the same for the same certificates
+     */
+    public static String digestCertificates(Collection<X509Certificate> certs) {
+        try {
+            List<String> digests = new ArrayList<String>(certs.size());
+            for (X509Certificate cert : certs) {
+                digests.add(Base64Util.encode(MessageDigest.getInstance("SHA-256").digest(cert.getEncoded()), 0));
+            }
+            Collections.sort(digests);
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            for (String d : digests) {
+                sha.update(d.getBytes("US-ASCII"));
+            }
+            return Base64Util.encode(sha.digest(), 0);
+        } catch (CertificateEncodingException ex) {
+            throw new IllegalArgumentException(ex);
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
 }
@@ -0,0 +1,497 @@
+package ee.sk.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * ZipOutputStream that compresses the entries on a worker pool. The content
+ * of an entry is split into blocks of {@link #BLOCK_SIZE} bytes that are
+ * deflated independently, each primed with the last 32 KB of the previous
+ * block as dictionary and ended with a sync flush, so the compressed blocks
+ * concatenate into one ordinary deflate stream (the same technique as pigz).
+ * The CRC32 of the entry is combined from the CRCs of the blocks.
+ * <p>
+ * Entries are written with a data descriptor, the result can be read by any
+ * ZIP reader. Only DEFLATED entries are supported and ZIP64 is not, i.e.
+ * entries and the archive are limited to 4 GB. Like ZipOutputStream, an
+ * instance must be used by one thread at a time.
+ */
+public class ParallelZipOutputStream extends ZipOutputStream {
+
+    /** uncompressed size of a block */
+    public static final int BLOCK_SIZE = 128 * 1024;
+
+    /** maximum size of a deflate dictionary */
+    private static final int DICT_SIZE = 32 * 1024;
+
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int EXT_SIG = 0x08074b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    /** data descriptor follows the data, name is UTF-8 */
+    private static final int FLAGS = 0x0808;
+    private static final int VERSION = 20;
+    private static final long MAX_32 = 0xFFFFFFFFL;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Executor executor;
+    private final int maxPending;
+    private final List<EntryInfo> entries = new ArrayList<EntryInfo>();
+    private final Set<String> names = new HashSet<String>();
+    private final byte[] scratch = new byte[4];
+    private final Deque<CompletableFuture<Block>> pending = new ArrayDeque<CompletableFuture<Block>>();
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    /** archive comment, UTF-8 encoded */
+    private byte[] comment;
+    private long written;
+    private boolean finished;
+
+    private EntryInfo current;
+    private byte[] buffer;
+    private int count;
+    private byte[] previous;
+
+    /**
+     * Creates a stream that keeps up to two blocks per processor in flight
+     *
+     * @param out
+     *            actual output stream
+     * @param executor
+     *            executor for the compression tasks
+     */
+    public ParallelZipOutputStream(OutputStream out, Executor executor) {
+        this(out, executor, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a stream
+     *
+     * @param out
+     *            actual output stream
+     * @param executor
+     *            executor for the compression tasks
+     * @param maxPending
+     *            maximum number of blocks submitted to the executor and not
+     *            yet written, bounds the memory used
+     */
+    public ParallelZipOutputStream(OutputStream out, Executor executor, int maxPending) {
+        super(out);
+        this.executor = executor;
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    public void setLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level");
+        }
+        this.level = level;
+    }
+
+    public void setMethod(int method) {
+        if (method != DEFLATED) {
+            throw new IllegalArgumentException("only DEFLATED entries are supported");
+        }
+    }
+
+    /**
+     * Sets the archive comment, written after the central directory
+     *
+     * @param comment
+     *            comment or null for none
+     * @throws IllegalArgumentException
+     *             if the encoded comment is longer than 0xFFFF bytes
+     */
+    public void setComment(String comment) {
+        byte[] b = null;
+        if (comment != null) {
+            b = comment.getBytes(UTF8);
+            if (b.length > 0xFFFF) {
+                throw new IllegalArgumentException("ZIP file comment too long.");
+            }
+        }
+        this.comment = b;
+    }
+
+    public void putNextEntry(ZipEntry e) throws IOException {
+        ensureOpen();
+        if (current != null) {
+            closeEntry();
+        }
+        if (e.getMethod() == STORED) {
+            throw new ZipException("only DEFLATED entries are supported");
+        }
+        if (entries.size() == 0xFFFF) {
+            throw new ZipException("too many entries, ZIP64 is not supported");
+        }
+        if (!names.add(e.getName())) {
+            throw new ZipException("duplicate entry: " + e.getName());
+        }
+        EntryInfo info = new EntryInfo();
+        info.name = e.getName().getBytes(UTF8);
+        info.dosTime = dosTime((e.getTime() != -1) ? e.getTime() : System.currentTimeMillis());
+        info.offset = written;
+        writeInt(LOC_SIG);
+        writeShort(VERSION);
+        writeShort(FLAGS);
+        writeShort(DEFLATED);
+        writeInt(info.dosTime);
+        writeInt(0); // crc, compressed and uncompressed size
+        writeInt(0); // are in the data descriptor
+        writeInt(0);
+        writeShort(info.name.length);
+        writeShort(0);
+        writeBytes(info.name, 0, info.name.length);
+        current = info;
+        buffer = new byte[BLOCK_SIZE];
+        count = 0;
+        previous = null;
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (current == null) {
+            throw new ZipException("no current ZIP entry");
+        }
+        while (len > 0) {
+            int n = Math.min(len, BLOCK_SIZE - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == BLOCK_SIZE) {
+                submit(false);
+            }
+        }
+    }
+
+    public void closeEntry() throws IOException {
+        ensureOpen();
+        if (current == null) {
+            return;
+        }
+        submit(true);
+        while (!pending.isEmpty()) {
+            writeBlock(pending.removeFirst());
+        }
+        writeInt(EXT_SIG);
+        writeInt((int) current.crc);
+        writeInt((int) current.compressedSize);
+        writeInt((int) current.size);
+        entries.add(current);
+        current = null;
+        buffer = null;
+        previous = null;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void finish() throws IOException {
+        ensureOpen();
+        if (finished) {
+            return;
+        }
+        closeEntry();
+        long cenOffset = written;
+        for (EntryInfo info : entries) {
+            writeInt(CEN_SIG);
+            writeShort(VERSION);
+            writeShort(VERSION);
+            writeShort(FLAGS);
+            writeShort(DEFLATED);
+            writeInt(info.dosTime);
+            writeInt((int) info.crc);
+            writeInt((int) info.compressedSize);
+            writeInt((int) info.size);
+            writeShort(info.name.length);
+            writeShort(0); // extra field length
+            writeShort(0); // comment length
+            writeShort(0); // disk number
+            writeShort(0); // internal attributes
+            writeInt(0); // external attributes
+            writeInt((int) info.offset);
+            writeBytes(info.name, 0, info.name.length);
+        }
+        long cenSize = written - cenOffset;
+        checkSize(written);
+        writeInt(END_SIG);
+        writeShort(0);
+        writeShort(0);
+        writeShort(entries.size());
+        writeShort(entries.size());
+        writeInt((int) cenSize);
+        writeInt((int) cenOffset);
+        if (comment != null) {
+            writeShort(comment.length);
+            writeBytes(comment, 0, comment.length);
+        } else {
+            writeShort(0);
+        }
+        finished = true;
+    }
+
+    public void close() throws IOException {
+        if (def == null) {
+            return;
+        }
+        try {
+            finish();
+        } finally {
+            // the deflater of the superclass is never used
+            def.end();
+            def = null;
+            out.close();
+        }
+    }
+
+    /**
+     * Hands the collected bytes to the executor and writes out completed
+     * blocks while too many are pending
+     *
+     * @param last
+     *            true for the final block of the entry
+     */
+    private void submit(boolean last) throws IOException {
+        final byte[] data = buffer;
+        final int len = count;
+        final byte[] dict = previous;
+        final boolean fin = last;
+        final int lvl = level;
+        Callable<Block> task = new Callable<Block>() {
+            public Block call() {
+                return deflate(data, len, dict, fin, lvl);
+            }
+        };
+        if (last && pending.isEmpty() && dict == null) {
+            // a small entry, not worth a context switch
+            CompletableFuture<Block> f = new CompletableFuture<Block>();
+            f.complete(deflate(data, len, dict, fin, lvl));
+            pending.addLast(f);
+        } else {
+            pending.addLast(AsyncUtils.supplyAsync(task, executor));
+        }
+        previous = data;
+        buffer = last ? null : new byte[BLOCK_SIZE];
+        count = 0;
+        while (pending.size() > maxPending) {
+            writeBlock(pending.removeFirst());
+        }
+    }
+
+    private void writeBlock(CompletableFuture<Block> f) throws IOException {
+        Block block;
+        try {
+            block = f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while compressing");
+        } catch (ExecutionException ex) {
+            Throwable cause = AsyncUtils.unwrap(ex);
+            throw (IOException) new IOException("compression failed: " + cause).initCause(cause);
+        }
+        writeBytes(block.data, 0, block.data.length);
+        current.crc = crc32Combine(current.crc, block.crc, block.size);
+        current.size += block.size;
+        current.compressedSize += block.data.length;
+        checkSize(current.size);
+        checkSize(current.compressedSize);
+    }
+
+    /**
+     * Deflates one block
+     *
+     * @param data
+     *            block content
+     * @param len
+     *            number of bytes in data
+     * @param dict
+     *            previous block of the entry or null
+     * @param last
+     *            true for the final block of the entry
+     * @param level
+     *            compression level
+     * @return compressed block
+     */
+    static Block deflate(byte[] data, int len, byte[] dict, boolean last, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dict != null) {
+                deflater.setDictionary(dict, dict.length - DICT_SIZE, DICT_SIZE);
+            }
+            deflater.setInput(data, 0, len);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(len / 2 + 64);
+            byte[] buf = new byte[16384];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buf);
+                    bos.write(buf, 0, n);
+                }
+            } else {
+                // sync flush ends the block on a byte boundary without
+                // marking it final, so the next block can be appended
+                int n;
+                do {
+                    n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    bos.write(buf, 0, n);
+                } while (n == buf.length);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, len);
+            Block block = new Block();
+            block.data = bos.toByteArray();
+            block.crc = crc.getValue();
+            block.size = len;
+            return block;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the CRC32 of two concatenated byte sequences, computed from the
+     * CRC32 of each sequence. Same algorithm as crc32_combine() of zlib.
+     *
+     * @param crc1
+     *            CRC32 of the first sequence
+     * @param crc2
+     *            CRC32 of the second sequence
+     * @param len2
+     *            length of the second sequence
+     * @return CRC32 of both sequences
+     */
+    public static long crc32Combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // operator for one zero bit
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // operators for two and four zero bits
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+        // apply len2 zero bytes to crc1
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec) {
+        long sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+
+    private static int dosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+                | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+
+    private void checkSize(long size) throws ZipException {
+        if (size > MAX_32) {
+            throw new ZipException("entry or archive too large, ZIP64 is not supported");
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (def == null) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private void writeShort(int v) throws IOException {
+        scratch[0] = (byte) v;
+        scratch[1] = (byte) (v >>> 8);
+        writeBytes(scratch, 0, 2);
+    }
+
+    private void writeInt(int v) throws IOException {
+        scratch[0] = (byte) v;
+        scratch[1] = (byte) (v >>> 8);
+        scratch[2] = (byte) (v >>> 16);
+        scratch[3] = (byte) (v >>> 24);
+        writeBytes(scratch, 0, 4);
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    /** compressed block */
+    static final class Block {
+        byte[] data;
+        long crc;
+        int size;
+    }
+
+    /** bookkeeping for the central directory */
+    private static final class EntryInfo {
+        byte[] name;
+        int dosTime;
+        long offset;
+        long crc;
+        long size;
+        long compressedSize;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * XmlWriter.java
+ * PROJECT: JDigiDoc
+ * DESCRIPTION: Digi Doc functions for creating
+ *	and reading signed documents.
+ *==================================================
+ * Copyright (C) AS Sertifitseerimiskeskus
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * GNU Lesser General Public Licence is available at
+ * http://www.gnu.org/copyleft/lesser.html
+ *==================================================
+ */
+
+package ee.sk.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Buffered UTF-8 writer used by the toXML() / writeXML() methods
+ * of the document model. Characters are encoded straight into an
+ * internal buffer that is flushed to an output stream or fed to a
+ * message digest, so serializing a signature does not create
+ * intermediate Strings or byte arrays. Escaping follows the rules
+ * of Canonical XML so that written values are already in canonical form.
+ * Instances are not thread-safe.
+ */
+public class XmlWriter {
+
+    private static final int BUF_SIZE = 4096;
+
+    private final OutputStream out;
+    private final MessageDigest digest;
+    private final byte[] buf = new byte[BUF_SIZE];
+    private int pos;
+
+    /**
+     * Creates a writer that writes to the given stream
+     * @param out destination stream
+     */
+    public XmlWriter(OutputStream out) {
+        this.out = out;
+        this.digest = null;
+    }
+
+    /**
+     * Creates a writer that feeds all output to the given digest
+     * @param digest digest to be updated
+     */
+    public XmlWriter(MessageDigest digest) {
+        this.out = null;
+        this.digest = digest;
+    }
+
+    /**
+     * Writes markup or other data that needs no escaping
+     * @param s data to write, null is ignored
+     * @throws IOException for write errors
+     */
+    public void write(String s) throws IOException {
+        if (s == null) {
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            i = writeChar(s, i);
+        }
+    }
+
+    /**
+     * Writes element content escaping &amp;, &lt;, &gt; and CR
+     * @param s text to write, null is ignored
+     * @throws IOException for write errors
+     */
+    public void writeText(String s) throws IOException {
+        if (s == null) {
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '&': write("&amp;"); break;
+            case '<': write("&lt;"); break;
+            case '>': write("&gt;"); break;
+            case '\r': write("&#xD;"); break;
+            default: i = writeChar(s, i);
+            }
+        }
+    }
+
+    /**
+     * Writes an attribute value escaping &amp;, &lt;, &quot;, TAB, LF and CR
+     * @param s attribute value to write, null is ignored
+     * @throws IOException for write errors
+     */
+    public void writeAttribute(String s) throws IOException {
+        if (s == null) {
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '&': write("&amp;"); break;
+            case '<': write("&lt;"); break;
+            case '"': write("&quot;"); break;
+            case '\t': write("&#x9;"); break;
+            case '\n': write("&#xA;"); break;
+            case '\r': write("&#xD;"); break;
+            default: i = writeChar(s, i);
+            }
+        }
+    }
+
+    /**
+     * Writes a number in decimal form
+     * @param n number to write
+     * @throws IOException for write errors
+     */
+    public void write(long n) throws IOException {
+        if (n < 0) {
+            if (n == Long.MIN_VALUE) {
+                write(Long.toString(n));
+                return;
+            }
+            writeByte('-');
+            n = -n;
+        }
+        long div = 1;
+        while (div <= n / 10) {
+            div *= 10;
+        }
+        for (; div > 0; div /= 10) {
+            writeByte('0' + (int)((n / div) % 10));
+        }
+    }
+
+    /**
+     * Writes raw bytes
+     * @param data bytes to write, null is ignored
+     * @throws IOException for write errors
+     */
+    public void write(byte[] data) throws IOException {
+        if (data != null) {
+            write(data, 0, data.length);
+        }
+    }
+
+    /**
+     * Writes raw bytes
+     * @param data input buffer
+     * @param off offset in input buffer
+     * @param len number of bytes to write
+     * @throws IOException for write errors
+     */
+    public void write(byte[] data, int off, int len) throws IOException {
+        if (len >= BUF_SIZE) {
+            flushBuffer();
+            if (out != null) {
+                out.write(data, off, len);
+            } else {
+                digest.update(data, off, len);
+            }
+            return;
+        }
+        if (pos + len > BUF_SIZE) {
+            flushBuffer();
+        }
+        System.arraycopy(data, off, buf, pos, len);
+        pos += len;
+    }
+
+    /**
+     * Writes data in base64 form. The output is identical
+     * to {@link Base64Util#encode(byte[], int)}.
+     * @param raw data to encode, null is ignored
+     * @param wrap length of wrapped lines; no wrapping if less than 4
+     * @throws IOException for write errors
+     */
+    public void writeBase64(byte[] raw, int wrap) throws IOException {
+        if (raw == null) {
+            return;
+        }
+        if (wrap > 3) {
+            wrap -= wrap % 4;
+        } else {
+            wrap = Integer.MAX_VALUE;
+        }
+        int len3 = (raw.length / 3) * 3;
+        int outLen = 0;
+        for (int i = 0; i < len3; i += 3, outLen += 4) {
+            if (outLen + 4 > wrap) {
+                writeByte('\n');
+                outLen = 0;
+            }
+            int block = ((raw[i] & 0xff) << 16) | ((raw[i + 1] & 0xff) << 8) | (raw[i + 2] & 0xff);
+            writeBase64Block(block, 4);
+        }
+        if (outLen >= wrap) {
+            writeByte('\n');
+        }
+        int slack = raw.length - len3;
+        if (slack > 0) {
+            int block = (raw[len3] & 0xff) << 16;
+            if (slack > 1) {
+                block |= (raw[len3 + 1] & 0xff) << 8;
+            }
+            writeBase64Block(block, slack + 1);
+            for (int i = slack + 1; i < 4; i++) {
+                writeByte('=');
+            }
+        }
+    }
+
+    /**
+     * Writes buffered data to the destination. Does not
+     * flush the underlying stream.
+     * @throws IOException for write errors
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    private void writeBase64Block(int block, int nChars) throws IOException {
+        for (int shift = 18, i = 0; i < nChars; shift -= 6, i++) {
+            writeByte(Base64Util.chars.charAt((block >> shift) & 0x3f));
+        }
+    }
+
+    /**
+     * Encodes one character (or surrogate pair) at position i
+     * @return index of the last char consumed
+     */
+    private int writeChar(String s, int i) throws IOException {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+            writeByte(c);
+        } else if (c < 0x800) {
+            writeByte(0xc0 | (c >> 6));
+            writeByte(0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(++i));
+            writeByte(0xf0 | (cp >> 18));
+            writeByte(0x80 | ((cp >> 12) & 0x3f));
+            writeByte(0x80 | ((cp >> 6) & 0x3f));
+            writeByte(0x80 | (cp & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+            writeByte('?'); // unpaired surrogate, same as String.getBytes()
+        } else {
+            writeByte(0xe0 | (c >> 12));
+            writeByte(0x80 | ((c >> 6) & 0x3f));
+            writeByte(0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (pos == BUF_SIZE) {
+            flushBuffer();
+        }
+        buf[pos++] = (byte)b;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            if (out != null) {
+                out.write(buf, 0, pos);
+            } else {
+                digest.update(buf, 0, pos);
+            }
+            pos = 0;
+        }
+    }
+}
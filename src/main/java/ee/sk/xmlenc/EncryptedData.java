@@ -46,7 +46,7 @@ import ee.sk.digidoc.DigiDocException;
 import ee.sk.digidoc.SignedDoc;
 import ee.sk.digidoc.services.SignatureService;
 import ee.sk.utils.Base64Util;
-import ee.sk.utils.ConvertUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Contains the data of an <EncryptedData> object
@@ -1414,7 +1414,9 @@ public class EncryptedData {
         ekey.encryptKey(this);
       }
       // write xml header
-      out.write(xmlHeader());
+      XmlWriter w = new XmlWriter(out);
+      writeXMLHeader(w);
+      w.flush();
 
       boolean isLastBlock = false;
       boolean isReadFromFile = true;
@@ -1552,7 +1554,8 @@ public class EncryptedData {
       addProperty(ENCPROP_ORIG_SIZE, new Integer(nTotalInput).toString());
 
       // write xml trailer
-      out.write(xmlTrailer());
+      writeXMLTrailer(w);
+      w.flush();
       out.flush();
       if (m_logger.isInfoEnabled()) {
         m_logger.info("EncryptStream total - input: " + nTotalInput + " compressed: " + nTotalCompressed + " encrypted: " + nTotalEncrypted + " base64: " + nTotalBase64);
@@ -1574,14 +1577,9 @@ public class EncryptedData {
     ByteArrayOutputStream bos =
       new ByteArrayOutputStream();
     try {
-      bos.write(xmlHeader());
-      byte[] b64data = ConvertUtils.str2data(Base64Util.encode(m_data, 64));
-      int nTotalBase64 = b64data.length;
-      bos.write(b64data);
-      if (m_logger.isInfoEnabled()) {
-        m_logger.info("Encrypt total - base64: " + nTotalBase64);
-      }
-      bos.write(xmlTrailer());
+      XmlWriter w = new XmlWriter(bos);
+      writeXML(w);
+      w.flush();
     }
     catch (IOException ex) {
       DigiDocException.handleException(ex, DigiDocException.ERR_XML_CONVERT);
@@ -1590,76 +1588,87 @@ public class EncryptedData {
   }
 
   /**
-   * Converts the EncryptedData header (until payload data) to XML form
+   * Writes the EncryptedData in XML form
    *
-   * @return XML representation of EncryptedData header
+   * @param w destination writer
+   * @throws DigiDocException for invalid key status
+   * @throws IOException for write errors
    */
-  private byte[] xmlHeader()
-    throws DigiDocException {
-    ByteArrayOutputStream bos =
-      new ByteArrayOutputStream();
-    try {
-      bos.write(ConvertUtils.str2data("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"));
-      bos.write(ConvertUtils.str2data("<denc:EncryptedData xmlns:denc=\"" + m_xmlns + "\""));
-      if (m_id != null) {
-        bos.write(ConvertUtils.str2data(" Id=\"" + m_id + "\""));
-      }
-      if (m_mimeType != null) {
-        bos.write(ConvertUtils.str2data(" MimeType=\"" + m_mimeType + "\""));
-      }
-      if (m_type != null) {
-        bos.write(ConvertUtils.str2data(" Type=\"" + m_type + "\""));
-      }
+  public void writeXML(XmlWriter w)
+    throws DigiDocException, IOException {
+    writeXMLHeader(w);
+    w.writeBase64(m_data, 64);
+    if (m_logger.isInfoEnabled()) {
+      m_logger.info("Encrypt total - base64: " + (m_data != null ? ((m_data.length + 2) / 3) * 4 : 0));
+    }
+    writeXMLTrailer(w);
+  }
 
-      bos.write(ConvertUtils.str2data(">"));
-      bos.write(ConvertUtils.str2data("<denc:EncryptionMethod Algorithm=\""));
-      bos.write(ConvertUtils.str2data(m_encryptionMethod));
-      bos.write(ConvertUtils.str2data("\"></denc:EncryptionMethod>"));
-      bos.write(ConvertUtils.str2data("<ds:KeyInfo xmlns:ds=\"" + DENC_XMLNS_XMLDSIG + "\">"));
-      for (int i = 0; i < getNumKeys(); i++) {
-        EncryptedKey key = getEncryptedKey(i);
-        bos.write(key.toXML());
-      }
-      bos.write(ConvertUtils.str2data("</ds:KeyInfo>"));
-      bos.write(ConvertUtils.str2data("<denc:CipherData><denc:CipherValue>"));
-      // after this comes payload data
+  /**
+   * Writes the EncryptedData header (until payload data) in XML form
+   *
+   * @param w destination writer
+   */
+  private void writeXMLHeader(XmlWriter w)
+    throws DigiDocException, IOException {
+    w.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>");
+    w.write("<denc:EncryptedData xmlns:denc=\"");
+    w.writeAttribute(m_xmlns);
+    w.write("\"");
+    if (m_id != null) {
+      w.write(" Id=\"");
+      w.writeAttribute(m_id);
+      w.write("\"");
     }
-    catch (IOException ex) {
-      DigiDocException.handleException(ex, DigiDocException.ERR_XML_CONVERT);
+    if (m_mimeType != null) {
+      w.write(" MimeType=\"");
+      w.writeAttribute(m_mimeType);
+      w.write("\"");
     }
-    return bos.toByteArray();
+    if (m_type != null) {
+      w.write(" Type=\"");
+      w.writeAttribute(m_type);
+      w.write("\"");
+    }
+
+    w.write(">");
+    w.write("<denc:EncryptionMethod Algorithm=\"");
+    w.writeAttribute(m_encryptionMethod);
+    w.write("\"></denc:EncryptionMethod>");
+    w.write("<ds:KeyInfo xmlns:ds=\"" + DENC_XMLNS_XMLDSIG + "\">");
+    for (int i = 0; i < getNumKeys(); i++) {
+      EncryptedKey key = getEncryptedKey(i);
+      key.writeXML(w);
+    }
+    w.write("</ds:KeyInfo>");
+    w.write("<denc:CipherData><denc:CipherValue>");
+    // after this comes payload data
   }
 
   /**
-   * Converts the EncryptedData header (until payload data) to XML form
+   * Writes the EncryptedData trailer (after payload data) in XML form
    *
-   * @return XML representation of EncryptedData header
+   * @param w destination writer
    */
-  private byte[] xmlTrailer()
-    throws DigiDocException {
-    ByteArrayOutputStream bos =
-      new ByteArrayOutputStream();
-    try {
-      // header and encrypted data comes before this
-      bos.write(ConvertUtils.str2data("</denc:CipherValue></denc:CipherData>"));
-      if (getNumProperties() > 0) {
-        bos.write(ConvertUtils.str2data("<denc:EncryptionProperties"));
-        if (getEncryptionPropertiesId() != null) {
-          bos.write(ConvertUtils.str2data(" Id=\"" + getEncryptionPropertiesId() + "\""));
-        }
-        bos.write(ConvertUtils.str2data(">"));
-        for (int i = 0; i < getNumProperties(); i++) {
-          EncryptionProperty prop = getProperty(i);
-          bos.write(prop.toXML());
-        }
-        bos.write(ConvertUtils.str2data("</denc:EncryptionProperties>"));
+  private void writeXMLTrailer(XmlWriter w)
+    throws DigiDocException, IOException {
+    // header and encrypted data comes before this
+    w.write("</denc:CipherValue></denc:CipherData>");
+    if (getNumProperties() > 0) {
+      w.write("<denc:EncryptionProperties");
+      if (getEncryptionPropertiesId() != null) {
+        w.write(" Id=\"");
+        w.writeAttribute(getEncryptionPropertiesId());
+        w.write("\"");
       }
-      bos.write(ConvertUtils.str2data("</denc:EncryptedData>"));
-    }
-    catch (IOException ex) {
-      DigiDocException.handleException(ex, DigiDocException.ERR_XML_CONVERT);
+      w.write(">");
+      for (int i = 0; i < getNumProperties(); i++) {
+        EncryptionProperty prop = getProperty(i);
+        prop.writeXML(w);
+      }
+      w.write("</denc:EncryptionProperties>");
     }
-    return bos.toByteArray();
+    w.write("</denc:EncryptedData>");
   }
 
   /**
@@ -31,8 +31,7 @@ import javax.crypto.Cipher;
 import org.apache.log4j.Logger;
 
 import ee.sk.digidoc.DigiDocException;
-import ee.sk.utils.Base64Util;
-import ee.sk.utils.ConvertUtils;
+import ee.sk.utils.XmlWriter;
 
 /**
  * Contains the data of an <EncryptedKey>
@@ -329,47 +328,67 @@ public class EncryptedKey  implements Serializable
         ByteArrayOutputStream bos = 
                 new ByteArrayOutputStream();
         try {
-            bos.write(ConvertUtils.str2data("<EncryptedKey"));
-            if(m_id != null) 
-            	bos.write(ConvertUtils.str2data(" Id=\"" + m_id + "\""));
-            if(m_recipient != null) 
-            	bos.write(ConvertUtils.str2data(" Recipient=\"" + m_recipient + "\""));
-            bos.write(ConvertUtils.str2data(">"));
-            bos.write(ConvertUtils.str2data("<denc:EncryptionMethod Algorithm=\""));
-            bos.write(ConvertUtils.str2data(m_encryptionMethod));
-            bos.write(ConvertUtils.str2data("\"></denc:EncryptionMethod>"));            
-			bos.write(ConvertUtils.str2data("<ds:KeyInfo xmlns:ds=\"" + EncryptedData.DENC_XMLNS_XMLDSIG + "\">"));            
-            if(m_keyName != null) {
-            	bos.write(ConvertUtils.str2data("<ds:KeyName>"));
-            	bos.write(ConvertUtils.str2data(m_keyName));
-            	bos.write(ConvertUtils.str2data("</ds:KeyName>"));                
-            }
-			bos.write(ConvertUtils.str2data("</ds:KeyInfo>"));
-            bos.write(ConvertUtils.str2data("<ds:X509Data><ds:X509Certificate>"));
-            try {
-                bos.write(ConvertUtils.str2data(Base64Util.encode(m_recipientsCert.getEncoded(), 64)));
-            } catch(CertificateEncodingException ex) {
-                DigiDocException.handleException(ex, DigiDocException.ERR_ENCODING);
-            }
-            bos.write(ConvertUtils.str2data("</ds:X509Certificate></ds:X509Data>"));            
-            bos.write(ConvertUtils.str2data("<denc:CipherData><denc:CipherValue>"));
-			if(m_transportKeyData != null) {
-            	bos.write(ConvertUtils.str2data(Base64Util.encode(m_transportKeyData, 64)));            
-            } else
-				throw new DigiDocException(DigiDocException.ERR_XMLENC_KEY_STATUS,    
-					"Invalid transport key status for transport!", null);     
-            bos.write(ConvertUtils.str2data("</denc:CipherValue></denc:CipherData>"));            
-            if(m_carriedKeyName != null) {
-            	bos.write(ConvertUtils.str2data("<denc:CarriedKeyName>"));
-            	bos.write(ConvertUtils.str2data(m_carriedKeyName));
-            	bos.write(ConvertUtils.str2data("</denc:CarriedKeyName>"));                
-            }
-            bos.write(ConvertUtils.str2data("</EncryptedKey>"));
-         } catch(IOException ex) {
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
+        } catch(IOException ex) {
             DigiDocException.handleException(ex, DigiDocException.ERR_XML_CONVERT);
         }
         return bos.toByteArray();
     }
+
+    /**
+     * Writes the EncryptedKey in XML form
+     * @param w destination writer
+     * @throws DigiDocException for invalid key status
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w)
+        throws DigiDocException, IOException
+    {
+        w.write("<EncryptedKey");
+        if(m_id != null) {
+            w.write(" Id=\"");
+            w.writeAttribute(m_id);
+            w.write("\"");
+        }
+        if(m_recipient != null) {
+            w.write(" Recipient=\"");
+            w.writeAttribute(m_recipient);
+            w.write("\"");
+        }
+        w.write(">");
+        w.write("<denc:EncryptionMethod Algorithm=\"");
+        w.writeAttribute(m_encryptionMethod);
+        w.write("\"></denc:EncryptionMethod>");
+        w.write("<ds:KeyInfo xmlns:ds=\"" + EncryptedData.DENC_XMLNS_XMLDSIG + "\">");
+        if(m_keyName != null) {
+            w.write("<ds:KeyName>");
+            w.writeText(m_keyName);
+            w.write("</ds:KeyName>");
+        }
+        w.write("</ds:KeyInfo>");
+        w.write("<ds:X509Data><ds:X509Certificate>");
+        try {
+            w.writeBase64(m_recipientsCert.getEncoded(), 64);
+        } catch(CertificateEncodingException ex) {
+            DigiDocException.handleException(ex, DigiDocException.ERR_ENCODING);
+        }
+        w.write("</ds:X509Certificate></ds:X509Data>");
+        w.write("<denc:CipherData><denc:CipherValue>");
+        if(m_transportKeyData != null) {
+            w.writeBase64(m_transportKeyData, 64);
+        } else
+            throw new DigiDocException(DigiDocException.ERR_XMLENC_KEY_STATUS,    
+                "Invalid transport key status for transport!", null);     
+        w.write("</denc:CipherValue></denc:CipherData>");
+        if(m_carriedKeyName != null) {
+            w.write("<denc:CarriedKeyName>");
+            w.writeText(m_carriedKeyName);
+            w.write("</denc:CarriedKeyName>");
+        }
+        w.write("</EncryptedKey>");
+    }
 	
     /**
      * Helper method to validate the whole
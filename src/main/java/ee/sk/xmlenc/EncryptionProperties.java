@@ -25,7 +25,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import ee.sk.digidoc.DigiDocException;
-import ee.sk.utils.ConvertUtils;
+import ee.sk.utils.XmlWriter;
 
 
 /** Contains the data of an <EncryptionProperties>
@@ -142,21 +142,36 @@ public class EncryptionProperties implements Serializable
         ByteArrayOutputStream bos = 
                 new ByteArrayOutputStream();
         try {
-            bos.write(ConvertUtils.str2data("<denc:EncryptionProperties"));
-            if(m_id != null) {
-            	bos.write(ConvertUtils.str2data(" Id=\"" + m_id + "\""));
-            }
-            bos.write(ConvertUtils.str2data(">"));
-            for(int i = 0; i < getNumProperties(); i++) {
-            	EncryptionProperty prop = getProperty(i);
-            	bos.write(prop.toXML());
-            }
-            bos.write(ConvertUtils.str2data("</denc:EncryptionProperties>"));
-         } catch(IOException ex) {
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
+        } catch(IOException ex) {
             DigiDocException.handleException(ex, DigiDocException.ERR_XML_CONVERT);
         }
         return bos.toByteArray();
     }
+
+    /**
+     * Writes the EncryptionProperties in XML form
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w)
+        throws IOException
+    {
+        w.write("<denc:EncryptionProperties");
+        if(m_id != null) {
+            w.write(" Id=\"");
+            w.writeAttribute(m_id);
+            w.write("\"");
+        }
+        w.write(">");
+        for(int i = 0; i < getNumProperties(); i++) {
+            EncryptionProperty prop = getProperty(i);
+            prop.writeXML(w);
+        }
+        w.write("</denc:EncryptionProperties>");
+    }
 	
     /**
      * Helper method to validate the whole
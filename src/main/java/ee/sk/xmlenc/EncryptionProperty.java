@@ -25,7 +25,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import ee.sk.digidoc.DigiDocException;
-import ee.sk.utils.ConvertUtils;
+import ee.sk.utils.XmlWriter;
 
 
 /**
@@ -208,22 +208,44 @@ public class EncryptionProperty  implements Serializable
         ByteArrayOutputStream bos = 
                 new ByteArrayOutputStream();
         try {
-            bos.write(ConvertUtils.str2data("<denc:EncryptionProperty"));
-            if(m_id != null) 
-            	bos.write(ConvertUtils.str2data(" Id=\"" + m_id + "\""));
-            if(m_target != null) 
-            	bos.write(ConvertUtils.str2data(" Target=\"" + m_target + "\""));
-            if(m_name != null) 
-            	bos.write(ConvertUtils.str2data(" Name=\"" + m_name + "\""));            
-            bos.write(ConvertUtils.str2data(">"));
-            if(m_name != null) 
-            	bos.write(ConvertUtils.str2data(m_content));            
-            bos.write(ConvertUtils.str2data("</denc:EncryptionProperty>"));
-         } catch(IOException ex) {
+            XmlWriter w = new XmlWriter(bos);
+            writeXML(w);
+            w.flush();
+        } catch(IOException ex) {
             DigiDocException.handleException(ex, DigiDocException.ERR_XML_CONVERT);
         }
         return bos.toByteArray();
     }
+
+    /**
+     * Writes the EncryptionProperty in XML form
+     * @param w destination writer
+     * @throws IOException for write errors
+     */
+    public void writeXML(XmlWriter w)
+        throws IOException
+    {
+        w.write("<denc:EncryptionProperty");
+        if(m_id != null) {
+            w.write(" Id=\"");
+            w.writeAttribute(m_id);
+            w.write("\"");
+        }
+        if(m_target != null) {
+            w.write(" Target=\"");
+            w.writeAttribute(m_target);
+            w.write("\"");
+        }
+        if(m_name != null) {
+            w.write(" Name=\"");
+            w.writeAttribute(m_name);
+            w.write("\"");
+        }
+        w.write(">");
+        if(m_name != null) 
+            w.writeText(m_content);
+        w.write("</denc:EncryptionProperty>");
+    }
 	
     /**
      * Helper method to validate the whole
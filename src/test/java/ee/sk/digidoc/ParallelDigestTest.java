@@ -0,0 +1,122 @@
+package ee.sk.digidoc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ee.sk.digidoc.services.TinyXMLCanonicalizationServiceImpl;
+
+public class ParallelDigestTest {
+
+    private static final String[] FILES = { "src/test/resources/log4j.properties", "pom.xml",
+            "src/test/resources/log4j.properties", "pom.xml" };
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private SignedDoc createDoc() throws Exception {
+        SignedDoc doc = new SignedDoc(SignedDoc.FORMAT_DIGIDOC_XML, SignedDoc.VERSION_1_3);
+        for (int i = 0; i < FILES.length; i++) {
+            String contentType = (i % 2 == 0) ? DataFile.CONTENT_EMBEDDED_BASE64 : DataFile.CONTENT_DETATCHED;
+            doc.addDataFile(new File(FILES[i]), "text/plain", contentType);
+        }
+        return doc;
+    }
+
+    @Test
+    public void parallelOutputMatchesSequential() throws Exception {
+        ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+        createDoc().writeToStream(sequential);
+
+        SignedDoc doc = createDoc();
+        doc.setDigestExecutor(executor);
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        doc.writeToStream(parallel);
+
+        assertArrayEquals(sequential.toByteArray(), parallel.toByteArray());
+    }
+
+    @Test
+    public void parallelDigestsMatchSequential() throws Exception {
+        SignedDoc sequential = createDoc();
+        SignedDoc parallel = createDoc();
+        parallel.setDigestExecutor(executor);
+        X509Certificate cert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(
+                new FileInputStream("src/test/data/37807256017_sign.cer"));
+        Signature sig = parallel.prepareSignature(cert, null, null, new TinyXMLCanonicalizationServiceImpl());
+
+        assertEquals(FILES.length + 1, sig.getSignedInfo().countReferences());
+        for (int i = 0; i < FILES.length; i++) {
+            assertArrayEquals(sequential.getDataFile(i).getDigest(), sig.getSignedInfo().getReference(i)
+                    .getDigestValue());
+        }
+    }
+
+    private SignedDoc openBdoc(ZipFile zf) throws Exception {
+        SignedDoc doc = new SignedDoc(SignedDoc.FORMAT_BDOC, SignedDoc.BDOC_VERSION_1_0);
+        for (int i = 0; i < 3; i++) {
+            String name = "entry" + i;
+            doc.addDataFile(new DataFile(doc.getNewDataFileId(), DataFile.CONTENT_EMBEDDED, name, "text/plain", doc,
+                    zf.getEntry(name), zf, name));
+        }
+        return doc;
+    }
+
+    @Test
+    public void digestsBdocEntriesFromSharedZipFile() throws Exception {
+        byte[] text = new byte[300000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 26);
+        }
+        File file = new File("target/parallel-digest.bdoc");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        byte[][] contents = { text, "<a  b='1'><c/></a>".getBytes(), new byte[0] };
+        for (int i = 0; i < contents.length; i++) {
+            zos.putNextEntry(new ZipEntry("entry" + i));
+            zos.write(contents[i]);
+        }
+        zos.close();
+
+        ZipFile zf = new ZipFile(file);
+        try {
+            SignedDoc sequential = openBdoc(zf);
+            sequential.calculateDataFileDigests();
+            SignedDoc parallel = openBdoc(zf);
+            parallel.setDigestExecutor(executor);
+            parallel.calculateDataFileDigests();
+
+            assertArrayEquals(MessageDigest.getInstance("SHA-1").digest(text), parallel.getDataFile(0).getDigest());
+            for (int i = 0; i < contents.length; i++) {
+                assertArrayEquals(sequential.getDataFile(i).getDigest(), parallel.getDataFile(i).getDigest());
+            }
+        } finally {
+            zf.close();
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ee.sk.digidoc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ee.sk.digidoc.services.CanonicalizationService;
+import ee.sk.digidoc.services.TinyXMLCanonicalizationServiceImpl;
+import ee.sk.utils.DDUtils;
+
+public class SignatureDigestCacheTest {
+
+    private CanonicalizationService c14n;
+    private SignedDoc doc;
+    private Signature sig;
+
+    @Before
+    public void setUp() throws Exception {
+        c14n = new TinyXMLCanonicalizationServiceImpl();
+        doc = new SignedDoc(SignedDoc.FORMAT_DIGIDOC_XML, SignedDoc.VERSION_1_3);
+        DataFile df = new DataFile("D0", DataFile.CONTENT_EMBEDDED_BASE64, "test.txt", "text/plain", doc);
+        df.setBody("test".getBytes("UTF-8"));
+        doc.addDataFile(df);
+        sig = doc.prepareSignature(DDUtils.readCertificate("src/test/data/37807256017_sign.cer"),
+                new String[] { "Tester" }, new SignatureProductionPlace("Tallinn", "Harjumaa", "EE", "10111"), c14n);
+    }
+
+    @Test
+    public void cachedDigestsAreCopies() throws Exception {
+        SignedProperties sp = sig.getSignedProperties();
+        byte[] dig = sp.calculateDigest(c14n, "SHA-1");
+        byte[] again = sp.calculateDigest(c14n, "SHA-1");
+        assertNotSame(dig, again);
+        Arrays.fill(again, (byte) 0);
+        assertArrayEquals(dig, sp.calculateDigest(c14n, "SHA-1"));
+
+        SignedInfo si = sig.getSignedInfo();
+        dig = si.calculateDigest(c14n, "SHA-1");
+        Arrays.fill(si.calculateDigest(c14n, "SHA-1"), (byte) 0);
+        Arrays.fill(si.getCanonicalXml(c14n), (byte) 0);
+        assertArrayEquals(dig, si.calculateDigest(c14n, "SHA-1"));
+    }
+
+    @Test
+    public void signedPropertiesDigestFollowsInputs() throws Exception {
+        SignedProperties sp = sig.getSignedProperties();
+        byte[] dig = sp.calculateDigest(c14n, "SHA-1");
+
+        // values passed in or handed out cannot change the block behind its back
+        Date time = new Date(sp.getSigningTime().getTime() - 3600000L);
+        sp.setSigningTime(time);
+        byte[] timeDig = assertChanged(dig, sp.calculateDigest(c14n, "SHA-1"));
+        time.setTime(0);
+        sp.getSigningTime().setTime(0);
+        assertArrayEquals(timeDig, sp.calculateDigest(c14n, "SHA-1"));
+
+        byte[] certDigest = sp.getCertDigestValue();
+        certDigest[0] ^= 1;
+        assertArrayEquals(timeDig, sp.calculateDigest(c14n, "SHA-1"));
+        sp.setCertDigestValue(certDigest);
+        byte[] certDig = assertChanged(timeDig, sp.calculateDigest(c14n, "SHA-1"));
+        certDigest[1] ^= 1;
+        assertArrayEquals(certDig, sp.calculateDigest(c14n, "SHA-1"));
+
+        sp.getSignatureProductionPlace().setCity("Tartu");
+        byte[] placeDig = assertChanged(certDig, sp.calculateDigest(c14n, "SHA-1"));
+
+        sp.addClaimedRole("Reviewer");
+        byte[] roleDig = assertChanged(placeDig, sp.calculateDigest(c14n, "SHA-1"));
+
+        doc.setVersion(SignedDoc.VERSION_1_2);
+        assertChanged(roleDig, sp.calculateDigest(c14n, "SHA-1"));
+    }
+
+    @Test
+    public void signedInfoDigestFollowsInputs() throws Exception {
+        SignedInfo si = sig.getSignedInfo();
+        byte[] dig = si.calculateDigest(c14n, "SHA-1");
+
+        Reference ref = si.getReference(0);
+        byte[] value = ref.getDigestValue();
+        value[0] ^= 1;
+        assertArrayEquals(dig, si.calculateDigest(c14n, "SHA-1"));
+        ref.setDigestValue(value);
+        byte[] refDig = assertChanged(dig, si.calculateDigest(c14n, "SHA-1"));
+        value[1] ^= 1;
+        assertArrayEquals(refDig, si.calculateDigest(c14n, "SHA-1"));
+
+        // the Type attribute of the SignedProperties reference depends on
+        // the version
+        doc.setVersion(SignedDoc.VERSION_1_1);
+        assertChanged(refDig, si.calculateDigest(c14n, "SHA-1"));
+    }
+
+    private static byte[] assertChanged(byte[] before, byte[] after) {
+        assertFalse(Arrays.equals(before, after));
+        return after;
+    }
+}
@@ -0,0 +1,77 @@
+package ee.sk.digidoc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SignedDocIndexTest {
+
+    private SignedDoc signedDoc;
+
+    @Before
+    public void setUp() throws Exception {
+        signedDoc = new SignedDoc(SignedDoc.FORMAT_DIGIDOC_XML, SignedDoc.VERSION_1_3);
+    }
+
+    private DataFile addDataFile() throws Exception {
+        DataFile df = new DataFile(signedDoc.getNewDataFileId(), DataFile.CONTENT_EMBEDDED_BASE64, "test.txt",
+                "text/plain", signedDoc);
+        signedDoc.addDataFile(df);
+        return df;
+    }
+
+    @Test
+    public void newDataFileIdsAreSequential() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("D" + i, addDataFile().getId());
+        }
+        assertSame(signedDoc.getDataFile(500), signedDoc.findDataFileById("D500"));
+        assertNull(signedDoc.findDataFileById("D1000"));
+    }
+
+    @Test
+    public void removedDataFileIdIsReused() throws Exception {
+        addDataFile();
+        addDataFile();
+        addDataFile();
+        signedDoc.removeDataFile(1);
+        assertNull(signedDoc.findDataFileById("D1"));
+        assertEquals("D1", signedDoc.getNewDataFileId());
+    }
+
+    @Test
+    public void indexFollowsIdChanges() throws Exception {
+        DataFile df = addDataFile();
+        assertSame(df, signedDoc.findDataFileById("D0"));
+        df.setId("D7");
+        assertNull(signedDoc.findDataFileById("D0"));
+        assertSame(df, signedDoc.findDataFileById("D7"));
+        assertEquals("D0", signedDoc.getNewDataFileId());
+
+        Signature sig = new Signature(signedDoc);
+        signedDoc.addSignature(sig);
+        sig.setId("S0");
+        assertSame(sig, signedDoc.findSignatureById("S0"));
+        assertEquals("S1", signedDoc.getNewSignatureId());
+    }
+
+    @Test
+    public void referenceLookupByUri() throws Exception {
+        DataFile df0 = addDataFile();
+        DataFile df1 = addDataFile();
+        Signature sig = new Signature(signedDoc);
+        SignedInfo si = new SignedInfo(sig, SignedDoc.RSA_SHA1_SIGNATURE_METHOD,
+                SignedDoc.CANONICALIZATION_METHOD_20010315);
+        Reference ref0 = new Reference(si, "#D0", SignedDoc.SHA1_DIGEST_ALGORITHM, new byte[20], null);
+        Reference ref1 = new Reference(si, "#D1", SignedDoc.SHA1_DIGEST_ALGORITHM, new byte[20], null);
+        si.addReference(ref0);
+        si.addReference(ref1);
+        assertSame(ref1, si.getReferenceForDataFile(df1));
+        ref1.setUri("#D2");
+        assertNull(si.getReferenceForDataFile(df1));
+        assertSame(ref0, si.getReferenceForDataFile(df0));
+    }
+}
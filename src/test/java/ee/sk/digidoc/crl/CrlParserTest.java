@@ -0,0 +1,111 @@
+package ee.sk.digidoc.crl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.util.Date;
+import java.util.Random;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.x509.X509V2CRLGenerator;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CrlParserTest {
+
+    private static final X500Principal ISSUER = new X500Principal("CN=Test CA, O=Test, C=EE");
+
+    private static KeyPair caKeys;
+    private static KeyPair otherKeys;
+
+    @BeforeClass
+    public static void createKeys() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        caKeys = gen.generateKeyPair();
+        otherKeys = gen.generateKeyPair();
+    }
+
+    static byte[] createCrl(KeyPair keys, BigInteger[] serials, long crlNumber) throws Exception {
+        X509V2CRLGenerator gen = new X509V2CRLGenerator();
+        long now = System.currentTimeMillis() / 1000 * 1000;
+        gen.setIssuerDN(ISSUER);
+        gen.setThisUpdate(new Date(now));
+        gen.setNextUpdate(new Date(now + 86400000L));
+        gen.setSignatureAlgorithm("SHA1withRSA");
+        for (int i = 0; i < serials.length; i++) {
+            gen.addCRLEntry(serials[i], new Date(now - i * 1000L), CRLReason.keyCompromise);
+        }
+        gen.addExtension(X509Extensions.CRLNumber, false, new CRLNumber(BigInteger.valueOf(crlNumber)));
+        return gen.generate(keys.getPrivate()).getEncoded();
+    }
+
+    @Test
+    public void indexMatchesX509Crl() throws Exception {
+        Random rnd = new Random(1);
+        BigInteger[] serials = new BigInteger[3000];
+        for (int i = 0; i < serials.length; i++) {
+            // mix of small, 64 bit boundary and 128 bit serial numbers
+            int bits = (i % 3 == 0) ? 128 : (i % 3 == 1) ? 63 : 20;
+            serials[i] = new BigInteger(bits, rnd).add(BigInteger.ONE);
+        }
+        serials[1] = BigInteger.valueOf(Long.MAX_VALUE);
+        serials[2] = BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE);
+        byte[] encoded = createCrl(caKeys, serials, 7);
+
+        CrlIndex index = CrlParser.parse(new ByteArrayInputStream(encoded), caKeys.getPublic());
+        X509CRL crl = (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(
+                new ByteArrayInputStream(encoded));
+
+        assertEquals(ISSUER, index.getIssuer());
+        assertEquals(crl.getThisUpdate(), index.getThisUpdate());
+        assertEquals(crl.getNextUpdate(), index.getNextUpdate());
+        assertEquals(serials.length, index.size());
+        for (X509CRLEntry e : crl.getRevokedCertificates()) {
+            assertEquals(e.getRevocationDate(), index.getRevocationDate(e.getSerialNumber()));
+        }
+        for (int i = 0; i < 1000; i++) {
+            BigInteger other = new BigInteger(20 + i % 120, rnd);
+            assertEquals(crl.getRevokedCertificate(other) != null, index.isRevoked(other));
+        }
+        assertFalse(index.isRevoked(BigInteger.ZERO));
+        assertNull(index.getRevocationDate(BigInteger.ONE.shiftLeft(200)));
+        assertTrue(index.getExtensionValue("2.5.29.20") != null);
+    }
+
+    @Test
+    public void rejectsWrongSignature() throws Exception {
+        byte[] encoded = createCrl(caKeys, new BigInteger[] { BigInteger.TEN }, 1);
+        try {
+            CrlParser.parse(new ByteArrayInputStream(encoded), otherKeys.getPublic());
+            fail("signature of another key accepted");
+        } catch (CRLException ex) {
+            // expected
+        }
+        encoded[encoded.length - 1] ^= 1;
+        try {
+            CrlParser.parse(new ByteArrayInputStream(encoded), caKeys.getPublic());
+            fail("modified CRL accepted");
+        } catch (CRLException ex) {
+            // expected
+        }
+        // without a key only the structure is checked
+        CrlParser.parse(new ByteArrayInputStream(createCrl(caKeys, new BigInteger[0], 1)), (PublicKey) null);
+    }
+}
@@ -0,0 +1,213 @@
+package ee.sk.digidoc.crl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+import javax.naming.spi.InitialContextFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LdapCrlSourceTest {
+
+    public static final String ENTRY = "cn=ESTEID-SK 2011,o=AS Sertifitseerimiskeskus,c=EE";
+    public static final String CRL_ATTR = "certificateRevocationList;binary";
+
+    /** attributes of the stand-in directory entry */
+    public static final Map<String, Object> entry = new ConcurrentHashMap<String, Object>();
+    public static final Map<String, AtomicInteger> reads = new ConcurrentHashMap<String, AtomicInteger>();
+    static final AtomicInteger connects = new AtomicInteger();
+    static final AtomicInteger closes = new AtomicInteger();
+    static volatile boolean failing;
+
+    @Before
+    public void setUp() {
+        entry.clear();
+        reads.clear();
+        connects.set(0);
+        closes.set(0);
+        failing = false;
+        entry.put(CRL_ATTR, new byte[] { 0x30, 0x01, 0x00 });
+        entry.put("modifyTimestamp", "20121010120000Z");
+    }
+
+    private static LdapCrlSource createSource() {
+        return new LdapCrlSource(StubContextFactory.class.getName(), "ldap://localhost", ENTRY,
+                "(objectclass=*)", CRL_ATTR);
+    }
+
+    public static int reads(String attr) {
+        AtomicInteger n = reads.get(attr);
+        return (n != null) ? n.get() : 0;
+    }
+
+    @Test
+    public void comparesChangeAttributeBeforeReadingCrl() throws Exception {
+        LdapCrlSource source = createSource();
+        LdapCrlSource.Result r = source.fetch(null);
+        assertTrue(r.isModified());
+        assertArrayEquals((byte[]) entry.get(CRL_ATTR), r.getData());
+
+        LdapCrlSource.Result again = source.fetch(r.getVersion());
+        assertFalse(again.isModified());
+        assertNull(again.getData());
+        assertEquals(1, reads(CRL_ATTR));
+        assertEquals(2, reads("modifyTimestamp"));
+
+        entry.put(CRL_ATTR, new byte[] { 0x30, 0x02, 0x01, 0x01 });
+        entry.put("modifyTimestamp", "20121011120000Z");
+        LdapCrlSource.Result changed = source.fetch(r.getVersion());
+        assertTrue(changed.isModified());
+        assertArrayEquals((byte[]) entry.get(CRL_ATTR), changed.getData());
+        assertEquals(2, reads(CRL_ATTR));
+
+        // all fetches used one pooled connection
+        assertEquals(1, connects.get());
+        assertEquals(1, source.getIdleCount());
+        source.close();
+        assertEquals(1, closes.get());
+        assertEquals(0, source.getIdleCount());
+        try {
+            source.fetch(null);
+            fail("closed source fetched");
+        } catch (NamingException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void comparesHashesWithoutChangeAttribute() throws Exception {
+        entry.remove("modifyTimestamp");
+        LdapCrlSource source = createSource();
+        LdapCrlSource.Result r = source.fetch(null);
+        assertTrue(r.isModified());
+        assertTrue(r.getVersion().startsWith("sha256:"));
+
+        assertFalse(source.fetch(r.getVersion()).isModified());
+        entry.put(CRL_ATTR, new byte[] { 0x30, 0x00 });
+        assertTrue(source.fetch(r.getVersion()).isModified());
+        source.close();
+    }
+
+    @Test
+    public void discardsFailedConnections() throws Exception {
+        LdapCrlSource source = createSource();
+        source.fetch(null);
+        failing = true;
+        try {
+            source.fetch(null);
+            fail("directory error not reported");
+        } catch (ServiceUnavailableException ex) {
+            // expected
+        }
+        assertEquals(0, source.getIdleCount());
+        assertEquals(1, closes.get());
+
+        failing = false;
+        entry.clear();
+        try {
+            source.fetch(null);
+            fail("missing CRL not reported");
+        } catch (NameNotFoundException ex) {
+            // expected
+        }
+        assertEquals(2, connects.get());
+        source.close();
+    }
+
+    /**
+     * Stand-in for an LDAP server, serves the single entry of the test
+     */
+    public static class StubContextFactory implements InitialContextFactory {
+
+        public Context getInitialContext(Hashtable<?, ?> environment) throws NamingException {
+            connects.incrementAndGet();
+            return (Context) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { LdapContext.class },
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                            if (m.getName().equals("close")) {
+                                closes.incrementAndGet();
+                                return null;
+                            }
+                            if (m.getName().equals("search") && args.length == 3
+                                    && args[2] instanceof SearchControls) {
+                                return search((String) args[0], (SearchControls) args[2]);
+                            }
+                            throw new UnsupportedOperationException(m.getName());
+                        }
+                    });
+        }
+
+        private static NamingEnumeration<SearchResult> search(String name, SearchControls controls)
+                throws NamingException {
+            if (failing) {
+                throw new ServiceUnavailableException("connection lost");
+            }
+            if (!ENTRY.equals(name) || entry.isEmpty()) {
+                return new ListEnumeration(Collections.<SearchResult> emptyList());
+            }
+            BasicAttributes attrs = new BasicAttributes(true);
+            for (String attr : controls.getReturningAttributes()) {
+                Object value = entry.get(attr);
+                if (value != null) {
+                    reads.putIfAbsent(attr, new AtomicInteger());
+                    reads.get(attr).incrementAndGet();
+                    attrs.put(attr, value);
+                }
+            }
+            return new ListEnumeration(Arrays.asList(new SearchResult(name, null, attrs)));
+        }
+    }
+
+    private static class ListEnumeration implements NamingEnumeration<SearchResult> {
+        private final Iterator<SearchResult> it;
+
+        ListEnumeration(List<SearchResult> results) {
+            it = results.iterator();
+        }
+
+        public boolean hasMore() {
+            return it.hasNext();
+        }
+
+        public SearchResult next() {
+            return it.next();
+        }
+
+        public boolean hasMoreElements() {
+            return it.hasNext();
+        }
+
+        public SearchResult nextElement() {
+            return it.next();
+        }
+
+        public void close() {
+        }
+    }
+}
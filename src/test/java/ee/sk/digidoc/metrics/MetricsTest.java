@@ -0,0 +1,72 @@
+package ee.sk.digidoc.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricsTest {
+
+    private static final String STAGE = "MetricsTest";
+
+    @After
+    public void tearDown() {
+        Metrics.unregisterMBeans();
+        Metrics.getStage(STAGE).reset();
+    }
+
+    @Test
+    public void recordsCountsBytesAndPercentiles() throws Exception {
+        for (int i = 0; i < 99; i++) {
+            Metrics.record(STAGE, System.nanoTime() - 50000, 10); // ~50us
+        }
+        Metrics.record(STAGE, System.nanoTime() - 20000000, 10); // ~20ms
+        Metrics.recordError(STAGE, Metrics.start());
+
+        StageMetrics m = Metrics.getStage(STAGE);
+        Assert.assertEquals(101, m.getCount());
+        Assert.assertEquals(1, m.getErrorCount());
+        Assert.assertEquals(1000, m.getBytes());
+        Assert.assertTrue(m.getP50TimeMillis() < 0.2);
+        Assert.assertTrue(m.getMaxTimeMillis() >= 20);
+        Assert.assertTrue(m.percentile(1.0) >= 16);
+    }
+
+    @Test
+    public void notifiesSinks() {
+        final List<String> seen = new ArrayList<String>();
+        MetricsSink sink = new MetricsSink() {
+            public void record(String stage, long nanos, long bytes, boolean error) {
+                seen.add(stage + ":" + bytes + ":" + error + ":" + (nanos >= 0));
+            }
+        };
+        Metrics.addSink(sink);
+        try {
+            Metrics.record(STAGE, Metrics.start(), 5);
+            Metrics.count(STAGE, 7);
+        } finally {
+            Metrics.removeSink(sink);
+        }
+        Assert.assertEquals(2, seen.size());
+        Assert.assertEquals(STAGE + ":5:false:true", seen.get(0));
+        Assert.assertEquals(STAGE + ":7:false:false", seen.get(1));
+    }
+
+    @Test
+    public void publishesMBeans() throws Exception {
+        Metrics.record(STAGE, Metrics.start(), 3);
+        Metrics.registerMBeans();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("ee.sk.digidoc:type=Metrics,name=" + STAGE);
+        Assert.assertEquals(Long.valueOf(1), server.getAttribute(name, "Count"));
+        Assert.assertEquals(Long.valueOf(3), server.getAttribute(name, "Bytes"));
+        Metrics.unregisterMBeans();
+        Assert.assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,90 @@
+package ee.sk.digidoc.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ee.sk.digidoc.CertValue;
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.Signature;
+import ee.sk.digidoc.TimestampInfo;
+import ee.sk.digidoc.metrics.Metrics;
+import ee.sk.digidoc.metrics.StageMetrics;
+
+public class BouncyCastleTimestampServiceTest {
+
+    private TestTsa tsa;
+    private TestTsa otherTsa;
+
+    @Before
+    public void setUp() throws Exception {
+        tsa = new TestTsa("Test TSA");
+        otherTsa = new TestTsa("Other TSA");
+    }
+
+    private static void addTsaCert(Signature sig, TestTsa t) throws DigiDocException {
+        CertValue cv = new CertValue();
+        cv.setType(CertValue.CERTVAL_TYPE_TSA);
+        cv.setCert(t.getCert());
+        sig.addCertValue(cv);
+    }
+
+    private TimestampInfo timestamp(String id, byte[] data) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+        TimestampInfo ts = new TimestampInfo(id, TimestampInfo.TIMESTAMP_TYPE_SIGNATURE);
+        ts.setHash(hash);
+        ts.setTimeStampResponse(tsa.stamp(hash));
+        return ts;
+    }
+
+    private static long validations() {
+        StageMetrics m = Metrics.getStage(Metrics.TSA_VERIFY);
+        return m.getCount() + m.getErrorCount();
+    }
+
+    @Test
+    public void verifiesWithTsaCertOfSignerId() throws Exception {
+        Signature sig = new Signature(null);
+        // the right cert is not the first candidate
+        addTsaCert(sig, otherTsa);
+        addTsaCert(sig, tsa);
+        sig.addTimestampInfo(timestamp("S0-T0", new byte[] { 1, 2, 3 }));
+        BouncyCastleTimestampService service = new BouncyCastleTimestampService();
+
+        long before = validations();
+        List<DigiDocException> errs = service.verifySignaturesTimestamps(sig);
+        assertTrue(errs.toString(), errs.isEmpty());
+        assertEquals(1, validations() - before);
+
+        // the token has been verified already
+        errs = service.verifySignaturesTimestamps(sig);
+        assertTrue(errs.toString(), errs.isEmpty());
+        assertEquals(1, validations() - before);
+    }
+
+    @Test
+    public void reportsMissingTsaCertAndBadDigest() throws Exception {
+        Signature sig = new Signature(null);
+        addTsaCert(sig, otherTsa);
+        sig.addTimestampInfo(timestamp("S0-T0", new byte[] { 1 }));
+        TimestampInfo bad = timestamp("S0-T1", new byte[] { 2 });
+        bad.setHash(MessageDigest.getInstance("SHA-256").digest(new byte[] { 3 }));
+        sig.addTimestampInfo(bad);
+        BouncyCastleTimestampService service = new BouncyCastleTimestampService();
+
+        long before = validations();
+        List<DigiDocException> errs = service.verifySignaturesTimestamps(sig);
+        assertEquals(2, errs.size());
+        for (DigiDocException ex : errs) {
+            assertEquals(DigiDocException.ERR_TIMESTAMP_VERIFY, ex.getCode());
+        }
+        assertTrue(errs.get(0).getMessage().contains("TSA certificate not found"));
+        assertTrue(errs.get(1).getMessage().contains("Bad digest"));
+        assertEquals(0, validations() - before);
+    }
+}
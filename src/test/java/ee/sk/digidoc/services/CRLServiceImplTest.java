@@ -0,0 +1,459 @@
+package ee.sk.digidoc.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.x509.X509V2CRLGenerator;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.crl.DistributionPoints;
+import ee.sk.digidoc.crl.LdapCrlSourceTest;
+
+public class CRLServiceImplTest {
+
+    private static final X500Principal CA = new X500Principal("CN=Test CA, C=EE");
+    private static final long DAY = 86400000L;
+
+    private HttpServer server;
+    private String baseUrl;
+    private final Map<String, byte[]> content = new ConcurrentHashMap<String, byte[]>();
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+    private KeyPair caKeys;
+    private X509Certificate caCert;
+    private File crlFile;
+    private volatile long responseDelay;
+    /** nextUpdate of created CRLs relative to now */
+    private long validity = DAY;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                String path = ex.getRequestURI().getPath();
+                requests.putIfAbsent(path, new AtomicInteger());
+                requests.get(path).incrementAndGet();
+                if (responseDelay > 0) {
+                    try {
+                        Thread.sleep(responseDelay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                byte[] body = content.get(path);
+                ex.sendResponseHeaders((body != null) ? 200 : 404, (body != null) ? body.length : -1);
+                if (body != null) {
+                    OutputStream os = ex.getResponseBody();
+                    os.write(body);
+                    os.close();
+                }
+                ex.close();
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        caKeys = gen.generateKeyPair();
+        caCert = createCert(CA, BigInteger.ONE, caKeys);
+        crlFile = new File("target/crl-service-test.crl");
+        deleteCrlFiles();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        deleteCrlFiles();
+    }
+
+    private void deleteCrlFiles() {
+        File[] files = crlFile.getAbsoluteFile().getParentFile().listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (files[i].getName().startsWith(crlFile.getName())) {
+                files[i].delete();
+            }
+        }
+    }
+
+    private X509Certificate createCert(X500Principal subject, BigInteger serial, KeyPair keys) throws Exception {
+        return createCert(CA, caKeys, subject, serial, keys, null);
+    }
+
+    private X509Certificate createCert(X500Principal issuer, KeyPair issuerKeys, X500Principal subject,
+            BigInteger serial, KeyPair keys, String crlPath) throws Exception {
+        X509V3CertificateGenerator gen = new X509V3CertificateGenerator();
+        gen.setSerialNumber(serial);
+        gen.setIssuerDN(issuer);
+        gen.setSubjectDN(subject);
+        gen.setNotBefore(new Date(System.currentTimeMillis() - DAY));
+        gen.setNotAfter(new Date(System.currentTimeMillis() + DAY));
+        gen.setPublicKey(keys.getPublic());
+        gen.setSignatureAlgorithm("SHA1withRSA");
+        if (crlPath != null) {
+            gen.addExtension(X509Extensions.CRLDistributionPoints, false, new CRLDistPoint(
+                    new DistributionPoint[] { distributionPoint(crlPath) }));
+        }
+        return gen.generate(issuerKeys.getPrivate());
+    }
+
+    private DistributionPoint distributionPoint(String path) {
+        return new DistributionPoint(new DistributionPointName(DistributionPointName.FULL_NAME, new GeneralNames(
+                new GeneralName(GeneralName.uniformResourceIdentifier, baseUrl + path))), null, null);
+    }
+
+    private X509Certificate userCert(long serial) throws Exception {
+        return createCert(new X500Principal("CN=User " + serial + ", C=EE"), BigInteger.valueOf(serial), caKeys);
+    }
+
+    private byte[] createCrl(long number, Long deltaBase, long[] revoked, long[] removed, String freshest)
+            throws Exception {
+        return createCrl(CA, caKeys, number, deltaBase, revoked, removed, freshest);
+    }
+
+    private byte[] createCrl(X500Principal issuer, KeyPair issuerKeys, long number, Long deltaBase, long[] revoked,
+            long[] removed, String freshest) throws Exception {
+        X509V2CRLGenerator gen = new X509V2CRLGenerator();
+        long now = System.currentTimeMillis();
+        gen.setIssuerDN(issuer);
+        gen.setThisUpdate(new Date(now - 1000));
+        gen.setNextUpdate(new Date(now + validity));
+        gen.setSignatureAlgorithm("SHA1withRSA");
+        for (long serial : revoked) {
+            gen.addCRLEntry(BigInteger.valueOf(serial), new Date(now - DAY), CRLReason.keyCompromise);
+        }
+        for (long serial : removed) {
+            gen.addCRLEntry(BigInteger.valueOf(serial), new Date(now - DAY), CRLReason.removeFromCRL);
+        }
+        gen.addExtension(X509Extensions.CRLNumber, false, new CRLNumber(BigInteger.valueOf(number)));
+        if (deltaBase != null) {
+            gen.addExtension(X509Extensions.DeltaCRLIndicator, true, new CRLNumber(BigInteger.valueOf(deltaBase)));
+        }
+        if (freshest != null) {
+            gen.addExtension(new DERObjectIdentifier("2.5.29.46"), false, new CRLDistPoint(
+                    new DistributionPoint[] { distributionPoint(freshest) }));
+        }
+        return gen.generate(issuerKeys.getPrivate()).getEncoded();
+    }
+
+    private CRLServiceImpl createService(final X509Certificate... cas) {
+        CRLServiceImpl service = new CRLServiceImpl();
+        service.setCrlUrl(baseUrl + "/base.crl");
+        service.setCrlFile(crlFile.getPath());
+        service.setCaService(new CAService() {
+            public boolean verifyCertificate(X509Certificate cert) {
+                return true;
+            }
+
+            public X509Certificate findCAforCertificate(X509Certificate cert) {
+                for (X509Certificate ca : cas) {
+                    if (ca.getSubjectX500Principal().equals(cert.getIssuerX500Principal())) {
+                        return ca;
+                    }
+                }
+                return caCert;
+            }
+
+            public X509Certificate findCA(X500Principal subject) {
+                for (X509Certificate ca : cas) {
+                    if (ca.getSubjectX500Principal().equals(subject)) {
+                        return ca;
+                    }
+                }
+                return caCert.getSubjectX500Principal().equals(subject) ? caCert : null;
+            }
+        });
+        return service;
+    }
+
+    private static boolean isRevoked(CRLService service, X509Certificate cert) throws DigiDocException {
+        try {
+            service.checkCertificate(cert, new Date());
+            return false;
+        } catch (DigiDocException ex) {
+            if (ex.getCode() != DigiDocException.ERR_CERT_REVOKED) {
+                throw ex;
+            }
+            return true;
+        }
+    }
+
+    @Test
+    public void appliesDeltaToCachedBase() throws Exception {
+        content.put("/base.crl", createCrl(10, null, new long[] { 5, 6 }, new long[0], "/delta.crl"));
+        content.put("/delta.crl", createCrl(11, 10L, new long[] { 7 }, new long[] { 5 }, null));
+        CRLServiceImpl service = createService();
+
+        assertTrue(isRevoked(service, userCert(6)));
+        assertTrue(isRevoked(service, userCert(7)));
+        assertEquals(false, isRevoked(service, userCert(5)));
+        assertEquals(false, isRevoked(service, userCert(8)));
+        // base and delta are valid for a day, so both were fetched once
+        assertEquals(1, requests.get("/base.crl").get());
+        assertEquals(1, requests.get("/delta.crl").get());
+        assertTrue(crlFile.exists());
+        assertTrue(new File(crlFile.getPath() + CRLServiceImpl.DELTA_SUFFIX).exists());
+
+        // a new instance starts from the saved files
+        CRLServiceImpl restarted = createService();
+        assertTrue(isRevoked(restarted, userCert(7)));
+        assertEquals(false, isRevoked(restarted, userCert(5)));
+        assertEquals(1, requests.get("/base.crl").get());
+        assertEquals(1, requests.get("/delta.crl").get());
+    }
+
+    @Test
+    public void failingDeltaIsNotRetriedOnEveryCheck() throws Exception {
+        content.put("/base.crl", createCrl(10, null, new long[] { 5 }, new long[0], "/delta.crl"));
+        // not a delta CRL, so it cannot be applied
+        content.put("/delta.crl", createCrl(11, null, new long[] { 7 }, new long[0], null));
+        CRLServiceImpl service = createService();
+
+        assertTrue(isRevoked(service, userCert(5)));
+        assertEquals(false, isRevoked(service, userCert(7)));
+        assertEquals(1, requests.get("/delta.crl").get());
+        assertEquals(false, new File(crlFile.getPath() + CRLServiceImpl.DELTA_SUFFIX).exists());
+
+        // a missing delta waits as well
+        content.remove("/delta.crl");
+        CRLServiceImpl other = createService();
+        assertTrue(isRevoked(other, userCert(5)));
+        assertTrue(isRevoked(other, userCert(5)));
+        assertEquals(2, requests.get("/delta.crl").get());
+
+        CRLServiceImpl eager = createService();
+        eager.setDeltaRetryInterval(0);
+        assertTrue(isRevoked(eager, userCert(5)));
+        assertTrue(isRevoked(eager, userCert(5)));
+        assertEquals(4, requests.get("/delta.crl").get());
+    }
+
+    @Test
+    public void keepsExpiredLdapCrlWhileEntryIsUnchanged() throws Exception {
+        validity = -500;
+        LdapCrlSourceTest.entry.clear();
+        LdapCrlSourceTest.reads.clear();
+        LdapCrlSourceTest.entry.put(LdapCrlSourceTest.CRL_ATTR, createCrl(1, null, new long[] { 5 }, new long[0],
+                null));
+        LdapCrlSourceTest.entry.put("modifyTimestamp", "20121010120000Z");
+        CRLServiceImpl service = createService();
+        service.setUseLdap(true);
+        service.setLdapDriver(LdapCrlSourceTest.StubContextFactory.class.getName());
+        service.setLdapUrl("ldap://localhost");
+        service.setCrlSearchBase(LdapCrlSourceTest.ENTRY);
+        service.setCrlFilter("(objectclass=*)");
+        service.setLdapAttr(LdapCrlSourceTest.CRL_ATTR);
+        try {
+            assertTrue(isRevoked(service, userCert(5)));
+            assertEquals(false, isRevoked(service, userCert(6)));
+            assertEquals(1, LdapCrlSourceTest.reads(LdapCrlSourceTest.CRL_ATTR));
+
+            // a changed entry is read again
+            LdapCrlSourceTest.entry.put(LdapCrlSourceTest.CRL_ATTR, createCrl(2, null, new long[] { 6 },
+                    new long[0], null));
+            LdapCrlSourceTest.entry.put("modifyTimestamp", "20121011120000Z");
+            assertTrue(isRevoked(service, userCert(6)));
+            assertEquals(2, LdapCrlSourceTest.reads(LdapCrlSourceTest.CRL_ATTR));
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void versionFollowsExpiredCrl() throws Exception {
+        // CRL times have a precision of one second
+        validity = 1500;
+        content.put("/base.crl", createCrl(1, null, new long[] { 5 }, new long[0], null));
+        CRLServiceImpl service = createService();
+        assertEquals("", service.getVersion());
+        assertTrue(isRevoked(service, userCert(5)));
+        String loaded = service.getVersion();
+        assertEquals(1, requests.get("/base.crl").get());
+
+        // the CRL of another issuer adds a component
+        content.put("/ca1.crl", createCrl(1, null, new long[] { 6 }, new long[0], null));
+        X509Certificate cert = createCert(CA, caKeys, new X500Principal("CN=User 6, C=EE"), BigInteger.valueOf(6),
+                caKeys, "/ca1.crl");
+        assertTrue(isRevoked(service, cert));
+        String added = service.getVersion();
+        assertEquals(2, added.split(",").length);
+        assertTrue(Arrays.asList(added.split(",")).contains(loaded));
+
+        // expired CRLs are fetched again when the version is taken, without
+        // any certificate being checked
+        validity = DAY;
+        content.put("/base.crl", createCrl(2, null, new long[] { 7 }, new long[0], null));
+        content.remove("/ca1.crl");
+        Thread.sleep(1600);
+        String refreshed = service.getVersion();
+        assertEquals(2, requests.get("/base.crl").get());
+        assertEquals(2, refreshed.split(",").length);
+        // neither the new CRL nor the one that cannot be fetched keeps its
+        // component
+        for (String c : added.split(",")) {
+            assertFalse(Arrays.asList(refreshed.split(",")).contains(c));
+        }
+        assertTrue(isRevoked(service, userCert(7)));
+        assertEquals(refreshed, service.getVersion());
+        assertEquals(2, requests.get("/base.crl").get());
+    }
+
+    @Test
+    public void rejectsCrlOfAnotherKey() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        KeyPair other = gen.generateKeyPair();
+        KeyPair keys = caKeys;
+        caKeys = other;
+        content.put("/base.crl", createCrl(1, null, new long[] { 5 }, new long[0], null));
+        caKeys = keys;
+        try {
+            createService().checkCertificate(userCert(5), new Date());
+            fail("CRL with invalid signature accepted");
+        } catch (DigiDocException ex) {
+            assertEquals(DigiDocException.ERR_INIT_CRL, ex.getCode());
+        }
+    }
+
+    @Test
+    public void fetchesCrlOfEachIssuerOnce() throws Exception {
+        X500Principal ca2 = new X500Principal("CN=Second CA, C=EE");
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(1024);
+        KeyPair ca2Keys = kpg.generateKeyPair();
+        X509Certificate ca2Cert = createCert(ca2, ca2Keys, ca2, BigInteger.ONE, ca2Keys, null);
+        content.put("/ca1.crl", createCrl(CA, caKeys, 1, null, new long[] { 5 }, new long[0], null));
+        content.put("/ca2.crl", createCrl(ca2, ca2Keys, 1, null, new long[] { 6 }, new long[0], null));
+        final X509Certificate[] certs = {
+                createCert(CA, caKeys, new X500Principal("CN=User 5, C=EE"), BigInteger.valueOf(5), caKeys, "/ca1.crl"),
+                createCert(CA, caKeys, new X500Principal("CN=User 6, C=EE"), BigInteger.valueOf(6), caKeys, "/ca1.crl"),
+                createCert(ca2, ca2Keys, new X500Principal("CN=User 5, C=EE"), BigInteger.valueOf(5), caKeys,
+                        "/ca2.crl"),
+                createCert(ca2, ca2Keys, new X500Principal("CN=User 6, C=EE"), BigInteger.valueOf(6), caKeys,
+                        "/ca2.crl") };
+        final boolean[] expected = { true, false, false, true };
+        final CRLServiceImpl service = createService(caCert, ca2Cert);
+        responseDelay = 200;
+
+        int threads = 16;
+        final CountDownLatch go = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < threads; i++) {
+                final int n = i % certs.length;
+                results.add(pool.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        go.await();
+                        return isRevoked(service, certs[n]) == expected[n];
+                    }
+                }));
+            }
+            go.countDown();
+            for (Future<Boolean> f : results) {
+                assertTrue(f.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, requests.get("/ca1.crl").get());
+        assertEquals(1, requests.get("/ca2.crl").get());
+        assertEquals(null, requests.get("/base.crl"));
+
+        // the configured CRL is still used for certs without distribution points
+        content.put("/base.crl", createCrl(1, null, new long[] { 8 }, new long[0], null));
+        assertTrue(isRevoked(service, userCert(8)));
+        assertEquals(false, isRevoked(service, certs[1]));
+        assertEquals(1, requests.get("/base.crl").get());
+    }
+
+    @Test
+    public void verifiesConfiguredCrlWithKeyOfItsIssuer() throws Exception {
+        X500Principal ca2 = new X500Principal("CN=Second CA, C=EE");
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(1024);
+        KeyPair ca2Keys = kpg.generateKeyPair();
+        X509Certificate ca2Cert = createCert(ca2, ca2Keys, ca2, BigInteger.ONE, ca2Keys, null);
+        content.put("/base.crl", createCrl(ca2, ca2Keys, 1, null, new long[] { 5 }, new long[0], null));
+        CRLServiceImpl service = createService(caCert, ca2Cert);
+
+        // the first cert of another issuer does not decide the signature key
+        try {
+            service.checkCertificate(userCert(5), new Date());
+            fail("CRL of another issuer used");
+        } catch (DigiDocException ex) {
+            assertEquals(DigiDocException.ERR_INIT_CRL, ex.getCode());
+        }
+        X509Certificate cert = createCert(ca2, ca2Keys, new X500Principal("CN=User 5, C=EE"), BigInteger.valueOf(5),
+                caKeys, null);
+        assertTrue(isRevoked(service, cert));
+        assertEquals(1, requests.get("/base.crl").get());
+        try {
+            service.checkCertificate(userCert(6), new Date());
+            fail("CRL of another issuer used");
+        } catch (DigiDocException ex) {
+            assertEquals(DigiDocException.ERR_INIT_CRL, ex.getCode());
+        }
+    }
+
+    @Test
+    public void readsDistributionPointsOfCaCerts() throws Exception {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        InputStream in = new FileInputStream(
+                "src/main/resources/ee/sk/digidoc/certs/ESTEID-SK 2011.pem.cer");
+        try {
+            X509Certificate cert = (X509Certificate) cf.generateCertificate(in);
+            assertEquals(Collections.singletonList("http://www.sk.ee/repository/crls/eeccrca.crl"),
+                    DistributionPoints.getCrlUrls(cert));
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package ee.sk.digidoc.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileRangeInputStreamTest {
+
+    /** offset beyond the range of an int */
+    private static final long FAR = (1L << 31) + 1000;
+
+    private File file;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File("target/file-range-test.bin");
+        data = "<DataFile Id=\"D0\">QUJD</DataFile>".getBytes("UTF-8");
+        // sparse file, only the data at the end takes space
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(data);
+            raf.seek(FAR);
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static byte[] readAll(InputStream is) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[7];
+        int n;
+        while ((n = is.read(buf)) > 0) {
+            bos.write(buf, 0, n);
+        }
+        is.close();
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void readsOnlyTheRange() throws Exception {
+        assertArrayEquals(data, readAll(new FileRangeInputStream(file.getPath(), 0, data.length)));
+        assertArrayEquals(data, readAll(new FileRangeInputStream(file.getPath(), FAR, data.length)));
+
+        InputStream is = new FileRangeInputStream(file.getPath(), 1, 4);
+        assertEquals('D', is.read());
+        assertEquals(3, is.available());
+        assertEquals(3, is.read(new byte[10]));
+        assertEquals(-1, is.read());
+        is.close();
+    }
+
+    @Test
+    public void streamsRangeLongerThanAnInt() throws Exception {
+        long length = FAR + data.length;
+        InputStream is = new FileRangeInputStream(file.getPath(), 0, length);
+        assertEquals(Integer.MAX_VALUE, is.available());
+        byte[] start = new byte[data.length];
+        assertEquals(data.length, is.read(start));
+        assertArrayEquals(data, start);
+        assertEquals(FAR - data.length, is.skip(FAR - data.length));
+        assertArrayEquals(data, readAll(is));
+
+        // the file ends before the range
+        is = new FileRangeInputStream(file.getPath(), FAR, length);
+        try {
+            readAll(is);
+            fail("range beyond the end of the file read");
+        } catch (EOFException ex) {
+            // expected
+        } finally {
+            is.close();
+        }
+    }
+}
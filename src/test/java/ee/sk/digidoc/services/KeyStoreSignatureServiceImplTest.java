@@ -0,0 +1,164 @@
+package ee.sk.digidoc.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ee.sk.digidoc.DigiDocException;
+
+public class KeyStoreSignatureServiceImplTest {
+
+    private static final String PASSWORD = "test";
+
+    private File p12;
+    private KeyPair keys;
+    private KeyStoreSignatureServiceImpl service;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        keys = gen.generateKeyPair();
+        X500Principal name = new X500Principal("CN=Test Seal, C=EE");
+        X509V3CertificateGenerator cg = new X509V3CertificateGenerator();
+        cg.setSerialNumber(BigInteger.ONE);
+        cg.setIssuerDN(name);
+        cg.setSubjectDN(name);
+        cg.setNotBefore(new Date(System.currentTimeMillis() - 86400000L));
+        cg.setNotAfter(new Date(System.currentTimeMillis() + 86400000L));
+        cg.setPublicKey(keys.getPublic());
+        cg.setSignatureAlgorithm("SHA1withRSA");
+        X509Certificate cert = cg.generate(keys.getPrivate());
+
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        store.load(null, null);
+        store.setKeyEntry("seal", keys.getPrivate(), PASSWORD.toCharArray(), new Certificate[] { cert });
+        p12 = new File("target/signature-service-test.p12");
+        OutputStream os = new FileOutputStream(p12);
+        try {
+            store.store(os, PASSWORD.toCharArray());
+        } finally {
+            os.close();
+        }
+        service = new KeyStoreSignatureServiceImpl();
+        service.setKeystoreFile(p12.getPath());
+        service.setKeystorePassword(PASSWORD);
+    }
+
+    @After
+    public void tearDown() {
+        p12.delete();
+    }
+
+    private boolean verify(String alg, byte[] data, byte[] signature) throws Exception {
+        java.security.Signature sig = java.security.Signature.getInstance(alg);
+        sig.initVerify(keys.getPublic());
+        sig.update(data);
+        return sig.verify(signature);
+    }
+
+    @Test
+    public void signsDigests() throws Exception {
+        byte[] data = "SignedInfo".getBytes("UTF-8");
+        byte[] sha1 = service.sign(MessageDigest.getInstance("SHA-1").digest(data), 0, null);
+        assertTrue(verify("SHA1withRSA", data, sha1));
+        byte[] sha256 = service.sign(MessageDigest.getInstance("SHA-256").digest(data), 0, null);
+        assertTrue(verify("SHA256withRSA", data, sha256));
+        assertEquals("seal", service.getAvailableTokenNames()[0]);
+        assertEquals(new X500Principal("CN=Test Seal, C=EE"), service.getCertificate(0, null)
+                .getSubjectX500Principal());
+    }
+
+    @Test
+    public void signsBatchInParallel() throws Exception {
+        List<byte[]> digests = new ArrayList<byte[]>();
+        for (int i = 0; i < 64; i++) {
+            digests.add(MessageDigest.getInstance("SHA-1").digest(("document " + i).getBytes("UTF-8")));
+        }
+        List<byte[]> sequential = service.signBatch(digests);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            service.setSignExecutor(executor);
+            List<byte[]> parallel = service.signBatch(digests);
+            assertEquals(digests.size(), parallel.size());
+            for (int i = 0; i < digests.size(); i++) {
+                // PKCS#1 v1.5 signatures are deterministic
+                assertArrayEquals(sequential.get(i), parallel.get(i));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(verify("SHA1withRSA", "document 5".getBytes("UTF-8"), sequential.get(5)));
+    }
+
+    @Test
+    public void rejectsWrongPinAndToken() throws Exception {
+        byte[] digest = new byte[20];
+        try {
+            service.sign(digest, 0, "wrong");
+            fail("key unlocked with a wrong password");
+        } catch (DigiDocException ex) {
+            assertEquals(DigiDocException.ERR_TOKEN_LOGIN, ex.getCode());
+        }
+        try {
+            service.sign(digest, 1, null);
+            fail("unknown token accepted");
+        } catch (DigiDocException ex) {
+            assertEquals(DigiDocException.ERR_READ_TOKEN_INFO, ex.getCode());
+        }
+        try {
+            service.sign(new byte[10], 0, null);
+            fail("invalid digest signed");
+        } catch (DigiDocException ex) {
+            assertEquals(DigiDocException.ERR_SIGN, ex.getCode());
+        }
+    }
+
+    @Test
+    public void rejectsOtherPinOnceUnlocked() throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest("SignedInfo".getBytes("UTF-8"));
+        byte[] expected = service.sign(digest, 0, null);
+        try {
+            service.sign(digest, 0, "wrong");
+            fail("unlocked key used with a wrong password");
+        } catch (DigiDocException ex) {
+            assertEquals(DigiDocException.ERR_TOKEN_LOGIN, ex.getCode());
+        }
+        try {
+            service.getCertificate(0, "");
+            fail("unlocked key used with an empty password");
+        } catch (DigiDocException ex) {
+            assertEquals(DigiDocException.ERR_TOKEN_LOGIN, ex.getCode());
+        }
+        // the keystore password unlocked the key
+        assertArrayEquals(expected, service.sign(digest, 0, PASSWORD));
+
+        service.reset();
+        assertArrayEquals(expected, service.sign(digest, 0, null));
+    }
+}
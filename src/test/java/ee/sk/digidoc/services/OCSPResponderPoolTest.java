@@ -0,0 +1,267 @@
+package ee.sk.digidoc.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ee.sk.digidoc.DigiDocException;
+
+/**
+ * Runs the pool against local stand-in responders.
+ */
+public class OCSPResponderPoolTest {
+
+    private final List<HttpServer> servers = new ArrayList<HttpServer>();
+
+    private static final OCSPResponderPool.ResponseHandler<String> AS_STRING = new OCSPResponderPool.ResponseHandler<String>() {
+        public String handle(byte[] response) throws DigiDocException {
+            String s = new String(response);
+            if (s.startsWith("bad")) {
+                throw new DigiDocException(DigiDocException.ERR_OCSP_VERIFY, "rejected", null);
+            }
+            return s;
+        }
+    };
+
+    private String responder(final int status, final String body, final long delay) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] data = body.getBytes();
+                ex.sendResponseHeaders(status, data.length);
+                OutputStream os = ex.getResponseBody();
+                os.write(data);
+                os.close();
+            }
+        });
+        server.start();
+        servers.add(server);
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @After
+    public void stopResponders() {
+        for (HttpServer server : servers) {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void failsOverAndOpensCircuit() throws Exception {
+        String down = responder(500, "error", 0);
+        String up = responder(200, "up", 0);
+        OCSPResponderPool pool = new OCSPResponderPool(Arrays.asList(down, up));
+        pool.setFailureThreshold(2);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals("up", pool.send(new byte[] { 1 }, AS_STRING));
+        }
+        Assert.assertTrue(pool.isCircuitOpen(down));
+        Assert.assertFalse(pool.isCircuitOpen(up));
+    }
+
+    @Test
+    public void rejectedResponseTriesNextResponder() throws Exception {
+        String bad = responder(200, "bad signature", 0);
+        String good = responder(200, "good", 0);
+        OCSPResponderPool pool = new OCSPResponderPool(Arrays.asList(bad, good));
+        Assert.assertEquals("good", pool.send(new byte[] { 1 }, AS_STRING));
+    }
+
+    @Test
+    public void rejectedResponsesDoNotOpenCircuit() throws Exception {
+        String bad = responder(200, "bad status", 0);
+        String good = responder(200, "good", 0);
+        OCSPResponderPool pool = new OCSPResponderPool(Arrays.asList(bad, good));
+        pool.setFailureThreshold(1);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals("good", pool.send(new byte[] { 1 }, AS_STRING));
+        }
+        Assert.assertFalse(pool.isCircuitOpen(bad));
+    }
+
+    @Test(expected = DigiDocException.class)
+    public void failsWhenAllRespondersFail() throws Exception {
+        OCSPResponderPool pool = new OCSPResponderPool(Arrays.asList(responder(503, "", 0), responder(200, "bad", 0)));
+        pool.send(new byte[] { 1 }, AS_STRING);
+    }
+
+    @Test
+    public void hedgedRequestBeatsSlowResponder() throws Exception {
+        String slow = responder(200, "slow", 1500);
+        String fast = responder(200, "fast", 0);
+        OCSPResponderPool pool = new OCSPResponderPool(Arrays.asList(slow, fast));
+        pool.setHedging(true);
+        pool.setHedgeDelay(100);
+        try {
+            long start = System.currentTimeMillis();
+            Assert.assertEquals("fast", pool.send(new byte[] { 1 }, AS_STRING));
+            Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void losingHedgedRequestReleasesItsThread() throws Exception {
+        String slow = responder(200, "slow", 3000);
+        String fast = responder(200, "fast", 0);
+        OCSPResponderPool pool = new OCSPResponderPool(Arrays.asList(slow, fast));
+        pool.setHedging(true);
+        pool.setHedgeDelay(100);
+        pool.setMaxConcurrentRequests(2);
+        try {
+            Assert.assertEquals("fast", pool.send(new byte[] { 1 }, AS_STRING));
+            Thread.sleep(200);
+            // the hedged request needs the thread of the first loser
+            long start = System.currentTimeMillis();
+            Assert.assertEquals("fast", pool.send(new byte[] { 1 }, AS_STRING));
+            Assert.assertTrue(System.currentTimeMillis() - start < 1500);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void asyncFailsOverToAcceptedResponse() throws Exception {
+        String down = responder(500, "error", 0);
+        String bad = responder(200, "bad signature", 0);
+        String good = responder(200, "good", 0);
+        OCSPResponderPool pool = new OCSPResponderPool(Arrays.asList(down, bad, good));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Assert.assertEquals("good", pool.sendAsync(new byte[] { 1 }, AS_STRING, executor).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void asyncRejectedResponsesDoNotOpenCircuit() throws Exception {
+        String bad = responder(200, "bad status", 0);
+        String good = responder(200, "good", 0);
+        OCSPResponderPool pool = new OCSPResponderPool(Arrays.asList(bad, good));
+        pool.setFailureThreshold(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < 3; i++) {
+                Assert.assertEquals("good", pool.sendAsync(new byte[] { 1 }, AS_STRING, executor).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertFalse(pool.isCircuitOpen(bad));
+    }
+
+    @Test
+    public void asyncFailureIsDigiDocException() throws Exception {
+        OCSPResponderPool pool = new OCSPResponderPool(Arrays.asList(responder(503, "", 0), responder(200, "bad", 0)));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            pool.sendAsync(new byte[] { 1 }, AS_STRING, executor).get();
+            Assert.fail("no responder should be accepted");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof DigiDocException);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void asyncHedgedRequestBeatsSlowResponder() throws Exception {
+        String slow = responder(200, "slow", 1500);
+        String fast = responder(200, "fast", 0);
+        OCSPResponderPool pool = new OCSPResponderPool(Arrays.asList(slow, fast));
+        pool.setHedging(true);
+        pool.setHedgeDelay(100);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            long start = System.currentTimeMillis();
+            Assert.assertEquals("fast", pool.sendAsync(new byte[] { 1 }, AS_STRING, executor).get());
+            Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void asyncRejectsTruncatedResponse() throws Exception {
+        final ServerSocket ss = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Socket s = ss.accept();
+                    s.getInputStream().read(new byte[4096]);
+                    s.getOutputStream().write("HTTP/1.0 200 OK\r\nContent-Length: 10\r\n\r\nshort".getBytes());
+                    s.close();
+                } catch (IOException ex) {
+                    // test fails on the client side
+                }
+            }
+        });
+        t.start();
+        OCSPResponderPool pool = new OCSPResponderPool(Arrays.asList("http://127.0.0.1:" + ss.getLocalPort() + "/"));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            pool.sendAsync(new byte[] { 1 }, AS_STRING, executor).get();
+            Assert.fail("truncated response accepted");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof DigiDocException);
+        } finally {
+            executor.shutdown();
+            t.join();
+            ss.close();
+        }
+    }
+
+    @Test
+    public void asyncRequestUsesHttpProxy() throws Exception {
+        responder(200, "proxied", 0);
+        final InetSocketAddress proxyAddr = InetSocketAddress.createUnresolved("127.0.0.1",
+                servers.get(0).getAddress().getPort());
+        ProxySelector saved = ProxySelector.getDefault();
+        ProxySelector.setDefault(new ProxySelector() {
+            public List<Proxy> select(URI uri) {
+                return Collections.singletonList(new Proxy(Proxy.Type.HTTP, proxyAddr));
+            }
+
+            public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // the responder host is only resolved by the proxy
+            OCSPResponderPool pool = new OCSPResponderPool(Arrays.asList("http://ocsp.invalid/"));
+            Assert.assertEquals("proxied", pool.sendAsync(new byte[] { 1 }, AS_STRING, executor).get());
+        } finally {
+            ProxySelector.setDefault(saved);
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package ee.sk.digidoc.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ee.sk.digidoc.CertValue;
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.Signature;
+import ee.sk.digidoc.SignedDoc;
+import ee.sk.digidoc.TimestampInfo;
+
+public class Rfc3161TimestampServiceTest {
+
+    private HttpServer server;
+    private TestTsa tsa;
+    private final AtomicInteger requests = new AtomicInteger();
+    private Rfc3161TimestampService service;
+
+    @Before
+    public void setUp() throws Exception {
+        tsa = new TestTsa("Test TSA");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/tsa", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                requests.incrementAndGet();
+                byte[] body;
+                try {
+                    body = tsa.respond(new TimeStampRequest(readAll(ex.getRequestBody()))).getEncoded();
+                } catch (Exception e) {
+                    throw new IOException(e.toString());
+                }
+                ex.getResponseHeaders().set("Content-Type", "application/timestamp-reply");
+                ex.sendResponseHeaders(200, body.length);
+                OutputStream os = ex.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        server.start();
+        service = new Rfc3161TimestampService();
+        service.setTsaUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/tsa");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            bos.write(buf, 0, n);
+        }
+        return bos.toByteArray();
+    }
+
+    private static TimestampInfo timestamp(int n) throws Exception {
+        TimestampInfo ts = new TimestampInfo("S" + n + "-T0", TimestampInfo.TIMESTAMP_TYPE_SIGNATURE);
+        ts.setHash(MessageDigest.getInstance("SHA-256").digest(("signature value " + n).getBytes("UTF-8")));
+        return ts;
+    }
+
+    private List<DigiDocException> verify(TimestampInfo ts) throws DigiDocException {
+        Signature sig = new Signature(null);
+        sig.addTimestampInfo(ts);
+        return verify(sig);
+    }
+
+    private List<DigiDocException> verify(Signature sig) throws DigiDocException {
+        CertValue cv = new CertValue();
+        cv.setType(CertValue.CERTVAL_TYPE_TSA);
+        cv.setCert(tsa.getCert());
+        sig.addCertValue(cv);
+        return new BouncyCastleTimestampService().verifySignaturesTimestamps(sig);
+    }
+
+    private static SAXDigidocServiceImpl parser() throws Exception {
+        BouncyCastleNotaryServiceImpl notaryService = new BouncyCastleNotaryServiceImpl(new CRLServiceImpl(),
+                new CAServiceImpl(), "http://ocsp.sk.ee", false, null, null);
+        Set<String> ocspCerts = new HashSet<String>();
+        ocspCerts.add("jar:///ee/sk/digidoc/certs/ESTEID-SK 2007 RESPONDER.pem.cer");
+        notaryService.setOCSPCerts(ocspCerts);
+        return new SAXDigidocServiceImpl(new TinyXMLCanonicalizationServiceImpl(), notaryService);
+    }
+
+    /**
+     * Writes a document. Signatures are written from their objects, not from
+     * the XML they were read from.
+     */
+    private static byte[] write(SignedDoc doc) throws Exception {
+        for (int i = 0; i < doc.countSignatures(); i++) {
+            doc.getSignature(i).setOrigContent(null);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        doc.writeToStream(bos);
+        return bos.toByteArray();
+    }
+
+    private static SignedDoc rewrite(SAXDigidocServiceImpl parser, SignedDoc doc) throws Exception {
+        return parser.readSignedDoc(new ByteArrayInputStream(write(doc)));
+    }
+
+    /**
+     * Validates the UnsignedProperties of a written document against the
+     * XAdES schema
+     */
+    private static void validateUnsignedProperties(byte[] xml) throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        Document dom = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        NodeList props = dom.getElementsByTagNameNS(SignedDoc.XMLNS_ETSI, "UnsignedProperties");
+        assertEquals(1, props.getLength());
+        Schema schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(
+                new File("src/test/data/xades-unsigned-properties.xsd"));
+        schema.newValidator().validate(new DOMSource(props.item(0)));
+    }
+
+    @Test
+    public void stampsEachHashWithoutAggregation() throws Exception {
+        TimestampInfo ts1 = timestamp(1);
+        TimestampInfo ts2 = timestamp(2);
+        service.stamp(ts1);
+        service.stamp(ts2);
+        assertEquals(2, requests.get());
+        assertNull(ts1.getAggregationProof());
+        assertTrue(verify(ts1).isEmpty());
+        assertTrue(verify(ts2).isEmpty());
+    }
+
+    @Test
+    public void aggregatesConcurrentHashes() throws Exception {
+        service.setAggregationWindow(500);
+        int threads = 20;
+        final CountDownLatch go = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<TimestampInfo> stamped = new ArrayList<TimestampInfo>();
+        try {
+            List<Future<TimestampInfo>> results = new ArrayList<Future<TimestampInfo>>();
+            for (int i = 0; i < threads; i++) {
+                final TimestampInfo ts = timestamp(i);
+                results.add(pool.submit(new Callable<TimestampInfo>() {
+                    public TimestampInfo call() throws Exception {
+                        go.await();
+                        service.stamp(ts);
+                        return ts;
+                    }
+                }));
+            }
+            go.countDown();
+            for (Future<TimestampInfo> f : results) {
+                stamped.add(f.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, requests.get());
+        for (TimestampInfo ts : stamped) {
+            assertNotNull(ts.getAggregationProof());
+            List<DigiDocException> errs = verify(ts);
+            assertTrue(errs.toString(), errs.isEmpty());
+        }
+
+        // the proof of another hash does not verify
+        TimestampInfo ts = stamped.get(0);
+        ts.setAggregationProof(stamped.get(1).getAggregationProof());
+        List<DigiDocException> errs = verify(ts);
+        assertEquals(1, errs.size());
+        assertTrue(errs.get(0).getMessage().contains("Bad digest"));
+    }
+
+    @Test
+    public void aggregatedTimestampSurvivesWriteAndRead() throws Exception {
+        SAXDigidocServiceImpl parser = parser();
+        SignedDoc doc = parser.readSignedDoc("src/test/data/volikiri.ddoc");
+        Signature sig = doc.getSignature(0);
+        TimestampInfo ts = new TimestampInfo(sig.getId() + "-T0", TimestampInfo.TIMESTAMP_TYPE_SIGNATURE);
+        ts.setTimeStampResponse(tsa.stamp(new byte[32]));
+        sig.addTimestampInfo(ts);
+        // the reader sets the hash of the signature value
+        doc = rewrite(parser, doc);
+        ts = doc.getSignature(0).getTimestampInfoOfType(TimestampInfo.TIMESTAMP_TYPE_SIGNATURE);
+        assertNotNull(ts.getHash());
+
+        service.setAggregationWindow(10);
+        service.stamp(ts);
+        byte[] proof = ts.getAggregationProof();
+        assertNotNull(proof);
+
+        byte[] xml = write(doc);
+        // the proof must not break the XAdES structure for other verifiers
+        validateUnsignedProperties(xml);
+        assertTrue(new String(xml, "UTF-8").contains("<AggregationProof xmlns=\""
+                + TimestampInfo.XMLNS_AGGREGATION_PROOF + "\""));
+        sig = parser.readSignedDoc(new ByteArrayInputStream(xml)).getSignature(0);
+        ts = sig.getTimestampInfoOfType(TimestampInfo.TIMESTAMP_TYPE_SIGNATURE);
+        assertArrayEquals(proof, ts.getAggregationProof());
+        List<DigiDocException> errs = verify(sig);
+        assertTrue(errs.toString(), errs.isEmpty());
+    }
+
+    @Test
+    public void stampsFullBatchWithoutWaiting() throws Exception {
+        service.setAggregationWindow(60000);
+        service.setMaxBatchSize(2);
+        final TimestampInfo ts1 = timestamp(1);
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    service.stamp(ts1);
+                } catch (DigiDocException ex) {
+                    // checked below
+                }
+            }
+        };
+        long start = System.currentTimeMillis();
+        t.start();
+        Thread.sleep(100);
+        TimestampInfo ts2 = timestamp(2);
+        service.stamp(ts2);
+        t.join(10000);
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals(1, requests.get());
+        assertTrue(verify(ts1).isEmpty());
+        assertTrue(verify(ts2).isEmpty());
+    }
+
+    @Test
+    public void reportsTsaErrors() throws Exception {
+        service.setTsaUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/missing");
+        service.setAggregationWindow(10);
+        try {
+            service.stamp(timestamp(1));
+            fail("TSA error not reported");
+        } catch (DigiDocException ex) {
+            assertEquals(DigiDocException.ERR_TIMESTAMP_RESP, ex.getCode());
+        }
+    }
+}
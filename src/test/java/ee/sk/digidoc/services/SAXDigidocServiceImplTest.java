@@ -0,0 +1,193 @@
+package ee.sk.digidoc.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ee.sk.digidoc.CertValue;
+import ee.sk.digidoc.DataFile;
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.Notary;
+import ee.sk.digidoc.SignedDoc;
+import ee.sk.digidoc.TimestampInfo;
+import ee.sk.utils.DDUtils;
+
+public class SAXDigidocServiceImplTest {
+
+    private static final String DDOC = "src/test/data/Hange_nr._9333.ddoc";
+    private static final String VOLIKIRI = "src/test/data/volikiri.ddoc";
+
+    private SAXDigidocServiceImpl service;
+
+    @Before
+    public void setUp() throws Exception {
+        CAServiceImpl caService = new CAServiceImpl();
+        BouncyCastleNotaryServiceImpl notaryService = new BouncyCastleNotaryServiceImpl(new CRLServiceImpl(),
+                caService, "http://ocsp.sk.ee", false, null, null);
+        Set<String> ocspCerts = new HashSet<String>();
+        ocspCerts.add("jar:///ee/sk/digidoc/certs/ESTEID-SK 2007 RESPONDER.pem.cer");
+        notaryService.setOCSPCerts(ocspCerts);
+        service = new SAXDigidocServiceImpl(new TinyXMLCanonicalizationServiceImpl(), notaryService);
+    }
+
+    @Test
+    public void readsSignaturesWithoutDataFileContent() throws Exception {
+        SignedDoc full = service.readSignedDoc(DDOC);
+        SignedDoc sigs = service.readSignatures(DDOC);
+
+        assertEquals(full.countSignatures(), sigs.countSignatures());
+        for (int i = 0; i < full.countSignatures(); i++) {
+            assertEquals(full.getSignature(i).getKeyInfo().getSignersCertificate(), sigs.getSignature(i)
+                    .getKeyInfo().getSignersCertificate());
+            assertArrayEquals(full.getSignature(i).getSignatureValue().getValue(), sigs.getSignature(i)
+                    .getSignatureValue().getValue());
+        }
+
+        assertEquals(full.countDataFiles(), sigs.countDataFiles());
+        RandomAccessFile raf = new RandomAccessFile(DDOC, "r");
+        try {
+            for (int i = 0; i < full.countDataFiles(); i++) {
+                DataFile f = full.getDataFile(i);
+                DataFile s = sigs.getDataFile(i);
+                assertFalse(f.isContentSkipped());
+                assertTrue(s.isContentSkipped());
+                assertEquals(f.getId(), s.getId());
+                assertEquals(f.getFileName(), s.getFileName());
+                assertEquals(f.getSize(), s.getSize());
+
+                byte[] element = new byte[(int) s.getSourceLength()];
+                raf.seek(s.getSourceOffset());
+                raf.readFully(element);
+                String str = new String(element, "UTF-8");
+                assertTrue(str.startsWith("<DataFile"));
+                assertTrue(str.endsWith("</DataFile>"));
+
+                try {
+                    s.getDigest();
+                    fail("digest of skipped content calculated");
+                } catch (DigiDocException ex) {
+                    assertEquals(DigiDocException.ERR_READ_FILE, ex.getCode());
+                }
+                assertArrayEquals(f.getDigest(), service.calculateDataFileDigest(DDOC, sigs, s));
+                assertArrayEquals(f.getDigest(), s.getDigest());
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void skipsNestedAndEmptyDataFiles() throws Exception {
+        String doc = "<SignedDoc><DataFile Id=\"D0\" a='x>y'>QUJD\nREVG</DataFile>\n"
+                + "<DataFile Id=\"D1\"/><DataFile Id=\"D2\" ContentType=\"EMBEDDED\">"
+                + "<SignedDoc><DataFile Id=\"X\">a</DataFile><DataFile Id=\"Y\"/></SignedDoc></DataFile></SignedDoc>";
+        byte[] data = doc.getBytes("UTF-8");
+        DataFileSkippingInputStream is = new DataFileSkippingInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[7];
+        int n;
+        while ((n = is.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        assertEquals("<SignedDoc><DataFile Id=\"D0\" a='x>y'></DataFile>\n<DataFile Id=\"D1\"/>"
+                + "<DataFile Id=\"D2\" ContentType=\"EMBEDDED\"></DataFile></SignedDoc>", out.toString("UTF-8"));
+
+        String[] elements = {
+                "<DataFile Id=\"D0\" a='x>y'>QUJD\nREVG</DataFile>",
+                "<DataFile Id=\"D1\"/>",
+                "<DataFile Id=\"D2\" ContentType=\"EMBEDDED\"><SignedDoc><DataFile Id=\"X\">a</DataFile>"
+                        + "<DataFile Id=\"Y\"/></SignedDoc></DataFile>" };
+        for (int i = 0; i < elements.length; i++) {
+            long[] range = is.getRange(i);
+            assertEquals(elements[i], new String(data, (int) range[0], (int) range[1], "UTF-8"));
+        }
+    }
+
+    @Test
+    public void decodesCertificatesAndOcspOnAccess() throws Exception {
+        SignedDoc doc = service.readSignedDoc(VOLIKIRI);
+        CertValue cval = doc.getSignature(0).getCertValueOfType(CertValue.CERTVAL_TYPE_SIGNER);
+        assertEquals(DDUtils.readCertificate(cval.getCertData()), cval.getCert());
+        assertSame(cval.getCert(), cval.getCert());
+
+        Notary not = doc.getSignature(0).getUnsignedProperties().getNotary();
+        assertEquals(not.getBasicResponse().getProducedAt(), not.getProducedAt());
+        assertTrue(not.getResponderId().startsWith("byName: "));
+    }
+
+    @Test
+    public void rejectsCorruptCertificateWhileReading() throws Exception {
+        assertReadFails(corrupt("X509Certificate"), DigiDocException.ERR_READ_CERT);
+        assertReadFails(corrupt("EncapsulatedX509Certificate"), DigiDocException.ERR_READ_CERT);
+    }
+
+    @Test
+    public void rejectsCorruptOcspResponseWhileReading() throws Exception {
+        assertReadFails(corrupt("EncapsulatedOCSPValue"), DigiDocException.ERR_OCSP_PARSE);
+    }
+
+    @Test
+    public void decodesTimestampResponseOnAccess() throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest("data".getBytes("UTF-8"));
+        byte[] data = new TestTsa("Test TSA").stamp(hash).getEncoded();
+        TimestampInfo ts = new TimestampInfo("S0-T0", TimestampInfo.TIMESTAMP_TYPE_SIGNATURE);
+        ts.setTimeStampResponseData(data);
+        assertNotNull(ts.getTimeStampResponse());
+        assertArrayEquals(hash, ts.getMessageImprint());
+
+        try {
+            ts.setTimeStampResponseData(new byte[] { 0x30, 0x03, 0x02, 0x01 });
+            fail("corrupt timestamp response accepted");
+        } catch (DigiDocException ex) {
+            assertEquals(DigiDocException.ERR_TIMESTAMP_RESP, ex.getCode());
+        }
+        // the previous response is kept
+        assertArrayEquals(data, ts.getTimeStampResponseData());
+    }
+
+    /**
+     * Returns the test document with the content of the first given element
+     * replaced by valid Base64 of corrupt DER data
+     */
+    private static byte[] corrupt(String element) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(VOLIKIRI, "r");
+        byte[] data = new byte[(int) raf.length()];
+        try {
+            raf.readFully(data);
+        } finally {
+            raf.close();
+        }
+        String xml = new String(data, "UTF-8");
+        Matcher m = Pattern.compile("<" + element + "( [^>]*)?>([^<]*)</" + element + ">").matcher(xml);
+        assertTrue(m.find());
+        String base64 = m.group(2).trim();
+        // keep the start of the data and drop the rest
+        String cut = base64.substring(0, 40);
+        return (xml.substring(0, m.start(2)) + cut + xml.substring(m.end(2))).getBytes("UTF-8");
+    }
+
+    private void assertReadFails(byte[] doc, int code) {
+        try {
+            service.readSignedDoc(new ByteArrayInputStream(doc));
+            fail("corrupt document read");
+        } catch (DigiDocException ex) {
+            assertEquals(code, ex.getCode());
+        }
+    }
+}
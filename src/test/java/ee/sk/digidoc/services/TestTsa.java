@@ -0,0 +1,83 @@
+package ee.sk.digidoc.services;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.CertStore;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampResponse;
+import org.bouncycastle.tsp.TimeStampResponseGenerator;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+
+/**
+ * Local time-stamping authority for tests
+ */
+class TestTsa {
+
+    private static final long DAY = 86400000L;
+
+    private final KeyPair keys;
+    private final X509Certificate cert;
+    private final AtomicLong serial = new AtomicLong();
+
+    TestTsa(String name) throws Exception {
+        if (Security.getProvider("BC") == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        keys = gen.generateKeyPair();
+        X500Principal subject = new X500Principal("CN=" + name + ", C=EE");
+        X509V3CertificateGenerator cg = new X509V3CertificateGenerator();
+        cg.setSerialNumber(BigInteger.valueOf(System.nanoTime()));
+        cg.setIssuerDN(subject);
+        cg.setSubjectDN(subject);
+        cg.setNotBefore(new Date(System.currentTimeMillis() - DAY));
+        cg.setNotAfter(new Date(System.currentTimeMillis() + DAY));
+        cg.setPublicKey(keys.getPublic());
+        cg.setSignatureAlgorithm("SHA1withRSA");
+        cg.addExtension(X509Extensions.ExtendedKeyUsage, true, new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping));
+        cert = cg.generate(keys.getPrivate());
+    }
+
+    X509Certificate getCert() {
+        return cert;
+    }
+
+    /**
+     * Stamps a SHA-256 digest
+     */
+    TimeStampResponse stamp(byte[] digest) throws Exception {
+        TimeStampRequestGenerator rg = new TimeStampRequestGenerator();
+        rg.setCertReq(true);
+        return respond(rg.generate(TSPAlgorithms.SHA256, digest, BigInteger.valueOf(System.nanoTime())));
+    }
+
+    /**
+     * Answers a request
+     */
+    TimeStampResponse respond(TimeStampRequest req) throws Exception {
+        TimeStampTokenGenerator tg = new TimeStampTokenGenerator(keys.getPrivate(), cert, TSPAlgorithms.SHA1,
+                "1.3.6.1.4.1.10015.3.1.1");
+        tg.setCertificatesAndCRLs(CertStore.getInstance("Collection", new CollectionCertStoreParameters(Collections
+                .singletonList(cert)), "BC"));
+        TimeStampResponseGenerator gen = new TimeStampResponseGenerator(tg, TSPAlgorithms.ALLOWED);
+        return gen.generate(req, BigInteger.valueOf(serial.incrementAndGet()), new Date(), "BC");
+    }
+}
@@ -0,0 +1,31 @@
+package ee.sk.digidoc.services;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TinyXMLCanonicalizationServiceImplTest {
+
+    private final TinyXMLCanonicalizationServiceImpl service = new TinyXMLCanonicalizationServiceImpl();
+
+    private String c14n(String xml) throws Exception {
+        return new String(service.canonicalize(xml.getBytes("UTF-8"), null), "UTF-8");
+    }
+
+    @Test
+    public void canonicalizesMarkupTokens() throws Exception {
+        assertEquals("<a b=\"1\" c=\"x&amp;y\"><b></b> &lt;x&gt; &lt;t&gt; \"q\" 'q' <?pi?>\n</a>",
+                c14n("<a  b='1'   c=\"x&amp;y\"><!-- c --><b/><![CDATA[ <x> ]]>&lt;t&gt; \"q\" 'q' <?pi x?></a>"));
+    }
+
+    @Test
+    public void canonicalizesEntitiesAndMarkupInText() throws Exception {
+        assertEquals("<r xmlns=\"u\"><e a=\"AB\">text &amp; more\n</e><f></f>]]&gt; --- == [] &gt;</r>",
+                c14n("<r xmlns=\"u\"><e a=\"&#65;&#x42;\">text &amp; more\r\n</e><f></f>]]&gt; --- == [] ></r>"));
+    }
+
+    @Test
+    public void keepsNonAsciiBytes() throws Exception {
+        assertEquals("<x>äõ <y z=\"ü\"></y>  </x>", c14n("<x>äõ <y z='ü'/>  </x>"));
+    }
+}
@@ -0,0 +1,126 @@
+package ee.sk.digidoc.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ee.sk.digidoc.DigiDocException;
+import ee.sk.digidoc.SignedDoc;
+
+public class VerificationResultStoreTest {
+
+    private static final File CONTAINER = new File("src/test/data/volikiri.ddoc");
+
+    private File file;
+    private CAServiceImpl caService;
+    private VerificationServiceImpl verificationService;
+    private DigiDocService parser;
+    private int parsed;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File("target/verification-results.txt");
+        file.delete();
+        caService = new CAServiceImpl();
+        caService.setCACerts(Collections.singletonList("jar:///ee/sk/digidoc/certs/ESTEID-SK 2011.pem.cer"));
+        CRLService crlService = new CRLServiceImpl();
+        BouncyCastleNotaryServiceImpl notaryService = new BouncyCastleNotaryServiceImpl(crlService, caService,
+                "http://ocsp.sk.ee", false, null, null);
+        Set<String> ocspCerts = new HashSet<String>();
+        ocspCerts.add("jar:///ee/sk/digidoc/certs/SK OCSP RESPONDER 2011.pem.cer");
+        notaryService.setOCSPCerts(ocspCerts);
+        parser = new SAXDigidocServiceImpl(new TinyXMLCanonicalizationServiceImpl(), notaryService) {
+            public SignedDoc readSignedDoc(String fileName) throws DigiDocException {
+                parsed++;
+                return super.readSignedDoc(fileName);
+            }
+        };
+        verificationService = new VerificationServiceImpl(caService, notaryService, "RSA//");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void returnsStoredResultUntilTrustAnchorsChange() throws Exception {
+        VerificationResultStore store = new VerificationResultStore(file);
+        verificationService.setResultStore(store);
+        List<DigiDocException> first = verificationService.verify(CONTAINER, parser, true, true);
+        List<DigiDocException> second = verificationService.verify(CONTAINER, parser, true, true);
+        assertEquals(1, parsed);
+        assertEquals(first.size(), second.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertEquals(first.get(i).getCode(), second.get(i).getCode());
+        }
+
+        // other options are verified separately
+        verificationService.verify(CONTAINER, parser, false, true);
+        assertEquals(2, parsed);
+
+        // the result survives a restart
+        store.close();
+        verificationService.setResultStore(new VerificationResultStore(file));
+        verificationService.verify(CONTAINER, parser, true, true);
+        assertEquals(2, parsed);
+
+        // a new CA certificate invalidates it
+        caService.setCACerts(Collections.singletonList("jar:///ee/sk/digidoc/certs/ESTEID-SK 2007.PEM.cer"));
+        verificationService.verify(CONTAINER, parser, true, true);
+        assertEquals(3, parsed);
+        verificationService.verify(CONTAINER, parser, true, true);
+        assertEquals(3, parsed);
+    }
+
+    @Test
+    public void keepsLatestResultWhenCompacting() throws Exception {
+        VerificationResultStore store = new VerificationResultStore(file);
+        List<DigiDocException> errs = new ArrayList<DigiDocException>();
+        errs.add(new DigiDocException(DigiDocException.ERR_VERIFY, "Invalid signature value!", null));
+        errs.add(new DigiDocException(DigiDocException.ERR_NOT_SIGNED, null, null));
+        for (int i = 0; i < 100; i++) {
+            store.put("doc" + (i % 3), "v" + i, errs);
+        }
+        store.close();
+        assertEquals(3, new VerificationResultStore(file).size());
+
+        store = new VerificationResultStore(file);
+        assertNull(store.get("doc0", "v0"));
+        List<DigiDocException> stored = store.get("doc0", "v99");
+        assertNotNull(stored);
+        assertEquals(DigiDocException.ERR_VERIFY, stored.get(0).getCode());
+        assertEquals("Invalid signature value!", stored.get(0).getMessage());
+        assertNull(stored.get(1).getMessage());
+        assertNull(store.get("doc1", "v99"));
+        assertNotNull(store.get("doc1", "v97"));
+    }
+
+    @Test
+    public void returnsResultWhileItsComponentsArePresent() throws Exception {
+        VerificationResultStore store = new VerificationResultStore(file);
+        List<DigiDocException> errs = new ArrayList<DigiDocException>();
+        store.put("doc", "ca,crl1", errs);
+        store.put("unversioned", "", errs);
+        store.close();
+
+        store = new VerificationResultStore(file);
+        assertNotNull(store.get("doc", "ca,crl1"));
+        // the CRL of another issuer was loaded later
+        assertNotNull(store.get("doc", "ca,crl2,crl1"));
+        assertNull(store.get("doc", "ca"));
+        assertNull(store.get("doc", "ca,crl1b,crl2"));
+        assertNotNull(store.get("unversioned", "ca"));
+    }
+}
@@ -0,0 +1,124 @@
+package ee.sk.digidoc.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ee.sk.digidoc.DataFile;
+import ee.sk.digidoc.SignedDoc;
+import ee.sk.digidoc.metrics.Metrics;
+
+public class ContentAddressedBodyStoreTest {
+
+    private File dir;
+    private ContentAddressedBodyStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File("target/body-store-test");
+        delete(dir);
+        store = new ContentAddressedBodyStore(dir);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        delete(dir);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    private static byte[] text(int lines) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append("Line ").append(i).append(" of the attachment\n");
+        }
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private static DataFile dataFile(BodyStore bodyStore) throws Exception {
+        SignedDoc doc = new SignedDoc(SignedDoc.FORMAT_DIGIDOC_XML, SignedDoc.VERSION_1_3);
+        DataFile df = new DataFile("D0", DataFile.CONTENT_EMBEDDED, "attachment.txt", "text/plain", doc);
+        df.setBodyStore(bodyStore);
+        return df;
+    }
+
+    private static byte[] readAll(InputStream is) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) > 0) {
+            bos.write(buf, 0, n);
+        }
+        is.close();
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void storesEqualBodiesOnce() throws Exception {
+        byte[] data = text(1000);
+        DataFile df1 = dataFile(store);
+        df1.setBody(data, "UTF-8");
+        DataFile df2 = dataFile(store);
+        df2.setBody(data, "UTF-8");
+        DataFile other = dataFile(store);
+        other.setBody(text(2000), "UTF-8");
+
+        assertEquals(2, store.size());
+        assertEquals(df1.getDfCacheFile(), df2.getDfCacheFile());
+        assertArrayEquals(data, readAll(df2.getBodyAsStream()));
+
+        // released bodies stay in the store
+        df1.cleanupDfCache();
+        assertArrayEquals(data, readAll(df2.getBodyAsStream()));
+    }
+
+    @Test
+    public void reusesDigestsFromIndex() throws Exception {
+        byte[] data = text(1000);
+        DataFile plain = dataFile(new TieredBodyStore());
+        plain.setBody(data, "UTF-8");
+        byte[] expected = plain.getDigest();
+
+        DataFile df = dataFile(store);
+        df.setBody(data, "UTF-8");
+        assertArrayEquals(expected, df.getDigest());
+        // blobs are named by the SHA-256 of their content
+        String key = df.getDfCacheFile().getName();
+        store.close();
+
+        // a later process assembles a container with the known payload
+        store = new ContentAddressedBodyStore(dir);
+        ContentAddressedBodyStore.ContentBody body = store.open(key);
+        assertNotNull(body);
+        DataFile assembled = dataFile(store);
+        assembled.setStoredBody(body);
+        long digested = Metrics.getStage(Metrics.DATAFILE_DIGEST).getCount();
+        assertArrayEquals(expected, assembled.getDigest());
+        assertEquals(digested, Metrics.getStage(Metrics.DATAFILE_DIGEST).getCount());
+
+        // other attributes give another digest
+        SignedDoc doc = new SignedDoc(SignedDoc.FORMAT_DIGIDOC_XML, SignedDoc.VERSION_1_3);
+        DataFile renamed = new DataFile("D0", DataFile.CONTENT_EMBEDDED, "renamed.txt", "text/plain", doc);
+        renamed.setStoredBody(store.open(key));
+        assertFalse(Arrays.equals(expected, renamed.getDigest()));
+    }
+}
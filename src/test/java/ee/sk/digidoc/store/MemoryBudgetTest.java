@@ -0,0 +1,98 @@
+package ee.sk.digidoc.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ee.sk.digidoc.DataFile;
+import ee.sk.digidoc.SignedDoc;
+import ee.sk.digidoc.services.SAXDigidocServiceImpl;
+import ee.sk.digidoc.services.TinyXMLCanonicalizationServiceImpl;
+import ee.sk.utils.Base64Util;
+
+public class MemoryBudgetTest {
+
+    @Test
+    public void leasesReserveAndRelease() {
+        MemoryBudget budget = new MemoryBudget(100 * 1024);
+        MemoryBudget.Lease a = budget.lease();
+        assertTrue(a.tryGrow(80 * 1024));
+        MemoryBudget.Lease b = budget.lease();
+        assertFalse(b.tryGrow(40 * 1024));
+        a.close();
+        assertEquals(0, budget.getReserved());
+        assertTrue(b.tryGrow(40 * 1024));
+        b.close();
+        assertEquals(0, budget.getReserved());
+    }
+
+    @Test
+    public void reserveWaitsForRelease() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(1000);
+        budget.setMaxWaitMillis(5000);
+        assertTrue(budget.tryReserve(800));
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                budget.release(800);
+            }
+        };
+        t.start();
+        assertTrue(budget.reserve(500));
+        assertEquals(500, budget.getReserved());
+
+        budget.setMaxWaitMillis(50);
+        assertFalse(budget.reserve(600));
+    }
+
+    @Test
+    public void parserSpillsWhenDeclaredSizeLies() throws Exception {
+        assertParserSpills(" Size=\"10\"");
+    }
+
+    @Test
+    public void parserSpillsWhenSizeIsMissing() throws Exception {
+        assertParserSpills("");
+    }
+
+    private static void assertParserSpills(String sizeAttr) throws Exception {
+        byte[] data = new byte[300 * 1024];
+        new Random(1).nextBytes(data);
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<SignedDoc format=\"DIGIDOC-XML\" version=\"1.3\" xmlns=\"http://www.sk.ee/DigiDoc/v1.3.0#\">\n"
+                + "<DataFile ContentType=\"EMBEDDED_BASE64\" Filename=\"a.bin\" Id=\"D0\" "
+                + "MimeType=\"application/octet-stream\"" + sizeAttr + " xmlns=\"http://www.sk.ee/DigiDoc/v1.3.0#\">"
+                + Base64Util.encode(data) + "</DataFile>\n</SignedDoc>";
+
+        SAXDigidocServiceImpl unlimited = new SAXDigidocServiceImpl(new TinyXMLCanonicalizationServiceImpl(), null);
+        unlimited.setMemoryBudget(new MemoryBudget(Long.MAX_VALUE));
+        DataFile expected = unlimited.readSignedDoc(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDataFile(0);
+        assertArrayEquals(data, expected.getBodyAsData());
+
+        MemoryBudget budget = new MemoryBudget(64 * 1024);
+        TieredBodyStore store = new TieredBodyStore();
+        store.setMemoryBudget(budget);
+        SAXDigidocServiceImpl limited = new SAXDigidocServiceImpl(new TinyXMLCanonicalizationServiceImpl(), null);
+        limited.setMemoryBudget(budget);
+        limited.setBodyStore(store);
+        SignedDoc doc = limited.readSignedDoc(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        DataFile df = doc.getDataFile(0);
+
+        assertTrue(df.hasCachedBody());
+        assertArrayEquals(expected.getDigest(), df.getDigest());
+        assertArrayEquals(data, df.getBodyAsData());
+        doc.cleanupDfCache();
+        store.trimPool();
+        assertEquals(0, budget.getReserved());
+    }
+}
@@ -0,0 +1,187 @@
+package ee.sk.digidoc.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ee.sk.digidoc.DataFile;
+import ee.sk.digidoc.SignedDoc;
+
+public class TieredBodyStoreTest {
+
+    private TieredBodyStore store;
+
+    @Before
+    public void setUp() {
+        store = new TieredBodyStore();
+        store.setOffHeapThreshold(256 * 1024);
+        store.setMaxOffHeapBytes(1024 * 1024);
+    }
+
+    private static byte[] data(int len) {
+        byte[] b = new byte[len];
+        new Random(len).nextBytes(b);
+        return b;
+    }
+
+    private StoredBody store(byte[] data) throws Exception {
+        BodySink sink = store.create(-1);
+        try {
+            sink.write(data);
+            return sink.finish();
+        } finally {
+            sink.close();
+        }
+    }
+
+    @Test
+    public void mediumBodyStaysOffTheFilesystem() throws Exception {
+        byte[] data = data(50 * 1024);
+        assertFalse(store.keepOnHeap(data.length));
+        StoredBody body = store(data);
+        assertNull(body.getFile());
+        assertEquals(data.length, body.length());
+        assertArrayEquals(data, body.toByteArray());
+        assertTrue(store.getOffHeapInUse() > 0);
+        body.release();
+        assertEquals(0, store.getOffHeapInUse());
+    }
+
+    @Test
+    public void largeBodyGoesToDiskAndIsDeletedOnRelease() throws Exception {
+        byte[] data = data(300 * 1024);
+        StoredBody body = store(data);
+        File f = body.getFile();
+        assertNotNull(f);
+        assertTrue(f.exists());
+        assertArrayEquals(data, body.toByteArray());
+        assertEquals(0, store.getOffHeapInUse());
+        body.retain();
+        body.release();
+        assertTrue(f.exists());
+        body.release();
+        assertFalse(f.exists());
+    }
+
+    @Test
+    public void exhaustedOffHeapBudgetSpillsToDisk() throws Exception {
+        store.setMaxOffHeapBytes(128 * 1024);
+        StoredBody first = store(data(100 * 1024));
+        assertNull(first.getFile());
+        byte[] data = data(100 * 1024);
+        StoredBody second = store(data);
+        assertNotNull(second.getFile());
+        assertArrayEquals(data, second.toByteArray());
+        first.release();
+        second.release();
+        assertEquals(0, store.getOffHeapInUse());
+    }
+
+    @Test
+    public void offHeapBodyIsSerializedAsCopy() throws Exception {
+        byte[] data = data(10000);
+        StoredBody body = store(data);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(body);
+        oos.close();
+        body.release();
+        StoredBody copy = (StoredBody) new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))
+                .readObject();
+        assertArrayEquals(data, copy.toByteArray());
+    }
+
+    @Test
+    public void dataFileUsesItsStore() throws Exception {
+        SignedDoc doc = new SignedDoc(SignedDoc.FORMAT_DIGIDOC_XML, SignedDoc.VERSION_1_3);
+        DataFile df = new DataFile(doc.getNewDataFileId(), DataFile.CONTENT_EMBEDDED, "test.bin",
+                "application/octet-stream", doc);
+        df.setBodyStore(store);
+        byte[] data = data(50 * 1024);
+        df.setBodyFromStream(new ByteArrayInputStream(data));
+        assertEquals(data.length, df.getSize());
+        assertTrue(df.hasCachedBody());
+        assertNull(df.getDfCacheFile());
+        assertArrayEquals(data, df.getBodyAsData());
+        df.cleanupDfCache();
+        assertFalse(df.hasCachedBody());
+        assertEquals(0, store.getOffHeapInUse());
+    }
+
+    @Test
+    public void releasedBuffersAreReused() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        store.setMemoryBudget(budget);
+        store.setMaxPooledBytes(64 * 1024);
+        StoredBody first = store(data(100 * 1024));
+        first.release();
+        // one of the two buffers is kept, both stay counted until trimmed
+        assertEquals(64 * 1024, store.getPooledBytes());
+        assertEquals(64 * 1024, budget.getReserved());
+
+        byte[] data = data(10000);
+        StoredBody second = store(data);
+        assertEquals(0, store.getPooledBytes());
+        assertEquals(64 * 1024, store.getOffHeapInUse());
+        assertEquals(64 * 1024, budget.getReserved());
+
+        // an open stream keeps the buffers from being reused
+        InputStream is = second.openStream();
+        second.release();
+        assertEquals(0, store.getPooledBytes());
+        byte[] read = new byte[data.length];
+        int n = 0;
+        while (n < read.length) {
+            n += is.read(read, n, read.length - n);
+        }
+        assertArrayEquals(data, read);
+        is.close();
+        assertEquals(64 * 1024, store.getPooledBytes());
+        assertEquals(0, store.getOffHeapInUse());
+
+        store.trimPool();
+        assertEquals(0, store.getPooledBytes());
+        assertEquals(0, budget.getReserved());
+    }
+
+    @Test
+    public void cacheFileUsesTempDir() throws Exception {
+        File dir = new File("target/body-store-tmp");
+        dir.mkdirs();
+        store.setTempDir(dir);
+        store.setHeapThreshold(0);
+        SignedDoc doc = new SignedDoc(SignedDoc.FORMAT_DIGIDOC_XML, SignedDoc.VERSION_1_3);
+        DataFile df = new DataFile(doc.getNewDataFileId(), DataFile.CONTENT_EMBEDDED, "test.bin",
+                "application/octet-stream", doc);
+        df.setBodyStore(store);
+        byte[] data = data(300 * 1024);
+        df.setSize(data.length);
+        BodySink sink = df.openCacheStream();
+        File f;
+        try {
+            sink.write(data);
+            f = sink.finish().getFile();
+        } finally {
+            sink.close();
+        }
+        assertNotNull(f);
+        assertEquals(dir.getAbsoluteFile(), f.getAbsoluteFile().getParentFile());
+        assertArrayEquals(data, df.getBodyAsData());
+        df.cleanupDfCache();
+        assertFalse(f.exists());
+    }
+}
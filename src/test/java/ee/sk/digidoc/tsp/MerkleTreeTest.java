@@ -0,0 +1,57 @@
+package ee.sk.digidoc.tsp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MerkleTreeTest {
+
+    private static List<byte[]> digests(int n) {
+        List<byte[]> list = new ArrayList<byte[]>();
+        for (int i = 0; i < n; i++) {
+            byte[] d = new byte[32];
+            d[0] = (byte) i;
+            d[31] = (byte) (i * 7);
+            list.add(d);
+        }
+        return list;
+    }
+
+    @Test
+    public void proofsLeadToRoot() {
+        for (int n = 1; n <= 17; n++) {
+            List<byte[]> digests = digests(n);
+            MerkleTree tree = new MerkleTree(digests);
+            for (int i = 0; i < n; i++) {
+                MerkleProof proof = MerkleProof.decode(tree.getProof(i).getEncoded());
+                assertArrayEquals(tree.getRoot(), proof.computeRoot(digests.get(i)));
+                assertTrue(proof.verify(digests.get(i), tree.getRoot()));
+                // a proof does not fit another leaf
+                if (n > 1) {
+                    assertFalse(proof.verify(digests.get((i + 1) % n), tree.getRoot()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectsInvalidEncoding() {
+        byte[] enc = new MerkleTree(digests(5)).getProof(4).getEncoded();
+        byte[][] invalid = { new byte[0], new byte[] { 2, 0 }, Arrays.copyOf(enc, enc.length - 1) };
+        for (byte[] b : invalid) {
+            try {
+                MerkleProof.decode(b);
+                fail("invalid proof decoded");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package ee.sk.utils;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ee.sk.digidoc.DataFile;
+import ee.sk.digidoc.SignedDoc;
+import ee.sk.digidoc.store.TieredBodyStore;
+
+public class CharsetTranscoderTest {
+
+    private static final String TEXT = "Tere õäöü šž € 😀 lõpp ";
+
+    private static byte[] transcode(CharsetTranscoder t, byte[] data, int block) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (int off = 0; off < data.length; off += block) {
+            t.transcode(data, off, Math.min(block, data.length - off), bos);
+        }
+        t.finish(bos);
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void resultDoesNotDependOnBlockBoundaries() throws Exception {
+        CharsetTranscoder utf8 = new CharsetTranscoder("UTF-8", "UTF-8");
+        CharsetTranscoder latin = new CharsetTranscoder("ISO-8859-15", "UTF-8");
+        byte[] data = TEXT.getBytes("UTF-8");
+        String latinText = TEXT.replaceAll("[^\\u0000-\\u017f\\u20ac]", "");
+        byte[] latinData = latinText.getBytes("ISO-8859-15");
+        for (int block = 1; block <= 7; block++) {
+            Assert.assertArrayEquals(data, transcode(utf8, data, block));
+            Assert.assertArrayEquals(latinText.getBytes("UTF-8"), transcode(latin, latinData, block));
+        }
+    }
+
+    @Test
+    public void malformedInputIsReplacedLikeString() throws Exception {
+        byte[] data = { 'a', (byte) 0xc3, 'b', (byte) 0xe2, (byte) 0x82 };
+        CharsetTranscoder t = new CharsetTranscoder("UTF-8", "UTF-8");
+        Assert.assertArrayEquals(new String(data, "UTF-8").getBytes("UTF-8"), transcode(t, data, 1));
+    }
+
+    private static DataFile embedded(String text, TieredBodyStore store) throws Exception {
+        SignedDoc doc = new SignedDoc(SignedDoc.FORMAT_DIGIDOC_XML, SignedDoc.VERSION_1_3);
+        DataFile df = new DataFile("D0", DataFile.CONTENT_EMBEDDED, "a.txt", "text/plain", doc);
+        df.setBodyStore(store);
+        byte[] data = text.getBytes("UTF-8");
+        df.setBody(data, "UTF-8");
+        return df;
+    }
+
+    @Test
+    public void streamedContentHasSameDigestAsInMemoryContent() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 10000) {
+            sb.append(TEXT);
+        }
+        TieredBodyStore heap = new TieredBodyStore();
+        heap.setHeapThreshold(1024 * 1024);
+        DataFile inMemory = embedded(sb.toString(), heap);
+        DataFile streamed = embedded(sb.toString(), new TieredBodyStore());
+        Assert.assertTrue(streamed.hasCachedBody());
+        Assert.assertFalse(inMemory.hasCachedBody());
+
+        ByteArrayOutputStream out1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+        inMemory.calculateFileSizeAndDigest(out1);
+        streamed.calculateFileSizeAndDigest(out2);
+        Assert.assertArrayEquals(out1.toByteArray(), out2.toByteArray());
+        Assert.assertArrayEquals(inMemory.getDigest(), streamed.getDigest());
+        Assert.assertEquals(sb.toString(), streamed.getBodyAsString());
+    }
+}
@@ -0,0 +1,63 @@
+package ee.sk.utils;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ee.sk.digidoc.SignedDoc;
+
+public class ConvertUtilsTest {
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private static SimpleDateFormat format(String pattern) {
+        SimpleDateFormat f = new SimpleDateFormat(pattern);
+        f.setTimeZone(TimeZone.getTimeZone("GMT+00:00"));
+        return f;
+    }
+
+    @Test
+    public void datesMatchSimpleDateFormat() throws Exception {
+        SignedDoc xades = new SignedDoc(SignedDoc.FORMAT_DIGIDOC_XML, SignedDoc.VERSION_1_3);
+        SignedDoc legacy = new SignedDoc(SignedDoc.FORMAT_DIGIDOC_XML, SignedDoc.VERSION_1_2);
+        SimpleDateFormat fx = format("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        SimpleDateFormat fl = format("yyyy.MM.dd'T'HH:mm:ss'Z'");
+        long[] samples = { 0L, 951782399000L, 951868800000L, 1330473600000L, 1356998399000L, 
+                -2208988800000L, 253402300799000L };
+        for (long millis : samples) {
+            Date d = new Date(millis);
+            Assert.assertEquals(fx.format(d), ConvertUtils.date2string(d, xades));
+            Assert.assertEquals(fl.format(d), ConvertUtils.date2string(d, legacy));
+            Assert.assertEquals(d, ConvertUtils.string2date(fx.format(d), xades));
+            Assert.assertEquals(d, ConvertUtils.string2date(" " + fl.format(d) + "\n", legacy));
+        }
+    }
+
+    @Test
+    public void nonFixedInputUsesLenientParser() throws Exception {
+        SignedDoc xades = new SignedDoc(SignedDoc.FORMAT_DIGIDOC_XML, SignedDoc.VERSION_1_3);
+        SimpleDateFormat fx = format("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        Assert.assertEquals(fx.parse("2012-2-3T4:05:06Z"), ConvertUtils.string2date("2012-2-3T4:05:06Z", xades));
+        Assert.assertEquals(fx.parse("2012-02-30T10:00:00Z"), ConvertUtils.string2date("2012-02-30T10:00:00Z", xades));
+        Assert.assertNull(ConvertUtils.string2date("  ", xades));
+    }
+
+    @Test
+    public void julianDatesMatchSimpleDateFormat() throws Exception {
+        SignedDoc xades = new SignedDoc(SignedDoc.FORMAT_DIGIDOC_XML, SignedDoc.VERSION_1_3);
+        SimpleDateFormat fx = format("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        String[] samples = { "0100-03-01T00:00:00Z", "1582-10-04T23:59:59Z", "1582-10-15T00:00:00Z",
+                "1582-12-31T23:59:59Z", "1583-01-01T00:00:00Z" };
+        for (String str : samples) {
+            Date d = fx.parse(str);
+            Assert.assertEquals(d, ConvertUtils.string2date(str, xades));
+            Assert.assertEquals(str, ConvertUtils.date2string(d, xades));
+        }
+        // the day after 1582-10-04 is 1582-10-15
+        Assert.assertEquals(MILLIS_PER_DAY, ConvertUtils.string2date("1582-10-15T00:00:00Z", xades).getTime()
+                - ConvertUtils.string2date("1582-10-04T00:00:00Z", xades).getTime());
+    }
+}
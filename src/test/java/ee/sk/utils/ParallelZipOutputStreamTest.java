@@ -0,0 +1,140 @@
+package ee.sk.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelZipOutputStreamTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static byte[] text(int size) {
+        Random rnd = new Random(size);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append("<row id=\"").append(rnd.nextInt(100000)).append("\">value ").append(rnd.nextInt(50))
+                    .append("</row>\n");
+        }
+        return sb.substring(0, size).getBytes();
+    }
+
+    @Test
+    public void combinesCrc() {
+        byte[] data = text(300000);
+        CRC32 all = new CRC32();
+        all.update(data);
+        CRC32 a = new CRC32();
+        a.update(data, 0, 100001);
+        CRC32 b = new CRC32();
+        b.update(data, 100001, data.length - 100001);
+        assertEquals(all.getValue(),
+                ParallelZipOutputStream.crc32Combine(a.getValue(), b.getValue(), data.length - 100001));
+    }
+
+    @Test
+    public void writesStandardZip() throws Exception {
+        byte[][] contents = { new byte[0], "mimetype".getBytes(), text(ParallelZipOutputStream.BLOCK_SIZE),
+                text(5 * ParallelZipOutputStream.BLOCK_SIZE + 12345) };
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ParallelZipOutputStream zos = new ParallelZipOutputStream(bos, executor, 2);
+        for (int i = 0; i < contents.length; i++) {
+            zos.putNextEntry(new ZipEntry("dir/entry" + i + ".xml"));
+            // odd sized writes to cross block boundaries
+            for (int off = 0; off < contents[i].length; off += 7001) {
+                zos.write(contents[i], off, Math.min(7001, contents[i].length - off));
+            }
+        }
+        zos.close();
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        for (int i = 0; i < contents.length; i++) {
+            ZipEntry e = zis.getNextEntry();
+            assertEquals("dir/entry" + i + ".xml", e.getName());
+            assertArrayEquals(contents[i], IOUtils.toByteArray(zis));
+        }
+        assertNull(zis.getNextEntry());
+
+        File file = File.createTempFile("jdigidoc", ".zip");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write(bos.toByteArray());
+            fos.close();
+            ZipFile zf = new ZipFile(file);
+            try {
+                assertEquals(contents.length, zf.size());
+                ZipEntry e = zf.getEntry("dir/entry3.xml");
+                CRC32 crc = new CRC32();
+                crc.update(contents[3]);
+                assertEquals(crc.getValue(), e.getCrc());
+                assertEquals(contents[3].length, e.getSize());
+                InputStream is = zf.getInputStream(e);
+                assertArrayEquals(contents[3], IOUtils.toByteArray(is));
+                is.close();
+            } finally {
+                zf.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void writesArchiveComment() throws Exception {
+        String comment = "Sertifitseerimiskeskus \u00f5\u00e4\u00f6\u00fc";
+        File file = File.createTempFile("jdigidoc", ".zip");
+        try {
+            ParallelZipOutputStream zos = new ParallelZipOutputStream(new FileOutputStream(file), executor);
+            zos.setComment(comment);
+            zos.putNextEntry(new ZipEntry("mimetype"));
+            zos.write("application/vnd.etsi.asic-e+zip".getBytes());
+            zos.close();
+            ZipFile zf = new ZipFile(file);
+            try {
+                assertEquals(comment, zf.getComment());
+                assertEquals(1, zf.size());
+            } finally {
+                zf.close();
+            }
+        } finally {
+            file.delete();
+        }
+
+        ParallelZipOutputStream zos = new ParallelZipOutputStream(new ByteArrayOutputStream(), executor);
+        try {
+            zos.setComment(new String(new char[0x10000]).replace('\0', 'x'));
+            fail("comment longer than 0xFFFF bytes accepted");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        zos.close();
+    }
+}
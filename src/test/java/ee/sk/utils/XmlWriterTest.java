@@ -0,0 +1,55 @@
+package ee.sk.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class XmlWriterTest {
+
+    @Test
+    public void base64MatchesBase64Util() throws Exception {
+        Random rnd = new Random(1);
+        for (int len = 0; len < 200; len++) {
+            byte[] data = new byte[len];
+            rnd.nextBytes(data);
+            for (int wrap : new int[] { 0, 64, 76 }) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                XmlWriter w = new XmlWriter(bos);
+                w.writeBase64(data, wrap);
+                w.flush();
+                Assert.assertEquals(Base64Util.encode(data, wrap), bos.toString("UTF-8"));
+            }
+        }
+    }
+
+    @Test
+    public void writesUtf8AndEscapes() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        XmlWriter w = new XmlWriter(bos);
+        w.write("<a b=\"");
+        w.writeAttribute("Tõnu & \"Ülo\" <x>\n");
+        w.write("\">");
+        w.writeText("1 < 2 & 3 > 2 😀");
+        w.write(-1234567890123L);
+        w.write("</a>");
+        w.flush();
+        Assert.assertEquals("<a b=\"Tõnu &amp; &quot;Ülo&quot; &lt;x>&#xA;\">1 &lt; 2 &amp; 3 &gt; 2 😀-1234567890123</a>",
+                bos.toString("UTF-8"));
+    }
+
+    @Test
+    public void digestMatchesStream() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append("<e>").append(i).append("</e>\n");
+        }
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        XmlWriter w = new XmlWriter(md);
+        w.write(sb.toString());
+        w.flush();
+        Assert.assertArrayEquals(DDUtils.digest(sb.toString().getBytes("UTF-8")), md.digest());
+    }
+}